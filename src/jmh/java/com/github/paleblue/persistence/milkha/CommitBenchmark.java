@@ -0,0 +1,72 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.util.Futures;
+
+/**
+ * Commit latency, including post-commit unlocks, as the number of staged items grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int stagedItems;
+
+    private ExecutorService executorService;
+    private TransactionManager txManager;
+    private List<UpdateItemRequest> updateItemRequests;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executorService = Executors.newFixedThreadPool(16);
+        txManager = new TransactionCoordinatorBuilder(new StubAmazonDynamoDB(), executorService).buildTransactionManager();
+        BankAccountItemMapper bankAccountItemMapper = new BankAccountItemMapper();
+        updateItemRequests = new ArrayList<>(stagedItems);
+        for (int i = 0; i < stagedItems; i++) {
+            updateItemRequests.add(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem("DrEvil", "account-" + i, i)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public Transaction commit() {
+        Transaction transaction = txManager.beginTransaction();
+        for (UpdateItemRequest updateItemRequest : updateItemRequests) {
+            transaction.createItem(updateItemRequest);
+        }
+        Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(30));
+        return transaction;
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+
+/**
+ * Throughput of isolating a scanned page as the share of items locked by other transactions grows. The stub copies
+ * the page on every scan, which is a constant cost across parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IsolationBenchmark {
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({"0.0", "0.1", "0.5", "1.0"})
+    private double lockedItemRatio;
+
+    private ExecutorService executorService;
+    private TransactionManager txManager;
+    private ScanRequest scanRequest;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BankAccountItemMapper bankAccountItemMapper = new BankAccountItemMapper();
+        List<Map<String, AttributeValue>> page = new ArrayList<>(PAGE_SIZE);
+        int lockedItems = (int) (PAGE_SIZE * lockedItemRatio);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Map<String, AttributeValue> item = new HashMap<>(bankAccountItemMapper.marshall(new BankAccountItem("DrEvil", "account-" + i, i)));
+            if (i < lockedItems) {
+                item.put(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD, new AttributeValue(UUID.randomUUID().toString()));
+                item.put(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD, new AttributeValue(TransactionCoordinator.TRANSACTION_OPERATION_ADD_VALUE));
+            }
+            page.add(item);
+        }
+        executorService = Executors.newSingleThreadExecutor();
+        txManager = new TransactionCoordinatorBuilder(new StubAmazonDynamoDB(page), executorService).buildTransactionManager();
+        scanRequest = bankAccountItemMapper.generateScanRequest();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public ScanResult isolatePage() {
+        return txManager.scan(scanRequest);
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+
+/**
+ * In-process client that answers instantly so benchmarks measure library overhead rather than network time. Writes
+ * succeed without being stored, query and scan return copies of a fixed page and every TransactionLog lookup finds
+ * a COMMITTED transaction.
+ */
+final class StubAmazonDynamoDB extends AbstractAmazonDynamoDB {
+
+    private final TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+    private final List<Map<String, AttributeValue>> page;
+
+    StubAmazonDynamoDB() {
+        this(Collections.emptyList());
+    }
+
+    StubAmazonDynamoDB(List<Map<String, AttributeValue>> page) {
+        this.page = page;
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        return new PutItemResult();
+    }
+
+    @Override
+    public UpdateItemResult updateItem(UpdateItemRequest request) {
+        return new UpdateItemResult();
+    }
+
+    @Override
+    public DeleteItemResult deleteItem(DeleteItemRequest request) {
+        return new DeleteItemResult();
+    }
+
+    @Override
+    public QueryResult query(QueryRequest request) {
+        List<Map<String, AttributeValue>> items = copyOfPage();
+        return new QueryResult().withItems(items).withCount(items.size());
+    }
+
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        List<Map<String, AttributeValue>> items = copyOfPage();
+        return new ScanResult().withItems(items).withCount(items.size());
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(Map<String, KeysAndAttributes> requestItems) {
+        return batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        for (Map.Entry<String, KeysAndAttributes> entry : request.getRequestItems().entrySet()) {
+            List<Map<String, AttributeValue>> txLogItems = new ArrayList<>(entry.getValue().getKeys().size());
+            for (Map<String, AttributeValue> key : entry.getValue().getKeys()) {
+                String transactionId = key.get(TransactionLogItemMapper.TRANSACTION_ID_KEY_NAME).getS();
+                txLogItems.add(txLogItemMapper.marshall(new TransactionLogItem(transactionId, TransactionStatus.COMMITTED, 10000L, 20000L)));
+            }
+            responses.put(entry.getKey(), txLogItems);
+        }
+        return new BatchGetItemResult().withResponses(responses).withUnprocessedKeys(Collections.emptyMap());
+    }
+
+    // Isolation strips control fields in place, so every call hands out fresh item maps.
+    private List<Map<String, AttributeValue>> copyOfPage() {
+        List<Map<String, AttributeValue>> items = new ArrayList<>(page.size());
+        for (Map<String, AttributeValue> item : page) {
+            items.add(new HashMap<>(item));
+        }
+        return items;
+    }
+}
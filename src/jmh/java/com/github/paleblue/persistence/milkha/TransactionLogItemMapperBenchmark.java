@@ -0,0 +1,69 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+
+/**
+ * Marshalling cost of TransactionLog items as their commit sets grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionLogItemMapperBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int commitSetSize;
+
+    private TransactionLogItemMapper txLogItemMapper;
+    private TransactionLogItem txLogItem;
+    private Map<String, AttributeValue> rawTxLogItem;
+
+    @Setup
+    public void setup() {
+        BankAccountItemMapper bankAccountItemMapper = new BankAccountItemMapper();
+        txLogItemMapper = new TransactionLogItemMapper();
+        txLogItem = new TransactionLogItem(UUID.randomUUID().toString(), TransactionStatus.START_COMMIT, 10000L, 20000L);
+        for (int i = 0; i < commitSetSize; i++) {
+            BankAccountItem bankAccountItem = new BankAccountItem("DrEvil", "account-" + i, i);
+            if (i % 2 == 0) {
+                txLogItem.addToCreateSet(bankAccountItemMapper.getTableName(), bankAccountItemMapper.getPrimaryKeyMap(bankAccountItem.getBeneficiaryName(), bankAccountItem.getAccountType()));
+            } else {
+                txLogItem.addToDeleteSet(bankAccountItemMapper.getTableName(), bankAccountItemMapper.getPrimaryKeyMap(bankAccountItem.getBeneficiaryName(), bankAccountItem.getAccountType()));
+            }
+        }
+        rawTxLogItem = txLogItemMapper.marshall(txLogItem);
+    }
+
+    @Benchmark
+    public Map<String, AttributeValue> marshall() {
+        return txLogItemMapper.marshall(txLogItem);
+    }
+
+    @Benchmark
+    public TransactionLogItem unmarshall() {
+        return txLogItemMapper.unmarshall(rawTxLogItem);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+
+/**
+ * Cost of generating the per-item requests a transaction stages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionRequestsFactoryBenchmark {
+
+    private TransactionRequestsFactory txRequestsFactory;
+    private String transactionId;
+    private UpdateItemRequest updateItemRequest;
+    private UpdateItemRequest preparedUpdateItemRequest;
+    private DeleteItemRequest deleteItemRequest;
+    private TransactionLogItem txLogItem;
+
+    @Setup
+    public void setup() {
+        BankAccountItemMapper bankAccountItemMapper = new BankAccountItemMapper();
+        txRequestsFactory = new TransactionRequestsFactory(new TransactionLogItemMapper());
+        transactionId = UUID.randomUUID().toString();
+        BankAccountItem bankAccountItem = new BankAccountItem("DrEvil", "savings", 1000000);
+        updateItemRequest = bankAccountItemMapper.generateUpdateItemRequest(bankAccountItem);
+        preparedUpdateItemRequest = txRequestsFactory.generateCommitRequestForAdd(transactionId, updateItemRequest);
+        deleteItemRequest = bankAccountItemMapper.generateDeleteItemRequest(bankAccountItem.getBeneficiaryName(), bankAccountItem.getAccountType());
+        txLogItem = new TransactionLogItem(transactionId, TransactionStatus.NOT_PERSISTED, 10000L, 20000L);
+        txLogItem.addToCreateSet(updateItemRequest.getTableName(), updateItemRequest.getKey());
+        txLogItem.setTransactionStatus(TransactionStatus.START_COMMIT);
+    }
+
+    @Benchmark
+    public UpdateItemRequest commitRequestForAdd() {
+        return txRequestsFactory.generateCommitRequestForAdd(transactionId, updateItemRequest);
+    }
+
+    @Benchmark
+    public UpdateItemRequest commitRequestForDelete() {
+        return txRequestsFactory.generateCommitRequestForDelete(transactionId, deleteItemRequest);
+    }
+
+    @Benchmark
+    public UpdateItemRequest postCommitUnlockRequestForAdd() {
+        return txRequestsFactory.generatePostCommitUnlockRequestForAdd(transactionId, preparedUpdateItemRequest);
+    }
+
+    @Benchmark
+    public DeleteItemRequest postRollbackUnlockRequestForAdd() {
+        return txRequestsFactory.generatePostRollbackUnlockRequestForAdd(transactionId, preparedUpdateItemRequest);
+    }
+
+    @Benchmark
+    public PutItemRequest putRequestForTransactionLogItem() {
+        return txRequestsFactory.generatePutRequestForTransactionLogItem(txLogItem);
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.Select;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+
+/**
+ * The projection a read needs for isolation to see the control fields of every item. The control fields are added to
+ * a projection that leaves them out, and removed again from the results along with anything else that was added. An
+ * index that does not project the control fields cannot return them, so a read of such an index projects the base
+ * table key instead and the control fields are read from the base items, see {@link #getBaseKeyNames()}.
+ */
+final class IsolatedRead {
+
+    private static final String PLACEHOLDER_PREFIX = "#milkhaAttr";
+    private static final IsolatedRead UNCHANGED = new IsolatedRead(null, null, null, Collections.emptySet(), null);
+
+    private final String projectionExpression;
+    private final Map<String, String> expressionAttributeNames;
+    private final List<String> attributesToGet;
+    private final Set<String> addedAttributes;
+    private final List<String> baseKeyNames;
+
+    private IsolatedRead(String projectionExpression, Map<String, String> expressionAttributeNames, List<String> attributesToGet,
+            Set<String> addedAttributes, List<String> baseKeyNames) {
+        this.projectionExpression = projectionExpression;
+        this.expressionAttributeNames = expressionAttributeNames;
+        this.attributesToGet = attributesToGet;
+        this.addedAttributes = addedAttributes;
+        this.baseKeyNames = baseKeyNames;
+    }
+
+    /**
+     * @param tableDescription description of the table, only needed if indexName is not null
+     */
+    static IsolatedRead of(TableDescription tableDescription, String indexName, String select, String projectionExpression,
+            Map<String, String> expressionAttributeNames, List<String> attributesToGet) {
+        if (Select.COUNT.toString().equals(select)) {
+            return UNCHANGED; // No items to isolate
+        }
+        List<String> baseKeyNames = null;
+        List<String> requiredAttributes = TransactionCoordinator.TRANSACTION_CONTROL_FIELDS;
+        if (indexName != null && !Select.ALL_ATTRIBUTES.toString().equals(select) && !projectsControlFields(tableDescription, indexName)) {
+            baseKeyNames = tableDescription.getKeySchema().stream().map(KeySchemaElement::getAttributeName).collect(Collectors.toList());
+            requiredAttributes = baseKeyNames;
+        }
+        if (projectionExpression != null) {
+            Map<String, String> names = expressionAttributeNames == null ? new HashMap<>() : new HashMap<>(expressionAttributeNames);
+            Set<String> projectedAttributes = parseProjectedAttributes(projectionExpression, names);
+            StringBuilder projection = new StringBuilder(projectionExpression);
+            Set<String> addedAttributes = new HashSet<>();
+            for (String attribute : requiredAttributes) {
+                if (projectedAttributes.add(attribute)) {
+                    String placeholder = freePlaceholder(names);
+                    names.put(placeholder, attribute);
+                    projection.append(", ").append(placeholder);
+                    addedAttributes.add(attribute);
+                }
+            }
+            return new IsolatedRead(projection.toString(), names, null, addedAttributes, baseKeyNames);
+        }
+        if (attributesToGet != null) {
+            List<String> attributes = new ArrayList<>(attributesToGet);
+            Set<String> addedAttributes = new HashSet<>();
+            for (String attribute : requiredAttributes) {
+                if (!attributes.contains(attribute)) {
+                    attributes.add(attribute);
+                    addedAttributes.add(attribute);
+                }
+            }
+            return new IsolatedRead(null, null, attributes, addedAttributes, baseKeyNames);
+        }
+        return new IsolatedRead(null, null, null, Collections.emptySet(), baseKeyNames); // Every projected attribute is returned
+    }
+
+    QueryRequest applyTo(QueryRequest queryRequest) {
+        if (projectionExpression != null) {
+            return queryRequest.clone().withProjectionExpression(projectionExpression).withExpressionAttributeNames(expressionAttributeNames);
+        }
+        return attributesToGet == null ? queryRequest : queryRequest.clone().withAttributesToGet(attributesToGet);
+    }
+
+    ScanRequest applyTo(ScanRequest scanRequest) {
+        if (projectionExpression != null) {
+            return scanRequest.clone().withProjectionExpression(projectionExpression).withExpressionAttributeNames(expressionAttributeNames);
+        }
+        return attributesToGet == null ? scanRequest : scanRequest.clone().withAttributesToGet(attributesToGet);
+    }
+
+    GetItemRequest applyTo(GetItemRequest getItemRequest) {
+        if (projectionExpression != null) {
+            return getItemRequest.clone().withProjectionExpression(projectionExpression).withExpressionAttributeNames(expressionAttributeNames);
+        }
+        return attributesToGet == null ? getItemRequest : getItemRequest.clone().withAttributesToGet(attributesToGet);
+    }
+
+    KeysAndAttributes applyTo(KeysAndAttributes keysAndAttributes) {
+        if (projectionExpression != null) {
+            return keysAndAttributes.clone().withProjectionExpression(projectionExpression).withExpressionAttributeNames(expressionAttributeNames);
+        }
+        return attributesToGet == null ? keysAndAttributes : keysAndAttributes.clone().withAttributesToGet(attributesToGet);
+    }
+
+    /**
+     * @return attributes the caller did not ask for, to be removed from the results besides the control fields
+     */
+    Set<String> getAddedAttributes() {
+        return addedAttributes;
+    }
+
+    /**
+     * @return key attribute names of the base table if the control fields must be read from the base items, otherwise null
+     */
+    List<String> getBaseKeyNames() {
+        return baseKeyNames;
+    }
+
+    private static boolean projectsControlFields(TableDescription tableDescription, String indexName) {
+        Projection projection = null;
+        if (tableDescription.getLocalSecondaryIndexes() != null) {
+            for (LocalSecondaryIndexDescription index : tableDescription.getLocalSecondaryIndexes()) {
+                if (indexName.equals(index.getIndexName())) {
+                    projection = index.getProjection();
+                }
+            }
+        }
+        if (tableDescription.getGlobalSecondaryIndexes() != null) {
+            for (GlobalSecondaryIndexDescription index : tableDescription.getGlobalSecondaryIndexes()) {
+                if (indexName.equals(index.getIndexName())) {
+                    projection = index.getProjection();
+                }
+            }
+        }
+        if (projection == null) {
+            return false;
+        }
+        return ProjectionType.ALL.toString().equals(projection.getProjectionType())
+                || (projection.getNonKeyAttributes() != null && projection.getNonKeyAttributes().containsAll(TransactionCoordinator.TRANSACTION_CONTROL_FIELDS));
+    }
+
+    // Top-level attribute of every path in the expression, so "#a.b[0], c" projects a and c
+    private static Set<String> parseProjectedAttributes(String projectionExpression, Map<String, String> names) {
+        Set<String> attributes = new HashSet<>();
+        for (String path : projectionExpression.split(",")) {
+            String attribute = path.trim().split("[.\\[]", 2)[0];
+            attributes.add(attribute.startsWith("#") ? names.getOrDefault(attribute, attribute) : attribute);
+        }
+        return attributes;
+    }
+
+    private static String freePlaceholder(Map<String, String> names) {
+        int index = 0;
+        while (names.containsKey(PLACEHOLDER_PREFIX + index)) {
+            index++;
+        }
+        return PLACEHOLDER_PREFIX + index;
+    }
+}
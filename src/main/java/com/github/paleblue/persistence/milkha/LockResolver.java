@@ -0,0 +1,129 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Releases a lock that blocks a commit when the transaction holding it cannot make progress on its own: it is COMMITTED
+ * or ROLLED_BACK and has not unlocked the item yet, or it is still in START_COMMIT past its commit deadline. An expired
+ * transaction is rolled back first with a write conditional on its START_COMMIT status, exactly like the sweeper does,
+ * so a commit that is still running either wins that race or fails to persist COMMITTED. The deadline is judged by the
+ * clock of the host resolving the lock, so one whose clock runs ahead rolls back commits that are still within their
+ * max time to commit; that time must be well above the clock skew between hosts.
+ */
+final class LockResolver {
+
+    private static final Log LOG = LogFactory.getLog(LockResolver.class);
+
+    private final AmazonDynamoDB ddbClient;
+    private final TransactionLogItemMapper txLogItemMapper;
+    private final TransactionRequestsFactory txRequestsFactory;
+    private final TransactionStatusCache txStatusCache;
+    private final LongAdder releasedLockCount;
+
+    LockResolver(AmazonDynamoDB ddbClient, TransactionLogItemMapper txLogItemMapper, TransactionRequestsFactory txRequestsFactory,
+            TransactionStatusCache txStatusCache) {
+        this.ddbClient = checkNotNull(ddbClient);
+        this.txLogItemMapper = checkNotNull(txLogItemMapper);
+        this.txRequestsFactory = checkNotNull(txRequestsFactory);
+        this.txStatusCache = checkNotNull(txStatusCache);
+        this.releasedLockCount = new LongAdder();
+    }
+
+    /**
+     * @param transactionId the transaction trying to lock the item
+     * @return true if the item was locked by a finished or expired transaction and has been unlocked, so that the lock
+     * is worth retrying
+     */
+    boolean releaseStaleLock(String transactionId, String tableName, Map<String, AttributeValue> key) {
+        Map<String, AttributeValue> lockedItem = ddbClient.getItem(generateGetControlFieldsRequest(tableName, key)).getItem();
+        if (lockedItem == null || !lockedItem.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD)) {
+            return false; // Genuine conflict on the item itself, or unlocked in the meantime
+        }
+        String ownerTransactionId = lockedItem.get(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD).getS();
+        if (ownerTransactionId.equals(transactionId)) {
+            return false;
+        }
+        Map<String, AttributeValue> rawOwnerTxLogItem = ddbClient.getItem(new GetItemRequest().
+                withTableName(txLogItemMapper.getTableName()).
+                withKey(txLogItemMapper.getPrimaryKeyMap(ownerTransactionId)).
+                withConsistentRead(true)).getItem();
+        if (rawOwnerTxLogItem == null) {
+            return false; // Not persisted yet, or already swept
+        }
+        TransactionStatus ownerTxStatus = resolveOwnerStatus(txLogItemMapper.unmarshall(rawOwnerTxLogItem));
+        if (ownerTxStatus == null) {
+            return false;
+        }
+        String pendingOperation = lockedItem.get(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD).getS();
+        AmazonWebServiceRequest unlockRequest = txRequestsFactory.generateUnlockRequestForItem(ownerTransactionId,
+                ownerTxStatus == TransactionStatus.COMMITTED, pendingOperation, tableName, key);
+        try {
+            if (unlockRequest instanceof UpdateItemRequest) {
+                ddbClient.updateItem((UpdateItemRequest) unlockRequest);
+            } else {
+                ddbClient.deleteItem((DeleteItemRequest) unlockRequest);
+            }
+        } catch (ConditionalCheckFailedException e) {
+            LOG.debug(String.format("Lock of transaction %s was already released", ownerTransactionId));
+        }
+        releasedLockCount.increment();
+        return true;
+    }
+
+    long getReleasedLockCount() {
+        return releasedLockCount.sum();
+    }
+
+    /**
+     * @return COMMITTED or ROLLED_BACK if the lock can be released accordingly, null if the owner may still finish
+     */
+    private TransactionStatus resolveOwnerStatus(TransactionLogItem ownerTxLogItem) {
+        TransactionStatus ownerTxStatus = ownerTxLogItem.getTransactionStatus();
+        if (ownerTxStatus == TransactionStatus.COMMITTED || ownerTxStatus == TransactionStatus.ROLLED_BACK) {
+            return ownerTxStatus;
+        }
+        Long commitDeadlineMillis = ownerTxLogItem.getCommitDeadlineMillis();
+        if (ownerTxStatus != TransactionStatus.START_COMMIT || commitDeadlineMillis == null || System.currentTimeMillis() <= commitDeadlineMillis) {
+            return null;
+        }
+        ownerTxLogItem.setTransactionStatus(TransactionStatus.ROLLED_BACK);
+        try {
+            ddbClient.putItem(txRequestsFactory.generatePutRequestForTransactionLogItem(ownerTxLogItem));
+        } catch (ConditionalCheckFailedException e) {
+            LOG.debug(String.format("Transaction %s moved on from START_COMMIT before it could be rolled back", ownerTxLogItem.getTransactionId()));
+            return null;
+        }
+        LOG.info(String.format("Rolled back transaction %s that missed its commit deadline", ownerTxLogItem.getTransactionId()));
+        txStatusCache.put(ownerTxLogItem.getTransactionId(), TransactionStatus.ROLLED_BACK);
+        return TransactionStatus.ROLLED_BACK;
+    }
+
+    private GetItemRequest generateGetControlFieldsRequest(String tableName, Map<String, AttributeValue> key) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
+        expressionAttributeNames.put("#txOp", TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD);
+        return new GetItemRequest().
+                withTableName(tableName).
+                withKey(key).
+                withConsistentRead(true).
+                withProjectionExpression("#txId, #txOp").
+                withExpressionAttributeNames(expressionAttributeNames);
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.github.paleblue.persistence.milkha.util.Futures;
+
+/**
+ * Iterates over the isolated items of a paginated query or scan. Up to maxPagesInFlight pages are fetched ahead of the
+ * page being consumed, so isolating one page overlaps with fetching the next ones. Not thread-safe.
+ */
+final class PrefetchingItemIterator implements Iterator<Map<String, AttributeValue>> {
+
+    private final Function<Map<String, AttributeValue>, Page> pageFetcher;
+    private final UnaryOperator<List<Map<String, AttributeValue>>> pageIsolator;
+    private final Executor executor;
+    private final int maxPagesInFlight;
+    private final Deque<CompletableFuture<List<Map<String, AttributeValue>>>> pagesInFlight;
+    private CompletableFuture<Page> lastFetchedPage;
+    private Iterator<Map<String, AttributeValue>> currentPage;
+    private boolean exhausted;
+
+    /**
+     * @param pageFetcher fetches the raw page starting at the given key, or the first page when the key is null
+     * @param pageIsolator turns raw items into the items visible to the caller
+     */
+    PrefetchingItemIterator(Function<Map<String, AttributeValue>, Page> pageFetcher, UnaryOperator<List<Map<String, AttributeValue>>> pageIsolator,
+            Executor executor, int maxPagesInFlight) {
+        checkArgument(maxPagesInFlight > 0, "maxPagesInFlight must be greater than zero");
+        this.pageFetcher = checkNotNull(pageFetcher);
+        this.pageIsolator = checkNotNull(pageIsolator);
+        this.executor = checkNotNull(executor);
+        this.maxPagesInFlight = maxPagesInFlight;
+        this.pagesInFlight = new ArrayDeque<>(maxPagesInFlight);
+        this.currentPage = Collections.emptyIterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            prefetch();
+            List<Map<String, AttributeValue>> nextPage = join(pagesInFlight.poll());
+            if (nextPage == null) {
+                exhausted = true;
+                pagesInFlight.forEach(page -> page.cancel(false));
+                pagesInFlight.clear();
+                return false;
+            }
+            currentPage = nextPage.iterator();
+            prefetch();
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, AttributeValue> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    private void prefetch() {
+        while (pagesInFlight.size() < maxPagesInFlight) {
+            // The next start key is only known once the previous page arrives, so fetches are chained while
+            // isolation of each page runs independently. Pages past the last one resolve to null.
+            CompletableFuture<Page> fetchedPage = lastFetchedPage == null
+                    ? CompletableFuture.supplyAsync(() -> pageFetcher.apply(null), executor)
+                    : lastFetchedPage.thenApplyAsync(previousPage -> previousPage == null || previousPage.lastEvaluatedKey == null
+                            ? null : pageFetcher.apply(previousPage.lastEvaluatedKey), executor);
+            lastFetchedPage = fetchedPage;
+            pagesInFlight.add(fetchedPage.thenApplyAsync(page -> page == null ? null : pageIsolator.apply(page.items), executor));
+        }
+    }
+
+    private static List<Map<String, AttributeValue>> join(CompletableFuture<List<Map<String, AttributeValue>>> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            Throwable cause = Futures.unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    static final class Page {
+        private final List<Map<String, AttributeValue>> items;
+        private final Map<String, AttributeValue> lastEvaluatedKey;
+
+        Page(List<Map<String, AttributeValue>> items, Map<String, AttributeValue> lastEvaluatedKey) {
+            this.items = items;
+            this.lastEvaluatedKey = lastEvaluatedKey;
+        }
+    }
+}
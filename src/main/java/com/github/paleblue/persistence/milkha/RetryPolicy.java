@@ -0,0 +1,149 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+
+/**
+ * Decides whether a throttled coordinator write is retried and after how long. Delays grow exponentially with full
+ * jitter and a retry is only attempted if it can start before the deadline of the commit or rollback. All writes of a
+ * TransactionManager share one token bucket: every retry takes RETRY_COST tokens and every successful write returns one,
+ * so a throttled table sees fewer retries instead of a storm of them. A policy with zero retries is disabled.
+ */
+public final class RetryPolicy {
+
+    static final int RETRY_COST = 5;
+    static final int MAX_UNPROCESSED_KEYS_ATTEMPTS = 10;
+    private static final List<String> THROTTLING_ERROR_CODES = Arrays.asList("ThrottlingException", "RequestLimitExceeded",
+            "ProvisionedThroughputExceededException", "ThrottlingError", "ProvisionedThroughputExceeded");
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int tokenBucketCapacity;
+    private final AtomicInteger availableTokens;
+    private final LongAdder retryCount;
+    private final LongAdder rejectedRetryCount;
+
+    RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis, int tokenBucketCapacity) {
+        checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+        checkArgument(baseDelayMillis > 0, "baseDelayMillis must be greater than zero");
+        checkArgument(maxDelayMillis >= baseDelayMillis, "maxDelayMillis must not be less than baseDelayMillis");
+        checkArgument(tokenBucketCapacity >= 0, "tokenBucketCapacity must not be negative");
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.tokenBucketCapacity = tokenBucketCapacity;
+        this.availableTokens = new AtomicInteger(tokenBucketCapacity);
+        this.retryCount = new LongAdder();
+        this.rejectedRetryCount = new LongAdder();
+    }
+
+    /**
+     * @param attempt number of attempts made so far, starting at one
+     * @return the delay before the next attempt, or -1 if the write must not be retried
+     */
+    long nextRetryDelayMillis(Throwable failure, int attempt, Instant endTime) {
+        if (attempt > maxRetries || !isThrottling(failure)) {
+            return -1L;
+        }
+        long delayMillis = jitteredDelayMillis(attempt);
+        if (!Instant.now().plusMillis(delayMillis).isBefore(endTime)) {
+            rejectedRetryCount.increment();
+            return -1L;
+        }
+        if (!acquireTokens()) {
+            rejectedRetryCount.increment();
+            return -1L;
+        }
+        retryCount.increment();
+        return delayMillis;
+    }
+
+    /**
+     * Delay before reading the UnprocessedKeys of a BatchGetItem call again. Unprocessed keys are not failures, so they
+     * are read again even by a disabled policy and take no tokens, but with the same backoff so that a throttled table
+     * can recover, and only up to MAX_UNPROCESSED_KEYS_ATTEMPTS calls.
+     *
+     * @param attempt number of calls that left keys unprocessed so far, starting at one
+     * @return the delay before the next call, or -1 if the remaining keys must not be read again
+     */
+    long unprocessedKeysDelayMillis(int attempt) {
+        if (attempt >= MAX_UNPROCESSED_KEYS_ATTEMPTS) {
+            return -1L;
+        }
+        return jitteredDelayMillis(attempt);
+    }
+
+    void onSuccess() {
+        if (maxRetries == 0) {
+            return;
+        }
+        int tokens;
+        do {
+            tokens = availableTokens.get();
+            if (tokens >= tokenBucketCapacity) {
+                return;
+            }
+        } while (!availableTokens.compareAndSet(tokens, tokens + 1));
+    }
+
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /**
+     * @return retries skipped because the deadline was too close or the token bucket was empty
+     */
+    public long getRejectedRetryCount() {
+        return rejectedRetryCount.sum();
+    }
+
+    public int getAvailableTokens() {
+        return availableTokens.get();
+    }
+
+    private long jitteredDelayMillis(int attempt) {
+        long exponentialDelayMillis = baseDelayMillis << Math.min(attempt - 1, 30);
+        return ThreadLocalRandom.current().nextLong(Math.min(maxDelayMillis, Math.max(baseDelayMillis, exponentialDelayMillis)) + 1);
+    }
+
+    private boolean acquireTokens() {
+        int tokens;
+        do {
+            tokens = availableTokens.get();
+            if (tokens < RETRY_COST) {
+                return false;
+            }
+        } while (!availableTokens.compareAndSet(tokens, tokens - RETRY_COST));
+        return true;
+    }
+
+    /**
+     * @return true if DynamoDB rejected the request, or a TransactWriteItems call, because of its request rate
+     */
+    public static boolean isThrottling(Throwable failure) {
+        if (failure instanceof ProvisionedThroughputExceededException) {
+            return true;
+        }
+        if (failure instanceof TransactionCanceledException && ((TransactionCanceledException) failure).getCancellationReasons() != null) {
+            for (CancellationReason reason : ((TransactionCanceledException) failure).getCancellationReasons()) {
+                if (THROTTLING_ERROR_CODES.contains(reason.getCode())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return failure instanceof AmazonServiceException && THROTTLING_ERROR_CODES.contains(((AmazonServiceException) failure).getErrorCode());
+    }
+}
@@ -0,0 +1,347 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Transactions found by the sweeper, kept in primitive arrays so that a backlog of millions costs about 70 bytes per
+ * transaction instead of a handful of objects each. Ids that are canonical UUIDs, as the coordinator generates them,
+ * are stored as two longs; any other id is kept as a String on the side. Transactions are ordered by when they are next
+ * due, and the backlog takes no more transactions once it holds capacity of them.
+ *
+ * <p>A transaction is identified by its slot from the time it is polled until it is rescheduled or removed. Only the
+ * first reschedule or remove of a polled transaction takes effect, so a caller may hand back every transaction it polled
+ * after a failure without tracking which of them its tasks already finished.
+ */
+final class SweeperBacklog {
+
+    private static final int INITIAL_SLOTS = 1024;
+
+    static final class DueTransaction {
+        private final int slot;
+        private final int generation;
+        private final String transactionId;
+        private final long firstSeenAtMillis;
+        private final long waitPeriodBeforeSweeperUnlockMillis;
+        private final long waitPeriodBeforeSweeperDeleteMillis;
+
+        private DueTransaction(int slot, int generation, String transactionId, long firstSeenAtMillis, long waitPeriodBeforeSweeperUnlockMillis,
+                long waitPeriodBeforeSweeperDeleteMillis) {
+            this.slot = slot;
+            this.generation = generation;
+            this.transactionId = transactionId;
+            this.firstSeenAtMillis = firstSeenAtMillis;
+            this.waitPeriodBeforeSweeperUnlockMillis = waitPeriodBeforeSweeperUnlockMillis;
+            this.waitPeriodBeforeSweeperDeleteMillis = waitPeriodBeforeSweeperDeleteMillis;
+        }
+
+        int getSlot() {
+            return slot;
+        }
+
+        String getTransactionId() {
+            return transactionId;
+        }
+
+        long getFirstSeenAtMillis() {
+            return firstSeenAtMillis;
+        }
+
+        long getWaitPeriodBeforeSweeperUnlockMillis() {
+            return waitPeriodBeforeSweeperUnlockMillis;
+        }
+
+        long getWaitPeriodBeforeSweeperDeleteMillis() {
+            return waitPeriodBeforeSweeperDeleteMillis;
+        }
+    }
+
+    private final int capacity;
+    private int size;
+
+    // Transactions by slot
+    private long[] idHighBits;
+    private long[] idLowBits;
+    private long[] firstSeenAtMillis;
+    private long[] unlockWaitMillis;
+    private long[] deleteWaitMillis;
+    private long[] dueAtMillis;
+    private int[] generations; // Bumped whenever a slot is handed out, so a stale DueTransaction is not mistaken for its successor
+    private boolean[] polled;
+    private final Map<Integer, String> otherIds; // Slot -> id that is not a canonical UUID
+    private final Map<String, Integer> otherIdSlots;
+    private int usedSlots; // Slots below this have been handed out at least once
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    // Open addressing over the slots of UUID ids, slot + 1 per bucket and 0 if empty
+    private int[] index;
+
+    // Min-heap of slots by dueAtMillis; slots that have been polled are not in it
+    private int[] heap;
+    private int heapSize;
+
+    SweeperBacklog(int capacity) {
+        checkArgument(capacity > 0, "capacity must be greater than zero");
+        this.capacity = capacity;
+        int slots = Math.min(capacity, INITIAL_SLOTS);
+        this.idHighBits = new long[slots];
+        this.idLowBits = new long[slots];
+        this.firstSeenAtMillis = new long[slots];
+        this.unlockWaitMillis = new long[slots];
+        this.deleteWaitMillis = new long[slots];
+        this.dueAtMillis = new long[slots];
+        this.generations = new int[slots];
+        this.polled = new boolean[slots];
+        this.freeSlots = new int[slots];
+        this.heap = new int[slots];
+        this.index = new int[indexLengthFor(slots)];
+        this.otherIds = new HashMap<>();
+        this.otherIdSlots = new HashMap<>();
+    }
+
+    /**
+     * Adds the transaction, due once its wait period before unlocking has elapsed.
+     *
+     * @return true if the transaction is in the backlog, whether it was just added or already there; false if the
+     *         backlog is full
+     */
+    synchronized boolean add(String transactionId, long txFirstSeenAtMillis, long waitPeriodBeforeSweeperUnlockMillis,
+            long waitPeriodBeforeSweeperDeleteMillis) {
+        UUID uuid = parseCanonicalUuid(transactionId);
+        if (findSlot(transactionId, uuid) >= 0) {
+            return true;
+        }
+        if (size == capacity) {
+            return false;
+        }
+        int slot = allocateSlot();
+        firstSeenAtMillis[slot] = txFirstSeenAtMillis;
+        unlockWaitMillis[slot] = waitPeriodBeforeSweeperUnlockMillis;
+        deleteWaitMillis[slot] = waitPeriodBeforeSweeperDeleteMillis;
+        if (uuid == null) {
+            otherIds.put(slot, transactionId);
+            otherIdSlots.put(transactionId, slot);
+        } else {
+            idHighBits[slot] = uuid.getMostSignificantBits();
+            idLowBits[slot] = uuid.getLeastSignificantBits();
+            addToIndex(slot);
+        }
+        size++;
+        schedule(slot, txFirstSeenAtMillis + waitPeriodBeforeSweeperUnlockMillis);
+        return true;
+    }
+
+    synchronized boolean contains(String transactionId) {
+        return findSlot(transactionId, parseCanonicalUuid(transactionId)) >= 0;
+    }
+
+    /**
+     * Takes up to maxTransactions of the transactions due at nowMillis out of the queue, earliest first. Each must be
+     * either rescheduled or removed.
+     */
+    synchronized List<DueTransaction> pollDue(long nowMillis, int maxTransactions) {
+        List<DueTransaction> dueTransactions = new ArrayList<>(Math.min(maxTransactions, heapSize));
+        while (dueTransactions.size() < maxTransactions && heapSize > 0 && dueAtMillis[heap[0]] <= nowMillis) {
+            int slot = popHeap();
+            polled[slot] = true;
+            dueTransactions.add(new DueTransaction(slot, generations[slot], transactionIdOf(slot), firstSeenAtMillis[slot],
+                    unlockWaitMillis[slot], deleteWaitMillis[slot]));
+        }
+        return dueTransactions;
+    }
+
+    /**
+     * @return false if the transaction was already rescheduled or removed since it was polled
+     */
+    synchronized boolean reschedule(DueTransaction dueTransaction, long newDueAtMillis) {
+        if (!isPolled(dueTransaction)) {
+            return false;
+        }
+        polled[dueTransaction.getSlot()] = false;
+        schedule(dueTransaction.getSlot(), newDueAtMillis);
+        return true;
+    }
+
+    /**
+     * @return false if the transaction was already rescheduled or removed since it was polled
+     */
+    synchronized boolean remove(DueTransaction dueTransaction) {
+        if (!isPolled(dueTransaction)) {
+            return false;
+        }
+        int slot = dueTransaction.getSlot();
+        polled[slot] = false;
+        String otherId = otherIds.remove(slot);
+        if (otherId == null) {
+            removeFromIndex(slot);
+        } else {
+            otherIdSlots.remove(otherId);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        size--;
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isFull() {
+        return size == capacity;
+    }
+
+    private boolean isPolled(DueTransaction dueTransaction) {
+        int slot = dueTransaction.getSlot();
+        return polled[slot] && generations[slot] == dueTransaction.generation;
+    }
+
+    private String transactionIdOf(int slot) {
+        String otherId = otherIds.get(slot);
+        return otherId != null ? otherId : new UUID(idHighBits[slot], idLowBits[slot]).toString();
+    }
+
+    private int findSlot(String transactionId, UUID uuid) {
+        if (uuid == null) {
+            Integer slot = otherIdSlots.get(transactionId);
+            return slot == null ? -1 : slot;
+        }
+        long high = uuid.getMostSignificantBits();
+        long low = uuid.getLeastSignificantBits();
+        int mask = index.length - 1;
+        for (int bucket = hash(high, low) & mask; index[bucket] != 0; bucket = (bucket + 1) & mask) {
+            int slot = index[bucket] - 1;
+            if (idHighBits[slot] == high && idLowBits[slot] == low) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int allocateSlot() {
+        int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            if (usedSlots == idHighBits.length) {
+                grow();
+            }
+            slot = usedSlots++;
+        }
+        generations[slot]++;
+        return slot;
+    }
+
+    private void grow() {
+        int slots = (int) Math.min(capacity, 2L * idHighBits.length);
+        idHighBits = Arrays.copyOf(idHighBits, slots);
+        idLowBits = Arrays.copyOf(idLowBits, slots);
+        firstSeenAtMillis = Arrays.copyOf(firstSeenAtMillis, slots);
+        unlockWaitMillis = Arrays.copyOf(unlockWaitMillis, slots);
+        deleteWaitMillis = Arrays.copyOf(deleteWaitMillis, slots);
+        dueAtMillis = Arrays.copyOf(dueAtMillis, slots);
+        generations = Arrays.copyOf(generations, slots);
+        polled = Arrays.copyOf(polled, slots);
+        freeSlots = Arrays.copyOf(freeSlots, slots);
+        heap = Arrays.copyOf(heap, slots);
+        int[] oldIndex = index;
+        index = new int[indexLengthFor(slots)];
+        for (int entry : oldIndex) {
+            if (entry != 0) {
+                addToIndex(entry - 1);
+            }
+        }
+    }
+
+    private void addToIndex(int slot) {
+        int mask = index.length - 1;
+        int bucket = hash(idHighBits[slot], idLowBits[slot]) & mask;
+        while (index[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        index[bucket] = slot + 1;
+    }
+
+    // Moves the later entries of the probe sequence back into the hole, so lookups need no tombstones
+    private void removeFromIndex(int slot) {
+        int mask = index.length - 1;
+        int hole = hash(idHighBits[slot], idLowBits[slot]) & mask;
+        while (index[hole] != slot + 1) {
+            hole = (hole + 1) & mask;
+        }
+        for (int bucket = (hole + 1) & mask; index[bucket] != 0; bucket = (bucket + 1) & mask) {
+            int home = hash(idHighBits[index[bucket] - 1], idLowBits[index[bucket] - 1]) & mask;
+            if (((bucket - home) & mask) >= ((bucket - hole) & mask)) {
+                index[hole] = index[bucket];
+                hole = bucket;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private void schedule(int slot, long newDueAtMillis) {
+        dueAtMillis[slot] = newDueAtMillis;
+        int child = heapSize++;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (dueAtMillis[heap[parent]] <= newDueAtMillis) {
+                break;
+            }
+            heap[child] = heap[parent];
+            child = parent;
+        }
+        heap[child] = slot;
+    }
+
+    private int popHeap() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && dueAtMillis[heap[child + 1]] < dueAtMillis[heap[child]]) {
+                child++;
+            }
+            if (dueAtMillis[last] <= dueAtMillis[heap[child]]) {
+                break;
+            }
+            heap[parent] = heap[child];
+            parent = child;
+        }
+        heap[parent] = last;
+        return top;
+    }
+
+    // At most half full
+    private static int indexLengthFor(int slots) {
+        return Integer.highestOneBit(Math.max(1, slots - 1)) << 2;
+    }
+
+    private static int hash(long high, long low) {
+        long mixed = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    // UUID.fromString also accepts ids such as "1-1-1-1-1", which would not come back as the same string
+    private static UUID parseCanonicalUuid(String transactionId) {
+        if (transactionId.length() != 36 || transactionId.charAt(8) != '-' || transactionId.charAt(13) != '-'
+                || transactionId.charAt(18) != '-' || transactionId.charAt(23) != '-') {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(transactionId);
+            return uuid.toString().equals(transactionId) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
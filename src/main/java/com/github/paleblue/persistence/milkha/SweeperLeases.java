@@ -0,0 +1,204 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.dto.SweeperLease;
+import com.github.paleblue.persistence.milkha.mapper.SweeperLeaseMapper;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Leases on the partitions of the TransactionLog held by one sweeper. Every heartbeat renews the leases it holds, drops
+ * those another sweeper took, and takes leases up to a fair share of the partitions among the sweepers holding live
+ * leases: free and expired leases first, then one lease per heartbeat from the sweeper holding the most. A crashed
+ * sweeper stops renewing, so its leases expire and the others take them over.
+ *
+ * <p>Expiry is judged by the clock of the sweeper reading the lease, so the lease duration must be well above the
+ * clock skew between hosts. Two sweepers may briefly sweep the same partition while one takes it from the other, which
+ * only costs the repeated requests.
+ */
+final class SweeperLeases {
+
+    private static final Log LOG = LogFactory.getLog(SweeperLeases.class);
+
+    private final AmazonDynamoDB ddbClient;
+    private final SweeperLeaseMapper leaseMapper;
+    private final String owner;
+    private final int partitions;
+    private final Map<String, Integer> partitionsByLeaseKey;
+    private final long leaseDurationMillis;
+    private final Set<Integer> heldPartitions;
+    private final Map<Integer, Long> checkpoints; // Held partitions that have been scanned -> checkpoint
+    private volatile Long scanEpochCheckpointMillis;
+
+    SweeperLeases(AmazonDynamoDB ddbClient, SweeperLeaseMapper leaseMapper, String owner, int partitions, long leaseDurationMillis) {
+        checkArgument(partitions > 0, "partitions must be greater than zero");
+        checkArgument(leaseDurationMillis > 0, "leaseDurationMillis must be greater than zero");
+        this.ddbClient = checkNotNull(ddbClient);
+        this.leaseMapper = checkNotNull(leaseMapper);
+        this.owner = checkNotNull(owner);
+        this.partitions = partitions;
+        this.partitionsByLeaseKey = new HashMap<>(partitions * 2);
+        for (int partition = 0; partition < partitions; partition++) {
+            partitionsByLeaseKey.put(leaseMapper.getPartitionLeaseKey(partition), partition);
+        }
+        this.leaseDurationMillis = leaseDurationMillis;
+        this.heldPartitions = ConcurrentHashMap.newKeySet();
+        this.checkpoints = new ConcurrentHashMap<>();
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    long getLeaseDurationMillis() {
+        return leaseDurationMillis;
+    }
+
+    Set<Integer> getHeldPartitions() {
+        return new TreeSet<>(heldPartitions);
+    }
+
+    /**
+     * @return checkpoint of a held partition, or null if the partition has not been scanned yet
+     */
+    Long getCheckpointMillis(int partition) {
+        return checkpoints.get(partition);
+    }
+
+    /**
+     * @return false if the lease was lost, in which case the partition is no longer held
+     */
+    boolean saveCheckpointMillis(int partition, long checkpointMillis) {
+        try {
+            ddbClient.updateItem(leaseMapper.generateSaveCheckpointRequest(leaseMapper.getPartitionLeaseKey(partition), owner, checkpointMillis));
+            checkpoints.put(partition, checkpointMillis);
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            LOG.info(String.format("Lost the lease of partition %d while saving its checkpoint", partition));
+            drop(partition);
+            return false;
+        }
+    }
+
+    /**
+     * The checkpoint every partition starts from once scanned. The first sweeper to scan records it, so it is older
+     * than the start of every partition scan.
+     */
+    long getScanEpochCheckpointMillis(long proposedCheckpointMillis) {
+        if (scanEpochCheckpointMillis == null) {
+            try {
+                ddbClient.putItem(leaseMapper.generateCreateScanEpochRequest(proposedCheckpointMillis));
+                scanEpochCheckpointMillis = proposedCheckpointMillis;
+            } catch (ConditionalCheckFailedException e) {
+                Map<String, AttributeValue> rawScanEpoch = ddbClient.getItem(leaseMapper.generateGetItemRequest(SweeperLeaseMapper.SCAN_EPOCH_LEASE_KEY)).getItem();
+                scanEpochCheckpointMillis = leaseMapper.unmarshall(rawScanEpoch).getCheckpointMillis();
+            }
+        }
+        return scanEpochCheckpointMillis;
+    }
+
+    synchronized void heartbeat() {
+        long nowMillis = System.currentTimeMillis();
+        renewLeases(nowMillis);
+        takeFairShare(nowMillis);
+    }
+
+    private void renewLeases(long nowMillis) {
+        for (Integer partition : new ArrayList<>(heldPartitions)) {
+            try {
+                ddbClient.updateItem(leaseMapper.generateRenewLeaseRequest(leaseMapper.getPartitionLeaseKey(partition), owner, nowMillis + leaseDurationMillis));
+            } catch (ConditionalCheckFailedException e) {
+                LOG.info(String.format("Lost the lease of partition %d to another sweeper", partition));
+                drop(partition);
+            }
+        }
+    }
+
+    private void takeFairShare(long nowMillis) {
+        Map<Integer, SweeperLease> leases = readLeases();
+        Map<String, List<Integer>> livePartitionsByOwner = new HashMap<>();
+        Set<String> liveOwners = new HashSet<>();
+        liveOwners.add(owner);
+        for (int partition = 0; partition < partitions; partition++) {
+            SweeperLease lease = leases.get(partition);
+            if (lease != null && lease.getOwner() != null && !lease.isExpiredAt(nowMillis)) {
+                liveOwners.add(lease.getOwner());
+                livePartitionsByOwner.computeIfAbsent(lease.getOwner(), ignored -> new ArrayList<>()).add(partition);
+            }
+        }
+        int fairShare = (partitions + liveOwners.size() - 1) / liveOwners.size();
+        for (int partition = 0; partition < partitions && heldPartitions.size() < fairShare; partition++) {
+            SweeperLease lease = leases.get(partition);
+            if (lease == null || lease.getOwner() == null || lease.isExpiredAt(nowMillis)) {
+                takeLease(partition, lease, nowMillis);
+            }
+        }
+        if (heldPartitions.size() < fairShare) {
+            String busiestOwner = null;
+            for (Map.Entry<String, List<Integer>> entry : livePartitionsByOwner.entrySet()) {
+                if (!owner.equals(entry.getKey()) && entry.getValue().size() > fairShare
+                        && (busiestOwner == null || entry.getValue().size() > livePartitionsByOwner.get(busiestOwner).size())) {
+                    busiestOwner = entry.getKey();
+                }
+            }
+            if (busiestOwner != null) {
+                int partition = livePartitionsByOwner.get(busiestOwner).get(0);
+                takeLease(partition, leases.get(partition), nowMillis);
+            }
+        }
+    }
+
+    private void takeLease(int partition, SweeperLease lastSeenLease, long nowMillis) {
+        try {
+            Map<String, AttributeValue> rawLease = ddbClient.updateItem(leaseMapper.generateTakeLeaseRequest(leaseMapper.getPartitionLeaseKey(partition),
+                    lastSeenLease, owner, nowMillis + leaseDurationMillis)).getAttributes();
+            Long checkpointMillis = leaseMapper.unmarshall(rawLease).getCheckpointMillis();
+            if (checkpointMillis != null) {
+                checkpoints.put(partition, checkpointMillis);
+            }
+            heldPartitions.add(partition);
+            LOG.info(String.format("Took the lease of partition %d from %s", partition, lastSeenLease == null ? "nobody" : lastSeenLease.getOwner()));
+        } catch (ConditionalCheckFailedException e) {
+            LOG.debug(String.format("Another sweeper took the lease of partition %d first", partition));
+        }
+    }
+
+    private Map<Integer, SweeperLease> readLeases() {
+        Map<Integer, SweeperLease> leases = new HashMap<>();
+        ScanRequest scanRequest = leaseMapper.generateScanRequest().withConsistentRead(true);
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        do {
+            ScanResult result = ddbClient.scan(scanRequest.withExclusiveStartKey(exclusiveStartKey));
+            for (Map<String, AttributeValue> rawLease : result.getItems()) {
+                SweeperLease lease = leaseMapper.unmarshall(rawLease);
+                Integer partition = partitionsByLeaseKey.get(lease.getLeaseKey());
+                if (partition != null) {
+                    leases.put(partition, lease); // Leases of other partition counts and the scan epoch are left out
+                }
+            }
+            exclusiveStartKey = result.getLastEvaluatedKey();
+        } while (exclusiveStartKey != null);
+        return leases;
+    }
+
+    private void drop(int partition) {
+        heldPartitions.remove(partition);
+        checkpoints.remove(partition);
+    }
+}
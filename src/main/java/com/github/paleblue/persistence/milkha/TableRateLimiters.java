@@ -0,0 +1,41 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.paleblue.persistence.milkha.util.RateLimiter;
+
+/**
+ * One {@link RateLimiter} per table, shared by every thread writing to it, so that sweeping a large backlog cannot
+ * consume all the write capacity of a table. A rate of zero never waits.
+ */
+final class TableRateLimiters {
+
+    static final TableRateLimiters UNLIMITED = new TableRateLimiters(0);
+
+    private final double writesPerSecondPerTable;
+    private final ConcurrentMap<String, RateLimiter> rateLimiters;
+
+    TableRateLimiters(double writesPerSecondPerTable) {
+        checkArgument(writesPerSecondPerTable >= 0, "writesPerSecondPerTable must not be negative");
+        this.writesPerSecondPerTable = writesPerSecondPerTable;
+        this.rateLimiters = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Blocks until the table may take one more write.
+     */
+    void acquire(String tableName) {
+        if (writesPerSecondPerTable == 0) {
+            return;
+        }
+        try {
+            rateLimiters.computeIfAbsent(tableName, ignored -> new RateLimiter(writesPerSecondPerTable)).acquire(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the write rate limit of " + tableName, e);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.exception.ContentionException;
+import com.github.paleblue.persistence.milkha.exception.TransactionNotStartedException;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogBuckets;
+import com.github.paleblue.persistence.milkha.metrics.PhaseOutcome;
+import com.github.paleblue.persistence.milkha.metrics.TransactionPhase;
+import com.github.paleblue.persistence.milkha.util.Futures;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Handle for a single transaction obtained from {@link TransactionManager#beginTransaction()}. Holds only the
+ * per-transaction state and is not thread-safe.
+ */
+public final class Transaction {
+
+    private static final Log LOG = LogFactory.getLog(Transaction.class);
+
+    private static final int CLIENT_REQUEST_TOKEN_MAX_LENGTH = 36;
+
+    private final TransactionManager txManager;
+    private final TransactionRequestsFactory txRequestsFactory;
+    private final String transactionId;
+    private final List<UpdateItemRequest> stagedUpdatesForCommit;
+    private final List<DeleteItemRequest> stagedDeletesForPostRollbackUnlock;
+    private final List<UpdateItemRequest> stagedUpdatesForPostRollbackUnlock;
+    private final List<UpdateItemRequest> stagedUpdatesForPostCommitUnlock;
+    private final List<DeleteItemRequest> stagedDeletesForPostCommitUnlock;
+    private final List<TransactWriteItem> stagedTransactWriteItems;
+    private TransactionLogItem txLogItem;
+    private CompletableFuture<Void> rollbackAfterContentionFuture;
+
+    Transaction(TransactionManager txManager, TransactionLogItem txLogItem) {
+        this.txManager = txManager;
+        this.txRequestsFactory = txManager.getTxRequestsFactory();
+        this.txLogItem = txLogItem;
+        this.transactionId = txLogItem.getTransactionId();
+        this.stagedUpdatesForCommit = new ArrayList<>();
+        this.stagedUpdatesForPostCommitUnlock = new ArrayList<>();
+        this.stagedDeletesForPostCommitUnlock = new ArrayList<>();
+        this.stagedDeletesForPostRollbackUnlock = new ArrayList<>();
+        this.stagedUpdatesForPostRollbackUnlock = new ArrayList<>();
+        this.stagedTransactWriteItems = new ArrayList<>();
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public void createItem(UpdateItemRequest updateItemRequest) {
+        assertTransactionNotComplete();
+        txLogItem.addToCreateSet(updateItemRequest.getTableName(), updateItemRequest.getKey());
+        UpdateItemRequest preparedUpdateItemRequest = txRequestsFactory.generateCommitRequestForAdd(transactionId, updateItemRequest);
+        stagedUpdatesForCommit.add(preparedUpdateItemRequest);
+        stagedUpdatesForPostCommitUnlock.add(txRequestsFactory.generatePostCommitUnlockRequestForAdd(transactionId, preparedUpdateItemRequest));
+        stagedDeletesForPostRollbackUnlock.add(txRequestsFactory.generatePostRollbackUnlockRequestForAdd(transactionId, preparedUpdateItemRequest));
+        if (txManager.getMaxItemsForTransactWriteItems() > 0) {
+            stagedTransactWriteItems.add(txRequestsFactory.generateTransactWriteItemForAdd(updateItemRequest));
+        }
+    }
+
+    public void deleteItem(DeleteItemRequest deleteItemRequest) {
+        assertTransactionNotComplete();
+        txLogItem.addToDeleteSet(deleteItemRequest.getTableName(), deleteItemRequest.getKey());
+        UpdateItemRequest preparedUpdateItemRequest = txRequestsFactory.generateCommitRequestForDelete(transactionId, deleteItemRequest);
+        stagedUpdatesForCommit.add(preparedUpdateItemRequest);
+        stagedDeletesForPostCommitUnlock.add(txRequestsFactory.generatePostCommitUnlockRequestForDelete(transactionId, preparedUpdateItemRequest));
+        stagedUpdatesForPostRollbackUnlock.add(txRequestsFactory.generatePostRollbackUnlockRequestForDelete(transactionId, preparedUpdateItemRequest));
+        if (txManager.getMaxItemsForTransactWriteItems() > 0) {
+            stagedTransactWriteItems.add(txRequestsFactory.generateTransactWriteItemForDelete(deleteItemRequest));
+        }
+    }
+
+    public List<Future> commit() {
+        assertTransactionNotComplete();
+        boolean isCommittedWithTransactWriteItems = isEligibleForTransactWriteItems();
+        commitWithoutUnlocking();
+        if (isCommittedWithTransactWriteItems) {
+            return Collections.emptyList(); // Nothing was locked, so there is nothing to unlock
+        }
+        return executePostCommitUnlocks();
+    }
+
+    protected List<Future> executePostCommitUnlocks() {
+        return executeUnlockRequests(stagedUpdatesForPostCommitUnlock, stagedDeletesForPostCommitUnlock);
+    }
+
+    protected void commitWithoutUnlocking() {
+        assertTransactionNotComplete();
+        Instant endCommitAtTime = Instant.now().plusMillis(txManager.getMaxTimeToCommitOrRollbackMillis());
+        txManager.getMetricsListener().onCommitStarted(stagedUpdatesForCommit.size());
+        if (isEligibleForTransactWriteItems()) {
+            commitWithTransactWriteItems(endCommitAtTime);
+            return;
+        }
+        txLogItem.setTransactionStatus(TransactionStatus.START_COMMIT);
+        txLogItem.setCommitDeadlineMillis(endCommitAtTime.toEpochMilli());
+        assignSweepBucket();
+        List<PutItemRequest> overflowRequests = txManager.getTxLogItemMapper().generateOverflowPutItemRequests(txLogItem);
+        persistTransactionLogItem(endCommitAtTime, TransactionPhase.PERSIST_START_COMMIT);
+        if (!overflowRequests.isEmpty()) {
+            long overflowStartTime = System.nanoTime();
+            try {
+                Futures.blockOnAllOf(txManager.executeRequestsAsync(overflowRequests, endCommitAtTime), endCommitAtTime,
+                        new ContentionException("Experienced contention with another coordinator."));
+            } catch (RuntimeException e) {
+                recordPhase(TransactionPhase.PERSIST_COMMIT_SET_OVERFLOW, overflowStartTime, e);
+                throw e;
+            }
+            recordPhase(TransactionPhase.PERSIST_COMMIT_SET_OVERFLOW, overflowStartTime, null);
+        }
+        long lockStartTime = System.nanoTime();
+        try {
+            Futures.blockOnAllOf(txManager.executeLockRequestsAsync(txLogItem.getTransactionId(), stagedUpdatesForCommit, endCommitAtTime), endCommitAtTime,
+                    new ContentionException("Item pending commit or cleanup. Cannot proceed with commit."));
+        } catch (RuntimeException e) {
+            recordPhase(TransactionPhase.ACQUIRE_LOCKS, lockStartTime, e);
+            if (e instanceof ContentionException) {
+                startRollbackAfterContention();
+            }
+            throw e;
+        }
+        recordPhase(TransactionPhase.ACQUIRE_LOCKS, lockStartTime, null);
+        try {
+            txLogItem.setTransactionStatus(TransactionStatus.COMMITTED);
+            persistTransactionLogItem(endCommitAtTime, TransactionPhase.PERSIST_COMMITTED);
+        } catch (AmazonClientException e) { // Allow user to rollback
+            txLogItem.setTransactionStatus(TransactionStatus.START_COMMIT);
+            throw e;
+        }
+        txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #commit()}. Each phase is chained on the executor, so no thread waits on a
+     * phase to finish. The returned future completes once the commit is durable and the post-commit unlocks have
+     * finished, or as soon as the commit is durable if unlocks go through an {@link UnlockPipeline}; unlock failures are
+     * only logged because the sweeper will clean up after them. Cancelling the returned
+     * future cancels the phase in flight. The transaction must not be used until the returned future is done.
+     */
+    public CompletableFuture<Void> commitAsync() {
+        assertTransactionNotComplete();
+        Instant endCommitAtTime = Instant.now().plusMillis(txManager.getMaxTimeToCommitOrRollbackMillis());
+        txManager.getMetricsListener().onCommitStarted(stagedUpdatesForCommit.size());
+        CompletableFuture<Void> commitFuture = new CompletableFuture<>();
+        CompletableFuture<Void> phases;
+        if (isEligibleForTransactWriteItems()) {
+            phases = Futures.nextPhase(commitFuture, () -> recordPhaseOf(TransactionPhase.TRANSACT_WRITE_ITEMS, System.nanoTime(),
+                    Futures.allOf(Collections.singletonList(txManager.executeRequestAsync(generateTransactWriteItemsRequest(), endCommitAtTime)),
+                    endCommitAtTime, new ContentionException("Item pending commit or cleanup. Cannot proceed with commit."))))
+                    .thenRun(() -> txLogItem.setTransactionStatus(TransactionStatus.COMPLETE));
+        } else {
+            List<PutItemRequest> overflowRequests = new ArrayList<>();
+            phases = Futures.nextPhase(commitFuture, () -> {
+                txLogItem.setTransactionStatus(TransactionStatus.START_COMMIT);
+                txLogItem.setCommitDeadlineMillis(endCommitAtTime.toEpochMilli());
+                assignSweepBucket();
+                overflowRequests.addAll(txManager.getTxLogItemMapper().generateOverflowPutItemRequests(txLogItem));
+                return persistTransactionLogItemAsync(endCommitAtTime, TransactionPhase.PERSIST_START_COMMIT);
+            }).thenCompose(ignored -> Futures.nextPhase(commitFuture, () -> persistOverflowItemsAsync(overflowRequests, endCommitAtTime)))
+            .thenCompose(ignored -> Futures.nextPhase(commitFuture, () -> acquireLocksAsync(endCommitAtTime)))
+            .thenCompose(ignored -> Futures.nextPhase(commitFuture, () -> {
+                txLogItem.setTransactionStatus(TransactionStatus.COMMITTED);
+                return persistTransactionLogItemAsync(endCommitAtTime, TransactionPhase.PERSIST_COMMITTED).whenComplete((result, e) -> {
+                    if (Futures.unwrap(e) instanceof AmazonClientException) { // Allow user to rollback
+                        txLogItem.setTransactionStatus(TransactionStatus.START_COMMIT);
+                    }
+                });
+            })).thenCompose(ignored -> {
+                txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+                return executeUnlockRequestsAsync(stagedUpdatesForPostCommitUnlock, stagedDeletesForPostCommitUnlock);
+            });
+        }
+        completeFrom(phases, commitFuture);
+        return commitFuture;
+    }
+
+    // The bucket of the first START_COMMIT is kept by every later write, or the sweeper could lose track of the transaction
+    private void assignSweepBucket() {
+        TransactionLogBuckets sweepBuckets = txManager.getSweepBuckets();
+        if (sweepBuckets != null && txLogItem.getSweepBucket() == null) {
+            txLogItem.setSweepBucket(sweepBuckets.bucketOf(transactionId, System.currentTimeMillis()));
+        }
+    }
+
+    // Written before any lock, so a transaction missing some of its overflow items is known to hold no locks
+    private CompletableFuture<Void> persistOverflowItemsAsync(List<PutItemRequest> overflowRequests, Instant endCommitAtTime) {
+        if (overflowRequests.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return recordPhaseOf(TransactionPhase.PERSIST_COMMIT_SET_OVERFLOW, System.nanoTime(),
+                Futures.allOf(txManager.executeRequestsAsync(overflowRequests, endCommitAtTime), endCommitAtTime,
+                new ContentionException("Experienced contention with another coordinator.")));
+    }
+
+    private CompletableFuture<Void> acquireLocksAsync(Instant endCommitAtTime) {
+        CompletableFuture<Void> locksFuture = recordPhaseOf(TransactionPhase.ACQUIRE_LOCKS, System.nanoTime(),
+                Futures.allOf(txManager.executeLockRequestsAsync(txLogItem.getTransactionId(), stagedUpdatesForCommit, endCommitAtTime), endCommitAtTime,
+                new ContentionException("Item pending commit or cleanup. Cannot proceed with commit.")));
+        CompletableFuture<Void> phaseFuture = new CompletableFuture<>();
+        locksFuture.whenComplete((ignored, e) -> {
+            if (Futures.unwrap(e) instanceof ContentionException) {
+                startRollbackAfterContention(); // Before the commit fails, so the caller never races with it
+            }
+            if (e != null) {
+                phaseFuture.completeExceptionally(Futures.unwrap(e));
+            } else {
+                phaseFuture.complete(null);
+            }
+        });
+        phaseFuture.whenComplete((ignored, e) -> locksFuture.cancel(true));
+        return phaseFuture;
+    }
+
+    /**
+     * Another transaction holds one of the items, so this commit can only roll back. Rolling back and unlocking right
+     * away frees the locks already acquired instead of holding them until the caller rolls back or the sweeper runs. A
+     * cancelled lock write that still lands afterwards is left to the sweeper. The transaction stays ROLLED_BACK until
+     * the caller's rollback, which then waits for this cleanup instead of starting its own.
+     */
+    private void startRollbackAfterContention() {
+        txLogItem.setTransactionStatus(TransactionStatus.ROLLED_BACK);
+        Instant endRollbackAtTime = Instant.now().plusMillis(txManager.getMaxTimeToCommitOrRollbackMillis());
+        rollbackAfterContentionFuture = persistTransactionLogItemAsync(endRollbackAtTime, TransactionPhase.PERSIST_ROLLED_BACK)
+                .thenCompose(ignored -> executeUnlockRequestsAsync(stagedUpdatesForPostRollbackUnlock, stagedDeletesForPostRollbackUnlock));
+        rollbackAfterContentionFuture.whenComplete((ignored, e) -> {
+            if (e != null) {
+                LOG.warn("Rollback after contention failed. Transaction will be rolled back by the sweeper.", e);
+            }
+        });
+    }
+
+    private boolean isEligibleForTransactWriteItems() {
+        return !stagedTransactWriteItems.isEmpty() && stagedTransactWriteItems.size() <= txManager.getMaxItemsForTransactWriteItems();
+    }
+
+    /**
+     * Applies all staged writes in a single TransactWriteItems call. No TransactionLog item is written and no item is
+     * ever locked, so a failed commit leaves the transaction NOT_PERSISTED and rollback has nothing to undo.
+     */
+    private void commitWithTransactWriteItems(Instant endCommitAtTime) {
+        long startTime = System.nanoTime();
+        Future transactWriteItemsFuture = txManager.executeRequestInBackground(generateTransactWriteItemsRequest(), endCommitAtTime);
+        try {
+            Futures.blockOnAllFutures(Arrays.asList(transactWriteItemsFuture), endCommitAtTime, new ContentionException("Item pending commit or cleanup. Cannot proceed with commit."));
+        } catch (RuntimeException e) {
+            recordPhase(TransactionPhase.TRANSACT_WRITE_ITEMS, startTime, e);
+            throw e;
+        }
+        recordPhase(TransactionPhase.TRANSACT_WRITE_ITEMS, startTime, null);
+        txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+    }
+
+    private TransactWriteItemsRequest generateTransactWriteItemsRequest() {
+        TransactWriteItemsRequest request = new TransactWriteItemsRequest().withTransactItems(stagedTransactWriteItems);
+        if (transactionId.length() <= CLIENT_REQUEST_TOKEN_MAX_LENGTH) {
+            request.setClientRequestToken(transactionId);
+        }
+        return request;
+    }
+
+    public List<Future> rollback() {
+        assertTransactionNotComplete();
+        if (rollbackAfterContentionFuture != null) {
+            awaitRollbackAfterContention();
+            return Collections.singletonList(rollbackAfterContentionFuture);
+        }
+        List<Future> postRollbackUnlockFutures = Collections.singletonList(new FutureTask(() -> null));
+        if (txLogItem.getTransactionStatus() != TransactionStatus.NOT_PERSISTED) {
+            rollbackWithoutUnlocking();
+            postRollbackUnlockFutures = executePostRollbackUnlock();
+        }
+        txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+        return postRollbackUnlockFutures;
+    }
+
+    private List<Future> executePostRollbackUnlock() {
+        return executeUnlockRequests(stagedUpdatesForPostRollbackUnlock, stagedDeletesForPostRollbackUnlock);
+    }
+
+    protected void rollbackWithoutUnlocking() {
+        assertTransactionNotComplete();
+        if (rollbackAfterContentionFuture != null) {
+            awaitRollbackAfterContention();
+            return;
+        }
+        if (txLogItem.getTransactionStatus() != TransactionStatus.NOT_PERSISTED) {
+            txLogItem.setTransactionStatus(TransactionStatus.ROLLED_BACK);
+            Instant rollbackStartTime = Instant.now();
+            persistTransactionLogItem(rollbackStartTime.plusMillis(txManager.getMaxTimeToCommitOrRollbackMillis()), TransactionPhase.PERSIST_ROLLED_BACK);
+        }
+        txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #rollback()}. The returned future completes once the rollback is durable and the
+     * post-rollback unlocks have finished.
+     */
+    public CompletableFuture<Void> rollbackAsync() {
+        assertTransactionNotComplete();
+        if (rollbackAfterContentionFuture != null) {
+            return rollbackAfterContentionFuture.thenRun(() -> txLogItem.setTransactionStatus(TransactionStatus.COMPLETE));
+        }
+        if (txLogItem.getTransactionStatus() == TransactionStatus.NOT_PERSISTED) {
+            txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+            return CompletableFuture.completedFuture(null);
+        }
+        Instant endRollbackAtTime = Instant.now().plusMillis(txManager.getMaxTimeToCommitOrRollbackMillis());
+        CompletableFuture<Void> rollbackFuture = new CompletableFuture<>();
+        CompletableFuture<Void> phases = Futures.nextPhase(rollbackFuture, () -> {
+            txLogItem.setTransactionStatus(TransactionStatus.ROLLED_BACK);
+            return persistTransactionLogItemAsync(endRollbackAtTime, TransactionPhase.PERSIST_ROLLED_BACK);
+        }).thenCompose(ignored -> {
+            txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+            return executeUnlockRequestsAsync(stagedUpdatesForPostRollbackUnlock, stagedDeletesForPostRollbackUnlock);
+        });
+        completeFrom(phases, rollbackFuture);
+        return rollbackFuture;
+    }
+
+    private void awaitRollbackAfterContention() {
+        try {
+            rollbackAfterContentionFuture.join();
+        } catch (CompletionException e) {
+            Throwable cause = Futures.unwrap(e);
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+        }
+        txLogItem.setTransactionStatus(TransactionStatus.COMPLETE);
+    }
+
+    private static void completeFrom(CompletableFuture<Void> phases, CompletableFuture<Void> operation) {
+        phases.whenComplete((ignored, e) -> {
+            if (e != null) {
+                operation.completeExceptionally(Futures.unwrap(e));
+            } else {
+                operation.complete(null);
+            }
+        });
+    }
+
+    private List<Future> executeUnlockRequests(List<UpdateItemRequest> updateRequests, List<DeleteItemRequest> deleteItemRequests) {
+        return new ArrayList<>(submitUnlockRequests(updateRequests, deleteItemRequests));
+    }
+
+    private CompletableFuture<Void> executeUnlockRequestsAsync(List<UpdateItemRequest> updateRequests, List<DeleteItemRequest> deleteItemRequests) {
+        List<CompletableFuture<Void>> futures = submitUnlockRequests(updateRequests, deleteItemRequests);
+        CompletableFuture<Void> unlocksFuture = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).exceptionally(e -> {
+            LOG.warn("Unlock failed. Items will be unlocked by the sweeper.", e);
+            return null;
+        });
+        // The shared pipeline owns the unlocks, so the commit or rollback is done once its outcome is durable
+        return txManager.getUnlockPipeline() == null ? unlocksFuture : CompletableFuture.completedFuture(null);
+    }
+
+    private List<CompletableFuture<Void>> submitUnlockRequests(List<UpdateItemRequest> updateRequests, List<DeleteItemRequest> deleteItemRequests) {
+        List<AmazonWebServiceRequest> requests = new ArrayList<>(updateRequests.size() + deleteItemRequests.size());
+        requests.addAll(updateRequests);
+        requests.addAll(deleteItemRequests);
+        return txManager.executeUnlockRequests(requests, unlockEndTime());
+    }
+
+    // Unlocks are best effort, so throttled unlocks are retried for at most as long as a commit may take
+    private Instant unlockEndTime() {
+        return Instant.now().plusMillis(txManager.getMaxTimeToCommitOrRollbackMillis());
+    }
+
+    private void persistTransactionLogItem(Instant endTime, TransactionPhase phase) {
+        long startTime = System.nanoTime();
+        PutItemRequest request = txRequestsFactory.generatePutRequestForTransactionLogItem(txLogItem);
+        Future txLogItemFuture = txManager.executeRequestInBackground(request, endTime);
+        try {
+            Futures.blockOnAllFutures(Arrays.asList(txLogItemFuture), endTime, new ContentionException("Experienced contention with another coordinator."));
+        } catch (RuntimeException e) {
+            recordPhase(phase, startTime, e);
+            throw e;
+        }
+        recordPhase(phase, startTime, null);
+        txManager.publishTransactionStatus(transactionId, txLogItem.getTransactionStatus());
+    }
+
+    private CompletableFuture<Void> persistTransactionLogItemAsync(Instant endTime, TransactionPhase phase) {
+        long startTime = System.nanoTime();
+        PutItemRequest request = txRequestsFactory.generatePutRequestForTransactionLogItem(txLogItem);
+        TransactionStatus persistedStatus = txLogItem.getTransactionStatus();
+        return recordPhaseOf(phase, startTime, Futures.allOf(Collections.singletonList(txManager.executeRequestAsync(request, endTime)), endTime,
+                new ContentionException("Experienced contention with another coordinator.")))
+                .thenRun(() -> txManager.publishTransactionStatus(transactionId, persistedStatus));
+    }
+
+    private void recordPhase(TransactionPhase phase, long startTime, Throwable failure) {
+        if (txManager.isRecordingMetrics()) {
+            txManager.getMetricsListener().onPhaseCompleted(phase, System.nanoTime() - startTime, PhaseOutcome.of(failure));
+        }
+    }
+
+    // Returns phaseFuture itself so that cancelling the phase still reaches its requests
+    private <T> CompletableFuture<T> recordPhaseOf(TransactionPhase phase, long startTime, CompletableFuture<T> phaseFuture) {
+        if (txManager.isRecordingMetrics()) {
+            phaseFuture.whenComplete((ignored, e) -> recordPhase(phase, startTime, e));
+        }
+        return phaseFuture;
+    }
+
+    protected void reloadTransactionLogItem() {
+        txLogItem = TransactionLogItemReader.read(txManager.getDDBClient(), txManager.getTxLogItemMapper(), transactionId);
+    }
+
+    public boolean isComplete() {
+        return txLogItem.getTransactionStatus() == TransactionStatus.COMPLETE;
+    }
+
+    private void assertTransactionNotComplete() {
+        if (isComplete()) {
+            throw new TransactionNotStartedException("Cannot proceed because the transaction is already complete");
+        }
+    }
+}
@@ -6,18 +6,47 @@ import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNot
 import java.util.concurrent.ExecutorService;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogBuckets;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.metrics.TransactionMetricsListener;
+import com.github.paleblue.persistence.milkha.util.VirtualThreads;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 public class TransactionCoordinatorBuilder {
 
+    private static final Log LOG = LogFactory.getLog(TransactionCoordinatorBuilder.class);
+
     private static final long DEFAULT_MAX_TIME_TO_COMMIT_OR_ROLLBACK_MILLIS = 5000L;
     private static final long DEFAULT_WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS = 10000L;
     private static final long DEFAULT_WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS = 20000L;
+    private static final int DEFAULT_MAX_ITEMS_FOR_TRANSACT_WRITE_ITEMS = 0;
+    private static final int DEFAULT_TRANSACTION_STATUS_CACHE_SIZE = 0;
+    private static final long DEFAULT_TRANSACTION_STATUS_CACHE_TTL_MILLIS = 60000L;
+    private static final int DEFAULT_MAX_RETRIES = 0;
+    private static final long DEFAULT_RETRY_BASE_DELAY_MILLIS = 25L;
+    private static final long DEFAULT_RETRY_MAX_DELAY_MILLIS = 1000L;
+    private static final int DEFAULT_RETRY_TOKEN_BUCKET_CAPACITY = 500;
 
     private AmazonDynamoDB ddbClient;
     private ExecutorService executorService;
     private long maxTimeToCommitOrRollbackMillis;
     private long waitPeriodBeforeSweeperUnlockMillis;
     private long waitPeriodBeforeSweeperDeleteMillis;
+    private int maxItemsForTransactWriteItems;
+    private int transactionStatusCacheSize;
+    private long transactionStatusCacheTtlMillis;
+    private boolean useVirtualThreads;
+    private TransactionMetricsListener metricsListener;
+    private int maxRetries;
+    private long retryBaseDelayMillis;
+    private long retryMaxDelayMillis;
+    private int retryTokenBucketCapacity;
+    private UnlockPipeline unlockPipeline;
+    private boolean lockStealing;
+    private boolean commitSetCompression;
+    private int maxInlineCommitSetBytes;
+    private TransactionLogBuckets sweepBuckets;
 
     public TransactionCoordinatorBuilder(AmazonDynamoDB ddbClient, ExecutorService executorService) {
         this.ddbClient = checkNotNull(ddbClient);
@@ -25,6 +54,15 @@ public class TransactionCoordinatorBuilder {
         this.maxTimeToCommitOrRollbackMillis = DEFAULT_MAX_TIME_TO_COMMIT_OR_ROLLBACK_MILLIS;
         this.waitPeriodBeforeSweeperUnlockMillis = DEFAULT_WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS;
         this.waitPeriodBeforeSweeperDeleteMillis = DEFAULT_WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS;
+        this.maxItemsForTransactWriteItems = DEFAULT_MAX_ITEMS_FOR_TRANSACT_WRITE_ITEMS;
+        this.transactionStatusCacheSize = DEFAULT_TRANSACTION_STATUS_CACHE_SIZE;
+        this.transactionStatusCacheTtlMillis = DEFAULT_TRANSACTION_STATUS_CACHE_TTL_MILLIS;
+        this.metricsListener = TransactionMetricsListener.NO_OP;
+        this.maxRetries = DEFAULT_MAX_RETRIES;
+        this.retryBaseDelayMillis = DEFAULT_RETRY_BASE_DELAY_MILLIS;
+        this.retryMaxDelayMillis = DEFAULT_RETRY_MAX_DELAY_MILLIS;
+        this.retryTokenBucketCapacity = DEFAULT_RETRY_TOKEN_BUCKET_CAPACITY;
+        this.maxInlineCommitSetBytes = TransactionLogItemMapper.DEFAULT_MAX_INLINE_COMMIT_SET_BYTES;
     }
 
     public TransactionCoordinatorBuilder withAmazonDynamoDBClient(final AmazonDynamoDB newDDBClient) {
@@ -47,11 +85,147 @@ public class TransactionCoordinatorBuilder {
         return this;
     }
 
+    /**
+     * Transactions staging at most this many items are committed with a single TransactWriteItems call instead of the
+     * lock/log protocol. Zero, the default, disables the fast path.
+     */
+    public TransactionCoordinatorBuilder withMaxItemsForTransactWriteItems(final int newMaxItemsForTransactWriteItems) {
+        this.maxItemsForTransactWriteItems = newMaxItemsForTransactWriteItems;
+        return this;
+    }
+
+    /**
+     * Reads remember up to this many COMMITTED or ROLLED_BACK transaction statuses so that items still locked by
+     * finished transactions do not cost a TransactionLog lookup. Zero, the default, disables the cache.
+     */
+    public TransactionCoordinatorBuilder withTransactionStatusCacheSize(final int newTransactionStatusCacheSize) {
+        this.transactionStatusCacheSize = newTransactionStatusCacheSize;
+        return this;
+    }
+
+    public TransactionCoordinatorBuilder withTransactionStatusCacheTtlMillis(final long newTransactionStatusCacheTtlMillis) {
+        this.transactionStatusCacheTtlMillis = newTransactionStatusCacheTtlMillis;
+        return this;
+    }
+
+    /**
+     * Runs every DynamoDB call on its own virtual thread instead of the given executor service when the JDK supports
+     * virtual threads. On older JDKs the given executor service is used and a warning is logged.
+     */
+    public TransactionCoordinatorBuilder withVirtualThreads(final boolean newUseVirtualThreads) {
+        this.useVirtualThreads = newUseVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Reports the duration and outcome of every commit and rollback phase, and the size of every committed transaction.
+     * See {@link com.github.paleblue.persistence.milkha.metrics.HistogramTransactionMetricsListener}.
+     */
+    public TransactionCoordinatorBuilder withMetricsListener(final TransactionMetricsListener newMetricsListener) {
+        this.metricsListener = newMetricsListener;
+        return this;
+    }
+
+    /**
+     * Throttled lock, unlock and TransactionLog writes are retried up to this many times with jittered exponential
+     * backoff, as long as the retry can start before the commit or rollback times out. Zero, the default, disables
+     * retries. See {@link RetryPolicy}.
+     */
+    public TransactionCoordinatorBuilder withMaxRetries(final int newMaxRetries) {
+        this.maxRetries = newMaxRetries;
+        return this;
+    }
+
+    public TransactionCoordinatorBuilder withRetryBaseDelayMillis(final long newRetryBaseDelayMillis) {
+        this.retryBaseDelayMillis = newRetryBaseDelayMillis;
+        return this;
+    }
+
+    public TransactionCoordinatorBuilder withRetryMaxDelayMillis(final long newRetryMaxDelayMillis) {
+        this.retryMaxDelayMillis = newRetryMaxDelayMillis;
+        return this;
+    }
+
+    public TransactionCoordinatorBuilder withRetryTokenBucketCapacity(final int newRetryTokenBucketCapacity) {
+        this.retryTokenBucketCapacity = newRetryTokenBucketCapacity;
+        return this;
+    }
+
+    /**
+     * Hands post-commit and post-rollback unlocks to a pipeline shared with other coordinators, so that a commit does not
+     * wait for them on its own executor. By default unlocks run on the executor service of this coordinator.
+     */
+    public TransactionCoordinatorBuilder withUnlockPipeline(final UnlockPipeline newUnlockPipeline) {
+        this.unlockPipeline = newUnlockPipeline;
+        return this;
+    }
+
+    /**
+     * A commit that finds an item locked by a transaction that is already COMMITTED or ROLLED_BACK, or that missed its
+     * commit deadline, finishes that transaction on the item and retries the lock instead of failing with
+     * ContentionException until the sweeper runs. Disabled by default.
+     */
+    public TransactionCoordinatorBuilder withLockStealing(final boolean newLockStealing) {
+        this.lockStealing = newLockStealing;
+        return this;
+    }
+
+    /**
+     * Deflates the encoded commit sets in the TransactionLog, trading CPU for smaller log writes. Disabled by default.
+     */
+    public TransactionCoordinatorBuilder withCommitSetCompression(final boolean newCommitSetCompression) {
+        this.commitSetCompression = newCommitSetCompression;
+        return this;
+    }
+
+    /**
+     * Encoded commit sets larger than this many bytes are written once to overflow items of the TransactionLog instead
+     * of with every write of the log item.
+     */
+    public TransactionCoordinatorBuilder withMaxInlineCommitSetBytes(final int newMaxInlineCommitSetBytes) {
+        this.maxInlineCommitSetBytes = newMaxInlineCommitSetBytes;
+        return this;
+    }
+
+    /**
+     * Indexes every transaction under the time bucket in which it started to commit, so that a sweeper built with the
+     * same buckets queries the TransactionLog instead of scanning it. The TransactionLog table needs the index of
+     * {@link TransactionLogItemMapper#generateCreateTableRequestWithSweepBucketIndex()}. Buckets must be longer than
+     * the max time to commit or rollback. Disabled by default.
+     */
+    public TransactionCoordinatorBuilder withSweepBuckets(final TransactionLogBuckets newSweepBuckets) {
+        this.sweepBuckets = newSweepBuckets;
+        return this;
+    }
+
     public TransactionCoordinator build() {
-        return new TransactionCoordinator(this.ddbClient,
-                this.executorService,
+        return new TransactionCoordinator(buildTransactionManager());
+    }
+
+    public TransactionManager buildTransactionManager() {
+        return new TransactionManager(this.ddbClient,
+                selectExecutorService(),
                 this.maxTimeToCommitOrRollbackMillis,
                 this.waitPeriodBeforeSweeperUnlockMillis,
-                this.waitPeriodBeforeSweeperDeleteMillis);
+                this.waitPeriodBeforeSweeperDeleteMillis,
+                this.maxItemsForTransactWriteItems,
+                new TransactionStatusCache(this.transactionStatusCacheSize, this.transactionStatusCacheTtlMillis),
+                this.metricsListener,
+                new RetryPolicy(this.maxRetries, this.retryBaseDelayMillis, this.retryMaxDelayMillis, this.retryTokenBucketCapacity),
+                this.unlockPipeline,
+                this.lockStealing,
+                new TransactionLogItemMapper(this.commitSetCompression, this.maxInlineCommitSetBytes),
+                this.sweepBuckets);
+    }
+
+    private ExecutorService selectExecutorService() {
+        if (!useVirtualThreads) {
+            return executorService;
+        }
+        if (!VirtualThreads.isSupported()) {
+            LOG.warn("Virtual threads are not supported by this JDK. Falling back to the configured executor service.");
+            return executorService;
+        }
+        return VirtualThreads.newVirtualThreadPerTaskExecutor();
     }
 }
@@ -0,0 +1,183 @@
+package com.github.paleblue.persistence.milkha;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.exception.UnexpectedTransactionStateException;
+import com.github.paleblue.persistence.milkha.exception.UnprocessedKeysException;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads a TransactionLog item together with the overflow items of its commit sets. The overflow items are written
+ * after START_COMMIT and before any lock, so a transaction that is missing some of them never locked an item: its
+ * commit sets are read as empty unless it is COMMITTED, which would mean the log is corrupt. The sweeper deletes the
+ * overflow items of a transaction it unlocked before its log item, so such a transaction is read without commit sets
+ * whatever its status.
+ */
+final class TransactionLogItemReader {
+
+    private static final Log LOG = LogFactory.getLog(TransactionLogItemReader.class);
+
+    private TransactionLogItemReader() {
+    }
+
+    /**
+     * @return the log item with its commit sets, or null if there is none
+     */
+    static TransactionLogItem read(AmazonDynamoDB ddbClient, TransactionLogItemMapper txLogItemMapper, String transactionId) {
+        Map<String, AttributeValue> rawTxLogItem = ddbClient.getItem(txLogItemMapper.generateGetItemRequest(transactionId)).getItem();
+        if (rawTxLogItem == null) {
+            return null;
+        }
+        TransactionLogItem txLogItem = txLogItemMapper.unmarshall(rawTxLogItem);
+        List<Map<String, AttributeValue>> overflowKeys = txLogItemMapper.getOverflowPrimaryKeyMaps(txLogItem);
+        if (overflowKeys.isEmpty()) {
+            return txLogItem;
+        }
+        List<Map<String, AttributeValue>> overflowItems = new ArrayList<>(overflowKeys.size());
+        for (Map<String, AttributeValue> overflowKey : overflowKeys) {
+            Map<String, AttributeValue> overflowItem = ddbClient.getItem(new GetItemRequest().
+                    withTableName(txLogItemMapper.getTableName()).
+                    withKey(overflowKey).
+                    withConsistentRead(true)).getItem();
+            if (overflowItem == null) {
+                return withoutCommitSets(txLogItem);
+            }
+            overflowItems.add(overflowItem);
+        }
+        return txLogItemMapper.unmarshall(rawTxLogItem, overflowItems);
+    }
+
+    /**
+     * Reads the log items of many transactions with BatchGetItem calls of up to 100 consistent reads each, followed by
+     * the overflow items of all of them in the same way. A log item that cannot be unmarshalled with its commit sets only
+     * fails its own transaction.
+     *
+     * @param unreadableTransactionIds receives the ids of the transactions whose log item could not be unmarshalled
+     * @return the log items with their commit sets by transaction id; transactions without a log item and unreadable
+     *         ones are left out
+     */
+    static Map<String, TransactionLogItem> readAll(AmazonDynamoDB ddbClient, TransactionLogItemMapper txLogItemMapper, RetryPolicy retryPolicy,
+            Collection<String> transactionIds, Collection<String> unreadableTransactionIds) {
+        List<Map<String, AttributeValue>> primaryKeys = new ArrayList<>(transactionIds.size());
+        for (String transactionId : transactionIds) {
+            primaryKeys.add(txLogItemMapper.getPrimaryKeyMap(transactionId));
+        }
+        List<Map<String, AttributeValue>> rawTxLogItems = new ArrayList<>();
+        List<Map<String, AttributeValue>> overflowKeys = new ArrayList<>();
+        for (Map<String, AttributeValue> rawTxLogItem : batchGetAllKeys(ddbClient, txLogItemMapper, retryPolicy, primaryKeys)) {
+            try {
+                overflowKeys.addAll(txLogItemMapper.getOverflowPrimaryKeyMaps(txLogItemMapper.unmarshall(rawTxLogItem)));
+                rawTxLogItems.add(rawTxLogItem);
+            } catch (RuntimeException e) {
+                addUnreadable(txLogItemMapper, rawTxLogItem, unreadableTransactionIds, e);
+            }
+        }
+        Map<Map<String, AttributeValue>, Map<String, AttributeValue>> overflowItemsByKey = new HashMap<>(overflowKeys.size() * 2);
+        for (Map<String, AttributeValue> overflowItem : batchGetAllKeys(ddbClient, txLogItemMapper, retryPolicy, overflowKeys)) {
+            String hashKeyName = txLogItemMapper.getHashKeyName();
+            overflowItemsByKey.put(Collections.singletonMap(hashKeyName, overflowItem.get(hashKeyName)), overflowItem);
+        }
+
+        Map<String, TransactionLogItem> txLogItems = new HashMap<>(rawTxLogItems.size() * 2);
+        for (Map<String, AttributeValue> rawTxLogItem : rawTxLogItems) {
+            try {
+                TransactionLogItem txLogItem = txLogItemMapper.unmarshall(rawTxLogItem);
+                List<Map<String, AttributeValue>> overflowItems = new ArrayList<>();
+                for (Map<String, AttributeValue> overflowKey : txLogItemMapper.getOverflowPrimaryKeyMaps(txLogItem)) {
+                    Map<String, AttributeValue> overflowItem = overflowItemsByKey.get(overflowKey);
+                    if (overflowItem == null) {
+                        overflowItems = null;
+                        break;
+                    }
+                    overflowItems.add(overflowItem);
+                }
+                txLogItems.put(txLogItem.getTransactionId(), overflowItems == null ? withoutCommitSets(txLogItem)
+                        : overflowItems.isEmpty() ? txLogItem : txLogItemMapper.unmarshall(rawTxLogItem, overflowItems));
+            } catch (RuntimeException e) {
+                addUnreadable(txLogItemMapper, rawTxLogItem, unreadableTransactionIds, e);
+            }
+        }
+        return txLogItems;
+    }
+
+    private static void addUnreadable(TransactionLogItemMapper txLogItemMapper, Map<String, AttributeValue> rawTxLogItem,
+            Collection<String> unreadableTransactionIds, RuntimeException e) {
+        String transactionId = rawTxLogItem.get(txLogItemMapper.getHashKeyName()).getS();
+        LOG.warn(String.format("Log item of transaction [%s] could not be read", transactionId), e);
+        unreadableTransactionIds.add(transactionId);
+    }
+
+    /**
+     * Issues the request and then its UnprocessedKeys until every key has been read, backing off between calls as the
+     * retry policy says.
+     *
+     * @return the items read, by table name
+     * @throws UnprocessedKeysException with the keys left over if the retry policy gives up on them
+     */
+    static Map<String, List<Map<String, AttributeValue>>> batchGetAllItems(AmazonDynamoDB ddbClient, RetryPolicy retryPolicy,
+            BatchGetItemRequest batchGetItemRequest) {
+        Map<String, List<Map<String, AttributeValue>>> tableToItems = new HashMap<>();
+        BatchGetItemRequest request = batchGetItemRequest;
+        for (int attempt = 1; ; attempt++) {
+            BatchGetItemResult result = ddbClient.batchGetItem(request);
+            result.getResponses().forEach((tableName, items) -> tableToItems.computeIfAbsent(tableName, ignored -> new ArrayList<>()).addAll(items));
+            if (result.getUnprocessedKeys() == null || result.getUnprocessedKeys().isEmpty()) {
+                return tableToItems;
+            }
+            long delayMillis = retryPolicy.unprocessedKeysDelayMillis(attempt);
+            if (delayMillis < 0) {
+                throw new UnprocessedKeysException(String.format("Keys were still unprocessed after %d BatchGetItem calls", attempt),
+                        result.getUnprocessedKeys());
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading unprocessed keys", e);
+            }
+            request = batchGetItemRequest.clone().withRequestItems(result.getUnprocessedKeys());
+        }
+    }
+
+    private static List<Map<String, AttributeValue>> batchGetAllKeys(AmazonDynamoDB ddbClient, TransactionLogItemMapper txLogItemMapper,
+            RetryPolicy retryPolicy, List<Map<String, AttributeValue>> primaryKeys) {
+        List<Map<String, AttributeValue>> rawItems = new ArrayList<>(primaryKeys.size());
+        for (int fromIndex = 0; fromIndex < primaryKeys.size(); fromIndex += TransactionManager.BATCH_GET_ITEM_MAX_KEYS) {
+            List<Map<String, AttributeValue>> batchKeys = primaryKeys.subList(fromIndex, Math.min(fromIndex + TransactionManager.BATCH_GET_ITEM_MAX_KEYS, primaryKeys.size()));
+            BatchGetItemRequest batchGetItemRequest = new BatchGetItemRequest().withRequestItems(Collections.singletonMap(txLogItemMapper.getTableName(),
+                    new KeysAndAttributes().withConsistentRead(true).withKeys(batchKeys)));
+            rawItems.addAll(batchGetAllItems(ddbClient, retryPolicy, batchGetItemRequest).getOrDefault(txLogItemMapper.getTableName(), Collections.emptyList()));
+        }
+        return rawItems;
+    }
+
+    // The item was unmarshalled without its overflow items, so its commit sets are already empty
+    private static TransactionLogItem withoutCommitSets(TransactionLogItem txLogItem) {
+        if (txLogItem.isUnlockedBySweeper()) {
+            LOG.info(String.format("Transaction [%s] was unlocked and its overflow items deleted before its log item", txLogItem.getTransactionId()));
+            return txLogItem;
+        }
+        if (txLogItem.getTransactionStatus() == TransactionStatus.COMMITTED) {
+            throw new UnexpectedTransactionStateException(String.format("TransactionId [%s] is COMMITTED but overflow items of its commit sets are missing",
+                    txLogItem.getTransactionId()));
+        }
+        LOG.info(String.format("Transaction [%s] stopped before writing all overflow items, so it has no locks", txLogItem.getTransactionId()));
+        return txLogItem;
+    }
+}
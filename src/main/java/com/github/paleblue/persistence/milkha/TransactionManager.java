@@ -0,0 +1,729 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogBuckets;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.metrics.PhaseOutcome;
+import com.github.paleblue.persistence.milkha.metrics.TransactionMetricsListener;
+import com.github.paleblue.persistence.milkha.metrics.TransactionPhase;
+import com.github.paleblue.persistence.milkha.util.Futures;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Thread-safe entry point that holds everything transactions can share: the client, the executor, the configuration
+ * and the request factory. One instance per JVM is enough. Each call to {@link #beginTransaction()} returns a
+ * lightweight {@link Transaction} handle that must only be used by one thread at a time.
+ */
+public final class TransactionManager {
+
+    private static final Log LOG = LogFactory.getLog(TransactionManager.class);
+
+    static final int BATCH_GET_ITEM_MAX_KEYS = 100; // DynamoDB limits
+    static final int TRANSACT_WRITE_ITEMS_MAX_ITEMS = 100;
+    private static final int MAX_STOLEN_LOCKS_PER_ITEM = 3;
+    private static final List<String> TRANSACT_WRITE_ITEMS_CONTENTION_CODES = Arrays.asList("ConditionalCheckFailed", "TransactionConflict");
+
+    private final AmazonDynamoDB ddbClient;
+    private final TransactionLogItemMapper txLogItemMapper;
+    private final TransactionRequestsFactory txRequestsFactory;
+    private final ExecutorService executorService;
+    private final long maxTimeToCommitOrRollbackMillis;
+    private final long waitPeriodBeforeSweeperUnlockMillis;
+    private final long waitPeriodBeforeSweeperDeleteMillis;
+    private final int maxItemsForTransactWriteItems;
+    private final TransactionStatusCache txStatusCache;
+    private final TransactionMetricsListener metricsListener;
+    private final RetryPolicy retryPolicy;
+    private final UnlockPipeline unlockPipeline;
+    private final LockResolver lockResolver;
+    private final TransactionLogBuckets sweepBuckets;
+    private final ConcurrentMap<String, TableDescription> tableDescriptions;
+
+    TransactionManager(AmazonDynamoDB ddbClient, ExecutorService executorService, long maxTimeToCommitOrRollbackMillis,
+            long waitPeriodBeforeSweeperUnlockMillis, long waitPeriodBeforeSweeperDeleteMillis, int maxItemsForTransactWriteItems,
+            TransactionStatusCache txStatusCache, TransactionMetricsListener metricsListener, RetryPolicy retryPolicy,
+            UnlockPipeline unlockPipeline, boolean lockStealing, TransactionLogItemMapper txLogItemMapper, TransactionLogBuckets sweepBuckets) {
+        checkArgument(maxTimeToCommitOrRollbackMillis > 0, "maxTimeToCommitOrRollbackMillis must be greater than zero");
+        checkArgument(waitPeriodBeforeSweeperUnlockMillis > maxTimeToCommitOrRollbackMillis, "waitPeriodBeforeSweeperUnlockMillis must be greater than maxTimeToCommitOrRollbackMillis");
+        checkArgument(waitPeriodBeforeSweeperDeleteMillis > waitPeriodBeforeSweeperUnlockMillis, "waitPeriodBeforeSweeperDeleteMillis must be greater than waitPeriodBeforeSweeperUnlockMillis");
+        checkArgument(maxItemsForTransactWriteItems >= 0 && maxItemsForTransactWriteItems <= TRANSACT_WRITE_ITEMS_MAX_ITEMS,
+                "maxItemsForTransactWriteItems must be between zero and " + TRANSACT_WRITE_ITEMS_MAX_ITEMS);
+        checkArgument(sweepBuckets == null || sweepBuckets.getBucketMillis() > maxTimeToCommitOrRollbackMillis,
+                "sweep buckets must be longer than maxTimeToCommitOrRollbackMillis");
+        this.ddbClient = checkNotNull(ddbClient);
+        this.executorService = checkNotNull(executorService);
+        this.txLogItemMapper = checkNotNull(txLogItemMapper);
+        this.txRequestsFactory = new TransactionRequestsFactory(txLogItemMapper);
+        this.maxTimeToCommitOrRollbackMillis = maxTimeToCommitOrRollbackMillis;
+        this.waitPeriodBeforeSweeperUnlockMillis = waitPeriodBeforeSweeperUnlockMillis;
+        this.waitPeriodBeforeSweeperDeleteMillis = waitPeriodBeforeSweeperDeleteMillis;
+        this.maxItemsForTransactWriteItems = maxItemsForTransactWriteItems;
+        this.txStatusCache = checkNotNull(txStatusCache);
+        this.metricsListener = checkNotNull(metricsListener);
+        this.retryPolicy = checkNotNull(retryPolicy);
+        this.unlockPipeline = unlockPipeline;
+        this.lockResolver = lockStealing ? new LockResolver(ddbClient, txLogItemMapper, txRequestsFactory, txStatusCache) : null;
+        this.sweepBuckets = sweepBuckets;
+        this.tableDescriptions = new ConcurrentHashMap<>();
+    }
+
+    public TransactionStatusCache getTransactionStatusCache() {
+        return txStatusCache;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return the shared unlock pipeline, or null if unlocks run on the executor of this TransactionManager
+     */
+    public UnlockPipeline getUnlockPipeline() {
+        return unlockPipeline;
+    }
+
+    /**
+     * @return locks of finished or expired transactions released while acquiring locks, zero if lock stealing is disabled
+     */
+    public long getStolenLockCount() {
+        return lockResolver == null ? 0L : lockResolver.getReleasedLockCount();
+    }
+
+    public Transaction beginTransaction() {
+        return beginTransaction(String.valueOf(UUID.randomUUID()));
+    }
+
+    protected Transaction beginTransaction(String transactionId) {
+        TransactionLogItem txLogItem = new TransactionLogItem(transactionId, TransactionStatus.NOT_PERSISTED, waitPeriodBeforeSweeperUnlockMillis, waitPeriodBeforeSweeperDeleteMillis);
+        return new Transaction(this, txLogItem);
+    }
+
+    /**
+     * The request may project any attributes and read any index. The control fields are added to its projection and
+     * removed from the results; if the index does not project them, they are read from the base items instead.
+     */
+    public QueryResult query(QueryRequest queryRequest) {
+        IsolatedRead isolatedRead = prepareRead(queryRequest);
+        QueryResult result = ddbClient.query(isolatedRead.applyTo(queryRequest));
+        result.setItems(isolateItems(queryRequest.getTableName(), result.getItems(), isolatedRead));
+        return result;
+    }
+
+    /**
+     * See {@link #query(QueryRequest)}.
+     */
+    public ScanResult scan(ScanRequest scanRequest) {
+        IsolatedRead isolatedRead = prepareRead(scanRequest);
+        ScanResult result = ddbClient.scan(isolatedRead.applyTo(scanRequest));
+        result.setItems(isolateItems(scanRequest.getTableName(), result.getItems(), isolatedRead));
+        return result;
+    }
+
+    /**
+     * Reads the item like {@link #query(QueryRequest)} would: an item locked by a transaction that has not committed
+     * its creation, or that has committed its deletion, is returned as absent.
+     */
+    public GetItemResult getItem(GetItemRequest getItemRequest) {
+        IsolatedRead isolatedRead = IsolatedRead.of(null, null, null, getItemRequest.getProjectionExpression(),
+                getItemRequest.getExpressionAttributeNames(), getItemRequest.getAttributesToGet());
+        GetItemResult result = ddbClient.getItem(isolatedRead.applyTo(getItemRequest));
+        if (result.getItem() != null) {
+            List<Map<String, AttributeValue>> visibleItems = isolateItems(getItemRequest.getTableName(), Collections.singletonList(result.getItem()), isolatedRead);
+            result.setItem(visibleItems.isEmpty() ? null : visibleItems.get(0));
+        }
+        return result;
+    }
+
+    /**
+     * Isolated counterpart of AmazonDynamoDB.batchGetItem(). UnprocessedKeys are read again with backoff, so the result
+     * never has any, and the statuses of the transactions locking any of the items are looked up together with one
+     * batched TransactionLog read.
+     */
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest batchGetItemRequest) {
+        checkNotNull(batchGetItemRequest);
+        Map<String, IsolatedRead> tableToIsolatedRead = new HashMap<>();
+        Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+        batchGetItemRequest.getRequestItems().forEach((tableName, keysAndAttributes) -> {
+            IsolatedRead isolatedRead = IsolatedRead.of(null, null, null, keysAndAttributes.getProjectionExpression(),
+                    keysAndAttributes.getExpressionAttributeNames(), keysAndAttributes.getAttributesToGet());
+            tableToIsolatedRead.put(tableName, isolatedRead);
+            requestItems.put(tableName, isolatedRead.applyTo(keysAndAttributes));
+        });
+        Map<String, List<Map<String, AttributeValue>>> tableToRawItems = batchGetAllItems(batchGetItemRequest.clone().withRequestItems(requestItems));
+        List<Map<String, AttributeValue>> allRawItems = new ArrayList<>();
+        tableToRawItems.values().forEach(allRawItems::addAll);
+        Map<String, TransactionStatus> txIdToStatusMap = lookupTransactionStatuses(allRawItems);
+        Map<String, List<Map<String, AttributeValue>>> tableToVisibleItems = new HashMap<>();
+        tableToRawItems.forEach((tableName, rawItems) -> {
+            List<Map<String, AttributeValue>> visibleItems = selectVisibleItems(rawItems, txIdToStatusMap);
+            removeControlFields(visibleItems, tableToIsolatedRead.get(tableName).getAddedAttributes());
+            tableToVisibleItems.put(tableName, visibleItems);
+        });
+        return new BatchGetItemResult().withResponses(tableToVisibleItems).withUnprocessedKeys(Collections.emptyMap());
+    }
+
+    public CompletableFuture<QueryResult> queryAsync(QueryRequest queryRequest) {
+        return CompletableFuture.supplyAsync(() -> query(queryRequest), executorService);
+    }
+
+    public CompletableFuture<ScanResult> scanAsync(ScanRequest scanRequest) {
+        return CompletableFuture.supplyAsync(() -> scan(scanRequest), executorService);
+    }
+
+    public CompletableFuture<GetItemResult> getItemAsync(GetItemRequest getItemRequest) {
+        return CompletableFuture.supplyAsync(() -> getItem(getItemRequest), executorService);
+    }
+
+    public CompletableFuture<BatchGetItemResult> batchGetItemAsync(BatchGetItemRequest batchGetItemRequest) {
+        return CompletableFuture.supplyAsync(() -> batchGetItem(batchGetItemRequest), executorService);
+    }
+
+    /**
+     * Lazily pages through all results of the query, starting at its ExclusiveStartKey if any. Each iterator fetches
+     * and isolates up to maxPagesInFlight pages ahead of the page being consumed.
+     */
+    public Iterable<Map<String, AttributeValue>> queryItems(QueryRequest queryRequest, int maxPagesInFlight) {
+        checkNotNull(queryRequest);
+        checkArgument(maxPagesInFlight > 0, "maxPagesInFlight must be greater than zero");
+        IsolatedRead isolatedRead = prepareRead(queryRequest);
+        QueryRequest isolatedQueryRequest = isolatedRead.applyTo(queryRequest);
+        return () -> new PrefetchingItemIterator(startKey -> {
+            QueryResult result = ddbClient.query(startKey == null ? isolatedQueryRequest : isolatedQueryRequest.clone().withExclusiveStartKey(startKey));
+            return new PrefetchingItemIterator.Page(result.getItems(), result.getLastEvaluatedKey());
+        }, rawItems -> isolateItems(queryRequest.getTableName(), rawItems, isolatedRead), executorService, maxPagesInFlight);
+    }
+
+    /**
+     * Scan counterpart of {@link #queryItems(QueryRequest, int)}.
+     */
+    public Iterable<Map<String, AttributeValue>> scanItems(ScanRequest scanRequest, int maxPagesInFlight) {
+        checkNotNull(scanRequest);
+        checkArgument(maxPagesInFlight > 0, "maxPagesInFlight must be greater than zero");
+        IsolatedRead isolatedRead = prepareRead(scanRequest);
+        ScanRequest isolatedScanRequest = isolatedRead.applyTo(scanRequest);
+        return () -> new PrefetchingItemIterator(startKey -> {
+            ScanResult result = ddbClient.scan(startKey == null ? isolatedScanRequest : isolatedScanRequest.clone().withExclusiveStartKey(startKey));
+            return new PrefetchingItemIterator.Page(result.getItems(), result.getLastEvaluatedKey());
+        }, rawItems -> isolateItems(scanRequest.getTableName(), rawItems, isolatedRead), executorService, maxPagesInFlight);
+    }
+
+    public CompletableFuture<Void> parallelScan(ScanRequest scanRequest, int totalSegments, Consumer<List<Map<String, AttributeValue>>> itemsConsumer) {
+        return parallelScan(scanRequest, totalSegments, executorService, itemsConsumer);
+    }
+
+    /**
+     * Scans the table as totalSegments parallel segments on the given executor, paging through each segment until it is
+     * exhausted. Every page is isolated like {@link #scan(ScanRequest)} and handed to itemsConsumer, which is called
+     * concurrently from several segments. The returned future fails as soon as one segment fails; the other segments
+     * then stop after their current page. Cancelling it stops all segments the same way.
+     */
+    public CompletableFuture<Void> parallelScan(ScanRequest scanRequest, int totalSegments, Executor executor,
+            Consumer<List<Map<String, AttributeValue>>> itemsConsumer) {
+        checkArgument(totalSegments > 0, "totalSegments must be greater than zero");
+        checkNotNull(scanRequest);
+        checkNotNull(executor);
+        checkNotNull(itemsConsumer);
+        CompletableFuture<Void> scanFuture = new CompletableFuture<>();
+        List<CompletableFuture<Void>> segmentFutures = new ArrayList<>(totalSegments);
+        for (int segment = 0; segment < totalSegments; segment++) {
+            ScanRequest segmentRequest = scanRequest.clone().withSegment(segment).withTotalSegments(totalSegments);
+            CompletableFuture<Void> segmentFuture = CompletableFuture.runAsync(() -> scanSegment(segmentRequest, itemsConsumer, scanFuture), executor);
+            segmentFuture.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    scanFuture.completeExceptionally(Futures.unwrap(e));
+                }
+            });
+            segmentFutures.add(segmentFuture);
+        }
+        CompletableFuture.allOf(segmentFutures.toArray(new CompletableFuture[totalSegments])).thenRun(() -> scanFuture.complete(null));
+        return scanFuture;
+    }
+
+    private void scanSegment(ScanRequest segmentRequest, Consumer<List<Map<String, AttributeValue>>> itemsConsumer, CompletableFuture<Void> scanFuture) {
+        Map<String, AttributeValue> lastEvaluatedKey;
+        do {
+            ScanResult result = scan(segmentRequest);
+            if (!result.getItems().isEmpty()) {
+                itemsConsumer.accept(result.getItems());
+            }
+            lastEvaluatedKey = result.getLastEvaluatedKey();
+            segmentRequest.setExclusiveStartKey(lastEvaluatedKey);
+        } while (lastEvaluatedKey != null && !scanFuture.isDone());
+    }
+
+    private IsolatedRead prepareRead(QueryRequest queryRequest) {
+        return IsolatedRead.of(queryRequest.getIndexName() == null ? null : describeTable(queryRequest.getTableName()), queryRequest.getIndexName(),
+                queryRequest.getSelect(), queryRequest.getProjectionExpression(), queryRequest.getExpressionAttributeNames(), queryRequest.getAttributesToGet());
+    }
+
+    private IsolatedRead prepareRead(ScanRequest scanRequest) {
+        return IsolatedRead.of(scanRequest.getIndexName() == null ? null : describeTable(scanRequest.getTableName()), scanRequest.getIndexName(),
+                scanRequest.getSelect(), scanRequest.getProjectionExpression(), scanRequest.getExpressionAttributeNames(), scanRequest.getAttributesToGet());
+    }
+
+    // Index projections cannot change once the index exists, so descriptions are cached for the life of the manager
+    private TableDescription describeTable(String tableName) {
+        return tableDescriptions.computeIfAbsent(tableName, name -> ddbClient.describeTable(name).getTable());
+    }
+
+    private List<Map<String, AttributeValue>> isolateItems(String tableName, List<Map<String, AttributeValue>> rawItems, IsolatedRead isolatedRead) {
+        if (rawItems == null) {
+            return null; // Select COUNT
+        }
+        List<Map<String, AttributeValue>> itemsWithControlFields = rawItems;
+        if (isolatedRead.getBaseKeyNames() != null) {
+            itemsWithControlFields = readControlFieldsFromBaseItems(tableName, rawItems, isolatedRead.getBaseKeyNames());
+        }
+        List<Map<String, AttributeValue>> visibleItems = selectVisibleItems(itemsWithControlFields, lookupTransactionStatuses(itemsWithControlFields));
+        removeControlFields(visibleItems, isolatedRead.getAddedAttributes());
+        return visibleItems;
+    }
+
+    private void removeControlFields(List<Map<String, AttributeValue>> committedItems, Set<String> addedAttributes) {
+        for (Map<String, AttributeValue> committedItem : committedItems) {
+            committedItem.remove(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
+            committedItem.remove(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD);
+            committedItem.keySet().removeAll(addedAttributes);
+        }
+    }
+
+    /**
+     * Copies the control fields of the base items onto items read from an index that does not project them. Items whose
+     * base item no longer exists are dropped; the others keep the order of the index, which BatchGetItem does not.
+     */
+    private List<Map<String, AttributeValue>> readControlFieldsFromBaseItems(String tableName, List<Map<String, AttributeValue>> indexItems,
+            List<String> baseKeyNames) {
+        Map<Map<String, AttributeValue>, Map<String, AttributeValue>> keyToIndexItem = new LinkedHashMap<>();
+        for (Map<String, AttributeValue> indexItem : indexItems) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            baseKeyNames.forEach(keyName -> key.put(keyName, indexItem.get(keyName)));
+            keyToIndexItem.put(key, indexItem);
+        }
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        StringBuilder projectionExpression = new StringBuilder("#txId, #txOp");
+        expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
+        expressionAttributeNames.put("#txOp", TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD);
+        for (int i = 0; i < baseKeyNames.size(); i++) {
+            projectionExpression.append(", #key").append(i);
+            expressionAttributeNames.put("#key" + i, baseKeyNames.get(i));
+        }
+        Set<Map<String, AttributeValue>> existingKeys = new HashSet<>();
+        List<Map<String, AttributeValue>> keys = new ArrayList<>(keyToIndexItem.keySet());
+        for (int fromIndex = 0; fromIndex < keys.size(); fromIndex += BATCH_GET_ITEM_MAX_KEYS) {
+            KeysAndAttributes keysAndAttributes = new KeysAndAttributes().
+                    withConsistentRead(true).
+                    withKeys(keys.subList(fromIndex, Math.min(fromIndex + BATCH_GET_ITEM_MAX_KEYS, keys.size()))).
+                    withProjectionExpression(projectionExpression.toString()).
+                    withExpressionAttributeNames(expressionAttributeNames);
+            List<Map<String, AttributeValue>> baseItems = batchGetAllItems(new BatchGetItemRequest().withRequestItems(Collections.singletonMap(tableName, keysAndAttributes)))
+                    .getOrDefault(tableName, Collections.emptyList());
+            for (Map<String, AttributeValue> baseItem : baseItems) {
+                Map<String, AttributeValue> key = new HashMap<>();
+                baseKeyNames.forEach(keyName -> key.put(keyName, baseItem.get(keyName)));
+                Map<String, AttributeValue> indexItem = keyToIndexItem.get(key);
+                for (String controlField : TransactionCoordinator.TRANSACTION_CONTROL_FIELDS) {
+                    if (baseItem.containsKey(controlField)) {
+                        indexItem.put(controlField, baseItem.get(controlField));
+                    }
+                }
+                existingKeys.add(key);
+            }
+        }
+        List<Map<String, AttributeValue>> itemsWithControlFields = new ArrayList<>(existingKeys.size());
+        keyToIndexItem.forEach((key, indexItem) -> {
+            if (existingKeys.contains(key)) {
+                itemsWithControlFields.add(indexItem);
+            }
+        });
+        return itemsWithControlFields;
+    }
+
+    /**
+     * @return the status of every transaction locking one of the items, from the cache or from one batched
+     * TransactionLog lookup. Transactions without a TransactionLogItem are left out.
+     */
+    private Map<String, TransactionStatus> lookupTransactionStatuses(Collection<Map<String, AttributeValue>> rawItems) {
+        // Resolve parent transaction statuses from the cache first, then batch lookup the remaining TransactionLogItem records
+        Map<String, TransactionStatus> txIdToStatusMap = new HashMap<>();
+        Map<String, Map<String, AttributeValue>> txIdToPrimaryKeyMap = new HashMap<>();
+        for (Map<String, AttributeValue> rawItem : rawItems) {
+            if (!rawItem.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD)) {
+                continue;
+            }
+            String parentTransactionId = rawItem.get(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD).getS();
+            if (txIdToStatusMap.containsKey(parentTransactionId) || txIdToPrimaryKeyMap.containsKey(parentTransactionId)) {
+                continue;
+            }
+            TransactionStatus cachedStatus = txStatusCache.get(parentTransactionId);
+            if (cachedStatus != null) {
+                txIdToStatusMap.put(parentTransactionId, cachedStatus);
+            } else {
+                txIdToPrimaryKeyMap.put(parentTransactionId, txLogItemMapper.getPrimaryKeyMap(parentTransactionId));
+            }
+        }
+        // Execute the Batch lookup requests, at most BATCH_GET_ITEM_MAX_KEYS keys each, and collect raw TransactionLogItem records
+        List<Map<String, AttributeValue>> rawParentTxLogItems = new ArrayList<>();
+        List<Map<String, AttributeValue>> primaryKeys = new ArrayList<>(txIdToPrimaryKeyMap.values());
+        for (int fromIndex = 0; fromIndex < primaryKeys.size(); fromIndex += BATCH_GET_ITEM_MAX_KEYS) {
+            List<Map<String, AttributeValue>> batchKeys = primaryKeys.subList(fromIndex, Math.min(fromIndex + BATCH_GET_ITEM_MAX_KEYS, primaryKeys.size()));
+            BatchGetItemRequest batchGetItemRequest = new BatchGetItemRequest().withRequestItems(Collections.singletonMap(txLogItemMapper.getTableName(),
+                    new KeysAndAttributes().withConsistentRead(true).withKeys(batchKeys)));
+            rawParentTxLogItems.addAll(batchGetAllItems(batchGetItemRequest).getOrDefault(txLogItemMapper.getTableName(), Collections.emptyList()));
+        }
+
+        // Add looked up statuses to the transactionId -> transactionStatus map, caching the terminal ones
+        for (Map<String, AttributeValue> rawParentTxLogItem : rawParentTxLogItems) {
+            TransactionLogItem parentTxLogItem = txLogItemMapper.unmarshall(rawParentTxLogItem);
+            txIdToStatusMap.put(parentTxLogItem.getTransactionId(), parentTxLogItem.getTransactionStatus());
+            txStatusCache.put(parentTxLogItem.getTransactionId(), parentTxLogItem.getTransactionStatus());
+        }
+        return txIdToStatusMap;
+    }
+
+    private List<Map<String, AttributeValue>> selectVisibleItems(List<Map<String, AttributeValue>> rawItems, Map<String, TransactionStatus> txIdToStatusMap) {
+        List<Map<String, AttributeValue>> visibleItems = new ArrayList<>(rawItems.size());
+        for (Map<String, AttributeValue> rawItem : rawItems) {
+            if (!rawItem.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD)) {
+                visibleItems.add(rawItem);
+                continue;
+            }
+            // Based on parent transaction status, surface eligible items as visible
+            String pendingOperation = rawItem.get(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD).getS();
+            TransactionStatus parentTxStatus = txIdToStatusMap.get(rawItem.get(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD).getS());
+            if (TransactionCoordinator.TRANSACTION_OPERATION_ADD_VALUE.equals(pendingOperation) && TransactionStatus.COMMITTED.equals(parentTxStatus)) {
+                visibleItems.add(rawItem);
+            } else if (TransactionCoordinator.TRANSACTION_OPERATION_DELETE_VALUE.equals(pendingOperation) && !TransactionStatus.COMMITTED.equals(parentTxStatus)) {
+                visibleItems.add(rawItem);
+            }
+        }
+        return visibleItems;
+    }
+
+    private Map<String, List<Map<String, AttributeValue>>> batchGetAllItems(BatchGetItemRequest batchGetItemRequest) {
+        return TransactionLogItemReader.batchGetAllItems(ddbClient, retryPolicy, batchGetItemRequest);
+    }
+
+    /**
+     * Unlocks go through the unlock pipeline if there is one, and otherwise run like
+     * {@link #executeRequestsAsync(List, Instant)}. The UNLOCK phase is reported to the metrics listener when the last
+     * unlock finishes, before the returned futures complete.
+     */
+    List<CompletableFuture<Void>> executeUnlockRequests(List<? extends AmazonWebServiceRequest> requests, Instant endTime) {
+        if (requests.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<CompletableFuture<Void>> requestFutures = unlockPipeline == null ? executeRequestsAsync(requests, endTime) : unlockPipeline.submit(requests);
+        if (!isRecordingMetrics()) {
+            return requestFutures;
+        }
+        PhaseCompletion phaseCompletion = new PhaseCompletion(TransactionPhase.UNLOCK, requests.size());
+        List<CompletableFuture<Void>> futures = new ArrayList<>(requests.size());
+        for (CompletableFuture<Void> requestFuture : requestFutures) {
+            futures.add(requestFuture.whenComplete((ignored, e) -> phaseCompletion.requestFinished(Futures.unwrap(e))));
+        }
+        return futures;
+    }
+
+    /**
+     * Lock requests run like {@link #executeRequestsAsync(List, Instant)}. With lock stealing enabled, a lock that fails
+     * its condition because a finished or expired transaction still holds the item is retried once that transaction
+     * has been rolled forward or back, see {@link LockResolver}.
+     */
+    List<CompletableFuture<Void>> executeLockRequestsAsync(String transactionId, List<UpdateItemRequest> requests, Instant endTime) {
+        if (lockResolver == null) {
+            return executeRequestsAsync(requests, endTime);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>(requests.size());
+        for (UpdateItemRequest request : requests) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            acquireLock(transactionId, request, endTime, 0, future);
+            futures.add(future);
+        }
+        return futures;
+    }
+
+    private void acquireLock(String transactionId, UpdateItemRequest request, Instant endTime, int stolenLocks, CompletableFuture<Void> future) {
+        if (future.isDone()) {
+            return;
+        }
+        CompletableFuture<Void> attempt = executeRequestAsync(request, endTime);
+        future.whenComplete((ignored, e) -> attempt.cancel(true));
+        attempt.whenComplete((ignored, e) -> {
+            Throwable failure = Futures.unwrap(e);
+            if (failure == null) {
+                future.complete(null);
+            } else if (!(failure instanceof ConditionalCheckFailedException) || stolenLocks >= MAX_STOLEN_LOCKS_PER_ITEM || Instant.now().isAfter(endTime)) {
+                future.completeExceptionally(failure);
+            } else {
+                CompletableFuture.runAsync(() -> {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    if (lockResolver.releaseStaleLock(transactionId, request.getTableName(), request.getKey())) {
+                        acquireLock(transactionId, request, endTime, stolenLocks + 1, future);
+                    } else {
+                        future.completeExceptionally(failure);
+                    }
+                }, executorService).exceptionally(resolveFailure -> {
+                    LOG.warn("Could not resolve the lock holding " + request.getKey(), Futures.unwrap(resolveFailure));
+                    future.completeExceptionally(failure);
+                    return null;
+                });
+            }
+        });
+    }
+
+    Future executeRequestInBackground(AmazonWebServiceRequest request, Instant endTime) {
+        return executorService.submit(() -> executeWithRetries(request, endTime));
+    }
+
+    List<CompletableFuture<Void>> executeRequestsAsync(List<? extends AmazonWebServiceRequest> requests, Instant endTime) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(requests.size());
+        for (AmazonWebServiceRequest request : requests) {
+            futures.add(executeRequestAsync(request, endTime));
+        }
+        return futures;
+    }
+
+    /**
+     * Unlike the blocking variants, a throttled request waits for its retry on the timer thread instead of sleeping on
+     * the executor.
+     */
+    CompletableFuture<Void> executeRequestAsync(AmazonWebServiceRequest request, Instant endTime) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        submitAttempt(request, endTime, 1, future);
+        return future;
+    }
+
+    private void submitAttempt(AmazonWebServiceRequest request, Instant endTime, int attempt, CompletableFuture<Void> future) {
+        if (future.isDone()) {
+            return;
+        }
+        Future task = executorService.submit(() -> {
+            try {
+                executeAndLogRequest(request);
+                retryPolicy.onSuccess();
+                future.complete(null);
+            } catch (Throwable e) {
+                long retryDelayMillis = retryPolicy.nextRetryDelayMillis(e, attempt, endTime);
+                if (retryDelayMillis < 0) {
+                    future.completeExceptionally(e);
+                } else {
+                    Futures.schedule(() -> submitAttempt(request, endTime, attempt + 1, future), retryDelayMillis);
+                }
+            }
+        });
+        future.whenComplete((ignored, e) -> {
+            if (e != null) {
+                task.cancel(true);
+            }
+        });
+    }
+
+    private void executeWithRetries(Object request, Instant endTime) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                executeAndLogRequest(request);
+                retryPolicy.onSuccess();
+                return;
+            } catch (RuntimeException e) {
+                long retryDelayMillis = retryPolicy.nextRetryDelayMillis(e, attempt, endTime);
+                if (retryDelayMillis < 0) {
+                    throw e;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryDelayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt(); // Cancelled while backing off
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void executeAndLogRequest(Object request) {
+        final long startTime = System.nanoTime();
+        try {
+            if (request instanceof DeleteItemRequest) {
+                executeRequest((DeleteItemRequest) request);
+            } else if (request instanceof UpdateItemRequest) {
+                executeRequest((UpdateItemRequest) request);
+            } else if (request instanceof PutItemRequest) {
+                executeRequest((PutItemRequest) request);
+            } else if (request instanceof TransactWriteItemsRequest) {
+                executeRequest((TransactWriteItemsRequest) request);
+            } else {
+                throw new UnsupportedOperationException("Only delete, update, put and transact write requests are supported.");
+            }
+        } finally {
+            logIfDebugEnabled(System.nanoTime() - startTime, request);
+        }
+    }
+
+    private void executeRequest(DeleteItemRequest request) {
+        try {
+            ddbClient.deleteItem(request);
+        } catch (AmazonServiceException e) {
+            LOG.warn(String.format("DeleteItemRequest failed: %s", request));
+            throw e;
+        }
+    }
+
+    private void executeRequest(UpdateItemRequest request) {
+        try {
+            ddbClient.updateItem(request);
+        } catch (AmazonServiceException e) {
+            LOG.warn(String.format("UpdateItemRequest failed: %s", request));
+            throw e;
+        }
+    }
+
+    private void executeRequest(PutItemRequest request) {
+        try {
+            ddbClient.putItem(request);
+        } catch (AmazonServiceException e) {
+            LOG.warn(String.format("PutItemRequest failed: %s", request));
+            throw e;
+        }
+    }
+
+    private void executeRequest(TransactWriteItemsRequest request) {
+        try {
+            ddbClient.transactWriteItems(request);
+        } catch (TransactionCanceledException e) {
+            LOG.warn(String.format("TransactWriteItemsRequest cancelled: %s", request));
+            if (e.getCancellationReasons() != null) {
+                for (CancellationReason reason : e.getCancellationReasons()) {
+                    if (TRANSACT_WRITE_ITEMS_CONTENTION_CODES.contains(reason.getCode())) {
+                        throw new ConditionalCheckFailedException(e.getMessage());
+                    }
+                }
+            }
+            throw e;
+        } catch (AmazonServiceException e) {
+            LOG.warn(String.format("TransactWriteItemsRequest failed: %s", request));
+            throw e;
+        }
+    }
+
+    private void logIfDebugEnabled(long nanoSecond, Object request) {
+        logIfDebugEnabled("Duration = " + TimeUnit.NANOSECONDS.toMillis(nanoSecond) + " ms", request);
+    }
+
+    private void logIfDebugEnabled(String message, Object request) {
+        // Check log level first to avoid the overhead of serialization in case we don't log anything
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(message + ", Request = " + request.toString());
+        }
+    }
+
+    AmazonDynamoDB getDDBClient() {
+        return ddbClient;
+    }
+
+    /**
+     * @return the time buckets transactions are indexed under for the sweeper, or null if they are not indexed
+     */
+    TransactionLogBuckets getSweepBuckets() {
+        return sweepBuckets;
+    }
+
+    TransactionLogItemMapper getTxLogItemMapper() {
+        return txLogItemMapper;
+    }
+
+    TransactionRequestsFactory getTxRequestsFactory() {
+        return txRequestsFactory;
+    }
+
+    long getMaxTimeToCommitOrRollbackMillis() {
+        return maxTimeToCommitOrRollbackMillis;
+    }
+
+    void publishTransactionStatus(String transactionId, TransactionStatus transactionStatus) {
+        txStatusCache.put(transactionId, transactionStatus);
+    }
+
+    int getMaxItemsForTransactWriteItems() {
+        return maxItemsForTransactWriteItems;
+    }
+
+    TransactionMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    // Phases are not timed at all with the default listener, so that metrics cost nothing unless they are used
+    boolean isRecordingMetrics() {
+        return metricsListener != TransactionMetricsListener.NO_OP;
+    }
+
+    private final class PhaseCompletion {
+        private final TransactionPhase phase;
+        private final long startTime;
+        private final AtomicInteger remainingRequests;
+        private volatile Throwable failure;
+
+        PhaseCompletion(TransactionPhase phase, int requestCount) {
+            this.phase = phase;
+            this.startTime = System.nanoTime();
+            this.remainingRequests = new AtomicInteger(requestCount);
+        }
+
+        void requestFinished(Throwable requestFailure) {
+            if (requestFailure != null) {
+                failure = requestFailure;
+            }
+            if (remainingRequests.decrementAndGet() == 0) {
+                metricsListener.onPhaseCompleted(phase, System.nanoTime() - startTime, PhaseOutcome.of(failure));
+            }
+        }
+    }
+}
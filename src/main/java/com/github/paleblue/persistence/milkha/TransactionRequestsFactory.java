@@ -13,43 +13,60 @@ import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
 import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
 import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Delete;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.Put;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.Update;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import com.amazonaws.util.ImmutableMapParameter;
 import com.amazonaws.util.StringUtils;
 
 final class TransactionRequestsFactory {
 
-    private TransactionLogItem txLogItem;
-    private TransactionLogItemMapper txLogItemMapper;
+    private final TransactionLogItemMapper txLogItemMapper;
 
-    protected TransactionRequestsFactory(TransactionLogItem txLogItem) {
-        this.txLogItem = txLogItem;
-        this.txLogItemMapper = new TransactionLogItemMapper();
+    protected TransactionRequestsFactory(TransactionLogItemMapper txLogItemMapper) {
+        this.txLogItemMapper = checkNotNull(txLogItemMapper);
     }
 
-    protected List<AmazonWebServiceRequest> generatePostRollbackUnlockRequestsFromCommitSets() {
+    protected List<AmazonWebServiceRequest> generatePostRollbackUnlockRequestsFromCommitSets(TransactionLogItem txLogItem) {
+        String transactionId = txLogItem.getTransactionId();
         List<AmazonWebServiceRequest> unlockRequests = new ArrayList<>();
-        txLogItem.getCreateSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostRollbackUnlockRequestForAdd(tableName, key))));
-        txLogItem.getDeleteSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostRollbackUnlockRequestForDelete(tableName, key))));
+        txLogItem.getCreateSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostRollbackUnlockRequestForAdd(transactionId, tableName, key))));
+        txLogItem.getDeleteSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostRollbackUnlockRequestForDelete(transactionId, tableName, key))));
         return unlockRequests;
     }
 
-    protected List<AmazonWebServiceRequest> generatePostCommitUnlockRequestsFromCommitSets() {
+    protected List<AmazonWebServiceRequest> generatePostCommitUnlockRequestsFromCommitSets(TransactionLogItem txLogItem) {
+        String transactionId = txLogItem.getTransactionId();
         List<AmazonWebServiceRequest> unlockRequests = new ArrayList<>();
-        txLogItem.getCreateSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostCommitUnlockRequestForAdd(tableName, key))));
-        txLogItem.getDeleteSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostCommitUnlockRequestForDelete(tableName, key))));
+        txLogItem.getCreateSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostCommitUnlockRequestForAdd(transactionId, tableName, key))));
+        txLogItem.getDeleteSet().forEach((tableName, keys) -> keys.stream().forEach(key -> unlockRequests.add(generatePostCommitUnlockRequestForDelete(transactionId, tableName, key))));
         return unlockRequests;
     }
 
-    protected DeleteItemRequest generatePostCommitUnlockRequestForDelete(UpdateItemRequest updateItemRequest) {
-        return generatePostCommitUnlockRequestForDelete(updateItemRequest.getTableName(), updateItemRequest.getKey());
+    /**
+     * @param pendingOperation value of the operation control field of the locked item
+     * @return the request that rolls the locked item forward if committed is true, and back otherwise
+     */
+    protected AmazonWebServiceRequest generateUnlockRequestForItem(String transactionId, boolean committed, String pendingOperation,
+            String tableName, Map<String, AttributeValue> key) {
+        boolean pendingAdd = TransactionCoordinator.TRANSACTION_OPERATION_ADD_VALUE.equals(pendingOperation);
+        if (committed) {
+            return pendingAdd ? generatePostCommitUnlockRequestForAdd(transactionId, tableName, key) : generatePostCommitUnlockRequestForDelete(transactionId, tableName, key);
+        }
+        return pendingAdd ? generatePostRollbackUnlockRequestForAdd(transactionId, tableName, key) : generatePostRollbackUnlockRequestForDelete(transactionId, tableName, key);
+    }
+
+    protected DeleteItemRequest generatePostCommitUnlockRequestForDelete(String transactionId, UpdateItemRequest updateItemRequest) {
+        return generatePostCommitUnlockRequestForDelete(transactionId, updateItemRequest.getTableName(), updateItemRequest.getKey());
     }
 
-    private DeleteItemRequest generatePostCommitUnlockRequestForDelete(String tableName, Map<String, AttributeValue> key) {
+    private DeleteItemRequest generatePostCommitUnlockRequestForDelete(String transactionId, String tableName, Map<String, AttributeValue> key) {
         Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
-        expressionAttributeValues.put(":txId", new AttributeValue(txLogItem.getTransactionId()));
+        expressionAttributeValues.put(":txId", new AttributeValue(transactionId));
         Map<String, String> expressionAttributeNames = new HashMap<>();
         expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
         return new DeleteItemRequest().
@@ -60,40 +77,40 @@ final class TransactionRequestsFactory {
                 withKey(key);
     }
 
-    private DeleteItemRequest generatePostRollbackUnlockRequestForAdd(String tableName, Map<String, AttributeValue> key) {
-        return generatePostCommitUnlockRequestForDelete(tableName, key); // The underlying request is the same
+    private DeleteItemRequest generatePostRollbackUnlockRequestForAdd(String transactionId, String tableName, Map<String, AttributeValue> key) {
+        return generatePostCommitUnlockRequestForDelete(transactionId, tableName, key); // The underlying request is the same
     }
 
-    protected DeleteItemRequest generatePostRollbackUnlockRequestForAdd(UpdateItemRequest updateItemRequest) {
-        return generatePostCommitUnlockRequestForDelete(updateItemRequest); // The underlying request is the same
+    protected DeleteItemRequest generatePostRollbackUnlockRequestForAdd(String transactionId, UpdateItemRequest updateItemRequest) {
+        return generatePostCommitUnlockRequestForDelete(transactionId, updateItemRequest); // The underlying request is the same
     }
 
-    private UpdateItemRequest generatePostCommitUnlockRequestForAdd(String tableName, Map<String, AttributeValue> key) {
-        return generateRequestToClearTransactionIdAndOperation(tableName, key);
+    private UpdateItemRequest generatePostCommitUnlockRequestForAdd(String transactionId, String tableName, Map<String, AttributeValue> key) {
+        return generateRequestToClearTransactionIdAndOperation(transactionId, tableName, key);
     }
 
-    protected UpdateItemRequest generatePostCommitUnlockRequestForAdd(UpdateItemRequest updateItemRequest) {
-        return generateRequestToClearTransactionIdAndOperation(updateItemRequest);
+    protected UpdateItemRequest generatePostCommitUnlockRequestForAdd(String transactionId, UpdateItemRequest updateItemRequest) {
+        return generateRequestToClearTransactionIdAndOperation(transactionId, updateItemRequest);
     }
 
-    private UpdateItemRequest generatePostRollbackUnlockRequestForDelete(String tableName, Map<String, AttributeValue> key) {
-        return generateRequestToClearTransactionIdAndOperation(tableName, key);
+    private UpdateItemRequest generatePostRollbackUnlockRequestForDelete(String transactionId, String tableName, Map<String, AttributeValue> key) {
+        return generateRequestToClearTransactionIdAndOperation(transactionId, tableName, key);
     }
 
-    protected UpdateItemRequest generatePostRollbackUnlockRequestForDelete(UpdateItemRequest updateItemRequest) {
-        return generateRequestToClearTransactionIdAndOperation(updateItemRequest);
+    protected UpdateItemRequest generatePostRollbackUnlockRequestForDelete(String transactionId, UpdateItemRequest updateItemRequest) {
+        return generateRequestToClearTransactionIdAndOperation(transactionId, updateItemRequest);
     }
 
-    private UpdateItemRequest generateRequestToClearTransactionIdAndOperation(UpdateItemRequest updateItemRequest) {
-        return generateRequestToClearTransactionIdAndOperation(updateItemRequest.getTableName(), updateItemRequest.getKey());
+    private UpdateItemRequest generateRequestToClearTransactionIdAndOperation(String transactionId, UpdateItemRequest updateItemRequest) {
+        return generateRequestToClearTransactionIdAndOperation(transactionId, updateItemRequest.getTableName(), updateItemRequest.getKey());
     }
 
-    private UpdateItemRequest generateRequestToClearTransactionIdAndOperation(String tableName, Map<String, AttributeValue> key) {
+    private UpdateItemRequest generateRequestToClearTransactionIdAndOperation(String transactionId, String tableName, Map<String, AttributeValue> key) {
         Map<String, String> expressionAttributeNames = new HashMap<>();
         expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
         expressionAttributeNames.put("#txOp", TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD);
         Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
-        expressionAttributeValues.put(":txId", new AttributeValue(txLogItem.getTransactionId()));
+        expressionAttributeValues.put(":txId", new AttributeValue(transactionId));
         String conditionExpression = "#txId = :txId";
         String updateExpression = "REMOVE #txId, #txOp";
         return new UpdateItemRequest().
@@ -105,7 +122,7 @@ final class TransactionRequestsFactory {
                 withUpdateExpression(updateExpression);
     }
 
-    protected UpdateItemRequest generateCommitRequestForAdd(UpdateItemRequest updateItemRequest) {
+    protected UpdateItemRequest generateCommitRequestForAdd(String transactionId, UpdateItemRequest updateItemRequest) {
         if (updateItemRequest.getConditionExpression() != null) {
             throw new IllegalArgumentException("ConditionExpression is not applicable to immutable item puts");
         }
@@ -113,7 +130,7 @@ final class TransactionRequestsFactory {
         expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
         expressionAttributeNames.put("#txOp", TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD);
         Map<String, AttributeValue> expressionAttributeValues = new HashMap<>(updateItemRequest.getExpressionAttributeValues());
-        expressionAttributeValues.put(":txId", new AttributeValue(txLogItem.getTransactionId()));
+        expressionAttributeValues.put(":txId", new AttributeValue(transactionId));
         expressionAttributeValues.put(":txOp", new AttributeValue(TransactionCoordinator.TRANSACTION_OPERATION_ADD_VALUE));
         String controlFieldUpdates = "#txId = :txId, #txOp = :txOp";
         String updateExpression;
@@ -150,7 +167,7 @@ final class TransactionRequestsFactory {
         return conditionExpression;
     }
 
-    protected UpdateItemRequest generateCommitRequestForDelete(DeleteItemRequest deleteItemRequest) {
+    protected UpdateItemRequest generateCommitRequestForDelete(String transactionId, DeleteItemRequest deleteItemRequest) {
         if (deleteItemRequest.getConditionExpression() != null) {
             throw new IllegalArgumentException("Setting ConditionExpression is not allowed because they cannot be distinguished from contention");
         }
@@ -159,7 +176,7 @@ final class TransactionRequestsFactory {
         expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
         expressionAttributeNames.put("#txOp", TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD);
         Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
-        expressionAttributeValues.put(":txId", new AttributeValue(txLogItem.getTransactionId()));
+        expressionAttributeValues.put(":txId", new AttributeValue(transactionId));
         expressionAttributeValues.put(":txOp", new AttributeValue(TransactionCoordinator.TRANSACTION_OPERATION_DELETE_VALUE));
         String keyExistsConditionExpression = getKeyExistsConditionExpression(deleteItemRequest.getKey());
         String conditionExpression = "attribute_not_exists (#txId) AND attribute_not_exists (#txOp) AND " + keyExistsConditionExpression;
@@ -173,7 +190,47 @@ final class TransactionRequestsFactory {
                 withUpdateExpression(updateExpression);
     }
 
-    protected PutItemRequest generatePutRequestForTransactionLogItem() {
+    protected TransactWriteItem generateTransactWriteItemForAdd(UpdateItemRequest updateItemRequest) {
+        if (updateItemRequest.getConditionExpression() != null) {
+            throw new IllegalArgumentException("ConditionExpression is not applicable to immutable item puts");
+        }
+        String conditionExpression = getKeyNotExistsConditionExpression(updateItemRequest.getKey());
+        if (StringUtils.isNullOrEmpty(updateItemRequest.getUpdateExpression())) {
+            // A transactional Update needs an update expression, so key-only items are written with a Put instead
+            return new TransactWriteItem().withPut(new Put().
+                    withTableName(updateItemRequest.getTableName()).
+                    withItem(new HashMap<>(updateItemRequest.getKey())).
+                    withConditionExpression(conditionExpression));
+        }
+        return new TransactWriteItem().withUpdate(new Update().
+                withTableName(updateItemRequest.getTableName()).
+                withExpressionAttributeNames(nullIfEmpty(updateItemRequest.getExpressionAttributeNames())).
+                withExpressionAttributeValues(nullIfEmpty(updateItemRequest.getExpressionAttributeValues())).
+                withConditionExpression(conditionExpression).
+                withKey(new HashMap<>(updateItemRequest.getKey())).
+                withUpdateExpression(updateItemRequest.getUpdateExpression()));
+    }
+
+    protected TransactWriteItem generateTransactWriteItemForDelete(DeleteItemRequest deleteItemRequest) {
+        if (deleteItemRequest.getConditionExpression() != null) {
+            throw new IllegalArgumentException("Setting ConditionExpression is not allowed because they cannot be distinguished from contention");
+        }
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#txId", TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD);
+        String keyExistsConditionExpression = getKeyExistsConditionExpression(deleteItemRequest.getKey());
+        String conditionExpression = "attribute_not_exists (#txId) AND " + keyExistsConditionExpression;
+        return new TransactWriteItem().withDelete(new Delete().
+                withTableName(deleteItemRequest.getTableName()).
+                withExpressionAttributeNames(expressionAttributeNames).
+                withKey(deleteItemRequest.getKey()).
+                withConditionExpression(conditionExpression));
+    }
+
+    private static <K, V> Map<K, V> nullIfEmpty(Map<K, V> map) {
+        return map == null || map.isEmpty() ? null : map;
+    }
+
+    protected PutItemRequest generatePutRequestForTransactionLogItem(TransactionLogItem txLogItem) {
         checkNotNull(txLogItem.getPreviousTransactionStatus());
         if (txLogItem.getPreviousTransactionStatus() == TransactionStatus.NOT_PERSISTED) {
             return txLogItemMapper.generatePutItemRequest(txLogItem).
@@ -0,0 +1,96 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+
+/**
+ * Bounded LRU cache of terminal transaction statuses used by read isolation. Only COMMITTED and ROLLED_BACK are
+ * cached because a persisted transaction never leaves those states. A cache with a maximum size of zero is disabled.
+ */
+public final class TransactionStatusCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, CachedStatus> cachedStatuses;
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+
+    TransactionStatusCache(int maxSize, long ttlMillis) {
+        checkArgument(maxSize >= 0, "maxSize must not be negative");
+        checkArgument(ttlMillis > 0, "ttlMillis must be greater than zero");
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.cachedStatuses = new LinkedHashMap<String, CachedStatus>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatus> eldest) {
+                return size() > TransactionStatusCache.this.maxSize;
+            }
+        };
+        this.hitCount = new LongAdder();
+        this.missCount = new LongAdder();
+    }
+
+    public TransactionStatus get(String transactionId) {
+        if (maxSize == 0) {
+            return null;
+        }
+        CachedStatus cachedStatus;
+        synchronized (cachedStatuses) {
+            cachedStatus = cachedStatuses.get(transactionId);
+            if (cachedStatus != null && System.nanoTime() - cachedStatus.cachedAtNanos > ttlNanos) {
+                cachedStatuses.remove(transactionId);
+                cachedStatus = null;
+            }
+        }
+        if (cachedStatus == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return cachedStatus.status;
+    }
+
+    public void put(String transactionId, TransactionStatus status) {
+        if (maxSize == 0 || !isTerminal(status)) {
+            return;
+        }
+        CachedStatus cachedStatus = new CachedStatus(status, System.nanoTime());
+        synchronized (cachedStatuses) {
+            cachedStatuses.put(transactionId, cachedStatus);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public int size() {
+        synchronized (cachedStatuses) {
+            return cachedStatuses.size();
+        }
+    }
+
+    private static boolean isTerminal(TransactionStatus status) {
+        return status == TransactionStatus.COMMITTED || status == TransactionStatus.ROLLED_BACK;
+    }
+
+    private static final class CachedStatus {
+        private final TransactionStatus status;
+        private final long cachedAtNanos;
+
+        private CachedStatus(TransactionStatus status, long cachedAtNanos) {
+            this.status = status;
+            this.cachedAtNanos = cachedAtNanos;
+        }
+    }
+}
@@ -5,86 +5,510 @@ import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArg
 import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.SweeperBacklog.DueTransaction;
 import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogBuckets;
 import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.amazonaws.services.dynamodbv2.model.Select;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * Finds transactions in the TransactionLog and unlocks and deletes them once their wait periods have elapsed. By
+ * default every cycle scans the whole table. With {@link TransactionLogBuckets}, only the first cycle scans, which also
+ * finds transactions logged before buckets were enabled; later cycles query the time buckets from a checkpoint up to
+ * now. The checkpoint moves past a bucket once the bucket is closed, i.e. one more bucket length has passed so no
+ * commit can still be writing into it, and all of its transactions have been deleted.
+ *
+ * <p>Found transactions wait in a {@link SweeperBacklog} ordered by when they are next due: first the end of their wait
+ * period before unlocking, then the end of their wait period before deleting. Each cycle only touches the transactions
+ * that are due, reading their log items with BatchGetItem a batch at a time. Once the backlog is full, scans and
+ * queries pause and resume where they stopped on a later cycle.
+ *
+ * <p>With time to live, log items that have an expiry are done once unlocked and left for DynamoDB TTL to delete.
+ *
+ * <p>With {@link SweeperLeases}, sweepers share the TransactionLog instead of each sweeping all of it. The table is split
+ * into txLogTableScanSegments partitions and every sweeper only scans the segments, or queries the bucket shards, of
+ * the partitions it holds leases on.
+ */
 public final class TransactionSweeper {
 
     private static final Log LOG = LogFactory.getLog(TransactionSweeper.class);
+    private static final int TASK_BATCH_SIZE = TransactionManager.BATCH_GET_ITEM_MAX_KEYS; // Log items read per BatchGetItem call
+    private static final long UNPROCESSED_KEYS_BASE_DELAY_MILLIS = 25L;
+    private static final long UNPROCESSED_KEYS_MAX_DELAY_MILLIS = 1000L;
 
     private final TransactionLogItemMapper txLogItemMapper;
     private final ScheduledExecutorService scheduledExecutorService;
     private final AmazonDynamoDB ddbClient;
     private final int txLogTableScanPageSize;
+    private final int txLogTableScanSegments;
+    private final ExecutorService scanExecutor; // Null if the table is scanned in a single segment
     private final long txSweeperFixedDelaySeconds;
-    private Map<String, TransactionSweeperTask> seenTransactions;
+    private final Executor unlockExecutor; // Created by the builder for this sweeper alone
+    private final ExecutorService taskExecutor; // Null if tasks run one after another on the scheduled thread
+    private final TableRateLimiters rateLimiters;
+    private final RetryPolicy retryPolicy; // Only paces the reads of unprocessed keys
+    private final TransactionLogBuckets sweepBuckets;
+    private final SweeperLeases leases; // Null if this sweeper sweeps the whole table
+    private final boolean timeToLive;
+    private final SweeperBacklog backlog;
+    private final AtomicReferenceArray<Map<String, AttributeValue>> scanResumeKeys; // Per segment, null to start from the beginning
+    private final List<ScheduledFuture<?>> scheduledRuns;
+    private volatile TaskFactory taskFactory;
+    private volatile Long checkpointMillis; // Start of the oldest bucket that may still hold transactions, null before the first scan
 
-    TransactionSweeper(AmazonDynamoDB ddbClient, ScheduledExecutorService scheduledExecutorService, int txLogTableScanPageSize, long txSweeperFixedDelaySeconds) {
+    TransactionSweeper(AmazonDynamoDB ddbClient, ScheduledExecutorService scheduledExecutorService, int txLogTableScanPageSize, int txLogTableScanSegments,
+            long txSweeperFixedDelaySeconds, Executor unlockExecutor, int maxConcurrentTasks, double maxWritesPerSecondPerTable, int maxBacklogSize,
+            TransactionLogBuckets sweepBuckets, SweeperLeases leases, boolean timeToLive) {
         this.scheduledExecutorService = checkNotNull(scheduledExecutorService);
+        this.unlockExecutor = checkNotNull(unlockExecutor);
         this.ddbClient = checkNotNull(ddbClient);
         checkArgument(txLogTableScanPageSize > 0, "txLogTableScanPageSize must be greater than zero.");
+        checkArgument(txLogTableScanSegments > 0, "txLogTableScanSegments must be greater than zero.");
         checkArgument(txSweeperFixedDelaySeconds > 0, "txSweeperFixedDelaySeconds must be greater than zero.");
+        checkArgument(maxConcurrentTasks > 0, "maxConcurrentTasks must be greater than zero.");
+        checkArgument(leases == null || sweepBuckets == null || sweepBuckets.getShards() == txLogTableScanSegments,
+                "txLogTableScanSegments must equal the shards of the sweep buckets when sweeping with leases.");
         this.txLogTableScanPageSize = txLogTableScanPageSize;
+        this.txLogTableScanSegments = txLogTableScanSegments;
+        this.scanExecutor = txLogTableScanSegments == 1 ? null : Executors.newFixedThreadPool(txLogTableScanSegments, runnable -> {
+            Thread thread = new Thread(runnable, "milkha-sweeper-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
         this.txSweeperFixedDelaySeconds = txSweeperFixedDelaySeconds;
+        this.taskExecutor = maxConcurrentTasks == 1 ? null : Executors.newFixedThreadPool(maxConcurrentTasks, runnable -> {
+            Thread thread = new Thread(runnable, "milkha-sweeper-task");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.rateLimiters = new TableRateLimiters(maxWritesPerSecondPerTable);
+        this.retryPolicy = new RetryPolicy(0, UNPROCESSED_KEYS_BASE_DELAY_MILLIS, UNPROCESSED_KEYS_MAX_DELAY_MILLIS, 0);
         this.txLogItemMapper = new TransactionLogItemMapper();
-        seenTransactions = new ConcurrentHashMap<>();
+        this.sweepBuckets = sweepBuckets;
+        this.leases = leases;
+        this.timeToLive = timeToLive;
+        this.backlog = new SweeperBacklog(maxBacklogSize);
+        this.scanResumeKeys = new AtomicReferenceArray<>(txLogTableScanSegments);
+        this.scheduledRuns = new CopyOnWriteArrayList<>();
+        this.taskFactory = dueTransaction -> new TransactionSweeperTask(dueTransaction.getTransactionId(), dueTransaction.getWaitPeriodBeforeSweeperUnlockMillis(),
+                dueTransaction.getWaitPeriodBeforeSweeperDeleteMillis(), Instant.ofEpochMilli(dueTransaction.getFirstSeenAtMillis()), ddbClient, txLogItemMapper,
+                unlockExecutor, rateLimiters, timeToLive);
     }
 
     public void schedule() {
-        scheduledExecutorService.scheduleWithFixedDelay(() -> scanTxLogTable(), txSweeperFixedDelaySeconds, txSweeperFixedDelaySeconds, TimeUnit.SECONDS);
-        scheduledExecutorService.scheduleWithFixedDelay(() -> executeTxSweeperTasks(), 1L, 1L, TimeUnit.SECONDS);
+        scheduledRuns.add(scheduledExecutorService.scheduleWithFixedDelay(() -> findTransactions(), txSweeperFixedDelaySeconds, txSweeperFixedDelaySeconds,
+                TimeUnit.SECONDS));
+        scheduledRuns.add(scheduledExecutorService.scheduleWithFixedDelay(() -> executeTxSweeperTasks(), 1L, 1L, TimeUnit.SECONDS));
+        if (leases != null) {
+            long heartbeatMillis = Math.max(1L, leases.getLeaseDurationMillis() / 3);
+            scheduledRuns.add(scheduledExecutorService.scheduleWithFixedDelay(() -> renewLeases(), 0L, heartbeatMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Cancels the scheduled runs and stops the threads the sweeper created; runs and tasks in flight finish. The
+     * scheduled executor service is left to its owner.
+     */
+    public void shutdown() {
+        scheduledRuns.forEach(scheduledRun -> scheduledRun.cancel(false));
+        if (scanExecutor != null) {
+            scanExecutor.shutdown();
+        }
+        if (taskExecutor != null) {
+            taskExecutor.shutdown();
+        }
+        if (unlockExecutor instanceof ExecutorService) {
+            ((ExecutorService) unlockExecutor).shutdown();
+        }
+    }
+
+    protected void renewLeases() {
+        try {
+            leases.heartbeat();
+        } catch (Exception e) {
+            LOG.error("Exception occurred while renewing sweeper leases.", e);
+        }
     }
 
     protected void executeTxSweeperTasks() {
+        long nowMillis = System.currentTimeMillis();
+        // Each transaction at most once per cycle, even if its task failed and it is due again right away
+        int remainingTransactions = backlog.size();
         try {
-            seenTransactions.values().forEach(txSweeperTask -> {
-                boolean isTxSweeperTaskComplete = txSweeperTask.execute();
-                if (isTxSweeperTaskComplete) {
-                    seenTransactions.remove(txSweeperTask.getTransactionId());
+            while (remainingTransactions > 0) {
+                // A batch at a time, so that each task runs soon after its log item was read
+                List<DueTransaction> dueTransactions = backlog.pollDue(nowMillis, Math.min(TASK_BATCH_SIZE, remainingTransactions));
+                if (dueTransactions.isEmpty()) {
+                    break;
+                }
+                remainingTransactions -= dueTransactions.size();
+                try {
+                    executeTxSweeperTaskBatch(dueTransactions);
+                } finally {
+                    // Transactions whose task did not finish, because the batch was interrupted or failed, are retried on the
+                    // next cycle; those that did finish are not touched again
+                    long retryAtMillis = System.currentTimeMillis();
+                    dueTransactions.forEach(dueTransaction -> backlog.reschedule(dueTransaction, retryAtMillis));
                 }
-            });
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Thread is interrupted. Stop sweeping");
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             LOG.error("Exception occurred while executing sweeper tasks.", e);
         }
     }
 
-    protected void scanTxLogTable() {
+    // Transactions whose log item could not be read are not executed, and so are retried on the next cycle
+    private void executeTxSweeperTaskBatch(List<DueTransaction> dueTransactions) throws InterruptedException {
+        Set<String> unreadableTransactionIds = new HashSet<>();
+        Map<String, TransactionLogItem> txLogItems = readTxLogItems(dueTransactions, unreadableTransactionIds);
+        if (txLogItems == null) {
+            return;
+        }
+        List<DueTransaction> readTransactions = new ArrayList<>(dueTransactions.size());
+        for (DueTransaction dueTransaction : dueTransactions) {
+            if (!unreadableTransactionIds.contains(dueTransaction.getTransactionId())) {
+                readTransactions.add(dueTransaction);
+            }
+        }
+        if (taskExecutor == null) {
+            readTransactions.forEach(dueTransaction -> executeTxSweeperTask(dueTransaction, txLogItems.get(dueTransaction.getTransactionId())));
+        } else {
+            List<Callable<Void>> txSweeperTasks = new ArrayList<>(readTransactions.size());
+            for (DueTransaction dueTransaction : readTransactions) {
+                txSweeperTasks.add(() -> {
+                    executeTxSweeperTask(dueTransaction, txLogItems.get(dueTransaction.getTransactionId()));
+                    return null;
+                });
+            }
+            taskExecutor.invokeAll(txSweeperTasks);
+        }
+    }
+
+    /**
+     * @return log items of the transactions by id, or null if they could not be read
+     */
+    private Map<String, TransactionLogItem> readTxLogItems(List<DueTransaction> dueTransactions, Set<String> unreadableTransactionIds) {
+        List<String> transactionIds = new ArrayList<>(dueTransactions.size());
+        for (DueTransaction dueTransaction : dueTransactions) {
+            transactionIds.add(dueTransaction.getTransactionId());
+        }
         try {
-            ScanRequest scanRequest = new ScanRequest().withTableName(TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME).withSelect(Select.ALL_ATTRIBUTES)
-                    .withLimit(txLogTableScanPageSize);
-            ScanResult result;
-            Map<String, AttributeValue> exclusiveStartKey = null;
-            do {
-                result = ddbClient.scan(scanRequest.withExclusiveStartKey(exclusiveStartKey));
-                LOG.info(String.format("Found %d transactions to sweep", result.getCount()));
-                for (Map<String, AttributeValue> item : result.getItems()) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        LOG.debug("Thread is interrupted. Stop sweeping");
-                        break;
-                    }
-                    TransactionLogItem txLogItem = txLogItemMapper.unmarshall(item);
-                    seenTransactions.putIfAbsent(txLogItem.getTransactionId(), new TransactionSweeperTask(txLogItem, Instant.now(), ddbClient, txLogItemMapper));
+            return TransactionLogItemReader.readAll(ddbClient, txLogItemMapper, retryPolicy, transactionIds, unreadableTransactionIds);
+        } catch (Exception e) {
+            LOG.warn(String.format("Reading %d log items failed. Their sweeper tasks will be retried on the next cycle.", transactionIds.size()), e);
+            return null;
+        }
+    }
+
+    // A failed task is only logged, by the task itself, and retried on the next cycle so that it cannot hold up the others
+    private void executeTxSweeperTask(DueTransaction dueTransaction, TransactionLogItem txLogItem) {
+        boolean isTxSweeperTaskComplete;
+        try {
+            isTxSweeperTaskComplete = taskFactory.create(dueTransaction).execute(txLogItem);
+        } catch (Exception e) {
+            LOG.debug(String.format("Sweeper task failed [%s]. It will be retried on the next cycle.", dueTransaction.getTransactionId()), e);
+            backlog.reschedule(dueTransaction, System.currentTimeMillis());
+            return;
+        }
+        long unlockDueAtMillis = dueTransaction.getFirstSeenAtMillis() + dueTransaction.getWaitPeriodBeforeSweeperUnlockMillis();
+        if (isTxSweeperTaskComplete) {
+            backlog.remove(dueTransaction);
+        } else if (System.currentTimeMillis() < unlockDueAtMillis) {
+            backlog.reschedule(dueTransaction, unlockDueAtMillis);
+        } else {
+            backlog.reschedule(dueTransaction, dueTransaction.getFirstSeenAtMillis() + dueTransaction.getWaitPeriodBeforeSweeperDeleteMillis());
+        }
+    }
+
+    protected void findTransactions() {
+        if (leases != null) {
+            findTransactionsOfLeasedPartitions();
+        } else if (sweepBuckets == null) {
+            scanTxLogTable();
+        } else if (checkpointMillis == null) {
+            long scanStartMillis = System.currentTimeMillis();
+            if (scanTxLogTable()) {
+                // A commit that started before the scan may log into the previous bucket after the scan went past it
+                checkpointMillis = sweepBuckets.bucketStartOf(scanStartMillis) - sweepBuckets.getBucketMillis();
+            }
+        } else {
+            queryTxLogBuckets();
+        }
+    }
+
+    /**
+     * Scans the table in txLogTableScanSegments parallel segments, each paginated by txLogTableScanPageSize items. A
+     * segment that filled the backlog resumes from the page it stopped at on the next scan.
+     *
+     * @return true if the whole table was scanned
+     */
+    protected boolean scanTxLogTable() {
+        try {
+            boolean isScanComplete;
+            if (scanExecutor == null) {
+                isScanComplete = scanTxLogTableSegment(null);
+            } else {
+                List<Integer> segments = new ArrayList<>(txLogTableScanSegments);
+                for (int segment = 0; segment < txLogTableScanSegments; segment++) {
+                    segments.add(segment);
                 }
-                exclusiveStartKey = result.getLastEvaluatedKey();
-            } while (exclusiveStartKey != null);
+                isScanComplete = scanTxLogTableSegments(segments).size() == txLogTableScanSegments;
+            }
+            return isScanComplete && !Thread.currentThread().isInterrupted();
+        } catch (InterruptedException e) {
+            LOG.debug("Thread is interrupted. Stop sweeping");
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            LOG.error(String.format("Exception occured while scanning %s table", TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME), e.getCause());
+            return false;
         } catch (Exception e) {
             LOG.error(String.format("Exception occured while scanning %s table", TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME), e);
+            return false;
         }
     }
 
-    protected Map<String, TransactionSweeperTask> getSeenTransactions() {
-        return seenTransactions;
+    /**
+     * Scans the segments in parallel if the table is scanned in several segments, otherwise one after another.
+     *
+     * @return segments that were scanned to their end
+     */
+    private Set<Integer> scanTxLogTableSegments(Collection<Integer> segments) throws InterruptedException, ExecutionException {
+        Set<Integer> scannedSegments = new HashSet<>();
+        if (scanExecutor == null) {
+            for (Integer segment : segments) {
+                if (scanTxLogTableSegment(segment)) {
+                    scannedSegments.add(segment);
+                }
+            }
+        } else {
+            List<Integer> orderedSegments = new ArrayList<>(segments);
+            List<Callable<Boolean>> segmentScans = new ArrayList<>(orderedSegments.size());
+            for (Integer segment : orderedSegments) {
+                segmentScans.add(() -> scanTxLogTableSegment(segment));
+            }
+            List<Future<Boolean>> segmentScanResults = scanExecutor.invokeAll(segmentScans);
+            for (int i = 0; i < orderedSegments.size(); i++) {
+                if (segmentScanResults.get(i).get()) {
+                    scannedSegments.add(orderedSegments.get(i));
+                }
+            }
+        }
+        return scannedSegments;
+    }
+
+    /**
+     * Sweeps the partitions this sweeper holds leases on, scanning the segments of the same numbers or, with buckets,
+     * querying the shards of the same numbers. With buckets, a partition is scanned once, the first time any sweeper
+     * holds it, and its checkpoint moves along with its lease. Every partition starts from the same scan epoch, which is
+     * older than any partition scan, so a transaction either existed when its segment was scanned or is in a queried
+     * bucket.
+     */
+    private void findTransactionsOfLeasedPartitions() {
+        try {
+            Set<Integer> heldPartitions = leases.getHeldPartitions();
+            if (sweepBuckets == null) {
+                scanTxLogTableSegments(heldPartitions);
+                return;
+            }
+            List<Integer> unscannedPartitions = new ArrayList<>();
+            for (Integer partition : heldPartitions) {
+                Long partitionCheckpointMillis = leases.getCheckpointMillis(partition);
+                if (partitionCheckpointMillis == null) {
+                    unscannedPartitions.add(partition);
+                } else {
+                    long newCheckpointMillis = queryTxLogBuckets(partitionCheckpointMillis, partition);
+                    if (newCheckpointMillis != partitionCheckpointMillis) {
+                        leases.saveCheckpointMillis(partition, newCheckpointMillis);
+                    }
+                }
+            }
+            if (!unscannedPartitions.isEmpty()) {
+                // A commit that started before the scan may log into the previous bucket after the scan went past it
+                long scanEpochCheckpointMillis = leases.getScanEpochCheckpointMillis(
+                        sweepBuckets.bucketStartOf(System.currentTimeMillis()) - sweepBuckets.getBucketMillis());
+                for (Integer partition : scanTxLogTableSegments(unscannedPartitions)) {
+                    leases.saveCheckpointMillis(partition, scanEpochCheckpointMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Thread is interrupted. Stop sweeping");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.error(String.format("Exception occured while scanning %s table", TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME), e.getCause());
+        } catch (Exception e) {
+            LOG.error(String.format("Exception occured while sweeping the leased partitions of %s table", TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME), e);
+        }
+    }
+
+    /**
+     * @param segment segment to scan, or null to scan the whole table
+     * @return true if the segment was scanned to its end
+     */
+    private boolean scanTxLogTableSegment(Integer segment) {
+        ScanRequest scanRequest = new ScanRequest().withTableName(TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME).withSelect(Select.ALL_ATTRIBUTES)
+                .withLimit(txLogTableScanPageSize);
+        if (segment != null) {
+            scanRequest.withSegment(segment).withTotalSegments(txLogTableScanSegments);
+        }
+        int resumeKeyIndex = segment == null ? 0 : segment;
+        ScanResult result;
+        Map<String, AttributeValue> exclusiveStartKey = scanResumeKeys.getAndSet(resumeKeyIndex, null);
+        do {
+            result = ddbClient.scan(scanRequest.withExclusiveStartKey(exclusiveStartKey));
+            LOG.info(String.format("Found %d transactions to sweep", result.getCount()));
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    LOG.debug("Thread is interrupted. Stop sweeping");
+                    return false;
+                }
+                if (txLogItemMapper.isOverflowItem(item)) {
+                    continue; // Deleted along with its log item
+                }
+                if (!addSweeperTask(item)) {
+                    LOG.info(String.format("Sweeper backlog is full with %d transactions. Pausing the scan.", backlog.size()));
+                    scanResumeKeys.set(resumeKeyIndex, exclusiveStartKey); // Transactions of the page already added are deduped
+                    return false;
+                }
+            }
+            exclusiveStartKey = result.getLastEvaluatedKey();
+        } while (exclusiveStartKey != null);
+        return true;
+    }
+
+    protected void queryTxLogBuckets() {
+        try {
+            checkpointMillis = queryTxLogBuckets(checkpointMillis, null);
+        } catch (Exception e) {
+            LOG.error(String.format("Exception occured while querying buckets of %s table", TransactionLogItemMapper.TRANSACTION_LOG_TABLE_NAME), e);
+        }
+    }
+
+    /**
+     * Queries the buckets from fromCheckpointMillis up to now.
+     *
+     * @param shard shard of the buckets to query, or null to query all of them
+     * @return the checkpoint moved past the buckets that are closed and empty
+     */
+    private long queryTxLogBuckets(long fromCheckpointMillis, Integer shard) {
+        long nowMillis = System.currentTimeMillis();
+        long newCheckpointMillis = fromCheckpointMillis;
+        boolean isCheckpointAdvancing = true;
+        for (long bucketStartMillis = fromCheckpointMillis; bucketStartMillis <= nowMillis; bucketStartMillis += sweepBuckets.getBucketMillis()) {
+            List<String> buckets = shard == null ? sweepBuckets.shardsOf(bucketStartMillis)
+                    : Collections.singletonList(sweepBuckets.shardOf(bucketStartMillis, shard));
+            int transactionCount = 0;
+            for (String bucket : buckets) {
+                transactionCount += queryTxLogBucket(bucket);
+            }
+            if (backlog.isFull()) {
+                LOG.info(String.format("Sweeper backlog is full with %d transactions. Pausing at bucket %d.", backlog.size(), bucketStartMillis));
+                return newCheckpointMillis;
+            }
+            boolean isBucketClosed = bucketStartMillis + 2 * sweepBuckets.getBucketMillis() <= nowMillis;
+            isCheckpointAdvancing = isCheckpointAdvancing && isBucketClosed && transactionCount == 0;
+            if (isCheckpointAdvancing) {
+                newCheckpointMillis = bucketStartMillis + sweepBuckets.getBucketMillis();
+            }
+        }
+        return newCheckpointMillis;
+    }
+
+    private int queryTxLogBucket(String bucket) {
+        QueryRequest queryRequest = txLogItemMapper.generateSweepBucketQueryRequest(bucket).withLimit(txLogTableScanPageSize);
+        QueryResult result;
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        int transactionCount = 0;
+        do {
+            result = ddbClient.query(queryRequest.withExclusiveStartKey(exclusiveStartKey));
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                transactionCount++;
+                if (!addSweeperTask(item)) {
+                    return transactionCount; // Not empty, so the checkpoint stays at this bucket
+                }
+            }
+            exclusiveStartKey = result.getLastEvaluatedKey();
+        } while (exclusiveStartKey != null);
+        if (transactionCount > 0) {
+            LOG.info(String.format("Found %d transactions to sweep in bucket %s", transactionCount, bucket));
+        }
+        return transactionCount;
+    }
+
+    private boolean addSweeperTask(Map<String, AttributeValue> item) {
+        TransactionLogItem txLogItem = txLogItemMapper.unmarshall(item);
+        if (timeToLive && txLogItem.isUnlockedBySweeper() && txLogItem.getExpiresAtEpochSeconds() != null) {
+            return true; // Already swept, it only waits for DynamoDB to delete it
+        }
+        return addSweeperTask(txLogItem);
+    }
+
+    /**
+     * Adds the transaction to the backlog, due once its wait period before unlocking elapses, unless it is already there.
+     *
+     * @return false if the backlog is full
+     */
+    protected boolean addSweeperTask(TransactionLogItem txLogItem) {
+        return backlog.add(txLogItem.getTransactionId(), System.currentTimeMillis(), txLogItem.getWaitPeriodBeforeSweeperUnlockMillis(),
+                txLogItem.getWaitPeriodBeforeSweeperDeleteMillis());
+    }
+
+    /**
+     * @return start of the oldest bucket that is still queried, or null if the table has not been scanned yet
+     */
+    protected Long getCheckpointMillis() {
+        return checkpointMillis;
+    }
+
+    /**
+     * @return leases of this sweeper, or null if it sweeps the whole table
+     */
+    protected SweeperLeases getLeases() {
+        return leases;
+    }
+
+    protected SweeperBacklog getBacklog() {
+        return backlog;
+    }
+
+    void setTaskFactory(TaskFactory newTaskFactory) {
+        this.taskFactory = checkNotNull(newTaskFactory);
+    }
+
+    /**
+     * Creates the task sweeping a transaction when it is due, so that the backlog only keeps what is needed to create it.
+     */
+    @FunctionalInterface
+    interface TaskFactory {
+        TransactionSweeperTask create(DueTransaction dueTransaction);
     }
 }
@@ -3,24 +3,58 @@ package com.github.paleblue.persistence.milkha;
 
 import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
 
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.mapper.SweeperLeaseMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogBuckets;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.util.VirtualThreads;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 public class TransactionSweeperBuilder {
+    private static final Log LOG = LogFactory.getLog(TransactionSweeperBuilder.class);
     private static final int DEFAULT_TRANSACTION_LOG_TABLE_SCAN_PAGE_SIZE = 1000;
+    private static final int DEFAULT_TRANSACTION_LOG_TABLE_SCAN_SEGMENTS = 1;
     private static final long DEFAULT_TRANSACTION_SWEEPER_DELAY_SECONDS = 30L;
+    private static final int DEFAULT_MAX_CONCURRENT_TASKS = 1;
+    private static final int DEFAULT_UNLOCK_CONCURRENCY = 1;
+    private static final double DEFAULT_MAX_WRITES_PER_SECOND_PER_TABLE = 0;
+    private static final int DEFAULT_MAX_BACKLOG_SIZE = 1000000;
+    private static final long DEFAULT_LEASE_DURATION_MILLIS = 60000L;
 
     private final AmazonDynamoDB ddbClient;
     private final ScheduledExecutorService scheduledExecutorService;
     private int transactionLogTableScanPageSize;
+    private int transactionLogTableScanSegments;
     private long transactionSweeperDelaySeconds;
+    private boolean useVirtualThreads;
+    private int maxConcurrentTasks;
+    private int unlockConcurrency;
+    private double maxWritesPerSecondPerTable;
+    private int maxBacklogSize;
+    private boolean useLeases;
+    private long leaseDurationMillis;
+    private String leaseOwner;
+    private TransactionLogBuckets sweepBuckets;
+    private boolean timeToLive;
 
     public TransactionSweeperBuilder(AmazonDynamoDB ddbClient, ScheduledExecutorService scheduledExecutorService) {
         this.ddbClient = checkNotNull(ddbClient);
         this.scheduledExecutorService = checkNotNull(scheduledExecutorService);
         this.transactionLogTableScanPageSize = DEFAULT_TRANSACTION_LOG_TABLE_SCAN_PAGE_SIZE;
+        this.transactionLogTableScanSegments = DEFAULT_TRANSACTION_LOG_TABLE_SCAN_SEGMENTS;
         this.transactionSweeperDelaySeconds = DEFAULT_TRANSACTION_SWEEPER_DELAY_SECONDS;
+        this.maxConcurrentTasks = DEFAULT_MAX_CONCURRENT_TASKS;
+        this.unlockConcurrency = DEFAULT_UNLOCK_CONCURRENCY;
+        this.maxWritesPerSecondPerTable = DEFAULT_MAX_WRITES_PER_SECOND_PER_TABLE;
+        this.maxBacklogSize = DEFAULT_MAX_BACKLOG_SIZE;
+        this.leaseDurationMillis = DEFAULT_LEASE_DURATION_MILLIS;
+        this.leaseOwner = UUID.randomUUID().toString();
     }
 
     public TransactionSweeperBuilder withTransactionLogTableScanPageSize(final int newTransactionLogTableScanPageSize) {
@@ -28,12 +62,141 @@ public class TransactionSweeperBuilder {
         return this;
     }
 
+    /**
+     * Scans the TransactionLog in this many parallel segments, each on its own thread and paginated by the scan page
+     * size. The table is scanned sequentially by default.
+     */
+    public TransactionSweeperBuilder withTransactionLogTableScanSegments(final int newTransactionLogTableScanSegments) {
+        this.transactionLogTableScanSegments = newTransactionLogTableScanSegments;
+        return this;
+    }
+
     public TransactionSweeperBuilder withTransactionSweeperDelaySeconds(final long newTransactionSweeperDelaySeconds) {
         this.transactionSweeperDelaySeconds = newTransactionSweeperDelaySeconds;
         return this;
     }
 
+    /**
+     * Runs the unlock requests of a transaction in parallel, each on its own virtual thread, when the JDK supports
+     * virtual threads. Otherwise, or by default, they run one after another on the sweeper thread.
+     */
+    public TransactionSweeperBuilder withVirtualThreads(final boolean newUseVirtualThreads) {
+        this.useVirtualThreads = newUseVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Runs up to this many due transactions at the same time on a pool of sweeper threads. By default transactions are
+     * swept one after another on the scheduled thread.
+     */
+    public TransactionSweeperBuilder withMaxConcurrentTasks(final int newMaxConcurrentTasks) {
+        this.maxConcurrentTasks = newMaxConcurrentTasks;
+        return this;
+    }
+
+    /**
+     * Runs the unlock requests of the transactions being swept on a pool of this many threads. Ignored if virtual
+     * threads are used. By default they run one after another on the thread sweeping the transaction.
+     */
+    public TransactionSweeperBuilder withUnlockConcurrency(final int newUnlockConcurrency) {
+        this.unlockConcurrency = newUnlockConcurrency;
+        return this;
+    }
+
+    /**
+     * Caps the writes of the sweeper to each table, unlocks and TransactionLog writes alike, so that sweeping a backlog
+     * leaves capacity for live traffic. Unlimited by default.
+     */
+    public TransactionSweeperBuilder withMaxWritesPerSecondPerTable(final double newMaxWritesPerSecondPerTable) {
+        this.maxWritesPerSecondPerTable = newMaxWritesPerSecondPerTable;
+        return this;
+    }
+
+    /**
+     * Caps how many transactions the sweeper holds while they wait for their wait periods to elapse, at about 64 bytes
+     * each. Once the cap is reached, finding more transactions pauses until some have been deleted. One million by
+     * default.
+     */
+    public TransactionSweeperBuilder withMaxBacklogSize(final int newMaxBacklogSize) {
+        this.maxBacklogSize = newMaxBacklogSize;
+        return this;
+    }
+
+    /**
+     * Shares the TransactionLog with the other sweepers using leases instead of sweeping all of it. The table is split
+     * into as many partitions as scan segments, the same number for every sweeper, and leases on them are kept in the
+     * table of {@link SweeperLeaseMapper#generateCreateTableRequest()}. With sweep buckets, the number of scan segments
+     * must equal the number of bucket shards.
+     */
+    public TransactionSweeperBuilder withLeases(final boolean newUseLeases) {
+        this.useLeases = newUseLeases;
+        return this;
+    }
+
+    /**
+     * How long a lease lasts without being renewed, and so how long the partitions of a crashed sweeper are left
+     * unswept. Leases are renewed three times per duration. One minute by default.
+     */
+    public TransactionSweeperBuilder withLeaseDurationMillis(final long newLeaseDurationMillis) {
+        this.leaseDurationMillis = newLeaseDurationMillis;
+        return this;
+    }
+
+    /**
+     * Name this sweeper holds leases under, unique among the sweepers. A random UUID by default.
+     */
+    public TransactionSweeperBuilder withLeaseOwner(final String newLeaseOwner) {
+        this.leaseOwner = newLeaseOwner;
+        return this;
+    }
+
+    /**
+     * Queries the time buckets of the TransactionLog instead of scanning it on every run. Use the same buckets as the
+     * coordinators. By default the whole table is scanned.
+     */
+    public TransactionSweeperBuilder withSweepBuckets(final TransactionLogBuckets newSweepBuckets) {
+        this.sweepBuckets = newSweepBuckets;
+        return this;
+    }
+
+    /**
+     * Gives the log items and overflow items of a transaction an expiry once it is unlocked, the rest of its wait period
+     * before sweeper delete later, and leaves deleting them to DynamoDB TTL. The TransactionLog table needs
+     * {@link TransactionLogItemMapper#generateUpdateTimeToLiveRequest()}. Log items that were already unlocked without
+     * an expiry are still deleted. Disabled by default.
+     */
+    public TransactionSweeperBuilder withTimeToLive(final boolean newTimeToLive) {
+        this.timeToLive = newTimeToLive;
+        return this;
+    }
+
     public TransactionSweeper build() {
-        return new TransactionSweeper(ddbClient, scheduledExecutorService, transactionLogTableScanPageSize, transactionSweeperDelaySeconds);
+        return new TransactionSweeper(ddbClient, scheduledExecutorService, transactionLogTableScanPageSize, transactionLogTableScanSegments,
+                transactionSweeperDelaySeconds, selectUnlockExecutor(), maxConcurrentTasks, maxWritesPerSecondPerTable,
+                maxBacklogSize, sweepBuckets, selectLeases(), timeToLive);
+    }
+
+    private SweeperLeases selectLeases() {
+        if (!useLeases) {
+            return null;
+        }
+        return new SweeperLeases(ddbClient, new SweeperLeaseMapper(), leaseOwner, transactionLogTableScanSegments, leaseDurationMillis);
+    }
+
+    private Executor selectUnlockExecutor() {
+        if (useVirtualThreads) {
+            if (VirtualThreads.isSupported()) {
+                return VirtualThreads.newVirtualThreadPerTaskExecutor();
+            }
+            LOG.warn("Virtual threads are not supported by this JDK. Unlocking items one after another.");
+        }
+        if (unlockConcurrency > 1) {
+            return Executors.newFixedThreadPool(unlockConcurrency, runnable -> {
+                Thread thread = new Thread(runnable, "milkha-sweeper-unlock");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return Runnable::run;
     }
 }
@@ -3,8 +3,13 @@ package com.github.paleblue.persistence.milkha;
 import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
@@ -28,46 +33,104 @@ public class TransactionSweeperTask {
     private final String txId;
     private final long waitPeriodBeforeSweeperDeleteMillis;
     private final long waitPeriodBeforeSweeperUnlockMillis;
+    private final Executor unlockExecutor;
+    private final TableRateLimiters rateLimiters;
+    private final boolean timeToLive;
 
     public TransactionSweeperTask(final TransactionLogItem txLogItem, final Instant txFirstSeenAt,
             final AmazonDynamoDB ddbClient, final TransactionLogItemMapper txLogItemMapper) {
-        checkNotNull(txLogItem);
-        this.waitPeriodBeforeSweeperDeleteMillis = txLogItem.getWaitPeriodBeforeSweeperDeleteMillis();
-        this.waitPeriodBeforeSweeperUnlockMillis = txLogItem.getWaitPeriodBeforeSweeperUnlockMillis();
-        this.txId = txLogItem.getTransactionId();
+        this(txLogItem, txFirstSeenAt, ddbClient, txLogItemMapper, Runnable::run);
+    }
+
+    /**
+     * @param unlockExecutor runs the unlock requests of the transaction; they run one after another on the calling
+     *                       thread unless it hands them to other threads
+     */
+    public TransactionSweeperTask(final TransactionLogItem txLogItem, final Instant txFirstSeenAt,
+            final AmazonDynamoDB ddbClient, final TransactionLogItemMapper txLogItemMapper, final Executor unlockExecutor) {
+        this(txLogItem, txFirstSeenAt, ddbClient, txLogItemMapper, unlockExecutor, TableRateLimiters.UNLIMITED);
+    }
+
+    /**
+     * @param rateLimiters paces every write of the task by the table it goes to
+     */
+    TransactionSweeperTask(final TransactionLogItem txLogItem, final Instant txFirstSeenAt, final AmazonDynamoDB ddbClient,
+            final TransactionLogItemMapper txLogItemMapper, final Executor unlockExecutor, final TableRateLimiters rateLimiters) {
+        this(checkNotNull(txLogItem).getTransactionId(), txLogItem.getWaitPeriodBeforeSweeperUnlockMillis(), txLogItem.getWaitPeriodBeforeSweeperDeleteMillis(),
+                txFirstSeenAt, ddbClient, txLogItemMapper, unlockExecutor, rateLimiters, false);
+    }
+
+    /**
+     * @param timeToLive give log items an expiry as they are unlocked and leave deleting them to DynamoDB TTL
+     */
+    TransactionSweeperTask(final String txId, final long waitPeriodBeforeSweeperUnlockMillis, final long waitPeriodBeforeSweeperDeleteMillis,
+            final Instant txFirstSeenAt, final AmazonDynamoDB ddbClient, final TransactionLogItemMapper txLogItemMapper, final Executor unlockExecutor,
+            final TableRateLimiters rateLimiters, final boolean timeToLive) {
+        this.waitPeriodBeforeSweeperDeleteMillis = waitPeriodBeforeSweeperDeleteMillis;
+        this.waitPeriodBeforeSweeperUnlockMillis = waitPeriodBeforeSweeperUnlockMillis;
+        this.txId = checkNotNull(txId);
         this.txFirstSeenAt = checkNotNull(txFirstSeenAt);
         this.ddbClient = checkNotNull(ddbClient);
         this.txLogItemMapper = checkNotNull(txLogItemMapper);
+        this.unlockExecutor = checkNotNull(unlockExecutor);
+        this.rateLimiters = checkNotNull(rateLimiters);
+        this.timeToLive = timeToLive;
     }
 
     public String getTransactionId() {
         return this.txId;
     }
 
+    /**
+     * @return when the wait period before unlocking the transaction elapses
+     */
+    public Instant getUnlockDueAt() {
+        return txFirstSeenAt.plusMillis(this.waitPeriodBeforeSweeperUnlockMillis);
+    }
+
+    /**
+     * @return when the wait period before deleting the transaction elapses
+     */
+    public Instant getDeleteDueAt() {
+        return txFirstSeenAt.plusMillis(this.waitPeriodBeforeSweeperDeleteMillis);
+    }
+
     public boolean execute() {
         if (isWaitPeriodBeforeSweeperUnlockElapsed()) {
-            unlockTransaction();
-            if (isWaitPeriodBeforeSweeperDeleteElapsed()) {
-                deleteTransaction();
-                return true;
-            }
+            return execute(TransactionLogItemReader.read(ddbClient, txLogItemMapper, this.txId));
         }
         return false;
     }
 
-    private TransactionLogItem getTxLogItem() {
-        Map<String, AttributeValue> rawTxLogItem = ddbClient.getItem(txLogItemMapper.generateGetItemRequest(this.txId)).getItem();
-        if (rawTxLogItem == null) {
-            return null;
-        } else {
-            return txLogItemMapper.unmarshall(rawTxLogItem);
+    /**
+     * Executes the task from a log item that was already read, so that it reads nothing itself.
+     *
+     * @param txLogItem log item of the transaction with its commit sets, or null if there is none
+     */
+    boolean execute(final TransactionLogItem txLogItem) {
+        if (isWaitPeriodBeforeSweeperUnlockElapsed()) {
+            unlockTransaction(txLogItem);
+            if (timeToLive && (txLogItem == null || txLogItem.getExpiresAtEpochSeconds() != null)) {
+                return true; // DynamoDB deletes the log item once it expires
+            }
+            if (isWaitPeriodBeforeSweeperDeleteElapsed()) {
+                deleteTransaction(txLogItem);
+                return true;
+            }
         }
+        return false;
     }
 
-    private void deleteTransaction() {
+    private void deleteTransaction(TransactionLogItem txLogItem) {
         try {
-            TransactionLogItem txLogItem = getTxLogItem();
             if (txLogItem != null) {
+                // Overflow items go first, so a failed delete never orphans them; the log item that outlives them is read without
+                // commit sets, as it is already unlocked
+                for (Map<String, AttributeValue> overflowKey : txLogItemMapper.getOverflowPrimaryKeyMaps(txLogItem)) {
+                    rateLimiters.acquire(txLogItemMapper.getTableName());
+                    ddbClient.deleteItem(new DeleteItemRequest().withTableName(txLogItemMapper.getTableName()).withKey(overflowKey));
+                }
+                rateLimiters.acquire(txLogItemMapper.getTableName());
                 ddbClient.deleteItem(txLogItemMapper.generateDeleteItemRequest(this.txId));
                 LOG.info(String.format("Deleted transaction [%s].", this.txId));
             }
@@ -77,33 +140,37 @@ public class TransactionSweeperTask {
         }
     }
 
-    private void unlockTransaction() {
+    private void unlockTransaction(TransactionLogItem txLogItem) {
         try {
-            TransactionLogItem txLogItem = getTxLogItem();
             if (txLogItem != null && !txLogItem.isUnlockedBySweeper()) {
                 LOG.info(String.format("Unlocking transaction [%s]", this.txId));
-                TransactionRequestsFactory txRequestsFactory = new TransactionRequestsFactory(txLogItem);
+                TransactionRequestsFactory txRequestsFactory = new TransactionRequestsFactory(txLogItemMapper);
                 List<AmazonWebServiceRequest> unlockRequests;
                 switch (txLogItem.getTransactionStatus()) {
                 case COMMITTED:
-                    unlockRequests = txRequestsFactory.generatePostCommitUnlockRequestsFromCommitSets();
+                    unlockRequests = txRequestsFactory.generatePostCommitUnlockRequestsFromCommitSets(txLogItem);
                     break;
                 case ROLLED_BACK:
-                    unlockRequests = txRequestsFactory.generatePostRollbackUnlockRequestsFromCommitSets();
+                    unlockRequests = txRequestsFactory.generatePostRollbackUnlockRequestsFromCommitSets(txLogItem);
                     break;
                 case START_COMMIT:
                     txLogItem.setTransactionStatus(TransactionStatus.ROLLED_BACK);
-                    ddbClient.putItem(txRequestsFactory.generatePutRequestForTransactionLogItem());
+                    rateLimiters.acquire(txLogItemMapper.getTableName());
+                    ddbClient.putItem(txRequestsFactory.generatePutRequestForTransactionLogItem(txLogItem));
                     txLogItem.setTransactionStatus(TransactionStatus.ROLLED_BACK); // Needed for previous status to update correctly
-                    unlockRequests = txRequestsFactory.generatePostRollbackUnlockRequestsFromCommitSets();
+                    unlockRequests = txRequestsFactory.generatePostRollbackUnlockRequestsFromCommitSets(txLogItem);
                     break;
                 default:
                     // If we got here, then the given transaction is not a pristine DDB read
                     throw new UnexpectedTransactionStateException(String.format("TransactionId [%s], Status [%s]", this.txId, txLogItem.getTransactionStatus().name()));
                 }
-                executeRequests(unlockRequests); // Not using a thread-pool for simplicity. The sweep is already executing as a FutureTask.
+                executeRequests(unlockRequests);
                 txLogItem.setUnlockedBySweeper(true);
-                ddbClient.putItem(txRequestsFactory.generatePutRequestForTransactionLogItem());
+                if (timeToLive) {
+                    assignExpiry(txLogItem);
+                }
+                rateLimiters.acquire(txLogItemMapper.getTableName());
+                ddbClient.putItem(txRequestsFactory.generatePutRequestForTransactionLogItem(txLogItem));
                 LOG.info(String.format("Unlocked transaction [%s].", this.txId));
             }
         } catch (Exception e) {
@@ -112,28 +179,63 @@ public class TransactionSweeperTask {
         }
     }
 
-    private void executeRequests(List<AmazonWebServiceRequest> requests) {
-        requests.stream().forEach(request -> {
+    /**
+     * Only a transaction that holds no more locks gets an expiry, so DynamoDB never deletes a log item that locked items
+     * still refer to. It expires once the rest of the wait period before delete has passed, and its overflow items get
+     * the same expiry first, so that they are not left behind by an expiring log item.
+     */
+    private void assignExpiry(TransactionLogItem txLogItem) {
+        long expiresAtMillis = System.currentTimeMillis() + waitPeriodBeforeSweeperDeleteMillis - waitPeriodBeforeSweeperUnlockMillis;
+        long expiresAtEpochSeconds = TimeUnit.MILLISECONDS.toSeconds(expiresAtMillis) + 1;
+        for (Map<String, AttributeValue> overflowKey : txLogItemMapper.getOverflowPrimaryKeyMaps(txLogItem)) {
+            rateLimiters.acquire(txLogItemMapper.getTableName());
             try {
-                if (request instanceof DeleteItemRequest) {
-                    ddbClient.deleteItem((DeleteItemRequest) request);
-                } else if (request instanceof UpdateItemRequest) {
-                    ddbClient.updateItem((UpdateItemRequest) request);
-                } else {
-                    throw new UnsupportedOperationException("Only delete and update requests are supported.");
-                }
+                ddbClient.updateItem(txLogItemMapper.generateExpireOverflowItemRequest(overflowKey, expiresAtEpochSeconds));
             } catch (ConditionalCheckFailedException e) {
-                LOG.info(String.format("Conditional check failed while unlocking item."
-                        + " This means the item was already unlocked. Request: %s", request));
+                LOG.debug(String.format("Overflow item %s of transaction [%s] no longer exists", overflowKey, this.txId));
             }
-        });
+        }
+        txLogItem.setExpiresAtEpochSeconds(expiresAtEpochSeconds);
+        txLogItem.setSweepBucket(null); // Leaves the sweep bucket index, so the sweeper does not query it again
+    }
+
+    private void executeRequests(List<AmazonWebServiceRequest> requests) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(requests.size());
+        for (AmazonWebServiceRequest request : requests) {
+            futures.add(CompletableFuture.runAsync(() -> executeRequest(request), unlockExecutor));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void executeRequest(AmazonWebServiceRequest request) {
+        try {
+            if (request instanceof DeleteItemRequest) {
+                rateLimiters.acquire(((DeleteItemRequest) request).getTableName());
+                ddbClient.deleteItem((DeleteItemRequest) request);
+            } else if (request instanceof UpdateItemRequest) {
+                rateLimiters.acquire(((UpdateItemRequest) request).getTableName());
+                ddbClient.updateItem((UpdateItemRequest) request);
+            } else {
+                throw new UnsupportedOperationException("Only delete and update requests are supported.");
+            }
+        } catch (ConditionalCheckFailedException e) {
+            LOG.info(String.format("Conditional check failed while unlocking item."
+                    + " This means the item was already unlocked. Request: %s", request));
+        }
     }
 
     private boolean isWaitPeriodBeforeSweeperDeleteElapsed() {
-        return Instant.now().isAfter(txFirstSeenAt.plusMillis(this.waitPeriodBeforeSweeperDeleteMillis));
+        return !Instant.now().isBefore(getDeleteDueAt());
     }
 
     private boolean isWaitPeriodBeforeSweeperUnlockElapsed() {
-        return Instant.now().isAfter(txFirstSeenAt.plusMillis(this.waitPeriodBeforeSweeperUnlockMillis));
+        return !Instant.now().isBefore(getUnlockDueAt());
     }
 }
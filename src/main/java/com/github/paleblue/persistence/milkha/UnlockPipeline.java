@@ -0,0 +1,346 @@
+package com.github.paleblue.persistence.milkha;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.paleblue.persistence.milkha.metrics.PhaseOutcome;
+import com.github.paleblue.persistence.milkha.metrics.TransactionMetricsListener;
+import com.github.paleblue.persistence.milkha.metrics.TransactionPhase;
+import com.github.paleblue.persistence.milkha.util.RateLimiter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Applies post-commit and post-rollback unlocks in the background on its own threads, so unlocks never compete with
+ * lock acquisition for the executor of a TransactionManager. One pipeline is meant to be shared by all coordinators of
+ * a JVM through {@link TransactionCoordinatorBuilder#withUnlockPipeline(UnlockPipeline)}.
+ *
+ * <p>A single dispatcher thread drains the bounded queue and merges the unlocks of many transactions into
+ * TransactWriteItems calls of distinct items, paced by the configured unlock rate. Merging saves calls and threads, not
+ * capacity: a transactional write consumes twice the write capacity of a plain one. A call that is cancelled, usually
+ * because one of its items was already unlocked by the sweeper or a LockResolver, fails the unlocks whose condition
+ * failed and retries the others one at a time, each paced by the unlock rate again and reported to the metrics
+ * listener as {@link TransactionPhase#UNLOCK_FALLBACK}. Unlocks submitted while the queue is full fail with
+ * RejectedExecutionException and are left to the sweeper.
+ */
+public final class UnlockPipeline {
+
+    private static final Log LOG = LogFactory.getLog(UnlockPipeline.class);
+    private static final String CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+
+    private final AmazonDynamoDB ddbClient;
+    private final BlockingQueue<PendingUnlock> queue;
+    private final int maxUnlocksPerWrite;
+    private final Semaphore writesInFlight;
+    private final RateLimiter rateLimiter;
+    private final TransactionMetricsListener metricsListener;
+    private final ExecutorService writeExecutor;
+    private final Thread dispatcher;
+    private final AtomicInteger backlog;
+    private final LongAdder completedCount;
+    private final LongAdder failedCount;
+    private final LongAdder rejectedCount;
+    private final LongAdder writeCount;
+    private volatile boolean shutdown;
+
+    UnlockPipeline(AmazonDynamoDB ddbClient, int capacity, int maxUnlocksPerWrite, int maxWritesInFlight, double maxUnlocksPerSecond,
+            TransactionMetricsListener metricsListener) {
+        checkArgument(capacity > 0, "capacity must be greater than zero");
+        checkArgument(maxUnlocksPerWrite > 0 && maxUnlocksPerWrite <= TransactionManager.TRANSACT_WRITE_ITEMS_MAX_ITEMS,
+                "maxUnlocksPerWrite must be between one and " + TransactionManager.TRANSACT_WRITE_ITEMS_MAX_ITEMS);
+        checkArgument(maxWritesInFlight > 0, "maxWritesInFlight must be greater than zero");
+        this.ddbClient = checkNotNull(ddbClient);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxUnlocksPerWrite = maxUnlocksPerWrite;
+        this.writesInFlight = new Semaphore(maxWritesInFlight);
+        this.rateLimiter = new RateLimiter(maxUnlocksPerSecond);
+        this.metricsListener = checkNotNull(metricsListener);
+        this.writeExecutor = Executors.newFixedThreadPool(maxWritesInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "milkha-unlock-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.backlog = new AtomicInteger();
+        this.completedCount = new LongAdder();
+        this.failedCount = new LongAdder();
+        this.rejectedCount = new LongAdder();
+        this.writeCount = new LongAdder();
+        this.dispatcher = new Thread(this::dispatch, "milkha-unlock-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @param requests UpdateItemRequest or DeleteItemRequest unlocks
+     * @return one future per request, completed once the unlock is applied
+     */
+    List<CompletableFuture<Void>> submit(List<? extends AmazonWebServiceRequest> requests) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(requests.size());
+        for (AmazonWebServiceRequest request : requests) {
+            PendingUnlock pendingUnlock = new PendingUnlock(request);
+            backlog.incrementAndGet();
+            if (!queue.offer(pendingUnlock) || (shutdown && queue.remove(pendingUnlock))) {
+                backlog.decrementAndGet();
+                rejectedCount.increment();
+                pendingUnlock.future.completeExceptionally(new RejectedExecutionException("Unlock pipeline is full or shut down"));
+            }
+            futures.add(pendingUnlock.future);
+        }
+        return futures;
+    }
+
+    /**
+     * @return unlocks that are queued or being written
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * @return unlocks refused because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return DynamoDB write calls made, each carrying one or more unlocks
+     */
+    public long getWriteCount() {
+        return writeCount.sum();
+    }
+
+    /**
+     * Stops taking unlocks. Unlocks still queued fail with RejectedExecutionException; writes in flight finish.
+     */
+    public void shutdown() {
+        shutdown = true;
+        dispatcher.interrupt();
+        writeExecutor.shutdown();
+    }
+
+    private void dispatch() {
+        List<PendingUnlock> drained = new LinkedList<>();
+        while (!shutdown) {
+            try {
+                if (drained.isEmpty()) {
+                    drained.add(queue.take());
+                }
+                writesInFlight.acquire(); // Unlocks keep queueing up while every writer is busy, so groups grow with load
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(drained, Math.max(0, maxUnlocksPerWrite - drained.size()));
+            List<PendingUnlock> group = takeGroupOfDistinctItems(drained);
+            try {
+                rateLimiter.acquire(group.size());
+                writeExecutor.execute(() -> write(group));
+            } catch (InterruptedException | RejectedExecutionException e) {
+                release(group, new RejectedExecutionException("Unlock pipeline is shut down"));
+                break;
+            }
+        }
+        drained.addAll(queue);
+        queue.clear();
+        drained.forEach(pendingUnlock -> pendingUnlock.fail(new RejectedExecutionException("Unlock pipeline is shut down")));
+    }
+
+    // A TransactWriteItems call cannot touch the same item twice, so a repeated item waits for the next group
+    private List<PendingUnlock> takeGroupOfDistinctItems(List<PendingUnlock> drained) {
+        List<PendingUnlock> group = new ArrayList<>(Math.min(drained.size(), maxUnlocksPerWrite));
+        Set<ItemKey> itemKeys = new HashSet<>();
+        for (Iterator<PendingUnlock> iterator = drained.iterator(); iterator.hasNext() && group.size() < maxUnlocksPerWrite; ) {
+            PendingUnlock pendingUnlock = iterator.next();
+            if (itemKeys.add(pendingUnlock.itemKey)) {
+                group.add(pendingUnlock);
+                iterator.remove();
+            }
+        }
+        return group;
+    }
+
+    private void write(List<PendingUnlock> group) {
+        try {
+            if (group.size() == 1) {
+                writeOne(group.get(0));
+                return;
+            }
+            List<TransactWriteItem> transactItems = new ArrayList<>(group.size());
+            group.forEach(pendingUnlock -> transactItems.add(pendingUnlock.toTransactWriteItem()));
+            try {
+                writeCount.increment();
+                ddbClient.transactWriteItems(new TransactWriteItemsRequest().withTransactItems(transactItems));
+                group.forEach(PendingUnlock::complete);
+            } catch (TransactionCanceledException e) {
+                LOG.debug("Grouped unlock cancelled. Unlocking one item at a time.", e);
+                writeOneAtATime(group, e.getCancellationReasons());
+            } catch (RuntimeException e) {
+                group.forEach(pendingUnlock -> pendingUnlock.fail(e));
+            }
+        } finally {
+            release(group, null);
+        }
+    }
+
+    // An unlock whose own condition failed would fail alone too, so only the unlocks cancelled along with it are retried
+    private void writeOneAtATime(List<PendingUnlock> group, List<CancellationReason> cancellationReasons) {
+        for (int i = 0; i < group.size(); i++) {
+            PendingUnlock pendingUnlock = group.get(i);
+            CancellationReason reason = cancellationReasons != null && cancellationReasons.size() == group.size() ? cancellationReasons.get(i) : null;
+            if (reason != null && CONDITIONAL_CHECK_FAILED.equals(reason.getCode())) {
+                pendingUnlock.fail(new ConditionalCheckFailedException(reason.getMessage()));
+                continue;
+            }
+            try {
+                rateLimiter.acquire(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                group.subList(i, group.size()).forEach(rejected -> rejected.fail(new RejectedExecutionException("Unlock pipeline is shut down")));
+                return;
+            }
+            long startTime = System.nanoTime();
+            Throwable failure = writeOne(pendingUnlock);
+            metricsListener.onPhaseCompleted(TransactionPhase.UNLOCK_FALLBACK, System.nanoTime() - startTime, PhaseOutcome.of(failure));
+        }
+    }
+
+    /**
+     * @return the failure of the write, or null if it succeeded
+     */
+    private Throwable writeOne(PendingUnlock pendingUnlock) {
+        try {
+            writeCount.increment();
+            if (pendingUnlock.request instanceof UpdateItemRequest) {
+                ddbClient.updateItem((UpdateItemRequest) pendingUnlock.request);
+            } else {
+                ddbClient.deleteItem((DeleteItemRequest) pendingUnlock.request);
+            }
+            pendingUnlock.complete();
+            return null;
+        } catch (RuntimeException e) {
+            pendingUnlock.fail(e);
+            return e;
+        }
+    }
+
+    private void release(List<PendingUnlock> group, Throwable failure) {
+        if (failure != null) {
+            group.forEach(pendingUnlock -> pendingUnlock.fail(failure));
+        }
+        writesInFlight.release();
+    }
+
+    private final class PendingUnlock {
+        private final AmazonWebServiceRequest request;
+        private final ItemKey itemKey;
+        private final CompletableFuture<Void> future;
+
+        PendingUnlock(AmazonWebServiceRequest request) {
+            checkArgument(request instanceof UpdateItemRequest || request instanceof DeleteItemRequest, "Only update and delete unlock requests are supported.");
+            this.request = request;
+            this.itemKey = request instanceof UpdateItemRequest
+                    ? new ItemKey(((UpdateItemRequest) request).getTableName(), ((UpdateItemRequest) request).getKey())
+                    : new ItemKey(((DeleteItemRequest) request).getTableName(), ((DeleteItemRequest) request).getKey());
+            this.future = new CompletableFuture<>();
+        }
+
+        TransactWriteItem toTransactWriteItem() {
+            if (request instanceof UpdateItemRequest) {
+                UpdateItemRequest update = (UpdateItemRequest) request;
+                return new TransactWriteItem().withUpdate(new Update().
+                        withTableName(update.getTableName()).
+                        withKey(update.getKey()).
+                        withExpressionAttributeNames(update.getExpressionAttributeNames()).
+                        withExpressionAttributeValues(update.getExpressionAttributeValues()).
+                        withConditionExpression(update.getConditionExpression()).
+                        withUpdateExpression(update.getUpdateExpression()));
+            }
+            DeleteItemRequest delete = (DeleteItemRequest) request;
+            return new TransactWriteItem().withDelete(new Delete().
+                    withTableName(delete.getTableName()).
+                    withKey(delete.getKey()).
+                    withExpressionAttributeNames(delete.getExpressionAttributeNames()).
+                    withExpressionAttributeValues(delete.getExpressionAttributeValues()).
+                    withConditionExpression(delete.getConditionExpression()));
+        }
+
+        // Counted before the future completes so that callers waiting on it see the counts
+        void complete() {
+            backlog.decrementAndGet();
+            completedCount.increment();
+            if (!future.complete(null)) {
+                backlog.incrementAndGet();
+                completedCount.decrement();
+            }
+        }
+
+        void fail(Throwable failure) {
+            backlog.decrementAndGet();
+            failedCount.increment();
+            if (!future.completeExceptionally(failure)) {
+                backlog.incrementAndGet();
+                failedCount.decrement();
+            }
+        }
+    }
+
+    private static final class ItemKey {
+        private final String tableName;
+        private final Map<String, AttributeValue> key;
+
+        ItemKey(String tableName, Map<String, AttributeValue> key) {
+            this.tableName = tableName;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ItemKey)) {
+                return false;
+            }
+            return tableName.equals(((ItemKey) other).tableName) && key.equals(((ItemKey) other).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tableName.hashCode() + key.hashCode();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.paleblue.persistence.milkha;
+
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.metrics.TransactionMetricsListener;
+
+public class UnlockPipelineBuilder {
+
+    private static final int DEFAULT_CAPACITY = 10000;
+    private static final int DEFAULT_MAX_UNLOCKS_PER_WRITE = 25;
+    private static final int DEFAULT_MAX_WRITES_IN_FLIGHT = 4;
+    private static final double DEFAULT_MAX_UNLOCKS_PER_SECOND = 0;
+
+    private final AmazonDynamoDB ddbClient;
+    private int capacity;
+    private int maxUnlocksPerWrite;
+    private int maxWritesInFlight;
+    private double maxUnlocksPerSecond;
+    private TransactionMetricsListener metricsListener;
+
+    public UnlockPipelineBuilder(AmazonDynamoDB ddbClient) {
+        this.ddbClient = checkNotNull(ddbClient);
+        this.capacity = DEFAULT_CAPACITY;
+        this.maxUnlocksPerWrite = DEFAULT_MAX_UNLOCKS_PER_WRITE;
+        this.maxWritesInFlight = DEFAULT_MAX_WRITES_IN_FLIGHT;
+        this.maxUnlocksPerSecond = DEFAULT_MAX_UNLOCKS_PER_SECOND;
+        this.metricsListener = TransactionMetricsListener.NO_OP;
+    }
+
+    /**
+     * Maximum number of queued unlocks. Unlocks beyond it are rejected and left to the sweeper.
+     */
+    public UnlockPipelineBuilder withCapacity(final int newCapacity) {
+        this.capacity = newCapacity;
+        return this;
+    }
+
+    /**
+     * Maximum number of unlocks merged into one TransactWriteItems call. One disables merging, which halves the write
+     * capacity unlocks consume, as transactional writes cost twice as much as plain ones.
+     */
+    public UnlockPipelineBuilder withMaxUnlocksPerWrite(final int newMaxUnlocksPerWrite) {
+        this.maxUnlocksPerWrite = newMaxUnlocksPerWrite;
+        return this;
+    }
+
+    public UnlockPipelineBuilder withMaxWritesInFlight(final int newMaxWritesInFlight) {
+        this.maxWritesInFlight = newMaxWritesInFlight;
+        return this;
+    }
+
+    /**
+     * Keeps unlock traffic below this rate so that it leaves table capacity for commits. Zero, the default, disables
+     * the limit.
+     */
+    public UnlockPipelineBuilder withMaxUnlocksPerSecond(final double newMaxUnlocksPerSecond) {
+        this.maxUnlocksPerSecond = newMaxUnlocksPerSecond;
+        return this;
+    }
+
+    /**
+     * Receives the unlocks retried one at a time after their group was cancelled. Disabled by default.
+     */
+    public UnlockPipelineBuilder withMetricsListener(final TransactionMetricsListener newMetricsListener) {
+        this.metricsListener = checkNotNull(newMetricsListener);
+        return this;
+    }
+
+    public UnlockPipeline build() {
+        return new UnlockPipeline(ddbClient, capacity, maxUnlocksPerWrite, maxWritesInFlight, maxUnlocksPerSecond, metricsListener);
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.paleblue.persistence.milkha.dto;
+
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+public class SweeperLease {
+
+    private final String leaseKey;
+    private final String owner; // Null if the lease was never taken
+    private final long leaseExpiresAtMillis;
+    private final Long checkpointMillis; // Oldest bucket the owner still queries, null before the partition was scanned
+
+    public SweeperLease(String leaseKey, String owner, long leaseExpiresAtMillis, Long checkpointMillis) {
+        this.leaseKey = checkNotNull(leaseKey);
+        this.owner = owner;
+        this.leaseExpiresAtMillis = leaseExpiresAtMillis;
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    public String getLeaseKey() {
+        return leaseKey;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getLeaseExpiresAtMillis() {
+        return leaseExpiresAtMillis;
+    }
+
+    public Long getCheckpointMillis() {
+        return checkpointMillis;
+    }
+
+    public boolean isExpiredAt(long epochMillis) {
+        return leaseExpiresAtMillis <= epochMillis;
+    }
+}
@@ -19,6 +19,10 @@ public class TransactionLogItem {
     private Long waitPeriodBeforeSweeperUnlockMillis;
     private Long waitPeriodBeforeSweeperDeleteMillis;
     private boolean unlockedBySweeper;
+    private Long commitDeadlineMillis; // Epoch millis by which the commit must finish, null if not recorded
+    private Integer commitSetChunkCount; // Overflow items holding the commit sets, null if they are stored inline
+    private String sweepBucket; // Time bucket the sweeper finds the transaction under, null if not indexed
+    private Long expiresAtEpochSeconds; // When DynamoDB TTL may delete the item, null if only the sweeper deletes it
     private Map<String, List<Map<String, AttributeValue>>> createSet; // Table name -> List of primary keys
     private Map<String, List<Map<String, AttributeValue>>> deleteSet; // Table name -> List of primary keys
 
@@ -96,6 +100,38 @@ public class TransactionLogItem {
         this.unlockedBySweeper = unlockedBySweeper;
     }
 
+    public Long getCommitDeadlineMillis() {
+        return commitDeadlineMillis;
+    }
+
+    public void setCommitDeadlineMillis(Long commitDeadlineMillis) {
+        this.commitDeadlineMillis = commitDeadlineMillis;
+    }
+
+    public Integer getCommitSetChunkCount() {
+        return commitSetChunkCount;
+    }
+
+    public void setCommitSetChunkCount(Integer commitSetChunkCount) {
+        this.commitSetChunkCount = commitSetChunkCount;
+    }
+
+    public String getSweepBucket() {
+        return sweepBucket;
+    }
+
+    public void setSweepBucket(String sweepBucket) {
+        this.sweepBucket = sweepBucket;
+    }
+
+    public Long getExpiresAtEpochSeconds() {
+        return expiresAtEpochSeconds;
+    }
+
+    public void setExpiresAtEpochSeconds(Long expiresAtEpochSeconds) {
+        this.expiresAtEpochSeconds = expiresAtEpochSeconds;
+    }
+
     public Map<String, List<Map<String, AttributeValue>>> getCreateSet() {
         return createSet;
     }
@@ -0,0 +1,22 @@
+package com.github.paleblue.persistence.milkha.exception;
+
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+
+
+public class UnprocessedKeysException extends RuntimeException {
+    private final Map<String, KeysAndAttributes> unprocessedKeys;
+
+    public UnprocessedKeysException(String message, Map<String, KeysAndAttributes> unprocessedKeys) {
+        super(message);
+        this.unprocessedKeys = unprocessedKeys;
+    }
+
+    /**
+     * @return the keys that were still unprocessed when the reads were given up, by table name
+     */
+    public Map<String, KeysAndAttributes> getUnprocessedKeys() {
+        return unprocessedKeys;
+    }
+}
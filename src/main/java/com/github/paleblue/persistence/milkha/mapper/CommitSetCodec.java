@@ -0,0 +1,153 @@
+package com.github.paleblue.persistence.milkha.mapper;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Binary encoding of the create and delete sets of a transaction. Every table lists its key attribute names once, so a
+ * key costs its values plus a few bytes instead of a nested map with the attribute names repeated in every key.
+ *
+ * <p>Layout: format version, flags, then the create set and the delete set, deflated if {@link #FLAG_DEFLATE} is set.
+ * A commit set is a table count followed by, per table, its name, its attribute names and its keys. A key is an
+ * attribute count followed by, per attribute, the index of its name, its type (S, N or B) and its value.
+ */
+final class CommitSetCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_DEFLATE = 1;
+    private static final int MAX_ATTRIBUTE_NAMES_PER_TABLE = 255;
+
+    private CommitSetCodec() {
+    }
+
+    static byte[] encode(Map<String, List<Map<String, AttributeValue>>> createSet, Map<String, List<Map<String, AttributeValue>>> deleteSet, boolean deflate) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(FORMAT_VERSION);
+        bytes.write(deflate ? FLAG_DEFLATE : 0);
+        try {
+            OutputStream body = deflate ? new DeflaterOutputStream(bytes) : bytes;
+            DataOutputStream out = new DataOutputStream(body);
+            writeCommitSet(out, createSet);
+            writeCommitSet(out, deleteSet);
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Fills createSet and deleteSet with the commit sets encoded in bytes.
+     */
+    static void decode(byte[] bytes, Map<String, List<Map<String, AttributeValue>>> createSet, Map<String, List<Map<String, AttributeValue>>> deleteSet) {
+        checkArgument(bytes.length >= 2 && bytes[0] == FORMAT_VERSION, "Unsupported commit set encoding");
+        InputStream body = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+        if ((bytes[1] & FLAG_DEFLATE) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        try (DataInputStream in = new DataInputStream(body)) {
+            readCommitSet(in, createSet);
+            readCommitSet(in, deleteSet);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeCommitSet(DataOutputStream out, Map<String, List<Map<String, AttributeValue>>> commitSet) throws IOException {
+        out.writeInt(commitSet.size());
+        for (Map.Entry<String, List<Map<String, AttributeValue>>> entry : commitSet.entrySet()) {
+            out.writeUTF(entry.getKey());
+            Map<String, Integer> nameIndexes = new LinkedHashMap<>();
+            entry.getValue().forEach(key -> key.keySet().forEach(name -> nameIndexes.putIfAbsent(name, nameIndexes.size())));
+            checkArgument(nameIndexes.size() <= MAX_ATTRIBUTE_NAMES_PER_TABLE, "Too many key attribute names in table " + entry.getKey());
+            out.writeByte(nameIndexes.size());
+            for (String name : nameIndexes.keySet()) {
+                out.writeUTF(name);
+            }
+            out.writeInt(entry.getValue().size());
+            for (Map<String, AttributeValue> key : entry.getValue()) {
+                out.writeByte(key.size());
+                for (Map.Entry<String, AttributeValue> attribute : key.entrySet()) {
+                    out.writeByte(nameIndexes.get(attribute.getKey()));
+                    writeValue(out, attribute.getValue());
+                }
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, AttributeValue value) throws IOException {
+        if (value.getS() != null) {
+            out.writeByte('S');
+            out.writeUTF(value.getS());
+        } else if (value.getN() != null) {
+            out.writeByte('N');
+            out.writeUTF(value.getN());
+        } else if (value.getB() != null) {
+            ByteBuffer buffer = value.getB().duplicate();
+            out.writeByte('B');
+            out.writeInt(buffer.remaining());
+            while (buffer.hasRemaining()) {
+                out.writeByte(buffer.get());
+            }
+        } else {
+            throw new IllegalArgumentException("Only S, N and B key attributes are supported: " + value);
+        }
+    }
+
+    private static void readCommitSet(DataInputStream in, Map<String, List<Map<String, AttributeValue>>> commitSet) throws IOException {
+        int tableCount = in.readInt();
+        for (int table = 0; table < tableCount; table++) {
+            String tableName = in.readUTF();
+            String[] names = new String[in.readUnsignedByte()];
+            for (int name = 0; name < names.length; name++) {
+                names[name] = in.readUTF();
+            }
+            int keyCount = in.readInt();
+            List<Map<String, AttributeValue>> keys = new ArrayList<>(keyCount);
+            for (int keyIndex = 0; keyIndex < keyCount; keyIndex++) {
+                int attributeCount = in.readUnsignedByte();
+                Map<String, AttributeValue> key = new HashMap<>(attributeCount * 2);
+                for (int attribute = 0; attribute < attributeCount; attribute++) {
+                    String name = names[in.readUnsignedByte()];
+                    key.put(name, readValue(in));
+                }
+                keys.add(key);
+            }
+            commitSet.put(tableName, keys);
+        }
+    }
+
+    private static AttributeValue readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case 'S':
+            return new AttributeValue().withS(in.readUTF());
+        case 'N':
+            return new AttributeValue().withN(in.readUTF());
+        case 'B':
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            return new AttributeValue().withB(ByteBuffer.wrap(value));
+        default:
+            throw new IllegalArgumentException("Unknown key attribute type in commit set encoding: " + type);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.paleblue.persistence.milkha.mapper;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.paleblue.persistence.milkha.dto.SweeperLease;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+
+/**
+ * Leases of the partitions of the TransactionLog among sweepers, one item per partition. Leases are only ever taken
+ * with a write conditioned on the owner and expiry last read, so two sweepers can never both take the same lease. The
+ * table also holds the scan epoch: the checkpoint every partition starts querying its buckets from.
+ */
+public class SweeperLeaseMapper extends HashOnlyMapper<SweeperLease> {
+
+    public static final String LEASE_KEY_NAME = "leaseKey";
+    public static final String OWNER = "owner";
+    public static final String LEASE_EXPIRES_AT_MILLIS = "leaseExpiresAtMillis";
+    public static final String CHECKPOINT_MILLIS = "checkpointMillis";
+    public static final String SCAN_EPOCH_LEASE_KEY = "scanEpoch";
+    public static final String SWEEPER_LEASE_TABLE_NAME = "TransactionSweeperLease";
+
+    private static final String PARTITION_LEASE_KEY_PREFIX = "partition#";
+
+    @Override
+    public Map<String, AttributeValue> marshall(SweeperLease lease) {
+        checkNotNull(lease);
+        Map<String, AttributeValue> attributeMap = new HashMap<>();
+        attributeMap.put(LEASE_KEY_NAME, new AttributeValue(lease.getLeaseKey()));
+        if (lease.getOwner() != null) {
+            attributeMap.put(OWNER, new AttributeValue(lease.getOwner()));
+        }
+        attributeMap.put(LEASE_EXPIRES_AT_MILLIS, new AttributeValue().withN(String.valueOf(lease.getLeaseExpiresAtMillis())));
+        if (lease.getCheckpointMillis() != null) {
+            attributeMap.put(CHECKPOINT_MILLIS, new AttributeValue().withN(String.valueOf(lease.getCheckpointMillis())));
+        }
+        return attributeMap;
+    }
+
+    @Override
+    public SweeperLease unmarshall(Map<String, AttributeValue> attributeMap) {
+        checkNotNull(attributeMap);
+        AttributeValue owner = attributeMap.get(OWNER);
+        AttributeValue leaseExpiresAtMillis = attributeMap.get(LEASE_EXPIRES_AT_MILLIS);
+        AttributeValue checkpointMillis = attributeMap.get(CHECKPOINT_MILLIS);
+        return new SweeperLease(attributeMap.get(LEASE_KEY_NAME).getS(),
+                owner == null ? null : owner.getS(),
+                leaseExpiresAtMillis == null ? 0L : Long.parseLong(leaseExpiresAtMillis.getN()),
+                checkpointMillis == null ? null : Long.valueOf(checkpointMillis.getN()));
+    }
+
+    public String getPartitionLeaseKey(int partition) {
+        return PARTITION_LEASE_KEY_PREFIX + partition;
+    }
+
+    /**
+     * Takes the lease for newOwner, provided nobody else took it since lastSeenLease was read.
+     *
+     * @param lastSeenLease lease as last read, or null if there was no lease item
+     */
+    public UpdateItemRequest generateTakeLeaseRequest(String leaseKey, SweeperLease lastSeenLease, String newOwner, long leaseExpiresAtMillis) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#owner", OWNER);
+        expressionAttributeNames.put("#expiresAt", LEASE_EXPIRES_AT_MILLIS);
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":newOwner", new AttributeValue(newOwner));
+        expressionAttributeValues.put(":newExpiresAt", new AttributeValue().withN(String.valueOf(leaseExpiresAtMillis)));
+        String conditionExpression;
+        if (lastSeenLease == null) {
+            expressionAttributeNames.put("#leaseKey", LEASE_KEY_NAME);
+            conditionExpression = "attribute_not_exists(#leaseKey)";
+        } else {
+            expressionAttributeValues.put(":seenExpiresAt", new AttributeValue().withN(String.valueOf(lastSeenLease.getLeaseExpiresAtMillis())));
+            if (lastSeenLease.getOwner() == null) {
+                conditionExpression = "attribute_not_exists(#owner) AND #expiresAt = :seenExpiresAt";
+            } else {
+                expressionAttributeValues.put(":seenOwner", new AttributeValue(lastSeenLease.getOwner()));
+                conditionExpression = "#owner = :seenOwner AND #expiresAt = :seenExpiresAt";
+            }
+        }
+        return new UpdateItemRequest().
+                withTableName(getTableName()).
+                withKey(getPrimaryKeyMap(leaseKey)).
+                withUpdateExpression("SET #owner = :newOwner, #expiresAt = :newExpiresAt").
+                withConditionExpression(conditionExpression).
+                withExpressionAttributeNames(expressionAttributeNames).
+                withExpressionAttributeValues(expressionAttributeValues).
+                withReturnValues(ReturnValue.ALL_NEW);
+    }
+
+    /**
+     * Extends the lease, provided owner still holds it.
+     */
+    public UpdateItemRequest generateRenewLeaseRequest(String leaseKey, String owner, long leaseExpiresAtMillis) {
+        return generateOwnerUpdateRequest(leaseKey, owner, LEASE_EXPIRES_AT_MILLIS, leaseExpiresAtMillis);
+    }
+
+    /**
+     * Moves the checkpoint of the partition, provided owner still holds its lease.
+     */
+    public UpdateItemRequest generateSaveCheckpointRequest(String leaseKey, String owner, long checkpointMillis) {
+        return generateOwnerUpdateRequest(leaseKey, owner, CHECKPOINT_MILLIS, checkpointMillis);
+    }
+
+    /**
+     * Records the scan epoch unless a sweeper already did.
+     */
+    public PutItemRequest generateCreateScanEpochRequest(long checkpointMillis) {
+        return generatePutItemRequest(new SweeperLease(SCAN_EPOCH_LEASE_KEY, null, 0L, checkpointMillis)).
+                withConditionExpression("attribute_not_exists(#leaseKey)").
+                withExpressionAttributeNames(Collections.singletonMap("#leaseKey", LEASE_KEY_NAME));
+    }
+
+    @Override
+    public String getTableName() {
+        return SWEEPER_LEASE_TABLE_NAME;
+    }
+
+    @Override
+    public String getHashKeyName() {
+        return LEASE_KEY_NAME;
+    }
+
+    @Override
+    public Map<String, AttributeValue> getPrimaryKeyMap(String leaseKey) {
+        return Collections.singletonMap(LEASE_KEY_NAME, new AttributeValue(leaseKey));
+    }
+
+    @Override
+    public List<AttributeDefinition> getAttributeDefinitions() {
+        return Arrays.asList(
+                new AttributeDefinition(LEASE_KEY_NAME, ScalarAttributeType.S),
+                new AttributeDefinition(OWNER, ScalarAttributeType.S),
+                new AttributeDefinition(LEASE_EXPIRES_AT_MILLIS, ScalarAttributeType.N),
+                new AttributeDefinition(CHECKPOINT_MILLIS, ScalarAttributeType.N));
+    }
+
+    private UpdateItemRequest generateOwnerUpdateRequest(String leaseKey, String owner, String attributeName, long value) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#owner", OWNER);
+        expressionAttributeNames.put("#attribute", attributeName);
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":owner", new AttributeValue(owner));
+        expressionAttributeValues.put(":value", new AttributeValue().withN(String.valueOf(value)));
+        return new UpdateItemRequest().
+                withTableName(getTableName()).
+                withKey(getPrimaryKeyMap(leaseKey)).
+                withUpdateExpression("SET #attribute = :value").
+                withConditionExpression("#owner = :owner").
+                withExpressionAttributeNames(expressionAttributeNames).
+                withExpressionAttributeValues(expressionAttributeValues);
+    }
+}
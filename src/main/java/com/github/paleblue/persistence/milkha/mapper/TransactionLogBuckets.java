@@ -0,0 +1,63 @@
+package com.github.paleblue.persistence.milkha.mapper;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time buckets under which TransactionLog items are indexed for the sweeper. A transaction belongs to the bucket in
+ * which it started to commit, spread over a few shards so that the writes of one bucket do not all land on a single
+ * partition of the index. Bucket names are the bucket start in epoch millis and the shard, e.g. "1700000040000#3".
+ */
+public final class TransactionLogBuckets {
+
+    public static final String SWEEP_BUCKET_INDEX_NAME = "sweepBucketIndex";
+
+    private static final String SHARD_SEPARATOR = "#";
+
+    private final long bucketMillis;
+    private final int shards;
+
+    public TransactionLogBuckets(long bucketMillis, int shards) {
+        checkArgument(bucketMillis > 0, "bucketMillis must be greater than zero");
+        checkArgument(shards > 0, "shards must be greater than zero");
+        this.bucketMillis = bucketMillis;
+        this.shards = shards;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public long bucketStartOf(long epochMillis) {
+        return Math.floorDiv(epochMillis, bucketMillis) * bucketMillis;
+    }
+
+    public String bucketOf(String transactionId, long epochMillis) {
+        return bucketStartOf(epochMillis) + SHARD_SEPARATOR + Math.floorMod(transactionId.hashCode(), shards);
+    }
+
+    /**
+     * @return names of every shard of the bucket starting at bucketStartMillis
+     */
+    public List<String> shardsOf(long bucketStartMillis) {
+        List<String> buckets = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            buckets.add(shardOf(bucketStartMillis, shard));
+        }
+        return buckets;
+    }
+
+    /**
+     * @return name of the given shard of the bucket starting at bucketStartMillis
+     */
+    public String shardOf(long bucketStartMillis, int shard) {
+        checkArgument(shard >= 0 && shard < shards, "shard must be between zero and shards - 1");
+        return bucketStartMillis + SHARD_SEPARATOR + shard;
+    }
+}
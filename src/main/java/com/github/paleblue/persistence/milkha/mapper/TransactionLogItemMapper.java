@@ -1,7 +1,11 @@
 package com.github.paleblue.persistence.milkha.mapper;
 
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
 import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -13,9 +17,25 @@ import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
 import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveSpecification;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateTimeToLiveRequest;
 
-
+/**
+ * Commit sets are stored in the binary encoding of {@link CommitSetCodec}, inline in the TransactionLog item while they
+ * are small. Larger commit sets are split into overflow items of the TransactionLog table, each holding one chunk of
+ * the encoding, and the log item only records how many chunks there are. Log items with the former createSet and
+ * deleteSet maps are still read.
+ */
 public class TransactionLogItemMapper extends HashOnlyMapper<TransactionLogItem> {
 
     public static final String TRANSACTION_ID_KEY_NAME = "transactionId";
@@ -23,10 +43,38 @@ public class TransactionLogItemMapper extends HashOnlyMapper<TransactionLogItem>
     public static final String WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS = "waitPeriodBeforeSweeperUnlockMillis";
     public static final String WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS = "waitPeriodBeforeSweeperDeleteMillis";
     public static final String UNLOCKED_BY_SWEEPER = "unlockedBySweeper";
+    public static final String COMMIT_DEADLINE_MILLIS = "commitDeadlineMillis";
+    public static final String COMMIT_SETS = "commitSets";
+    public static final String COMMIT_SET_CHUNKS = "commitSetChunks";
+    public static final String OVERFLOW_OF = "overflowOf";
+    public static final String COMMIT_SET_CHUNK = "commitSetChunk";
+    public static final String SWEEP_BUCKET = "sweepBucket";
+    public static final String EXPIRES_AT_EPOCH_SECONDS = "expiresAtEpochSeconds";
     public static final String TRANSACTION_LOG_TABLE_NAME = "TransactionLog";
+    public static final int DEFAULT_MAX_INLINE_COMMIT_SET_BYTES = 16 * 1024;
+    public static final int COMMIT_SET_CHUNK_BYTES = 320 * 1024; // Leaves room for the key within the 400KB item limit
+
+    private static final String CREATE_SET_KEY_NAME = "createSet"; // Legacy nested map encoding, only read
+    private static final String DELETE_SET_KEY_NAME = "deleteSet"; // Legacy nested map encoding, only read
+    private static final String OVERFLOW_KEY_SEPARATOR = "#overflow#";
+
+    private final boolean compressCommitSets;
+    private final int maxInlineCommitSetBytes;
+
+    public TransactionLogItemMapper() {
+        this(false, DEFAULT_MAX_INLINE_COMMIT_SET_BYTES);
+    }
 
-    private static final String CREATE_SET_KEY_NAME = "createSet";
-    private static final String DELETE_SET_KEY_NAME = "deleteSet";
+    /**
+     * @param compressCommitSets      deflate the encoded commit sets
+     * @param maxInlineCommitSetBytes encoded commit sets larger than this are written to overflow items
+     */
+    public TransactionLogItemMapper(boolean compressCommitSets, int maxInlineCommitSetBytes) {
+        checkArgument(maxInlineCommitSetBytes >= 0 && maxInlineCommitSetBytes <= COMMIT_SET_CHUNK_BYTES,
+                "maxInlineCommitSetBytes must be between zero and " + COMMIT_SET_CHUNK_BYTES);
+        this.compressCommitSets = compressCommitSets;
+        this.maxInlineCommitSetBytes = maxInlineCommitSetBytes;
+    }
 
     @Override
     public Map<String, AttributeValue> marshall(TransactionLogItem item) {
@@ -37,18 +85,39 @@ public class TransactionLogItemMapper extends HashOnlyMapper<TransactionLogItem>
         attributeMap.put(WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, new AttributeValue().withN(String.valueOf(item.getWaitPeriodBeforeSweeperUnlockMillis())));
         attributeMap.put(WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS, new AttributeValue().withN(String.valueOf(item.getWaitPeriodBeforeSweeperDeleteMillis())));
         attributeMap.put(UNLOCKED_BY_SWEEPER, new AttributeValue().withBOOL(item.isUnlockedBySweeper()));
-        if (item.getCreateSet() != null && !item.getCreateSet().isEmpty()) {
-            attributeMap.put(CREATE_SET_KEY_NAME, toAttributeValue(item.getCreateSet()));
+        if (item.getCommitDeadlineMillis() != null) {
+            attributeMap.put(COMMIT_DEADLINE_MILLIS, new AttributeValue().withN(String.valueOf(item.getCommitDeadlineMillis())));
+        }
+        if (item.getSweepBucket() != null) {
+            attributeMap.put(SWEEP_BUCKET, new AttributeValue(item.getSweepBucket()));
+        }
+        if (item.getExpiresAtEpochSeconds() != null) {
+            attributeMap.put(EXPIRES_AT_EPOCH_SECONDS, new AttributeValue().withN(String.valueOf(item.getExpiresAtEpochSeconds())));
         }
-        if (item.getDeleteSet() != null && !item.getDeleteSet().isEmpty()) {
-            attributeMap.put(DELETE_SET_KEY_NAME, toAttributeValue(item.getDeleteSet()));
+        if (item.getCommitSetChunkCount() != null) {
+            attributeMap.put(COMMIT_SET_CHUNKS, new AttributeValue().withN(String.valueOf(item.getCommitSetChunkCount())));
+        } else if (!isEmpty(item.getCreateSet()) || !isEmpty(item.getDeleteSet())) {
+            attributeMap.put(COMMIT_SETS, new AttributeValue().withB(ByteBuffer.wrap(encodeCommitSets(item))));
         }
         return attributeMap;
     }
 
+    /**
+     * The commit sets of a log item with overflow items are left empty, see
+     * {@link #unmarshall(Map, List)} to read them.
+     */
     @Override
     public TransactionLogItem unmarshall(Map<String, AttributeValue> attributeMap) {
+        return unmarshall(attributeMap, Collections.emptyList());
+    }
+
+    /**
+     * @param overflowItems all overflow items of the log item in the order of {@link #getOverflowPrimaryKeyMaps}, or
+     *                      none to leave the commit sets of a log item with overflow items empty
+     */
+    public TransactionLogItem unmarshall(Map<String, AttributeValue> attributeMap, List<Map<String, AttributeValue>> overflowItems) {
         checkNotNull(attributeMap);
+        checkNotNull(overflowItems);
         String transactionId = attributeMap.get(TRANSACTION_ID_KEY_NAME).getS();
         TransactionStatus transactionStatus = TransactionStatus.valueOf(attributeMap.get(TRANSACTION_STATUS_KEY_NAME).getS());
         Long waitPeriodBeforeSweeperUnlockMillis = Long.parseLong(attributeMap.get(WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS).getN());
@@ -57,15 +126,145 @@ public class TransactionLogItemMapper extends HashOnlyMapper<TransactionLogItem>
         if (attributeMap.containsKey(UNLOCKED_BY_SWEEPER)) {
             unlockedBySweeper = attributeMap.get(UNLOCKED_BY_SWEEPER).getBOOL();
         }
-        Map<String, List<Map<String, AttributeValue>>> createSet = null;
-        if (attributeMap.containsKey(CREATE_SET_KEY_NAME)) {
-            createSet = commitSetfromAttributeValue(attributeMap.get(CREATE_SET_KEY_NAME).getM());
+        Map<String, List<Map<String, AttributeValue>>> createSet = new HashMap<>();
+        Map<String, List<Map<String, AttributeValue>>> deleteSet = new HashMap<>();
+        Integer commitSetChunkCount = null;
+        if (attributeMap.containsKey(COMMIT_SETS)) {
+            CommitSetCodec.decode(toBytes(attributeMap.get(COMMIT_SETS).getB()), createSet, deleteSet);
+        } else if (attributeMap.containsKey(COMMIT_SET_CHUNKS)) {
+            commitSetChunkCount = Integer.parseInt(attributeMap.get(COMMIT_SET_CHUNKS).getN());
+            if (!overflowItems.isEmpty()) {
+                checkArgument(overflowItems.size() == commitSetChunkCount, String.format("Transaction %s has %d overflow items, got %d",
+                        transactionId, commitSetChunkCount, overflowItems.size()));
+                ByteArrayOutputStream commitSets = new ByteArrayOutputStream();
+                for (Map<String, AttributeValue> overflowItem : overflowItems) {
+                    byte[] chunk = toBytes(overflowItem.get(COMMIT_SET_CHUNK).getB());
+                    commitSets.write(chunk, 0, chunk.length);
+                }
+                CommitSetCodec.decode(commitSets.toByteArray(), createSet, deleteSet);
+            }
+        } else {
+            if (attributeMap.containsKey(CREATE_SET_KEY_NAME)) {
+                createSet = commitSetfromAttributeValue(attributeMap.get(CREATE_SET_KEY_NAME).getM());
+            }
+            if (attributeMap.containsKey(DELETE_SET_KEY_NAME)) {
+                deleteSet = commitSetfromAttributeValue(attributeMap.get(DELETE_SET_KEY_NAME).getM());
+            }
+        }
+        TransactionLogItem txLogItem = new TransactionLogItem(transactionId, transactionStatus, waitPeriodBeforeSweeperUnlockMillis, waitPeriodBeforeSweeperDeleteMillis,
+                unlockedBySweeper, createSet, deleteSet);
+        if (attributeMap.containsKey(COMMIT_DEADLINE_MILLIS)) {
+            txLogItem.setCommitDeadlineMillis(Long.parseLong(attributeMap.get(COMMIT_DEADLINE_MILLIS).getN()));
+        }
+        txLogItem.setCommitSetChunkCount(commitSetChunkCount);
+        if (attributeMap.containsKey(SWEEP_BUCKET)) {
+            txLogItem.setSweepBucket(attributeMap.get(SWEEP_BUCKET).getS());
+        }
+        if (attributeMap.containsKey(EXPIRES_AT_EPOCH_SECONDS)) {
+            txLogItem.setExpiresAtEpochSeconds(Long.parseLong(attributeMap.get(EXPIRES_AT_EPOCH_SECONDS).getN()));
+        }
+        return txLogItem;
+    }
+
+    /**
+     * Splits the encoded commit sets of the item into overflow items if they are too large to be stored inline, and
+     * records the number of chunks on the item so that the log item written next refers to them.
+     *
+     * @return put requests of the overflow items, empty if the commit sets are stored inline
+     */
+    public List<PutItemRequest> generateOverflowPutItemRequests(TransactionLogItem item) {
+        checkNotNull(item);
+        byte[] commitSets = encodeCommitSets(item);
+        if (commitSets.length <= maxInlineCommitSetBytes) {
+            item.setCommitSetChunkCount(null);
+            return Collections.emptyList();
+        }
+        int chunkCount = (commitSets.length + COMMIT_SET_CHUNK_BYTES - 1) / COMMIT_SET_CHUNK_BYTES;
+        List<PutItemRequest> requests = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int from = chunk * COMMIT_SET_CHUNK_BYTES;
+            Map<String, AttributeValue> overflowItem = new HashMap<>(getOverflowPrimaryKeyMap(item.getTransactionId(), chunk));
+            overflowItem.put(OVERFLOW_OF, new AttributeValue(item.getTransactionId()));
+            overflowItem.put(COMMIT_SET_CHUNK, new AttributeValue().withB(
+                    ByteBuffer.wrap(Arrays.copyOfRange(commitSets, from, Math.min(commitSets.length, from + COMMIT_SET_CHUNK_BYTES)))));
+            requests.add(new PutItemRequest(getTableName(), overflowItem));
+        }
+        item.setCommitSetChunkCount(chunkCount);
+        return requests;
+    }
+
+    /**
+     * @return primary keys of the overflow items of the item in chunk order, empty if its commit sets are stored inline
+     */
+    public List<Map<String, AttributeValue>> getOverflowPrimaryKeyMaps(TransactionLogItem item) {
+        if (item.getCommitSetChunkCount() == null) {
+            return Collections.emptyList();
         }
-        Map<String, List<Map<String, AttributeValue>>> deleteSet = null;
-        if (attributeMap.containsKey(DELETE_SET_KEY_NAME)) {
-            deleteSet = commitSetfromAttributeValue(attributeMap.get(DELETE_SET_KEY_NAME).getM());
+        List<Map<String, AttributeValue>> keys = new ArrayList<>(item.getCommitSetChunkCount());
+        for (int chunk = 0; chunk < item.getCommitSetChunkCount(); chunk++) {
+            keys.add(getOverflowPrimaryKeyMap(item.getTransactionId(), chunk));
         }
-        return new TransactionLogItem(transactionId, transactionStatus, waitPeriodBeforeSweeperUnlockMillis, waitPeriodBeforeSweeperDeleteMillis, unlockedBySweeper, createSet, deleteSet);
+        return keys;
+    }
+
+    public boolean isOverflowItem(Map<String, AttributeValue> attributeMap) {
+        return attributeMap.containsKey(OVERFLOW_OF);
+    }
+
+    /**
+     * Adds the index the sweeper queries instead of scanning the table when the log is written with
+     * {@link TransactionLogBuckets}. Only log items are indexed, with just what the sweeper needs to schedule them.
+     */
+    public CreateTableRequest generateCreateTableRequestWithSweepBucketIndex() {
+        CreateTableRequest request = generateCreateTableRequest();
+        request.withAttributeDefinitions(new AttributeDefinition(SWEEP_BUCKET, ScalarAttributeType.S));
+        return request.withGlobalSecondaryIndexes(new GlobalSecondaryIndex().
+                withIndexName(TransactionLogBuckets.SWEEP_BUCKET_INDEX_NAME).
+                withKeySchema(new KeySchemaElement(SWEEP_BUCKET, KeyType.HASH), new KeySchemaElement(TRANSACTION_ID_KEY_NAME, KeyType.RANGE)).
+                withProjection(new Projection().
+                        withProjectionType(ProjectionType.INCLUDE).
+                        withNonKeyAttributes(TRANSACTION_STATUS_KEY_NAME, WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS)));
+    }
+
+    /**
+     * Lets DynamoDB delete log items and their overflow items once they expire, for the transactions unlocked by a
+     * sweeper built with time to live.
+     */
+    public UpdateTimeToLiveRequest generateUpdateTimeToLiveRequest() {
+        return new UpdateTimeToLiveRequest().
+                withTableName(getTableName()).
+                withTimeToLiveSpecification(new TimeToLiveSpecification().
+                        withAttributeName(EXPIRES_AT_EPOCH_SECONDS).
+                        withEnabled(true));
+    }
+
+    /**
+     * Gives an overflow item its expiry, unless it no longer exists.
+     */
+    public UpdateItemRequest generateExpireOverflowItemRequest(Map<String, AttributeValue> overflowKey, long expiresAtEpochSeconds) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#hashkey", TRANSACTION_ID_KEY_NAME);
+        expressionAttributeNames.put("#expiresAt", EXPIRES_AT_EPOCH_SECONDS);
+        return new UpdateItemRequest().
+                withTableName(getTableName()).
+                withKey(overflowKey).
+                withExpressionAttributeNames(expressionAttributeNames).
+                withExpressionAttributeValues(Collections.singletonMap(":expiresAt", new AttributeValue().withN(String.valueOf(expiresAtEpochSeconds)))).
+                withConditionExpression("attribute_exists(#hashkey)").
+                withUpdateExpression("SET #expiresAt = :expiresAt");
+    }
+
+    public QueryRequest generateSweepBucketQueryRequest(String sweepBucket) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put("#bucket", SWEEP_BUCKET);
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(":bucket", new AttributeValue(sweepBucket));
+        return new QueryRequest().
+                withTableName(getTableName()).
+                withIndexName(TransactionLogBuckets.SWEEP_BUCKET_INDEX_NAME).
+                withExpressionAttributeNames(expressionAttributeNames).
+                withExpressionAttributeValues(expressionAttributeValues).
+                withKeyConditionExpression("#bucket = :bucket");
     }
 
     @Override
@@ -91,17 +290,34 @@ public class TransactionLogItemMapper extends HashOnlyMapper<TransactionLogItem>
                 new AttributeDefinition(WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, ScalarAttributeType.N),
                 new AttributeDefinition(WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS, ScalarAttributeType.N),
                 new AttributeDefinition(UNLOCKED_BY_SWEEPER, ScalarAttributeType.N),
+                new AttributeDefinition(COMMIT_DEADLINE_MILLIS, ScalarAttributeType.N),
+                new AttributeDefinition(COMMIT_SETS, ScalarAttributeType.B),
+                new AttributeDefinition(COMMIT_SET_CHUNKS, ScalarAttributeType.N),
+                new AttributeDefinition(SWEEP_BUCKET, ScalarAttributeType.S),
+                new AttributeDefinition(EXPIRES_AT_EPOCH_SECONDS, ScalarAttributeType.N),
                 new AttributeDefinition(CREATE_SET_KEY_NAME, "M"),
                 new AttributeDefinition(DELETE_SET_KEY_NAME, "M"));
     }
 
-    private AttributeValue toAttributeValue(Map<String, List<Map<String, AttributeValue>>> commitSet) {
-        Map<String, AttributeValue> tableToKeys = new HashMap<>();
-        for (Map.Entry<String, List<Map<String, AttributeValue>>> entry : commitSet.entrySet()) {
-            List<AttributeValue> keys = entry.getValue().stream().map(key -> new AttributeValue().withM(key)).collect(Collectors.toList());
-            tableToKeys.put(entry.getKey(), new AttributeValue().withL(keys));
-        }
-        return new AttributeValue().withM(tableToKeys);
+    private Map<String, AttributeValue> getOverflowPrimaryKeyMap(String transactionId, int chunk) {
+        return getPrimaryKeyMap(transactionId + OVERFLOW_KEY_SEPARATOR + chunk);
+    }
+
+    private byte[] encodeCommitSets(TransactionLogItem item) {
+        Map<String, List<Map<String, AttributeValue>>> createSet = item.getCreateSet() == null ? Collections.emptyMap() : item.getCreateSet();
+        Map<String, List<Map<String, AttributeValue>>> deleteSet = item.getDeleteSet() == null ? Collections.emptyMap() : item.getDeleteSet();
+        return CommitSetCodec.encode(createSet, deleteSet, compressCommitSets);
+    }
+
+    private static boolean isEmpty(Map<String, List<Map<String, AttributeValue>>> commitSet) {
+        return commitSet == null || commitSet.isEmpty();
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        byte[] bytes = new byte[source.remaining()];
+        source.get(bytes);
+        return bytes;
     }
 
     private Map<String, List<Map<String, AttributeValue>>> commitSetfromAttributeValue(Map<String, AttributeValue> rawMap) {
@@ -0,0 +1,76 @@
+package com.github.paleblue.persistence.milkha.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a latency histogram per phase, a count per phase and outcome, and a histogram of transaction sizes. Failed
+ * phases are counted but kept out of the latency histograms, so a timeout does not skew the percentiles of successful
+ * writes.
+ */
+public final class HistogramTransactionMetricsListener implements TransactionMetricsListener {
+
+    private static final TransactionPhase[] PHASES = TransactionPhase.values();
+    private static final PhaseOutcome[] OUTCOMES = PhaseOutcome.values();
+
+    private final Histogram[] latencyHistograms;
+    private final LongAdder[] outcomeCounts;
+    private final Histogram transactionSizeHistogram;
+
+    public HistogramTransactionMetricsListener() {
+        this.latencyHistograms = new Histogram[PHASES.length];
+        this.outcomeCounts = new LongAdder[PHASES.length * OUTCOMES.length];
+        for (int i = 0; i < latencyHistograms.length; i++) {
+            latencyHistograms[i] = new Histogram();
+        }
+        for (int i = 0; i < outcomeCounts.length; i++) {
+            outcomeCounts[i] = new LongAdder();
+        }
+        this.transactionSizeHistogram = new Histogram();
+    }
+
+    @Override
+    public void onPhaseCompleted(TransactionPhase phase, long durationNanos, PhaseOutcome outcome) {
+        outcomeCounts[phase.ordinal() * OUTCOMES.length + outcome.ordinal()].increment();
+        if (outcome == PhaseOutcome.SUCCEEDED) {
+            latencyHistograms[phase.ordinal()].record(durationNanos);
+        }
+    }
+
+    @Override
+    public void onCommitStarted(int itemCount) {
+        transactionSizeHistogram.record(itemCount);
+    }
+
+    /**
+     * @return latency of successful runs of the phase at the given percentile, between 0 and 100
+     */
+    public long getLatencyNanosAtPercentile(TransactionPhase phase, double percentile) {
+        return latencyHistograms[phase.ordinal()].getValueAtPercentile(percentile);
+    }
+
+    public long getCount(TransactionPhase phase, PhaseOutcome outcome) {
+        return outcomeCounts[phase.ordinal() * OUTCOMES.length + outcome.ordinal()].sum();
+    }
+
+    public long getCount(PhaseOutcome outcome) {
+        long count = 0;
+        for (TransactionPhase phase : PHASES) {
+            count += getCount(phase, outcome);
+        }
+        return count;
+    }
+
+    public Histogram getTransactionSizeHistogram() {
+        return transactionSizeHistogram;
+    }
+
+    public void reset() {
+        for (Histogram latencyHistogram : latencyHistograms) {
+            latencyHistogram.reset();
+        }
+        for (LongAdder outcomeCount : outcomeCounts) {
+            outcomeCount.reset();
+        }
+        transactionSizeHistogram.reset();
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.paleblue.persistence.milkha.metrics;
+
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.github.paleblue.persistence.milkha.RetryPolicy;
+import com.github.paleblue.persistence.milkha.exception.ContentionException;
+import com.github.paleblue.persistence.milkha.exception.TransactionTimedOutException;
+
+public enum PhaseOutcome {
+    SUCCEEDED,
+    CONTENTION, // another transaction held a lock or changed the TransactionLog item first
+    TIMED_OUT,
+    THROTTLED,
+    FAILED;
+
+    /**
+     * @param failure the exception that ended the phase, or null if it succeeded
+     */
+    public static PhaseOutcome of(Throwable failure) {
+        if (failure == null) {
+            return SUCCEEDED;
+        }
+        // Futures wrap what DynamoDB threw, so the first cause that can be classed decides the outcome
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof ContentionException || cause instanceof ConditionalCheckFailedException) {
+                return CONTENTION;
+            } else if (cause instanceof TransactionTimedOutException) {
+                return TIMED_OUT;
+            } else if (RetryPolicy.isThrottling(cause)) {
+                return THROTTLED;
+            }
+        }
+        return FAILED;
+    }
+}
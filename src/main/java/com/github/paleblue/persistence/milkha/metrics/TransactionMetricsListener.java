@@ -0,0 +1,26 @@
+package com.github.paleblue.persistence.milkha.metrics;
+
+/**
+ * Receives the duration and outcome of every commit and rollback phase. Methods are called on the committing thread or
+ * on executor threads, concurrently for different transactions, so implementations must be thread-safe and should
+ * not block or allocate.
+ */
+public interface TransactionMetricsListener {
+
+    TransactionMetricsListener NO_OP = new TransactionMetricsListener() {
+        @Override
+        public void onPhaseCompleted(TransactionPhase phase, long durationNanos, PhaseOutcome outcome) {
+        }
+
+        @Override
+        public void onCommitStarted(int itemCount) {
+        }
+    };
+
+    void onPhaseCompleted(TransactionPhase phase, long durationNanos, PhaseOutcome outcome);
+
+    /**
+     * @param itemCount number of items written by the transaction being committed
+     */
+    void onCommitStarted(int itemCount);
+}
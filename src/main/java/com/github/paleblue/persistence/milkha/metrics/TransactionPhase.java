@@ -0,0 +1,12 @@
+package com.github.paleblue.persistence.milkha.metrics;
+
+public enum TransactionPhase {
+    PERSIST_START_COMMIT, // TransactionLog write with status START_COMMIT
+    PERSIST_COMMIT_SET_OVERFLOW, // TransactionLog overflow items of commit sets too large to store inline
+    ACQUIRE_LOCKS, // lock writes for every item of the transaction
+    PERSIST_COMMITTED, // TransactionLog write with status COMMITTED
+    PERSIST_ROLLED_BACK, // TransactionLog write with status ROLLED_BACK
+    UNLOCK, // unlock writes after commit or rollback, until the last one finishes
+    UNLOCK_FALLBACK, // single unlock write of an UnlockPipeline group that was cancelled
+    TRANSACT_WRITE_ITEMS // single call commit of small transactions
+}
@@ -5,10 +5,17 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,6 +28,12 @@ public final class Futures {
 
     private static final Log LOG = LogFactory.getLog(Futures.class);
 
+    private static final ScheduledExecutorService DEADLINE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "milkha-deadline-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private Futures() {
     }
 
@@ -45,14 +58,105 @@ public final class Futures {
             throw new TransactionTimedOutException("Transaction timed out", e);
         } catch (InterruptedException | ExecutionException | CancellationException e) {
             LOG.warn(e);
-            Throwable dynamoException = e.getCause();
-            if ((dynamoException instanceof ConditionalCheckFailedException) && exception != null) {
-                throw exception;
-            } else if (dynamoException instanceof ProvisionedThroughputExceededException) {
-                throw new ProvisionedThroughputExceededException(dynamoException.getMessage());
-            } else {
-                throw new RuntimeException(dynamoException);
+            throw translateException(e.getCause(), exception);
+        }
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #blockOnAllFutures(List, Instant, RuntimeException)}. The returned future fails
+     * as soon as any of the given futures fails or endTime is reached, and the remaining futures are then cancelled.
+     * Cancelling the returned future cancels all of the given futures.
+     *
+     * @param futures list of futures to aggregate
+     * @param endTime a time instant in the future which when reached before all futures are complete, fails the result with TransactionTimedOutException
+     * @param exception thrown in place of a ConditionalCheckFailedException, if not null
+     */
+    public static CompletableFuture<Void> allOf(List<CompletableFuture<Void>> futures, Instant endTime, RuntimeException exception) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (futures.isEmpty()) {
+            result.complete(null);
+            return result;
+        }
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (CompletableFuture<Void> future : futures) {
+            future.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(translateException(unwrap(e), exception));
+                } else if (remaining.decrementAndGet() == 0) {
+                    result.complete(null);
+                }
+            });
+        }
+        long remainingTime = Math.max(0L, Instant.now().until(endTime, ChronoUnit.MILLIS));
+        ScheduledFuture<?> deadline = DEADLINE_SCHEDULER.schedule(() -> result.completeExceptionally(new TransactionTimedOutException("Transaction timed out")),
+                remainingTime, TimeUnit.MILLISECONDS);
+        result.whenComplete((ignored, e) -> {
+            deadline.cancel(false);
+            if (e != null) {
+                futures.forEach(f -> f.cancel(true));
             }
+        });
+        return result;
+    }
+
+    /**
+     * Blocking counterpart of {@link #allOf(List, Instant, RuntimeException)}. Unlike
+     * {@link #blockOnAllFutures(List, Instant, RuntimeException)}, which waits on the futures in list order, the first
+     * failure is thrown as soon as it happens and the remaining futures are cancelled.
+     */
+    public static void blockOnAllOf(List<CompletableFuture<Void>> futures, Instant endTime, RuntimeException exception) {
+        CompletableFuture<Void> result = allOf(futures, endTime, exception);
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            LOG.warn(e);
+            throw (RuntimeException) e.getCause(); // Already translated by allOf
+        }
+    }
+
+    /**
+     * Starts the next phase of a multi-phase operation unless the operation is already done, and cancels the phase when
+     * the operation is cancelled or fails.
+     */
+    public static <T> CompletableFuture<T> nextPhase(CompletableFuture<?> operation, Supplier<CompletableFuture<T>> phaseSupplier) {
+        if (operation.isDone()) {
+            CompletableFuture<T> skipped = new CompletableFuture<>();
+            skipped.cancel(false);
+            return skipped;
+        }
+        CompletableFuture<T> phase = phaseSupplier.get();
+        operation.whenComplete((ignored, e) -> phase.cancel(true));
+        return phase;
+    }
+
+    /**
+     * Runs the task on the shared timer thread once the delay has passed. The task must only hand work off to an
+     * executor because it delays every other timer.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return DEADLINE_SCHEDULER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static Throwable unwrap(Throwable throwable) {
+        if ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private static RuntimeException translateException(Throwable dynamoException, RuntimeException exception) {
+        if ((dynamoException instanceof ConditionalCheckFailedException) && exception != null) {
+            return exception;
+        } else if (dynamoException instanceof ProvisionedThroughputExceededException) {
+            return new ProvisionedThroughputExceededException(dynamoException.getMessage());
+        } else if (dynamoException instanceof TransactionTimedOutException || dynamoException instanceof CancellationException) {
+            return (RuntimeException) dynamoException;
+        } else {
+            return new RuntimeException(dynamoException);
         }
     }
 
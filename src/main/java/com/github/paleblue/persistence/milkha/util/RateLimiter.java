@@ -0,0 +1,50 @@
+package com.github.paleblue.persistence.milkha.util;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that hands out permits at a fixed rate and lets up to one second worth of unused permits accumulate
+ * for bursts. A limiter with a rate of zero never waits.
+ */
+public final class RateLimiter {
+
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double nanosPerPermit;
+    private long nextFreeNanos;
+
+    public RateLimiter(double permitsPerSecond) {
+        checkArgument(permitsPerSecond >= 0, "permitsPerSecond must not be negative");
+        this.nanosPerPermit = permitsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.nextFreeNanos = System.nanoTime() - BURST_NANOS;
+    }
+
+    /**
+     * Blocks until the permits are available.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes the permits without blocking.
+     *
+     * @return how long the caller must wait before using them
+     */
+    public synchronized long reserve(int permits) {
+        checkArgument(permits >= 0, "permits must not be negative");
+        if (nanosPerPermit == 0) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        nextFreeNanos = Math.max(nextFreeNanos, now - BURST_NANOS);
+        long waitNanos = Math.max(0L, nextFreeNanos - now);
+        nextFreeNanos += (long) (permits * nanosPerPermit);
+        return waitNanos;
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+public class PrefetchingItemIteratorTest {
+
+    private ExecutorService executorService;
+    private AtomicInteger fetchedPages;
+
+    @Before
+    public void setup() {
+        executorService = Executors.newFixedThreadPool(2);
+        fetchedPages = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    private PrefetchingItemIterator.Page fetchPage(Map<String, AttributeValue> startKey, int numberOfPages) {
+        int pageNumber = startKey == null ? 0 : Integer.parseInt(startKey.get("page").getN());
+        fetchedPages.incrementAndGet();
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        items.add(Collections.singletonMap("item", new AttributeValue().withN(String.valueOf(pageNumber))));
+        Map<String, AttributeValue> lastEvaluatedKey = pageNumber + 1 < numberOfPages
+                ? Collections.singletonMap("page", new AttributeValue().withN(String.valueOf(pageNumber + 1))) : null;
+        return new PrefetchingItemIterator.Page(items, lastEvaluatedKey);
+    }
+
+    @Test
+    public void iteratesOverAllPagesInOrder() {
+        PrefetchingItemIterator iterator = new PrefetchingItemIterator(startKey -> fetchPage(startKey, 5), items -> items, executorService, 2);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(String.valueOf(i), iterator.next().get("item").getN());
+        }
+        assertFalse(iterator.hasNext());
+        assertEquals(5, fetchedPages.get());
+    }
+
+    @Test
+    public void isolatedItemsAreSkipped() {
+        PrefetchingItemIterator iterator = new PrefetchingItemIterator(startKey -> fetchPage(startKey, 3),
+                items -> "1".equals(items.get(0).get("item").getN()) ? new ArrayList<>() : items, executorService, 1);
+        assertEquals("0", iterator.next().get("item").getN());
+        assertEquals("2", iterator.next().get("item").getN());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void fetchesNoMoreThanMaxPagesInFlightAhead() throws InterruptedException {
+        PrefetchingItemIterator iterator = new PrefetchingItemIterator(startKey -> fetchPage(startKey, 10), items -> items, executorService, 3);
+        iterator.next();
+        Thread.sleep(200);
+        assertTrue(fetchedPages.get() <= 4);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fetchFailuresAreRethrown() {
+        PrefetchingItemIterator iterator = new PrefetchingItemIterator(startKey -> {
+            throw new IllegalStateException("fetch failed");
+        }, items -> items, executorService, 2);
+        iterator.hasNext();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextFailsWhenExhausted() {
+        PrefetchingItemIterator iterator = new PrefetchingItemIterator(startKey -> fetchPage(startKey, 1), items -> items, executorService, 2);
+        iterator.next();
+        iterator.next();
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+
+public class RetryPolicyTest {
+
+    private static final ProvisionedThroughputExceededException THROTTLED = new ProvisionedThroughputExceededException("Throughput exceeded!");
+
+    private static Instant farDeadline() {
+        return Instant.now().plusSeconds(60);
+    }
+
+    @Test
+    public void onlyThrottlingIsRetried() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 10L, 100L, 500);
+        assertEquals(-1L, retryPolicy.nextRetryDelayMillis(new ConditionalCheckFailedException("Lock held"), 1, farDeadline()));
+        assertEquals(-1L, retryPolicy.nextRetryDelayMillis(new IllegalStateException(), 1, farDeadline()));
+        assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 1, farDeadline()) >= 0);
+
+        AmazonServiceException throttlingException = new AmazonServiceException("Rate exceeded");
+        throttlingException.setErrorCode("ThrottlingException");
+        assertTrue(RetryPolicy.isThrottling(throttlingException));
+        TransactionCanceledException canceledException = new TransactionCanceledException("Throttled");
+        canceledException.setCancellationReasons(Collections.singletonList(new CancellationReason().withCode("ThrottlingError")));
+        assertTrue(RetryPolicy.isThrottling(canceledException));
+    }
+
+    @Test
+    public void unprocessedKeysBackOffEvenWithRetriesDisabled() {
+        RetryPolicy retryPolicy = new RetryPolicy(0, 10L, 100L, 0);
+        for (int attempt = 1; attempt < RetryPolicy.MAX_UNPROCESSED_KEYS_ATTEMPTS; attempt++) {
+            long delayMillis = retryPolicy.unprocessedKeysDelayMillis(attempt);
+            assertTrue(delayMillis >= 0 && delayMillis <= 100L);
+        }
+        assertEquals(-1L, retryPolicy.unprocessedKeysDelayMillis(RetryPolicy.MAX_UNPROCESSED_KEYS_ATTEMPTS));
+        assertEquals(0, retryPolicy.getRetryCount());
+    }
+
+    @Test
+    public void retriesStopAfterMaxRetries() {
+        RetryPolicy retryPolicy = new RetryPolicy(2, 10L, 100L, 500);
+        assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 1, farDeadline()) >= 0);
+        assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 2, farDeadline()) >= 0);
+        assertEquals(-1L, retryPolicy.nextRetryDelayMillis(THROTTLED, 3, farDeadline()));
+        assertEquals(2, retryPolicy.getRetryCount());
+    }
+
+    @Test
+    public void delaysGrowExponentiallyUpToTheMaximum() {
+        RetryPolicy retryPolicy = new RetryPolicy(100, 10L, 100L, 100000);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 1, farDeadline()) <= 10L);
+            assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 3, farDeadline()) <= 40L);
+            assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 60, farDeadline()) <= 100L);
+        }
+    }
+
+    @Test
+    public void retriesThatCannotStartBeforeTheDeadlineAreRejected() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 10L, 100L, 500);
+        assertEquals(-1L, retryPolicy.nextRetryDelayMillis(THROTTLED, 1, Instant.now()));
+        assertEquals(1, retryPolicy.getRejectedRetryCount());
+        assertEquals(500, retryPolicy.getAvailableTokens());
+    }
+
+    @Test
+    public void emptyTokenBucketRejectsRetriesUntilWritesSucceed() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 10L, 100L, RetryPolicy.RETRY_COST);
+        assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 1, farDeadline()) >= 0);
+        assertEquals(-1L, retryPolicy.nextRetryDelayMillis(THROTTLED, 1, farDeadline()));
+        for (int i = 0; i < RetryPolicy.RETRY_COST; i++) {
+            retryPolicy.onSuccess();
+        }
+        assertTrue(retryPolicy.nextRetryDelayMillis(THROTTLED, 1, farDeadline()) >= 0);
+        retryPolicy.onSuccess();
+        assertFalse(retryPolicy.getAvailableTokens() > RetryPolicy.RETRY_COST);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMaxRetriesAreRejected() {
+        new RetryPolicy(-1, 10L, 100L, 500);
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.github.paleblue.persistence.milkha.SweeperBacklog.DueTransaction;
+
+public class SweeperBacklogTest {
+
+    @Test
+    public void transactionsArePolledInDueOrderOnceTheyAreDue() {
+        SweeperBacklog backlog = new SweeperBacklog(10);
+        backlog.add("late", 1000L, 300L, 600L);
+        backlog.add("early", 1000L, 100L, 600L);
+        backlog.add("middle", 1000L, 200L, 600L);
+
+        assertTrue(backlog.pollDue(1099L, 10).isEmpty());
+        List<DueTransaction> dueTransactions = backlog.pollDue(1200L, 10);
+        assertEquals(2, dueTransactions.size());
+        assertEquals("early", dueTransactions.get(0).getTransactionId());
+        assertEquals("middle", dueTransactions.get(1).getTransactionId());
+        assertEquals(1000L, dueTransactions.get(0).getFirstSeenAtMillis());
+        assertEquals(100L, dueTransactions.get(0).getWaitPeriodBeforeSweeperUnlockMillis());
+        assertEquals(600L, dueTransactions.get(0).getWaitPeriodBeforeSweeperDeleteMillis());
+        assertEquals(3, backlog.size());
+
+        backlog.reschedule(dueTransactions.get(0), 1600L);
+        backlog.remove(dueTransactions.get(1));
+        assertEquals(2, backlog.size());
+        assertFalse(backlog.contains("middle"));
+        assertEquals("late", backlog.pollDue(1599L, 10).get(0).getTransactionId());
+        assertEquals("early", backlog.pollDue(1600L, 10).get(0).getTransactionId());
+    }
+
+    @Test
+    public void pollTakesAtMostTheGivenNumberOfTransactions() {
+        SweeperBacklog backlog = new SweeperBacklog(10);
+        backlog.add("first", 0L, 1L, 0L);
+        backlog.add("second", 0L, 2L, 0L);
+        backlog.add("third", 0L, 3L, 0L);
+
+        List<DueTransaction> dueTransactions = backlog.pollDue(3L, 2);
+        assertEquals(2, dueTransactions.size());
+        assertEquals("first", dueTransactions.get(0).getTransactionId());
+        assertEquals("second", dueTransactions.get(1).getTransactionId());
+        assertEquals("third", backlog.pollDue(3L, 2).get(0).getTransactionId());
+        assertTrue(backlog.pollDue(3L, 2).isEmpty());
+    }
+
+    @Test
+    public void onlyTheFirstRescheduleOrRemoveOfAPolledTransactionTakesEffect() {
+        SweeperBacklog backlog = new SweeperBacklog(10);
+        backlog.add("removed", 0L, 1L, 0L);
+        backlog.add("rescheduled", 0L, 2L, 0L);
+        List<DueTransaction> dueTransactions = backlog.pollDue(2L, 10);
+
+        assertTrue(backlog.remove(dueTransactions.get(0)));
+        assertFalse(backlog.reschedule(dueTransactions.get(0), 0L));
+        assertTrue(backlog.reschedule(dueTransactions.get(1), 5L));
+        assertFalse(backlog.remove(dueTransactions.get(1)));
+        assertFalse(backlog.reschedule(dueTransactions.get(1), 0L));
+
+        assertEquals(1, backlog.size());
+        assertFalse(backlog.contains("removed"));
+        assertTrue(backlog.pollDue(4L, 10).isEmpty());
+        assertEquals("rescheduled", backlog.pollDue(5L, 10).get(0).getTransactionId());
+    }
+
+    @Test
+    public void staleTransactionDoesNotAffectTheOneThatReusedItsSlot() {
+        SweeperBacklog backlog = new SweeperBacklog(10);
+        backlog.add("old", 0L, 0L, 0L);
+        DueTransaction oldTransaction = backlog.pollDue(0L, 10).get(0);
+        backlog.remove(oldTransaction);
+        backlog.add("new", 0L, 0L, 0L);
+        DueTransaction newTransaction = backlog.pollDue(0L, 10).get(0);
+
+        assertEquals(oldTransaction.getSlot(), newTransaction.getSlot());
+        assertFalse(backlog.remove(oldTransaction));
+        assertTrue(backlog.contains("new"));
+        assertTrue(backlog.reschedule(newTransaction, 0L));
+    }
+
+    @Test
+    public void fullBacklogRefusesNewTransactionsButNotKnownOnes() {
+        SweeperBacklog backlog = new SweeperBacklog(2);
+        String transactionId = UUID.randomUUID().toString();
+        assertTrue(backlog.add(transactionId, 0L, 0L, 0L));
+        assertTrue(backlog.add("not-a-uuid", 0L, 0L, 0L));
+
+        assertTrue(backlog.isFull());
+        assertTrue(backlog.add(transactionId, 0L, 0L, 0L));
+        assertFalse(backlog.add(UUID.randomUUID().toString(), 0L, 0L, 0L));
+        assertEquals(2, backlog.size());
+
+        backlog.remove(backlog.pollDue(0L, 10).get(0));
+        assertFalse(backlog.isFull());
+        assertTrue(backlog.add(UUID.randomUUID().toString(), 0L, 0L, 0L));
+    }
+
+    @Test
+    public void idsRoundTripWhetherOrNotTheyAreCanonicalUuids() {
+        SweeperBacklog backlog = new SweeperBacklog(10);
+        String uuid = UUID.randomUUID().toString();
+        String upperCaseUuid = UUID.randomUUID().toString().toUpperCase();
+        backlog.add(uuid, 0L, 1L, 0L);
+        backlog.add(upperCaseUuid, 0L, 2L, 0L);
+        backlog.add("1-1-1-1-1", 0L, 3L, 0L);
+
+        List<DueTransaction> dueTransactions = backlog.pollDue(3L, 10);
+        assertEquals(uuid, dueTransactions.get(0).getTransactionId());
+        assertEquals(upperCaseUuid, dueTransactions.get(1).getTransactionId());
+        assertEquals("1-1-1-1-1", dueTransactions.get(2).getTransactionId());
+    }
+
+    @Test
+    public void backlogGrowsAndFindsTransactionsAfterOthersAreRemoved() {
+        SweeperBacklog backlog = new SweeperBacklog(100000);
+        List<String> transactionIds = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String transactionId = UUID.randomUUID().toString();
+            transactionIds.add(transactionId);
+            backlog.add(transactionId, 0L, i, 0L);
+        }
+        List<DueTransaction> dueTransactions = backlog.pollDue(5000L, 5000);
+        assertEquals(5000, dueTransactions.size());
+        for (int i = 0; i < dueTransactions.size(); i += 2) {
+            backlog.remove(dueTransactions.get(i));
+        }
+
+        assertEquals(2500, backlog.size());
+        for (int i = 0; i < transactionIds.size(); i++) {
+            assertEquals(i % 2 == 1, backlog.contains(transactionIds.get(i)));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.paleblue.persistence.milkha.mapper.SweeperLeaseMapper;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDBBuilder;
+
+public class SweeperLeasesTest {
+
+    private SimulatedAmazonDynamoDB ddbClient;
+    private SweeperLeaseMapper leaseMapper;
+
+    @Before
+    public void setUp() {
+        ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        leaseMapper = new SweeperLeaseMapper();
+        ddbClient.createTable(leaseMapper.generateCreateTableRequest());
+    }
+
+    @Test
+    public void sweepersSplitThePartitionsEvenly() {
+        SweeperLeases first = new SweeperLeases(ddbClient, leaseMapper, "first", 4, 60000L);
+        SweeperLeases second = new SweeperLeases(ddbClient, leaseMapper, "second", 4, 60000L);
+
+        first.heartbeat();
+        assertEquals(4, first.getHeldPartitions().size());
+        for (int i = 0; i < 3; i++) {
+            second.heartbeat();
+            first.heartbeat();
+        }
+
+        assertEquals(2, first.getHeldPartitions().size());
+        assertEquals(2, second.getHeldPartitions().size());
+        Set<Integer> heldPartitions = new HashSet<>(first.getHeldPartitions());
+        heldPartitions.addAll(second.getHeldPartitions());
+        assertEquals(4, heldPartitions.size());
+    }
+
+    @Test
+    public void leasesOfACrashedSweeperAreTakenOverWithTheirCheckpoints() throws Exception {
+        SweeperLeases crashed = new SweeperLeases(ddbClient, leaseMapper, "crashed", 2, 50L);
+        crashed.heartbeat();
+        assertTrue(crashed.saveCheckpointMillis(1, 1000L));
+        Thread.sleep(100L);
+
+        SweeperLeases survivor = new SweeperLeases(ddbClient, leaseMapper, "survivor", 2, 60000L);
+        survivor.heartbeat();
+
+        assertEquals(2, survivor.getHeldPartitions().size());
+        assertNull(survivor.getCheckpointMillis(0));
+        assertEquals(Long.valueOf(1000L), survivor.getCheckpointMillis(1));
+        assertFalse(crashed.saveCheckpointMillis(1, 2000L));
+        assertFalse(crashed.getHeldPartitions().contains(1));
+        assertEquals(Long.valueOf(1000L), survivor.getCheckpointMillis(1));
+    }
+
+    @Test
+    public void allSweepersStartFromTheFirstScanEpoch() {
+        SweeperLeases first = new SweeperLeases(ddbClient, leaseMapper, "first", 2, 60000L);
+        SweeperLeases second = new SweeperLeases(ddbClient, leaseMapper, "second", 2, 60000L);
+
+        assertEquals(1000L, first.getScanEpochCheckpointMillis(1000L));
+        assertEquals(1000L, second.getScanEpochCheckpointMillis(2000L));
+        assertEquals(1000L, first.getScanEpochCheckpointMillis(3000L));
+    }
+}
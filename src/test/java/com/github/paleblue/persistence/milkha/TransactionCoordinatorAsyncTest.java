@@ -0,0 +1,91 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.exception.ContentionException;
+import com.github.paleblue.persistence.milkha.exception.TransactionNotStartedException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+
+public class TransactionCoordinatorAsyncTest extends TransactionCoordinatorBaseTest {
+
+    private BankAccountItem drEvilSavingsAccount;
+
+    @Before
+    public void setup() {
+        String beneficiaryName = String.format("DrEvil-%s", UUID.randomUUID().toString());
+        drEvilSavingsAccount = new BankAccountItem(beneficiaryName, SAVINGS_ACCOUNT_TYPE, random.nextInt(1000000));
+    }
+
+    private Map<String, AttributeValue> getDrEvilSavingsItemFromDynamo() {
+        GetItemRequest request = bankAccountItemMapper.
+                generateGetItemRequest(drEvilSavingsAccount.getBeneficiaryName(), drEvilSavingsAccount.getAccountType());
+        request.getAttributesToGet().addAll(TransactionCoordinator.TRANSACTION_CONTROL_FIELDS);
+        return ddbClient.getItem(request).getItem();
+    }
+
+    @Test
+    public void whenCommitAsyncCompletesThenTransactionIsCommittedAndUnlocked() throws Exception {
+        String transactionId = randomTransactionId();
+        coordinator.startTransaction(transactionId);
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        coordinator.commitAsync().get();
+        assertEquals(TransactionStatus.COMMITTED, getTxLogItem(transactionId).getTransactionStatus());
+        assertNull(getDrEvilSavingsItemFromDynamo().get(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        coordinator.startTransaction();
+    }
+
+    @Test
+    public void whenCommitAsyncExperiencesContentionThenFutureFailsWithContentionExceptionAndCanRollback() throws Exception {
+        createItemWithoutUnlockingCommit(drEvilSavingsAccount);
+        String transactionId = randomTransactionId();
+        coordinator.startTransaction(transactionId);
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        try {
+            coordinator.commitAsync().get();
+            fail("Commit should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ContentionException);
+        }
+        coordinator.rollbackAsync().get();
+        assertEquals(TransactionStatus.ROLLED_BACK, getTxLogItem(transactionId).getTransactionStatus());
+    }
+
+    @Test
+    public void whenRollbackAsyncIsInvokedBeforeCommitThenNothingIsPersisted() throws Exception {
+        String transactionId = randomTransactionId();
+        coordinator.startTransaction(transactionId);
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        coordinator.rollbackAsync().get();
+        assertNull(getRawTxLogItem(transactionId));
+        assertNull(getDrEvilSavingsItemFromDynamo());
+        coordinator.startTransaction();
+    }
+
+    @Test
+    public void queryAsyncReturnsIsolatedItems() throws Exception {
+        createItemWithoutUnlockingCommit(drEvilSavingsAccount);
+        QueryResult queryResult = coordinator.queryAsync(bankAccountItemMapper.generateQueryRequest(drEvilSavingsAccount.getBeneficiaryName(),
+                drEvilSavingsAccount.getAccountType())).get();
+        assertEquals(1, queryResult.getItems().size());
+        assertTrue(queryResult.getItems().get(0).keySet().stream().noneMatch(TransactionCoordinator.TRANSACTION_CONTROL_FIELDS::contains));
+    }
+
+    @Test(expected = TransactionNotStartedException.class)
+    public void whenCommitAsyncIsInvokedWithoutStartingTransactionThenThrowException() {
+        coordinator.commitAsync();
+    }
+}
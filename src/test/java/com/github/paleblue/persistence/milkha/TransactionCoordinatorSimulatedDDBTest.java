@@ -0,0 +1,483 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.exception.ContentionException;
+import com.github.paleblue.persistence.milkha.exception.UnprocessedKeysException;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.metrics.HistogramTransactionMetricsListener;
+import com.github.paleblue.persistence.milkha.metrics.PhaseOutcome;
+import com.github.paleblue.persistence.milkha.metrics.TransactionPhase;
+import com.github.paleblue.persistence.milkha.simulator.LatencyDistribution;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB.Operation;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDBBuilder;
+import com.github.paleblue.persistence.milkha.util.Futures;
+
+public class TransactionCoordinatorSimulatedDDBTest {
+
+    private BankAccountItemMapper bankAccountItemMapper;
+    private String beneficiaryName;
+    private HistogramTransactionMetricsListener metricsListener;
+
+    @Before
+    public void setup() {
+        bankAccountItemMapper = new BankAccountItemMapper();
+        beneficiaryName = String.format("DrEvil-%s", UUID.randomUUID().toString());
+        metricsListener = new HistogramTransactionMetricsListener();
+    }
+
+    private TransactionManager buildTransactionManager(SimulatedAmazonDynamoDB ddbClient) {
+        return buildTransactionManager(ddbClient, 0);
+    }
+
+    private TransactionManager buildTransactionManager(SimulatedAmazonDynamoDB ddbClient, int maxRetries) {
+        return buildTransactionManager(ddbClient, maxRetries, false);
+    }
+
+    private TransactionManager buildTransactionManager(SimulatedAmazonDynamoDB ddbClient, int maxRetries, boolean lockStealing) {
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(new TransactionLogItemMapper().generateCreateTableRequest());
+        return new TransactionCoordinatorBuilder(ddbClient, Executors.newFixedThreadPool(4))
+                .withMetricsListener(metricsListener)
+                .withMaxRetries(maxRetries)
+                .withRetryBaseDelayMillis(5L)
+                .withLockStealing(lockStealing)
+                .buildTransactionManager();
+    }
+
+    @Test
+    public void isolatedQueryCompletesDespiteUnprocessedTransactionLogKeys() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder()
+                .withLatency(LatencyDistribution.logNormal(1, 0.5))
+                .withUnprocessedKeysProbability(0.3)
+                .build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        int numberOfAccounts = 20;
+        for (int i = 0; i < numberOfAccounts; i++) {
+            Transaction transaction = txManager.beginTransaction();
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+            transaction.commitWithoutUnlocking();
+        }
+        Transaction pendingTransaction = txManager.beginTransaction();
+        pendingTransaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "pending", 1)));
+
+        assertEquals(numberOfAccounts, txManager.query(bankAccountItemMapper.generateQueryRequest(beneficiaryName)).getItems().size());
+        assertTrue(ddbClient.getRequestCount(Operation.BATCH_GET_ITEM) > 1);
+    }
+
+    @Test
+    public void readsGiveUpOnKeysThatStayUnprocessed() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder()
+                .withUnprocessedKeysProbability(1.0)
+                .build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(bankAccountItemMapper.getPrimaryKeyMap(beneficiaryName, "account-" + i));
+        }
+
+        try {
+            txManager.batchGetItem(new BatchGetItemRequest()
+                    .withRequestItems(Collections.singletonMap(bankAccountItemMapper.getTableName(), new KeysAndAttributes().withKeys(keys))));
+            fail("Expected the reads to give up");
+        } catch (UnprocessedKeysException e) {
+            // The simulator reads one key per call when every other key is left unprocessed
+            assertEquals(20 - RetryPolicy.MAX_UNPROCESSED_KEYS_ATTEMPTS, e.getUnprocessedKeys().get(bankAccountItemMapper.getTableName()).getKeys().size());
+        }
+        assertEquals(RetryPolicy.MAX_UNPROCESSED_KEYS_ATTEMPTS, ddbClient.getRequestCount(Operation.BATCH_GET_ITEM));
+    }
+
+    @Test
+    public void isolatedPointReadsHideUncommittedStateAndReadAllUnprocessedKeys() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder()
+                .withUnprocessedKeysProbability(0.3)
+                .build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        int numberOfAccounts = 20;
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (int i = 0; i < numberOfAccounts; i++) {
+            Transaction transaction = txManager.beginTransaction();
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+            if (i == 0) {
+                Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+            } else {
+                transaction.commitWithoutUnlocking();
+            }
+            keys.add(bankAccountItemMapper.getPrimaryKeyMap(beneficiaryName, "account-" + i));
+        }
+        Transaction deletion = txManager.beginTransaction();
+        deletion.deleteItem(bankAccountItemMapper.generateDeleteItemRequest(beneficiaryName, "account-0"));
+        deletion.commitWithoutUnlocking();
+        keys.add(bankAccountItemMapper.getPrimaryKeyMap(beneficiaryName, "missing"));
+
+        BatchGetItemResult result = txManager.batchGetItem(new BatchGetItemRequest()
+                .withRequestItems(Collections.singletonMap(bankAccountItemMapper.getTableName(), new KeysAndAttributes().withKeys(keys))));
+        assertTrue(result.getUnprocessedKeys().isEmpty());
+        List<Map<String, AttributeValue>> items = result.getResponses().get(bankAccountItemMapper.getTableName());
+        assertEquals(numberOfAccounts - 1, items.size());
+        for (Map<String, AttributeValue> item : items) {
+            assertFalse(item.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        }
+        assertNull(txManager.getItem(new GetItemRequest(bankAccountItemMapper.getTableName(), keys.get(0))).getItem());
+        Map<String, AttributeValue> item = txManager.getItem(new GetItemRequest(bankAccountItemMapper.getTableName(), keys.get(1))).getItem();
+        assertEquals(1, bankAccountItemMapper.unmarshall(item).getTotalAmountInUsd().intValue());
+        assertFalse(item.containsKey(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD));
+    }
+
+    @Test
+    public void projectedAndIndexReadsStillHideUncommittedItems() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        Transaction committed = txManager.beginTransaction();
+        committed.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "checking", 5)));
+        Futures.blockOnAllFutures(committed.commit(), Instant.now().plusSeconds(5));
+        Transaction pending = txManager.beginTransaction();
+        pending.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 7)));
+        pending.commitWithoutUnlocking();
+        overwriteWithStartCommit(ddbClient, pending, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+
+        QueryRequest projectedQuery = bankAccountItemMapper.generateQueryRequest(beneficiaryName).withProjectionExpression("#amount");
+        projectedQuery.getExpressionAttributeNames().put("#amount", BankAccountItemMapper.TOTAL_AMOUNT_IN_USD_KEY_NAME);
+        List<Map<String, AttributeValue>> items = txManager.query(projectedQuery).getItems();
+        assertEquals(1, items.size());
+        assertEquals(Collections.singleton(BankAccountItemMapper.TOTAL_AMOUNT_IN_USD_KEY_NAME), items.get(0).keySet());
+
+        Map<String, String> expressionAttributeNames = Collections.singletonMap("#hashkey", BankAccountItemMapper.ACCOUNT_BENEFICIARY_KEY_NAME);
+        Map<String, AttributeValue> expressionAttributeValues = Collections.singletonMap(":hashvalue", new AttributeValue(beneficiaryName));
+        QueryRequest indexQuery = new QueryRequest().
+                withTableName(bankAccountItemMapper.getTableName()).
+                withIndexName(BankAccountItemMapper.TOTAL_AMOUNT_LSI_NAME).
+                withExpressionAttributeNames(expressionAttributeNames).
+                withExpressionAttributeValues(expressionAttributeValues).
+                withKeyConditionExpression("#hashkey = :hashvalue");
+        for (int i = 0; i < 2; i++) {
+            items = txManager.query(indexQuery).getItems();
+            assertEquals(1, items.size());
+            assertEquals(5, bankAccountItemMapper.unmarshall(items.get(0)).getTotalAmountInUsd().intValue());
+            assertFalse(items.get(0).containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        }
+        assertEquals(1, ddbClient.getRequestCount(Operation.DESCRIBE_TABLE));
+
+        assertNull(txManager.getItem(bankAccountItemMapper.generateGetItemRequest(beneficiaryName, "savings")).getItem());
+        Map<String, AttributeValue> item = txManager.getItem(bankAccountItemMapper.generateGetItemRequest(beneficiaryName, "checking")).getItem();
+        assertFalse(item.containsKey(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD));
+    }
+
+    @Test
+    public void indexReadsKeepTheOrderOfTheIndex() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().withSeed(7L).build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        int numberOfAccounts = 20;
+        Transaction transaction = txManager.beginTransaction();
+        for (int i = 0; i < numberOfAccounts; i++) {
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, (i * 7) % numberOfAccounts)));
+        }
+        Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+
+        Map<String, String> expressionAttributeNames = Collections.singletonMap("#hashkey", BankAccountItemMapper.ACCOUNT_BENEFICIARY_KEY_NAME);
+        Map<String, AttributeValue> expressionAttributeValues = Collections.singletonMap(":hashvalue", new AttributeValue(beneficiaryName));
+        for (boolean scanIndexForward : new boolean[] {true, false}) {
+            QueryRequest indexQuery = new QueryRequest().
+                    withTableName(bankAccountItemMapper.getTableName()).
+                    withIndexName(BankAccountItemMapper.TOTAL_AMOUNT_LSI_NAME).
+                    withExpressionAttributeNames(expressionAttributeNames).
+                    withExpressionAttributeValues(expressionAttributeValues).
+                    withKeyConditionExpression("#hashkey = :hashvalue").
+                    withScanIndexForward(scanIndexForward);
+            List<Map<String, AttributeValue>> items = txManager.query(indexQuery).getItems();
+            assertEquals(numberOfAccounts, items.size());
+            for (int i = 0; i < numberOfAccounts; i++) {
+                int expectedAmount = scanIndexForward ? i : numberOfAccounts - 1 - i;
+                assertEquals(expectedAmount, bankAccountItemMapper.unmarshall(items.get(i)).getTotalAmountInUsd().intValue());
+            }
+        }
+    }
+
+    @Test
+    public void commitSurfacesThrottlingOfTheTransactionLog() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().withThrottleProbability(Operation.PUT_ITEM, 1.0).build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        try {
+            Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+            fail("Expected the commit to be throttled");
+        } catch (ProvisionedThroughputExceededException e) {
+            assertEquals(0, ddbClient.scan(bankAccountItemMapper.generateScanRequest()).getCount().intValue());
+            assertEquals(1, metricsListener.getCount(TransactionPhase.PERSIST_START_COMMIT, PhaseOutcome.THROTTLED));
+        }
+    }
+
+    @Test
+    public void commitReportsTheLatencyOfEveryPhase() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder()
+                .withLatency(LatencyDistribution.fixed(1))
+                .withLatency(Operation.UPDATE_ITEM, LatencyDistribution.fixed(20))
+                .build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "checking", 2)));
+        Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+
+        for (TransactionPhase phase : Arrays.asList(TransactionPhase.PERSIST_START_COMMIT, TransactionPhase.ACQUIRE_LOCKS,
+                TransactionPhase.PERSIST_COMMITTED, TransactionPhase.UNLOCK)) {
+            assertEquals(phase.name(), 1, metricsListener.getCount(phase, PhaseOutcome.SUCCEEDED));
+        }
+        long lockLatencyNanos = metricsListener.getLatencyNanosAtPercentile(TransactionPhase.ACQUIRE_LOCKS, 99);
+        long logLatencyNanos = metricsListener.getLatencyNanosAtPercentile(TransactionPhase.PERSIST_COMMITTED, 99);
+        assertTrue(lockLatencyNanos >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(logLatencyNanos < lockLatencyNanos);
+        assertEquals(2L, metricsListener.getTransactionSizeHistogram().getValueAtPercentile(100));
+    }
+
+    @Test
+    public void lockConflictsAreReportedAsContention() {
+        TransactionManager txManager = buildTransactionManager(new SimulatedAmazonDynamoDBBuilder().build());
+        Transaction lockHolder = txManager.beginTransaction();
+        lockHolder.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        lockHolder.commitWithoutUnlocking();
+
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 2)));
+        try {
+            transaction.commit();
+            fail("Expected the lock to be held by the first transaction");
+        } catch (ContentionException e) {
+            assertEquals(1, metricsListener.getCount(TransactionPhase.ACQUIRE_LOCKS, PhaseOutcome.CONTENTION));
+            assertEquals(1, metricsListener.getCount(PhaseOutcome.CONTENTION));
+        }
+    }
+
+    @Test
+    public void throttledWritesAreRetriedUntilTheTransactionCommits() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder()
+                .withThrottleProbability(Operation.PUT_ITEM, 0.5)
+                .withThrottleProbability(Operation.UPDATE_ITEM, 0.5)
+                .build();
+        TransactionManager txManager = buildTransactionManager(ddbClient, 20);
+        int numberOfAccounts = 10;
+        for (int i = 0; i < numberOfAccounts; i++) {
+            Transaction transaction = txManager.beginTransaction();
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+            if (i % 2 == 0) {
+                Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+            } else {
+                transaction.commitAsync().get(5, TimeUnit.SECONDS);
+            }
+        }
+        assertEquals(numberOfAccounts, txManager.query(bankAccountItemMapper.generateQueryRequest(beneficiaryName)).getItems().size());
+        assertTrue(txManager.getRetryPolicy().getRetryCount() > 0);
+        assertEquals(0, metricsListener.getCount(PhaseOutcome.THROTTLED));
+    }
+
+    @Test
+    public void lockConflictRollsBackAndUnlocksWithoutWaitingForTheCaller() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        Transaction lockHolder = txManager.beginTransaction();
+        lockHolder.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        lockHolder.commitWithoutUnlocking();
+
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "checking", 2)));
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 2)));
+        try {
+            transaction.commit();
+            fail("Expected the lock to be held by the first transaction");
+        } catch (ContentionException e) {
+            Instant endTime = Instant.now().plusSeconds(5);
+            while (getRawItem(ddbClient, "checking") != null || !TransactionStatus.ROLLED_BACK.equals(getTransactionStatus(ddbClient, transaction))) {
+                assertTrue("Locks were not released before the caller rolled back", Instant.now().isBefore(endTime));
+                Thread.sleep(10);
+            }
+        }
+        Futures.blockOnAllFutures(transaction.rollback(), Instant.now().plusSeconds(5));
+        assertTrue(transaction.isComplete());
+        assertEquals(1, metricsListener.getCount(TransactionPhase.PERSIST_ROLLED_BACK, PhaseOutcome.SUCCEEDED));
+    }
+
+    @Test
+    public void lockConflictDuringAsyncCommitRollsBackBeforeTheCommitFails() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionManager txManager = buildTransactionManager(ddbClient);
+        Transaction lockHolder = txManager.beginTransaction();
+        lockHolder.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        lockHolder.commitWithoutUnlocking();
+
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "checking", 2)));
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 2)));
+        try {
+            transaction.commitAsync().get(5, TimeUnit.SECONDS);
+            fail("Expected the lock to be held by the first transaction");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ContentionException);
+        }
+        transaction.rollbackAsync().get(5, TimeUnit.SECONDS);
+        assertTrue(transaction.isComplete());
+        assertNull(getRawItem(ddbClient, "checking"));
+        assertEquals(TransactionStatus.ROLLED_BACK, getTransactionStatus(ddbClient, transaction));
+    }
+
+    @Test
+    public void lockStealingRollsForwardALockHeldByACommittedTransaction() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionManager txManager = buildTransactionManager(ddbClient, 0, true);
+        Transaction lockHolder = txManager.beginTransaction();
+        lockHolder.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        lockHolder.commitWithoutUnlocking();
+
+        Transaction transaction = txManager.beginTransaction();
+        transaction.deleteItem(bankAccountItemMapper.generateDeleteItemRequest(beneficiaryName, "savings"));
+        Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+
+        assertNull(getRawItem(ddbClient, "savings"));
+        assertEquals(1, txManager.getStolenLockCount());
+        assertEquals(TransactionStatus.COMMITTED, getTransactionStatus(ddbClient, lockHolder));
+    }
+
+    @Test
+    public void lockStealingRollsBackATransactionThatMissedItsCommitDeadline() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionManager txManager = buildTransactionManager(ddbClient, 0, true);
+        Transaction lockHolder = txManager.beginTransaction();
+        lockHolder.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 1)));
+        lockHolder.commitWithoutUnlocking();
+
+        overwriteWithStartCommit(ddbClient, lockHolder, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+        Transaction blockedTransaction = txManager.beginTransaction();
+        blockedTransaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 2)));
+        try {
+            blockedTransaction.commit();
+            fail("Expected the lock of a transaction within its deadline to be respected");
+        } catch (ContentionException e) {
+            assertEquals(0, txManager.getStolenLockCount());
+        }
+
+        overwriteWithStartCommit(ddbClient, lockHolder, System.currentTimeMillis() - 1);
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings", 3)));
+        Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+
+        assertEquals(3, bankAccountItemMapper.unmarshall(getRawItem(ddbClient, "savings")).getTotalAmountInUsd().intValue());
+        assertEquals(TransactionStatus.ROLLED_BACK, getTransactionStatus(ddbClient, lockHolder));
+        assertEquals(1, txManager.getStolenLockCount());
+    }
+
+    @Test
+    public void largeCommitSetsGoToOverflowItemsThatAreSweptWithTheLogItem() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(new TransactionLogItemMapper().generateCreateTableRequest());
+        TransactionManager txManager = new TransactionCoordinatorBuilder(ddbClient, Executors.newFixedThreadPool(4))
+                .withCommitSetCompression(true)
+                .withMaxInlineCommitSetBytes(1024)
+                .buildTransactionManager();
+        int numberOfAccounts = 500;
+        Transaction transaction = txManager.beginTransaction();
+        for (int i = 0; i < numberOfAccounts; i++) {
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+        }
+        transaction.commitWithoutUnlocking();
+
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        List<Map<String, AttributeValue>> rawTxLogItems = ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems();
+        assertEquals(2, rawTxLogItems.size());
+        assertEquals(1, rawTxLogItems.stream().filter(txLogItemMapper::isOverflowItem).count());
+        TransactionLogItem txLogItem = TransactionLogItemReader.read(ddbClient, txLogItemMapper, transaction.getTransactionId());
+        assertEquals(TransactionStatus.COMMITTED, txLogItem.getTransactionStatus());
+        assertEquals(numberOfAccounts, txLogItem.getCreateSet().get(bankAccountItemMapper.getTableName()).size());
+        TransactionLogItem batchReadTxLogItem = TransactionLogItemReader.readAll(ddbClient, txLogItemMapper, new RetryPolicy(0, 25L, 1000L, 0),
+                Collections.singletonList(transaction.getTransactionId()), new ArrayList<>()).get(transaction.getTransactionId());
+        assertEquals(numberOfAccounts, batchReadTxLogItem.getCreateSet().get(bankAccountItemMapper.getTableName()).size());
+
+        assertTrue(new TransactionSweeperTask(txLogItem, Instant.now().minusSeconds(TimeUnit.HOURS.toSeconds(1)), ddbClient, txLogItemMapper).execute());
+        assertTrue(ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems().isEmpty());
+        Map<String, AttributeValue> rawItem = ddbClient.getItem(new GetItemRequest(bankAccountItemMapper.getTableName(),
+                bankAccountItemMapper.getPrimaryKeyMap(beneficiaryName, "account-0"))).getItem();
+        assertFalse(rawItem.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+    }
+
+    @Test
+    public void unlockedLogItemThatOutlivedItsOverflowItemsIsStillDeleted() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(new TransactionLogItemMapper().generateCreateTableRequest());
+        TransactionManager txManager = new TransactionCoordinatorBuilder(ddbClient, Executors.newFixedThreadPool(4))
+                .withMaxInlineCommitSetBytes(1024)
+                .buildTransactionManager();
+        Transaction transaction = txManager.beginTransaction();
+        for (int i = 0; i < 100; i++) {
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+        }
+        transaction.commitWithoutUnlocking();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        TransactionLogItem txLogItem = TransactionLogItemReader.read(ddbClient, txLogItemMapper, transaction.getTransactionId());
+        assertFalse(new TransactionSweeperTask(txLogItem, Instant.now().minusMillis(txLogItem.getWaitPeriodBeforeSweeperUnlockMillis()), ddbClient,
+                txLogItemMapper).execute());
+
+        // As if the sweeper failed to delete the log item right after its overflow items
+        for (Map<String, AttributeValue> overflowKey : txLogItemMapper.getOverflowPrimaryKeyMaps(txLogItem)) {
+            ddbClient.deleteItem(new DeleteItemRequest().withTableName(txLogItemMapper.getTableName()).withKey(overflowKey));
+        }
+        TransactionLogItem unlockedTxLogItem = TransactionLogItemReader.read(ddbClient, txLogItemMapper, transaction.getTransactionId());
+        assertTrue(unlockedTxLogItem.isUnlockedBySweeper());
+        assertTrue(unlockedTxLogItem.getCreateSet().isEmpty());
+        assertTrue(new TransactionSweeperTask(unlockedTxLogItem, Instant.now().minusSeconds(TimeUnit.HOURS.toSeconds(1)), ddbClient,
+                txLogItemMapper).execute());
+        assertTrue(ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems().isEmpty());
+    }
+
+    // Leaves the transaction as if its coordinator died after locking its items
+    private void overwriteWithStartCommit(SimulatedAmazonDynamoDB ddbClient, Transaction transaction, long commitDeadlineMillis) {
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        TransactionLogItem txLogItem = txLogItemMapper.unmarshall(ddbClient.getItem(txLogItemMapper.generateGetItemRequest(transaction.getTransactionId())).getItem());
+        if (txLogItem.getTransactionStatus() != TransactionStatus.START_COMMIT) {
+            txLogItem.setTransactionStatus(TransactionStatus.START_COMMIT);
+        }
+        txLogItem.setCommitDeadlineMillis(commitDeadlineMillis);
+        ddbClient.putItem(txLogItemMapper.generatePutItemRequest(txLogItem));
+    }
+
+    private Map<String, AttributeValue> getRawItem(SimulatedAmazonDynamoDB ddbClient, String accountType) {
+        return ddbClient.getItem(bankAccountItemMapper.generateGetItemRequest(beneficiaryName, accountType)).getItem();
+    }
+
+    private TransactionStatus getTransactionStatus(SimulatedAmazonDynamoDB ddbClient, Transaction transaction) {
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        Map<String, AttributeValue> rawTxLogItem = ddbClient.getItem(txLogItemMapper.generateGetItemRequest(transaction.getTransactionId())).getItem();
+        return rawTxLogItem == null ? null : txLogItemMapper.unmarshall(rawTxLogItem).getTransactionStatus();
+    }
+}
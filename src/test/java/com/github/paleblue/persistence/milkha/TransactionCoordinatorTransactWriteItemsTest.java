@@ -0,0 +1,123 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.exception.ContentionException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+
+public class TransactionCoordinatorTransactWriteItemsTest extends TransactionCoordinatorBaseTest {
+
+    private static final int MAX_ITEMS_FOR_TRANSACT_WRITE_ITEMS = 2;
+
+    private BankAccountItem drEvilSavingsAccount;
+    private BankAccountItem drEvilCheckingAccount;
+    private BankAccountItem miniMeSavingsAccount;
+
+    @Before
+    public void setup() {
+        coordinator = coordinatorBuilder.withMaxItemsForTransactWriteItems(MAX_ITEMS_FOR_TRANSACT_WRITE_ITEMS).build();
+        String drEvil = String.format("DrEvil-%s", UUID.randomUUID().toString());
+        String miniMe = String.format("MiniMe-%s", UUID.randomUUID().toString());
+        drEvilSavingsAccount = new BankAccountItem(drEvil, SAVINGS_ACCOUNT_TYPE, random.nextInt(1000000));
+        drEvilCheckingAccount = new BankAccountItem(drEvil, CHECKING_ACCOUNT_TYPE, random.nextInt(1000000));
+        miniMeSavingsAccount = new BankAccountItem(miniMe, SAVINGS_ACCOUNT_TYPE, random.nextInt(1000000));
+    }
+
+    private Map<String, AttributeValue> getBankAccountItemFromDynamo(BankAccountItem bankAccountItem) {
+        GetItemRequest request = bankAccountItemMapper.generateGetItemRequest(bankAccountItem.getBeneficiaryName(), bankAccountItem.getAccountType());
+        request.getAttributesToGet().addAll(TransactionCoordinator.TRANSACTION_CONTROL_FIELDS);
+        return ddbClient.getItem(request).getItem();
+    }
+
+    private DeleteItemRequest getDeleteItemRequest(BankAccountItem bankAccountItem) {
+        return bankAccountItemMapper.generateDeleteItemRequest(bankAccountItem.getBeneficiaryName(), bankAccountItem.getAccountType());
+    }
+
+    @Test
+    public void whenTransactionFitsThresholdThenItemsArePersistedUnlockedWithoutTransactionLogItem() {
+        String transactionId = randomTransactionId();
+        coordinator.startTransaction(transactionId);
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilCheckingAccount));
+        List<Future> unlockFutures = coordinator.commit();
+        assertTrue(unlockFutures.isEmpty());
+        Map<String, AttributeValue> savingsItem = getBankAccountItemFromDynamo(drEvilSavingsAccount);
+        assertNotNull(savingsItem);
+        assertNull(savingsItem.get(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        assertNotNull(getBankAccountItemFromDynamo(drEvilCheckingAccount));
+        assertNull(getRawTxLogItem(transactionId));
+    }
+
+    @Test
+    public void whenTransactionFitsThresholdThenCreateAndDeleteAreAppliedAtomically() {
+        createItemWithUnlockingCommit(drEvilSavingsAccount);
+        coordinator.startTransaction();
+        coordinator.deleteItem(getDeleteItemRequest(drEvilSavingsAccount));
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(miniMeSavingsAccount));
+        coordinator.commit();
+        assertNull(getBankAccountItemFromDynamo(drEvilSavingsAccount));
+        assertNotNull(getBankAccountItemFromDynamo(miniMeSavingsAccount));
+    }
+
+    @Test(expected = ContentionException.class)
+    public void whenCreatingAnExistingItemThenThrowContentionException() {
+        createItemWithUnlockingCommit(drEvilSavingsAccount);
+        coordinator.startTransaction();
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        coordinator.commit();
+    }
+
+    @Test
+    public void whenDeletingALockedItemThenThrowContentionExceptionAndApplyNothing() {
+        coordinator.startTransaction();
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilCheckingAccount));
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(miniMeSavingsAccount));
+        coordinator.commitWithoutUnlocking(); // Above the threshold, so the items stay locked
+        BankAccountItem drEvilBrokerageAccount = new BankAccountItem(drEvilSavingsAccount.getBeneficiaryName(), "brokerage", 1);
+        coordinator.startTransaction();
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilBrokerageAccount));
+        coordinator.deleteItem(getDeleteItemRequest(drEvilSavingsAccount));
+        try {
+            coordinator.commit();
+        } catch (ContentionException e) {
+            coordinator.rollback();
+            assertNull(getBankAccountItemFromDynamo(drEvilBrokerageAccount));
+            assertEquals(TransactionCoordinator.TRANSACTION_OPERATION_ADD_VALUE,
+                    getBankAccountItemFromDynamo(drEvilSavingsAccount).get(TransactionCoordinator.TRANSACTION_OPERATION_CONTROL_FIELD).getS());
+            return;
+        }
+        throw new AssertionError("ContentionException should have been thrown");
+    }
+
+    @Test
+    public void whenTransactionExceedsThresholdThenLogProtocolIsUsed() {
+        String transactionId = randomTransactionId();
+        coordinator.startTransaction(transactionId);
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilSavingsAccount));
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(drEvilCheckingAccount));
+        coordinator.createItem(bankAccountItemMapper.generateUpdateItemRequest(miniMeSavingsAccount));
+        coordinator.commitWithoutUnlocking();
+        assertNotNull(getRawTxLogItem(transactionId));
+        assertEquals(transactionId, getBankAccountItemFromDynamo(drEvilSavingsAccount).get(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD).getS());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenThresholdExceedsTransactWriteItemsLimitThenThrowIllegalArgumentException() {
+        coordinatorBuilder.withMaxItemsForTransactWriteItems(TransactionManager.TRANSACT_WRITE_ITEMS_MAX_ITEMS + 1).build();
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.exception.TransactionNotStartedException;
+import com.github.paleblue.persistence.milkha.util.Futures;
+
+public class TransactionManagerTest extends TransactionCoordinatorBaseTest {
+
+    private TransactionManager txManager;
+    private String beneficiaryName;
+
+    @Before
+    public void setup() {
+        txManager = coordinatorBuilder.buildTransactionManager();
+        beneficiaryName = String.format("DrEvil-%s", UUID.randomUUID().toString());
+    }
+
+    private int countAccounts() {
+        return txManager.scan(bankAccountItemMapper.generateScanRequest()).getItems().size();
+    }
+
+    @Test
+    public void transactionsFromTheSameManagerCanBeInterleaved() {
+        Transaction first = txManager.beginTransaction();
+        Transaction second = txManager.beginTransaction();
+        assertNotEquals(first.getTransactionId(), second.getTransactionId());
+        first.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, SAVINGS_ACCOUNT_TYPE, 1)));
+        second.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, CHECKING_ACCOUNT_TYPE, 2)));
+        second.commitWithoutUnlocking();
+        first.commitWithoutUnlocking();
+        assertTrue(first.isComplete());
+        assertTrue(second.isComplete());
+        assertEquals(2, countAccounts());
+    }
+
+    @Test
+    public void managerCanBeSharedAcrossThreads() throws Exception {
+        int numberOfThreads = 8;
+        ExecutorService callers = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < numberOfThreads; i++) {
+            final String accountType = "account-" + i;
+            results.add(callers.submit(() -> {
+                Transaction transaction = txManager.beginTransaction();
+                transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, accountType, 1)));
+                Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        callers.shutdown();
+        assertEquals(numberOfThreads, countAccounts());
+    }
+
+    @Test(expected = TransactionNotStartedException.class)
+    public void completedTransactionCannotBeReused() {
+        Transaction transaction = txManager.beginTransaction();
+        transaction.rollback();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, SAVINGS_ACCOUNT_TYPE, 1)));
+    }
+
+    @Test
+    public void lockedItemsOfFinishedTransactionsAreResolvedFromTheStatusCache() {
+        TransactionManager cachingTxManager = coordinatorBuilder.withTransactionStatusCacheSize(100).buildTransactionManager();
+        Transaction transaction = cachingTxManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, SAVINGS_ACCOUNT_TYPE, 1)));
+        transaction.commitWithoutUnlocking();
+
+        TransactionStatusCache txStatusCache = cachingTxManager.getTransactionStatusCache();
+        assertEquals(1, cachingTxManager.scan(bankAccountItemMapper.generateScanRequest()).getItems().size());
+        assertEquals(1, cachingTxManager.scan(bankAccountItemMapper.generateScanRequest()).getItems().size());
+        assertEquals(2, txStatusCache.getHitCount());
+        assertEquals(0, txStatusCache.getMissCount());
+    }
+
+    @Test
+    public void parallelScanReturnsOnlyCommittedItemsFromAllSegments() throws Exception {
+        int numberOfAccounts = 10;
+        for (int i = 0; i < numberOfAccounts; i++) {
+            Transaction transaction = txManager.beginTransaction();
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+            transaction.commitWithoutUnlocking();
+        }
+        Transaction pendingTransaction = txManager.beginTransaction();
+        pendingTransaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "pending", 1)));
+
+        ExecutorService scanners = Executors.newFixedThreadPool(4);
+        List<Map<String, AttributeValue>> scannedItems = Collections.synchronizedList(new ArrayList<>());
+        txManager.parallelScan(bankAccountItemMapper.generateScanRequest().withLimit(2), 4, scanners, scannedItems::addAll).get(30, TimeUnit.SECONDS);
+        scanners.shutdown();
+        assertEquals(numberOfAccounts, scannedItems.size());
+        for (Map<String, AttributeValue> scannedItem : scannedItems) {
+            assertFalse(scannedItem.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        }
+    }
+
+    @Test
+    public void parallelScanFailsWhenAConsumerThrows() throws Exception {
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, SAVINGS_ACCOUNT_TYPE, 1)));
+        transaction.commitWithoutUnlocking();
+        try {
+            txManager.parallelScan(bankAccountItemMapper.generateScanRequest(), 2, items -> {
+                throw new IllegalStateException("consumer failed");
+            }).get(30, TimeUnit.SECONDS);
+            fail("Expected the parallel scan to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void scanItemsPagesThroughAllCommittedItems() {
+        int numberOfAccounts = 7;
+        for (int i = 0; i < numberOfAccounts; i++) {
+            Transaction transaction = txManager.beginTransaction();
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+            transaction.commitWithoutUnlocking();
+        }
+        Transaction pendingTransaction = txManager.beginTransaction();
+        pendingTransaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "pending", 1)));
+
+        int scannedItems = 0;
+        for (Map<String, AttributeValue> item : txManager.scanItems(bankAccountItemMapper.generateScanRequest().withLimit(2), 2)) {
+            assertFalse(item.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+            scannedItems++;
+        }
+        assertEquals(numberOfAccounts, scannedItems);
+    }
+
+    @Test
+    public void virtualThreadModeCommitsOnAnyJdk() {
+        TransactionManager virtualThreadTxManager = coordinatorBuilder.withVirtualThreads(true).buildTransactionManager();
+        Transaction transaction = virtualThreadTxManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, SAVINGS_ACCOUNT_TYPE, 1)));
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, CHECKING_ACCOUNT_TYPE, 2)));
+        Futures.blockOnAllFutures(transaction.commit(), Instant.now().plusSeconds(5));
+        assertEquals(2, countAccounts());
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+
+public class TransactionStatusCacheTest {
+
+    @Test
+    public void terminalStatusesAreCachedAndCounted() {
+        TransactionStatusCache cache = new TransactionStatusCache(10, 60000L);
+        cache.put("committed", TransactionStatus.COMMITTED);
+        cache.put("rolledBack", TransactionStatus.ROLLED_BACK);
+        assertEquals(TransactionStatus.COMMITTED, cache.get("committed"));
+        assertEquals(TransactionStatus.ROLLED_BACK, cache.get("rolledBack"));
+        assertNull(cache.get("unknown"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void nonTerminalStatusesAreNotCached() {
+        TransactionStatusCache cache = new TransactionStatusCache(10, 60000L);
+        cache.put("startCommit", TransactionStatus.START_COMMIT);
+        cache.put("notPersisted", TransactionStatus.NOT_PERSISTED);
+        cache.put("complete", TransactionStatus.COMPLETE);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        TransactionStatusCache cache = new TransactionStatusCache(2, 60000L);
+        cache.put("first", TransactionStatus.COMMITTED);
+        cache.put("second", TransactionStatus.COMMITTED);
+        cache.get("first");
+        cache.put("third", TransactionStatus.COMMITTED);
+        assertEquals(2, cache.size());
+        assertEquals(TransactionStatus.COMMITTED, cache.get("first"));
+        assertNull(cache.get("second"));
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() throws InterruptedException {
+        TransactionStatusCache cache = new TransactionStatusCache(10, 1L);
+        cache.put("committed", TransactionStatus.COMMITTED);
+        Thread.sleep(5);
+        assertNull(cache.get("committed"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void zeroSizedCacheIsDisabled() {
+        TransactionStatusCache cache = new TransactionStatusCache(0, 60000L);
+        cache.put("committed", TransactionStatus.COMMITTED);
+        assertNull(cache.get("committed"));
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSizeIsRejected() {
+        new TransactionStatusCache(-1, 60000L);
+    }
+}
@@ -11,6 +11,8 @@ import java.time.Instant;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -99,6 +101,23 @@ public class TransactionSweeperTaskTest extends TransactionCoordinatorBaseTest {
         assertTrue(txLogItem.isUnlockedBySweeper());
     }
 
+    @Test
+    public void sweeperUnlocksCommittedItemsInParallel() throws ExecutionException, InterruptedException {
+        createItemWithUnlockingCommit(drEvilCheckingAccount);
+        createAndDeleteItemWithoutUnlockingCommit(transactionId, drEvilSavingsAccount, drEvilCheckingAccount);
+        TransactionLogItem txLogItem = getTxLogItem(transactionId);
+        txLogItem.setWaitPeriodBeforeSweeperUnlockMillis(0L);
+        txLogItem.setWaitPeriodBeforeSweeperDeleteMillis(20000L);
+        ExecutorService unlockExecutor = Executors.newFixedThreadPool(2);
+        txSweeperTask = new TransactionSweeperTask(txLogItem, Instant.now().minusMillis(1), ddbClient, txLogItemMapper, unlockExecutor);
+        assertFalse(txSweeperTask.execute());
+        unlockExecutor.shutdown();
+        Map<String, AttributeValue> rawBankAccountItem = getRawBankAccountItem(drEvilSavingsAccount);
+        assertFalse(rawBankAccountItem.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        assertNull(getRawBankAccountItem(drEvilCheckingAccount));
+        assertTrue(getTxLogItem(transactionId).isUnlockedBySweeper());
+    }
+
     @Test
     public void sweeperUnlocksRolledBackItems() throws ExecutionException, InterruptedException {
         createItemWithUnlockingCommit(drEvilCheckingAccount);
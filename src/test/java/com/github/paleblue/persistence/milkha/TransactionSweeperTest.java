@@ -1,16 +1,27 @@
 package com.github.paleblue.persistence.milkha;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import com.github.paleblue.persistence.milkha.TransactionSweeper;
@@ -22,9 +33,19 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
 import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.mapper.SweeperLeaseMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogBuckets;
 import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB.Operation;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDBBuilder;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 
@@ -41,18 +62,20 @@ public class TransactionSweeperTest {
 
     TransactionSweeperBuilder txSweeperBuilder;
     TransactionSweeper txSweeper;
+    Map<String, TransactionSweeperTask> tasksByTransactionId = new HashMap<>();
 
     @Before
     public void before() {
         MockitoAnnotations.initMocks(this);
+        when(mockDDBClient.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(new BatchGetItemResult().withResponses(Collections.emptyMap()));
         txSweeperBuilder = new TransactionSweeperBuilder(mockDDBClient, Executors.newSingleThreadScheduledExecutor());
         txSweeper = txSweeperBuilder.build();
     }
 
     @Test
     public void testExecuteTxSweeperTasksCatchesThrownException() throws Exception {
-        when(txSweeperTask1.execute()).thenThrow(Exception.class);
-        txSweeper.getSeenTransactions().put(UUID.randomUUID().toString(), txSweeperTask1);
+        when(txSweeperTask1.execute(any())).thenThrow(Exception.class);
+        addTask(txSweeper, txSweeperTask1, 0L, 0L);
         txSweeper.executeTxSweeperTasks();
     }
 
@@ -64,17 +87,14 @@ public class TransactionSweeperTest {
 
     @Test
     public void testTransactionSweeperDeletesCompletedTxSweeperTasks() throws Exception {
-        when(txSweeperTask1.execute()).thenReturn(false);
-        when(txSweeperTask2.execute()).thenReturn(true);
-        String transactionId1 = UUID.randomUUID().toString();
-        String transactionId2 = UUID.randomUUID().toString();
-        when(txSweeperTask1.getTransactionId()).thenReturn(transactionId1);
-        when(txSweeperTask2.getTransactionId()).thenReturn(transactionId2);
-        txSweeper.getSeenTransactions().put(transactionId1, txSweeperTask1);
-        txSweeper.getSeenTransactions().put(transactionId2, txSweeperTask2);
+        when(txSweeperTask1.execute(any())).thenReturn(false);
+        when(txSweeperTask2.execute(any())).thenReturn(true);
+        String transactionId1 = addTask(txSweeper, txSweeperTask1, 0L, 0L);
+        String transactionId2 = addTask(txSweeper, txSweeperTask2, 0L, 0L);
         txSweeper.executeTxSweeperTasks();
-        assertEquals(1, txSweeper.getSeenTransactions().size());
-        assertEquals(txSweeperTask1, txSweeper.getSeenTransactions().get(transactionId1));
+        assertEquals(1, txSweeper.getBacklog().size());
+        assertTrue(txSweeper.getBacklog().contains(transactionId1));
+        assertFalse(txSweeper.getBacklog().contains(transactionId2));
     }
 
     @Test
@@ -94,9 +114,351 @@ public class TransactionSweeperTest {
                 .thenReturn(scanResult1)
                 .thenReturn(scanResult2);
         txSweeper.scanTxLogTable();
-        assertEquals(5, txSweeper.getSeenTransactions().size());
+        assertEquals(5, txSweeper.getBacklog().size());
         txSweeper.scanTxLogTable();
-        assertEquals(7, txSweeper.getSeenTransactions().size());
+        assertEquals(7, txSweeper.getBacklog().size());
+    }
+
+    @Test
+    public void sweeperOnlyTouchesTasksOnceTheyAreDue() throws Exception {
+        when(txSweeperTask1.execute(any())).thenReturn(false);
+        addTask(txSweeper, txSweeperTask1, 0L, 3600000L);
+        addTask(txSweeper, txSweeperTask2, 3600000L, 7200000L);
+
+        txSweeper.executeTxSweeperTasks();
+        txSweeper.executeTxSweeperTasks();
+
+        // Unlocked on the first cycle, then left alone until its delete is due
+        verify(txSweeperTask1, times(1)).execute(any());
+        verify(txSweeperTask2, never()).execute(any());
+        assertEquals(2, txSweeper.getBacklog().size());
+    }
+
+    @Test
+    public void transactionsLeftOverByAFailedBatchAreSweptOnTheNextCycle() throws Exception {
+        when(txSweeperTask1.execute(any())).thenThrow(new Error("Simulated failure")).thenReturn(true);
+        when(txSweeperTask2.execute(any())).thenReturn(true);
+        addTask(txSweeper, txSweeperTask1, 0L, 0L);
+        addTask(txSweeper, txSweeperTask2, 0L, 0L);
+
+        try {
+            txSweeper.executeTxSweeperTasks();
+            fail("Expected the simulated failure");
+        } catch (Error e) {
+            assertEquals("Simulated failure", e.getMessage());
+        }
+        verify(txSweeperTask2, never()).execute(any());
+        assertEquals(2, txSweeper.getBacklog().size());
+
+        txSweeper.executeTxSweeperTasks();
+        verify(txSweeperTask1, times(2)).execute(any());
+        verify(txSweeperTask2, times(1)).execute(any());
+        assertEquals(0, txSweeper.getBacklog().size());
+    }
+
+    @Test
+    public void concurrentSweeperRunsDueTasksTogether() throws Exception {
+        TransactionSweeper concurrentSweeper = new TransactionSweeperBuilder(mockDDBClient, Executors.newSingleThreadScheduledExecutor())
+                .withMaxConcurrentTasks(2)
+                .build();
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        for (TransactionSweeperTask dueTask : new TransactionSweeperTask[] {txSweeperTask1, txSweeperTask2}) {
+            when(dueTask.execute(any())).thenAnswer(invocation -> {
+                bothRunning.countDown();
+                return bothRunning.await(5, TimeUnit.SECONDS);
+            });
+            addTask(concurrentSweeper, dueTask, 0L, 0L);
+        }
+
+        concurrentSweeper.executeTxSweeperTasks();
+
+        assertEquals(0, concurrentSweeper.getBacklog().size());
+        concurrentSweeper.shutdown();
+    }
+
+    @Test
+    public void shutdownStopsTheThreadsTheSweeperCreated() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequest());
+        generateRawTxLogItems(4).forEach(rawTxLogItem -> {
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, new AttributeValue().withN("0"));
+            ddbClient.putItem(txLogItemMapper.getTableName(), rawTxLogItem);
+        });
+        List<Thread> threadsBefore = sweeperThreads();
+        TransactionSweeper pooledSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withTransactionLogTableScanSegments(2)
+                .withMaxConcurrentTasks(2)
+                .build();
+        assertTrue(pooledSweeper.scanTxLogTable());
+        pooledSweeper.executeTxSweeperTasks();
+        List<Thread> createdThreads = sweeperThreads();
+        createdThreads.removeAll(threadsBefore);
+        assertFalse(createdThreads.isEmpty());
+
+        pooledSweeper.shutdown();
+
+        for (Thread createdThread : createdThreads) {
+            createdThread.join(5000L);
+            assertFalse(createdThread.isAlive());
+        }
+    }
+
+    @Test
+    public void scanPausesWhileTheBacklogIsFullAndResumesOnceTransactionsAreSwept() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequest());
+        generateRawTxLogItems(25).forEach(rawTxLogItem -> {
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, new AttributeValue().withN("0"));
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS, new AttributeValue().withN("0"));
+            ddbClient.putItem(txLogItemMapper.getTableName(), rawTxLogItem);
+        });
+        TransactionSweeper cappedSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withMaxBacklogSize(10)
+                .withTransactionLogTableScanPageSize(4)
+                .build();
+
+        assertFalse(cappedSweeper.scanTxLogTable());
+        assertEquals(10, cappedSweeper.getBacklog().size());
+        assertFalse(cappedSweeper.scanTxLogTable());
+        assertEquals(10, cappedSweeper.getBacklog().size());
+        cappedSweeper.executeTxSweeperTasks();
+        assertEquals(0, cappedSweeper.getBacklog().size());
+        assertFalse(cappedSweeper.scanTxLogTable());
+        cappedSweeper.executeTxSweeperTasks();
+        assertTrue(cappedSweeper.scanTxLogTable());
+        assertEquals(5, cappedSweeper.getBacklog().size());
+    }
+
+    @Test
+    public void sweeperReadsTheLogItemsOfDueTasksInBatches() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequest());
+        generateRawTxLogItems(150).forEach(rawTxLogItem -> {
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, new AttributeValue().withN("0"));
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS, new AttributeValue().withN("0"));
+            ddbClient.putItem(txLogItemMapper.getTableName(), rawTxLogItem);
+        });
+        TransactionSweeper batchingSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor()).build();
+
+        assertTrue(batchingSweeper.scanTxLogTable());
+        batchingSweeper.executeTxSweeperTasks();
+
+        assertEquals(0, batchingSweeper.getBacklog().size());
+        assertTrue(ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems().isEmpty());
+        assertEquals(2, ddbClient.getRequestCount(Operation.BATCH_GET_ITEM));
+        assertEquals(0, ddbClient.getRequestCount(Operation.GET_ITEM));
+    }
+
+    @Test
+    public void unreadableLogItemOnlyHoldsBackItsOwnTransaction() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequest());
+        List<Map<String, AttributeValue>> rawTxLogItems = generateRawTxLogItems(3);
+        rawTxLogItems.forEach(rawTxLogItem -> {
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, new AttributeValue().withN("0"));
+            rawTxLogItem.put(TransactionLogItemMapper.WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS, new AttributeValue().withN("0"));
+            ddbClient.putItem(txLogItemMapper.getTableName(), rawTxLogItem);
+        });
+        TransactionSweeper sweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor()).build();
+        assertTrue(sweeper.scanTxLogTable());
+        Map<String, AttributeValue> unreadableTxLogItem = rawTxLogItems.get(0);
+        unreadableTxLogItem.put(TransactionLogItemMapper.TRANSACTION_STATUS_KEY_NAME, new AttributeValue().withS("NOT_A_STATUS"));
+        ddbClient.putItem(txLogItemMapper.getTableName(), unreadableTxLogItem);
+
+        sweeper.executeTxSweeperTasks();
+
+        assertEquals(1, sweeper.getBacklog().size());
+        String unreadableTransactionId = unreadableTxLogItem.get(TransactionLogItemMapper.TRANSACTION_ID_KEY_NAME).getS();
+        assertTrue(sweeper.getBacklog().contains(unreadableTransactionId));
+        List<Map<String, AttributeValue>> remainingItems = ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems();
+        assertEquals(1, remainingItems.size());
+        assertEquals(unreadableTransactionId, remainingItems.get(0).get(TransactionLogItemMapper.TRANSACTION_ID_KEY_NAME).getS());
+    }
+
+    @Test
+    public void sweeperScansTheTransactionLogInParallelSegments() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequest());
+        generateRawTxLogItems(40).forEach(rawTxLogItem -> ddbClient.putItem(txLogItemMapper.getTableName(), rawTxLogItem));
+        TransactionSweeper segmentedSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withTransactionLogTableScanSegments(4)
+                .withTransactionLogTableScanPageSize(5)
+                .build();
+
+        assertTrue(segmentedSweeper.scanTxLogTable());
+        assertEquals(40, segmentedSweeper.getBacklog().size());
+        assertTrue(ddbClient.getRequestCount(Operation.SCAN) >= 40 / 5);
+        segmentedSweeper.shutdown();
+    }
+
+    @Test
+    public void leasedSweepersShareTheTransactionLogBetweenThem() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(new SweeperLeaseMapper().generateCreateTableRequest());
+        List<Map<String, AttributeValue>> rawTxLogItems = generateRawTxLogItems(40);
+        rawTxLogItems.forEach(rawTxLogItem -> ddbClient.putItem(txLogItemMapper.getTableName(), rawTxLogItem));
+        List<TransactionSweeper> leasedSweepers = new ArrayList<>();
+        for (String owner : new String[] {"first", "second"}) {
+            leasedSweepers.add(new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                    .withTransactionLogTableScanSegments(4)
+                    .withLeases(true)
+                    .withLeaseOwner(owner)
+                    .build());
+        }
+
+        for (int i = 0; i < 3; i++) {
+            leasedSweepers.forEach(TransactionSweeper::renewLeases);
+        }
+        leasedSweepers.forEach(TransactionSweeper::findTransactions);
+
+        for (TransactionSweeper leasedSweeper : leasedSweepers) {
+            assertEquals(2, leasedSweeper.getLeases().getHeldPartitions().size());
+        }
+        for (Map<String, AttributeValue> rawTxLogItem : rawTxLogItems) {
+            String transactionId = rawTxLogItem.get(TransactionLogItemMapper.TRANSACTION_ID_KEY_NAME).getS();
+            assertEquals(1, leasedSweepers.stream().filter(leasedSweeper -> leasedSweeper.getBacklog().contains(transactionId)).count());
+        }
+    }
+
+    @Test
+    public void leasedSweeperScansEachPartitionOnceThenQueriesItsShard() {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        ddbClient.createTable(new TransactionLogItemMapper().generateCreateTableRequestWithSweepBucketIndex());
+        ddbClient.createTable(new SweeperLeaseMapper().generateCreateTableRequest());
+        TransactionSweeper leasedSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withTransactionLogTableScanSegments(2)
+                .withSweepBuckets(new TransactionLogBuckets(250L, 2))
+                .withLeases(true)
+                .build();
+
+        leasedSweeper.renewLeases();
+        long leaseScans = ddbClient.getRequestCount(Operation.SCAN);
+        leasedSweeper.findTransactions();
+        leasedSweeper.findTransactions();
+
+        assertEquals(leaseScans + 2, ddbClient.getRequestCount(Operation.SCAN));
+        assertTrue(ddbClient.getRequestCount(Operation.QUERY) > 0);
+        assertNotNull(leasedSweeper.getLeases().getCheckpointMillis(0));
+        assertNotNull(leasedSweeper.getLeases().getCheckpointMillis(1));
+    }
+
+    @Test
+    public void timeToLiveSweeperUnlocksButLeavesExpiringLogItemsToDynamoDB() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        BankAccountItemMapper bankAccountItemMapper = new BankAccountItemMapper();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequestWithSweepBucketIndex());
+        TransactionLogBuckets sweepBuckets = new TransactionLogBuckets(250L, 1);
+        TransactionManager txManager = new TransactionCoordinatorBuilder(ddbClient, Executors.newFixedThreadPool(2))
+                .withMaxTimeToCommitOrRollbackMillis(100L)
+                .withWaitPeriodBeforeSweeperUnlockMillis(150L)
+                .withWaitPeriodBeforeSweeperDeleteMillis(3600000L)
+                .withSweepBuckets(sweepBuckets)
+                .withMaxInlineCommitSetBytes(1024)
+                .buildTransactionManager();
+        TransactionSweeper ttlSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withSweepBuckets(sweepBuckets)
+                .withTimeToLive(true)
+                .build();
+        Transaction transaction = txManager.beginTransaction();
+        for (int i = 0; i < 50; i++) {
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(UUID.randomUUID().toString(), "checking", i)));
+        }
+        transaction.commitWithoutUnlocking();
+        assertTrue(ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems().stream()
+                .noneMatch(rawItem -> rawItem.containsKey(TransactionLogItemMapper.EXPIRES_AT_EPOCH_SECONDS)));
+
+        ttlSweeper.findTransactions();
+        Thread.sleep(200L);
+        long unlockStartMillis = System.currentTimeMillis();
+        ttlSweeper.executeTxSweeperTasks();
+        long unlockEndMillis = System.currentTimeMillis();
+
+        assertEquals(0, ttlSweeper.getBacklog().size());
+        TransactionLogItem txLogItem = txLogItemMapper.unmarshall(ddbClient.getItem(txLogItemMapper.generateGetItemRequest(transaction.getTransactionId())).getItem());
+        assertTrue(txLogItem.isUnlockedBySweeper());
+        assertNull(txLogItem.getSweepBucket());
+        long expiresAtEpochSeconds = txLogItem.getExpiresAtEpochSeconds();
+        assertTrue(expiresAtEpochSeconds > TimeUnit.MILLISECONDS.toSeconds(unlockStartMillis + 3600000L - 150L));
+        assertTrue(expiresAtEpochSeconds <= TimeUnit.MILLISECONDS.toSeconds(unlockEndMillis + 3600000L - 150L) + 1);
+        List<Map<String, AttributeValue>> rawOverflowItems = ddbClient.scan(txLogItemMapper.generateScanRequest()).getItems().stream()
+                .filter(txLogItemMapper::isOverflowItem)
+                .collect(Collectors.toList());
+        assertFalse(rawOverflowItems.isEmpty());
+        for (Map<String, AttributeValue> rawOverflowItem : rawOverflowItems) {
+            assertEquals(String.valueOf(expiresAtEpochSeconds), rawOverflowItem.get(TransactionLogItemMapper.EXPIRES_AT_EPOCH_SECONDS).getN());
+        }
+        ttlSweeper.findTransactions();
+        assertEquals(0, ttlSweeper.getBacklog().size());
+        TransactionSweeper ttlScanningSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withTimeToLive(true)
+                .build();
+        assertTrue(ttlScanningSweeper.scanTxLogTable());
+        assertEquals(0, ttlScanningSweeper.getBacklog().size());
+    }
+
+    @Test
+    public void sweeperQueriesSweepBucketsAfterTheFirstScan() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = new SimulatedAmazonDynamoDBBuilder().build();
+        BankAccountItemMapper bankAccountItemMapper = new BankAccountItemMapper();
+        TransactionLogItemMapper txLogItemMapper = new TransactionLogItemMapper();
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(txLogItemMapper.generateCreateTableRequestWithSweepBucketIndex());
+        TransactionLogBuckets sweepBuckets = new TransactionLogBuckets(250L, 4);
+        TransactionManager txManager = new TransactionCoordinatorBuilder(ddbClient, Executors.newFixedThreadPool(2))
+                .withMaxTimeToCommitOrRollbackMillis(200L)
+                .withSweepBuckets(sweepBuckets)
+                .buildTransactionManager();
+        TransactionSweeper bucketSweeper = new TransactionSweeperBuilder(ddbClient, Executors.newSingleThreadScheduledExecutor())
+                .withSweepBuckets(sweepBuckets)
+                .build();
+
+        bucketSweeper.findTransactions();
+        Long firstCheckpointMillis = bucketSweeper.getCheckpointMillis();
+        assertNotNull(firstCheckpointMillis);
+        Transaction transaction = txManager.beginTransaction();
+        transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(UUID.randomUUID().toString(), "checking", 1)));
+        transaction.commitWithoutUnlocking();
+        long committedAtMillis = System.currentTimeMillis();
+        Thread.sleep(750L);
+        bucketSweeper.findTransactions();
+
+        assertEquals(1, ddbClient.getRequestCount(Operation.SCAN));
+        assertTrue(ddbClient.getRequestCount(Operation.QUERY) > 0);
+        assertTrue(bucketSweeper.getBacklog().contains(transaction.getTransactionId()));
+        assertTrue(bucketSweeper.getCheckpointMillis() > firstCheckpointMillis);
+        assertTrue(bucketSweeper.getCheckpointMillis() <= sweepBuckets.bucketStartOf(committedAtMillis));
+
+        ddbClient.deleteItem(txLogItemMapper.generateDeleteItemRequest(transaction.getTransactionId()));
+        Thread.sleep(750L);
+        bucketSweeper.findTransactions();
+        assertTrue(bucketSweeper.getCheckpointMillis() > sweepBuckets.bucketStartOf(committedAtMillis));
+        assertEquals(1, ddbClient.getRequestCount(Operation.SCAN));
+    }
+
+    private String addTask(TransactionSweeper sweeper, TransactionSweeperTask txSweeperTask, long waitPeriodBeforeSweeperUnlockMillis,
+            long waitPeriodBeforeSweeperDeleteMillis) {
+        String transactionId = UUID.randomUUID().toString();
+        when(txSweeperTask.getTransactionId()).thenReturn(transactionId);
+        tasksByTransactionId.put(transactionId, txSweeperTask);
+        sweeper.setTaskFactory(dueTransaction -> tasksByTransactionId.get(dueTransaction.getTransactionId()));
+        sweeper.addSweeperTask(new TransactionLogItem(transactionId, TransactionStatus.START_COMMIT, waitPeriodBeforeSweeperUnlockMillis,
+                waitPeriodBeforeSweeperDeleteMillis));
+        return transactionId;
+    }
+
+    private List<Thread> sweeperThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("milkha-sweeper-"))
+                .collect(Collectors.toList());
     }
 
     private List<Map<String, AttributeValue>> generateRawTxLogItems(final int numberOfItems) {
@@ -0,0 +1,184 @@
+package com.github.paleblue.persistence.milkha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.metrics.HistogramTransactionMetricsListener;
+import com.github.paleblue.persistence.milkha.metrics.PhaseOutcome;
+import com.github.paleblue.persistence.milkha.metrics.TransactionPhase;
+import com.github.paleblue.persistence.milkha.simulator.LatencyDistribution;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB.Operation;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDBBuilder;
+import com.github.paleblue.persistence.milkha.util.Futures;
+
+public class UnlockPipelineTest {
+
+    private BankAccountItemMapper bankAccountItemMapper;
+    private TransactionRequestsFactory txRequestsFactory;
+    private String beneficiaryName;
+    private UnlockPipeline unlockPipeline;
+
+    @Before
+    public void setup() {
+        bankAccountItemMapper = new BankAccountItemMapper();
+        txRequestsFactory = new TransactionRequestsFactory(new TransactionLogItemMapper());
+        beneficiaryName = String.format("DrEvil-%s", UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() {
+        if (unlockPipeline != null) {
+            unlockPipeline.shutdown();
+        }
+    }
+
+    private SimulatedAmazonDynamoDB buildDDBClient(SimulatedAmazonDynamoDBBuilder builder) {
+        SimulatedAmazonDynamoDB ddbClient = builder.build();
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(new TransactionLogItemMapper().generateCreateTableRequest());
+        return ddbClient;
+    }
+
+    @Test
+    public void unlocksOfManyTransactionsAreMergedIntoFewerWrites() {
+        SimulatedAmazonDynamoDB ddbClient = buildDDBClient(new SimulatedAmazonDynamoDBBuilder()
+                .withLatency(Operation.TRANSACT_WRITE_ITEMS, LatencyDistribution.fixed(20))
+                .withLatency(Operation.UPDATE_ITEM, LatencyDistribution.fixed(20)));
+        unlockPipeline = new UnlockPipelineBuilder(ddbClient).withMaxWritesInFlight(1).build();
+        List<TransactionManager> txManagers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            txManagers.add(new TransactionCoordinatorBuilder(ddbClient, Executors.newFixedThreadPool(4)).withUnlockPipeline(unlockPipeline).buildTransactionManager());
+        }
+        int numberOfTransactions = 20;
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < numberOfTransactions; i++) {
+            Transaction transaction = txManagers.get(i % 2).beginTransaction();
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "savings-" + i, i)));
+            transaction.createItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "checking-" + i, i)));
+            transaction.commitWithoutUnlocking();
+            transactions.add(transaction);
+        }
+        List<Future> unlockFutures = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            unlockFutures.addAll(transaction.executePostCommitUnlocks());
+        }
+        Futures.blockOnAllFutures(unlockFutures, Instant.now().plusSeconds(10));
+
+        assertEquals(2 * numberOfTransactions, unlockPipeline.getCompletedCount());
+        assertEquals(0, unlockPipeline.getBacklog());
+        assertTrue(unlockPipeline.getWriteCount() < numberOfTransactions);
+        for (Map<String, AttributeValue> item : ddbClient.scan(bankAccountItemMapper.generateScanRequest()).getItems()) {
+            assertFalse(item.containsKey(TransactionCoordinator.TRANSACTION_ID_CONTROL_FIELD));
+        }
+    }
+
+    @Test
+    public void unlockOfAnItemThatIsNoLongerLockedDoesNotFailTheOthers() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = buildDDBClient(new SimulatedAmazonDynamoDBBuilder());
+        unlockPipeline = new UnlockPipelineBuilder(ddbClient).build();
+        String transactionId = UUID.randomUUID().toString();
+        List<UpdateItemRequest> unlockRequests = new ArrayList<>();
+        for (String accountType : new String[] {"savings", "checking", "brokerage"}) {
+            UpdateItemRequest commitRequest = txRequestsFactory.generateCommitRequestForAdd(transactionId,
+                    bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, accountType, 1)));
+            if (!"brokerage".equals(accountType)) {
+                ddbClient.updateItem(commitRequest);
+            }
+            unlockRequests.add(txRequestsFactory.generatePostCommitUnlockRequestForAdd(transactionId, commitRequest));
+        }
+        List<CompletableFuture<Void>> futures = unlockPipeline.submit(unlockRequests);
+        futures.get(0).get(5, TimeUnit.SECONDS);
+        futures.get(1).get(5, TimeUnit.SECONDS);
+        try {
+            futures.get(2).get(5, TimeUnit.SECONDS);
+            fail("Expected the unlock of an item that is not locked to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConditionalCheckFailedException);
+        }
+        assertEquals(2, unlockPipeline.getCompletedCount());
+        assertEquals(1, unlockPipeline.getFailedCount());
+    }
+
+    @Test
+    public void cancelledGroupOnlyRetriesTheUnlocksThatWereNotStale() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = buildDDBClient(new SimulatedAmazonDynamoDBBuilder().withLatency(Operation.UPDATE_ITEM, LatencyDistribution.fixed(100)));
+        HistogramTransactionMetricsListener metricsListener = new HistogramTransactionMetricsListener();
+        unlockPipeline = new UnlockPipelineBuilder(ddbClient).withMaxWritesInFlight(1).withMetricsListener(metricsListener).build();
+        String transactionId = UUID.randomUUID().toString();
+        List<UpdateItemRequest> unlockRequests = new ArrayList<>();
+        for (String accountType : new String[] {"blocker", "savings", "checking", "brokerage"}) {
+            UpdateItemRequest commitRequest = txRequestsFactory.generateCommitRequestForAdd(transactionId,
+                    bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, accountType, 1)));
+            if ("savings".equals(accountType) || "checking".equals(accountType)) {
+                ddbClient.updateItem(commitRequest);
+            }
+            unlockRequests.add(txRequestsFactory.generatePostCommitUnlockRequestForAdd(transactionId, commitRequest));
+        }
+        // The only writer is busy with the first unlock while the others queue up into one group
+        List<CompletableFuture<Void>> futures = new ArrayList<>(unlockPipeline.submit(unlockRequests.subList(0, 1)));
+        futures.addAll(unlockPipeline.submit(unlockRequests.subList(1, 4)));
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ConditionalCheckFailedException);
+            }
+        }
+
+        assertEquals(2, unlockPipeline.getCompletedCount());
+        assertEquals(2, unlockPipeline.getFailedCount());
+        assertEquals(1, ddbClient.getRequestCount(Operation.TRANSACT_WRITE_ITEMS));
+        assertEquals(2 + 1 + 2, ddbClient.getRequestCount(Operation.UPDATE_ITEM));
+        assertEquals(2, metricsListener.getCount(TransactionPhase.UNLOCK_FALLBACK, PhaseOutcome.SUCCEEDED));
+    }
+
+    @Test
+    public void unlocksBeyondTheCapacityAreRejected() throws Exception {
+        SimulatedAmazonDynamoDB ddbClient = buildDDBClient(new SimulatedAmazonDynamoDBBuilder().withLatency(Operation.UPDATE_ITEM, LatencyDistribution.fixed(200)));
+        unlockPipeline = new UnlockPipelineBuilder(ddbClient).withCapacity(1).withMaxUnlocksPerWrite(1).withMaxWritesInFlight(1).build();
+        String transactionId = UUID.randomUUID().toString();
+        List<UpdateItemRequest> unlockRequests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            UpdateItemRequest commitRequest = txRequestsFactory.generateCommitRequestForAdd(transactionId,
+                    bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, 1)));
+            unlockRequests.add(txRequestsFactory.generatePostCommitUnlockRequestForAdd(transactionId, commitRequest));
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (UpdateItemRequest unlockRequest : unlockRequests) {
+            futures.addAll(unlockPipeline.submit(Collections.singletonList(unlockRequest)));
+        }
+        assertTrue(unlockPipeline.getRejectedCount() > 0);
+        try {
+            futures.get(4).get(5, TimeUnit.SECONDS);
+            fail("Expected the last unlock to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -3,13 +3,22 @@ package com.github.paleblue.persistence.milkha.mapper;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import com.github.paleblue.persistence.milkha.dto.TransactionLogItem;
 import com.github.paleblue.persistence.milkha.dto.TransactionStatus;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -49,4 +58,88 @@ public class TransactionLogItemMapperTest {
         assertEquals(originalTxLogItem.getWaitPeriodBeforeSweeperDeleteMillis(), unmarshalledTxLogItem.getWaitPeriodBeforeSweeperDeleteMillis());
         assertEquals(originalTxLogItem.isUnlockedBySweeper(), unmarshalledTxLogItem.isUnlockedBySweeper());
     }
+
+    @Test
+    public void commitSetsSurviveTheCompressedEncoding() {
+        TransactionLogItemMapper compressingMarshaller = new TransactionLogItemMapper(true, TransactionLogItemMapper.DEFAULT_MAX_INLINE_COMMIT_SET_BYTES);
+        TransactionLogItem originalTxLogItem = new TransactionLogItem(UUID.randomUUID().toString(), TransactionStatus.START_COMMIT, WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS,
+                WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS);
+        originalTxLogItem.addToCreateSet("Accounts", key("beneficiary", new AttributeValue("alice"), "balance", new AttributeValue().withN("-12.5")));
+        originalTxLogItem.addToCreateSet("Blobs", Collections.singletonMap("digest", new AttributeValue().withB(ByteBuffer.wrap(new byte[] {0, 1, -1}))));
+        originalTxLogItem.addToDeleteSet("Accounts", key("beneficiary", new AttributeValue("bob"), "balance", new AttributeValue().withN("7")));
+
+        Map<String, AttributeValue> itemAttributeValueMap = compressingMarshaller.marshall(originalTxLogItem);
+        assertTrue(itemAttributeValueMap.containsKey(TransactionLogItemMapper.COMMIT_SETS));
+        TransactionLogItem unmarshalledTxLogItem = marshaller.unmarshall(itemAttributeValueMap);
+        assertEquals(originalTxLogItem.getCreateSet(), unmarshalledTxLogItem.getCreateSet());
+        assertEquals(originalTxLogItem.getDeleteSet(), unmarshalledTxLogItem.getDeleteSet());
+        assertNull(unmarshalledTxLogItem.getCommitSetChunkCount());
+    }
+
+    @Test
+    public void largeCommitSetsAreSplitIntoOverflowItems() {
+        TransactionLogItem originalTxLogItem = new TransactionLogItem(UUID.randomUUID().toString(), TransactionStatus.START_COMMIT, WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS,
+                WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS);
+        for (int i = 0; i < 20000; i++) {
+            originalTxLogItem.addToCreateSet("Accounts", key("beneficiary", new AttributeValue(UUID.randomUUID().toString()), "accountId", new AttributeValue("account-" + i)));
+        }
+
+        List<PutItemRequest> overflowRequests = marshaller.generateOverflowPutItemRequests(originalTxLogItem);
+        assertTrue(overflowRequests.size() > 1);
+        assertEquals(Integer.valueOf(overflowRequests.size()), originalTxLogItem.getCommitSetChunkCount());
+        List<Map<String, AttributeValue>> overflowItems = overflowRequests.stream().map(PutItemRequest::getItem).collect(Collectors.toList());
+        assertTrue(overflowItems.stream().allMatch(marshaller::isOverflowItem));
+        assertEquals(marshaller.getOverflowPrimaryKeyMaps(originalTxLogItem), overflowItems.stream()
+                .map(item -> marshaller.getPrimaryKeyMap(item.get(TransactionLogItemMapper.TRANSACTION_ID_KEY_NAME).getS())).collect(Collectors.toList()));
+
+        Map<String, AttributeValue> itemAttributeValueMap = marshaller.marshall(originalTxLogItem);
+        assertFalse(itemAttributeValueMap.containsKey(TransactionLogItemMapper.COMMIT_SETS));
+        assertFalse(marshaller.isOverflowItem(itemAttributeValueMap));
+        assertTrue(marshaller.unmarshall(itemAttributeValueMap).getCreateSet().isEmpty());
+        TransactionLogItem unmarshalledTxLogItem = marshaller.unmarshall(itemAttributeValueMap, overflowItems);
+        assertEquals(originalTxLogItem.getCreateSet(), unmarshalledTxLogItem.getCreateSet());
+        assertEquals(originalTxLogItem.getCommitSetChunkCount(), unmarshalledTxLogItem.getCommitSetChunkCount());
+    }
+
+    @Test
+    public void expiryIsWrittenOnTheLogItemAndItsOverflowItems() {
+        TransactionLogItem originalTxLogItem = new TransactionLogItem(UUID.randomUUID().toString(), TransactionStatus.COMMITTED, WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS,
+                WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS);
+        for (int i = 0; i < 20000; i++) {
+            originalTxLogItem.addToCreateSet("Accounts", key("beneficiary", new AttributeValue(UUID.randomUUID().toString()), "accountId", new AttributeValue("account-" + i)));
+        }
+        marshaller.generateOverflowPutItemRequests(originalTxLogItem);
+        originalTxLogItem.setExpiresAtEpochSeconds(1700000000L);
+
+        Map<String, AttributeValue> overflowKey = marshaller.getOverflowPrimaryKeyMaps(originalTxLogItem).get(0);
+        UpdateItemRequest expireRequest = marshaller.generateExpireOverflowItemRequest(overflowKey, 1700000000L);
+        assertEquals(overflowKey, expireRequest.getKey());
+        assertEquals("1700000000", expireRequest.getExpressionAttributeValues().get(":expiresAt").getN());
+        assertEquals(TransactionLogItemMapper.EXPIRES_AT_EPOCH_SECONDS, expireRequest.getExpressionAttributeNames().get("#expiresAt"));
+        Map<String, AttributeValue> itemAttributeValueMap = marshaller.marshall(originalTxLogItem);
+        assertEquals("1700000000", itemAttributeValueMap.get(TransactionLogItemMapper.EXPIRES_AT_EPOCH_SECONDS).getN());
+        assertEquals(Long.valueOf(1700000000L), marshaller.unmarshall(itemAttributeValueMap).getExpiresAtEpochSeconds());
+        assertEquals(TransactionLogItemMapper.EXPIRES_AT_EPOCH_SECONDS,
+                marshaller.generateUpdateTimeToLiveRequest().getTimeToLiveSpecification().getAttributeName());
+    }
+
+    @Test
+    public void unmarshallsNestedMapCommitSetsOfOlderLogItems() {
+        Map<String, AttributeValue> key = key("beneficiary", new AttributeValue("alice"), "accountId", new AttributeValue("checking"));
+        Map<String, AttributeValue> itemAttributeValueMap = marshaller.marshall(new TransactionLogItem(UUID.randomUUID().toString(), TransactionStatus.COMMITTED,
+                WAIT_PERIOD_BEFORE_SWEEPER_UNLOCK_MILLIS, WAIT_PERIOD_BEFORE_SWEEPER_DELETE_MILLIS));
+        itemAttributeValueMap.put("createSet", new AttributeValue().withM(Collections.singletonMap("Accounts",
+                new AttributeValue().withL(new AttributeValue().withM(key)))));
+
+        TransactionLogItem unmarshalledTxLogItem = marshaller.unmarshall(itemAttributeValueMap);
+        assertEquals(Collections.singletonMap("Accounts", Collections.singletonList(key)), unmarshalledTxLogItem.getCreateSet());
+        assertTrue(unmarshalledTxLogItem.getDeleteSet().isEmpty());
+    }
+
+    private static Map<String, AttributeValue> key(String hashKeyName, AttributeValue hashKey, String rangeKeyName, AttributeValue rangeKey) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put(hashKeyName, hashKey);
+        key.put(rangeKeyName, rangeKey);
+        return key;
+    }
 }
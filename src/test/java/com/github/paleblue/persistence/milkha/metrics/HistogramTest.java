@@ -0,0 +1,56 @@
+package com.github.paleblue.persistence.milkha.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void smallValuesAreRecordedExactly() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+        assertEquals(16, histogram.getCount());
+        assertEquals(0L, histogram.getValueAtPercentile(0));
+        assertEquals(7L, histogram.getValueAtPercentile(50));
+        assertEquals(15L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketResolution() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000000L);
+        }
+        assertWithinResolution(500000000L, histogram.getValueAtPercentile(50));
+        assertWithinResolution(990000000L, histogram.getValueAtPercentile(99));
+        assertWithinResolution(1000000000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverTheWholeRangeOfLongs() {
+        assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(Histogram.bucketOf(Long.MAX_VALUE)));
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long upperBound = Histogram.upperBoundOf(Histogram.bucketOf(value));
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void emptyAndResetHistogramsReportZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0L, histogram.getValueAtPercentile(99));
+        histogram.record(12345L);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0L, histogram.getValueAtPercentile(99));
+    }
+
+    private static void assertWithinResolution(long expected, long actual) {
+        assertTrue(String.format("%d is not within 1/16 of %d", actual, expected), actual >= expected && actual - expected <= expected / 16);
+    }
+}
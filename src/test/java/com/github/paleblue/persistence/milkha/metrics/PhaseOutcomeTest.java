@@ -0,0 +1,42 @@
+package com.github.paleblue.persistence.milkha.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.github.paleblue.persistence.milkha.exception.ContentionException;
+
+public class PhaseOutcomeTest {
+
+    @Test
+    public void everyKindOfThrottlingIsReportedAsThrottled() {
+        AmazonServiceException throttlingException = new AmazonServiceException("Rate exceeded");
+        throttlingException.setErrorCode("ThrottlingException");
+        AmazonServiceException requestLimitExceeded = new AmazonServiceException("Account limit exceeded");
+        requestLimitExceeded.setErrorCode("RequestLimitExceeded");
+        TransactionCanceledException canceledException = new TransactionCanceledException("Throttled");
+        canceledException.setCancellationReasons(Arrays.asList(new CancellationReason().withCode("None"),
+                new CancellationReason().withCode("ThrottlingError")));
+
+        assertEquals(PhaseOutcome.THROTTLED, PhaseOutcome.of(new ProvisionedThroughputExceededException("Throughput exceeded!")));
+        assertEquals(PhaseOutcome.THROTTLED, PhaseOutcome.of(throttlingException));
+        assertEquals(PhaseOutcome.THROTTLED, PhaseOutcome.of(requestLimitExceeded));
+        assertEquals(PhaseOutcome.THROTTLED, PhaseOutcome.of(canceledException));
+        // As failed by Futures.allOf
+        assertEquals(PhaseOutcome.THROTTLED, PhaseOutcome.of(new CompletionException(new RuntimeException(throttlingException))));
+    }
+
+    @Test
+    public void otherFailuresAreClassedByTheirFirstKnownCause() {
+        assertEquals(PhaseOutcome.SUCCEEDED, PhaseOutcome.of(null));
+        assertEquals(PhaseOutcome.CONTENTION, PhaseOutcome.of(new CompletionException(new ContentionException("Lock held"))));
+        assertEquals(PhaseOutcome.FAILED, PhaseOutcome.of(new RuntimeException(new IllegalStateException())));
+    }
+}
@@ -0,0 +1,607 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Parses and evaluates the subset of the DynamoDB expression language that the library and its callers use: condition,
+ * filter and key condition expressions with comparisons, BETWEEN, IN, AND/OR/NOT and the attribute_exists,
+ * attribute_not_exists, begins_with, contains and size functions; update expressions with SET (including +, -,
+ * if_not_exists and list_append), REMOVE, ADD and DELETE; and top-level projection expressions. Nested document
+ * paths are not supported.
+ */
+final class ExpressionEvaluator {
+
+    private static final List<String> COMPARATORS = Arrays.asList("=", "<>", "<", "<=", ">", ">=");
+
+    private final List<String> tokens;
+    private final Map<String, String> names;
+    private final Map<String, AttributeValue> values;
+    private final Map<String, AttributeValue> equalities;
+    private int position;
+
+    private ExpressionEvaluator(String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+        this.tokens = tokenize(expression);
+        this.names = names == null ? Collections.emptyMap() : names;
+        this.values = values == null ? Collections.emptyMap() : values;
+        this.equalities = new HashMap<>();
+    }
+
+    static Condition parseCondition(String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+        ExpressionEvaluator parser = new ExpressionEvaluator(expression, names, values);
+        Predicate<Map<String, AttributeValue>> predicate = parser.parseOr();
+        parser.expectEnd();
+        return new Condition(predicate, parser.equalities);
+    }
+
+    static Function<Map<String, AttributeValue>, Map<String, AttributeValue>> parseUpdate(String expression, Map<String, String> names,
+            Map<String, AttributeValue> values) {
+        ExpressionEvaluator parser = new ExpressionEvaluator(expression, names, values);
+        List<UpdateAction> actions = parser.parseUpdateActions();
+        return item -> {
+            Map<String, AttributeValue> original = new HashMap<>(item);
+            Map<String, AttributeValue> updated = new HashMap<>(item);
+            for (UpdateAction action : actions) {
+                action.apply(original, updated);
+            }
+            return updated;
+        };
+    }
+
+    static List<String> parseProjection(String expression, Map<String, String> names) {
+        ExpressionEvaluator parser = new ExpressionEvaluator(expression, names, null);
+        List<String> attributeNames = new ArrayList<>();
+        do {
+            attributeNames.add(parser.parsePath());
+        } while (parser.accept(","));
+        parser.expectEnd();
+        return attributeNames;
+    }
+
+    /**
+     * @return the comparison of two scalar values, or null if they cannot be ordered
+     */
+    static Integer compare(AttributeValue left, AttributeValue right) {
+        if (left == null || right == null) {
+            return null;
+        } else if (left.getS() != null && right.getS() != null) {
+            return left.getS().compareTo(right.getS());
+        } else if (left.getN() != null && right.getN() != null) {
+            return new BigDecimal(left.getN()).compareTo(new BigDecimal(right.getN()));
+        } else if (left.getB() != null && right.getB() != null) {
+            return compareUnsigned(left.getB(), right.getB());
+        }
+        return null;
+    }
+
+    static boolean equalValues(AttributeValue left, AttributeValue right) {
+        if (left == null || right == null) {
+            return false;
+        }
+        Integer comparison = compare(left, right);
+        return comparison != null ? comparison == 0 : left.equals(right);
+    }
+
+    private static int compareUnsigned(ByteBuffer left, ByteBuffer right) {
+        ByteBuffer l = left.duplicate();
+        ByteBuffer r = right.duplicate();
+        while (l.hasRemaining() && r.hasRemaining()) {
+            int comparison = Integer.compare(l.get() & 0xff, r.get() & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(l.remaining(), r.remaining());
+    }
+
+    // Condition grammar
+
+    private Predicate<Map<String, AttributeValue>> parseOr() {
+        Predicate<Map<String, AttributeValue>> predicate = parseAnd();
+        while (acceptKeyword("OR")) {
+            predicate = predicate.or(parseAnd());
+        }
+        return predicate;
+    }
+
+    private Predicate<Map<String, AttributeValue>> parseAnd() {
+        Predicate<Map<String, AttributeValue>> predicate = parseNot();
+        while (acceptKeyword("AND")) {
+            predicate = predicate.and(parseNot());
+        }
+        return predicate;
+    }
+
+    private Predicate<Map<String, AttributeValue>> parseNot() {
+        if (acceptKeyword("NOT")) {
+            return parseNot().negate();
+        }
+        return parsePrimary();
+    }
+
+    private Predicate<Map<String, AttributeValue>> parsePrimary() {
+        if (accept("(")) {
+            Predicate<Map<String, AttributeValue>> predicate = parseOr();
+            expect(")");
+            return predicate;
+        }
+        String function = peek().toLowerCase(Locale.ROOT);
+        if ("(".equals(peekAhead(1))) {
+            switch (function) {
+            case "attribute_exists": {
+                next();
+                expect("(");
+                String path = parsePath();
+                expect(")");
+                return item -> item.containsKey(path);
+            }
+            case "attribute_not_exists": {
+                next();
+                expect("(");
+                String path = parsePath();
+                expect(")");
+                return item -> !item.containsKey(path);
+            }
+            case "begins_with": {
+                next();
+                expect("(");
+                Operand path = parseOperand();
+                expect(",");
+                Operand prefix = parseOperand();
+                expect(")");
+                return item -> {
+                    AttributeValue value = path.resolve(item);
+                    AttributeValue prefixValue = prefix.resolve(item);
+                    return value != null && prefixValue != null && value.getS() != null && prefixValue.getS() != null
+                            && value.getS().startsWith(prefixValue.getS());
+                };
+            }
+            case "contains": {
+                next();
+                expect("(");
+                Operand path = parseOperand();
+                expect(",");
+                Operand operand = parseOperand();
+                expect(")");
+                return item -> contains(path.resolve(item), operand.resolve(item));
+            }
+            default:
+                break;
+            }
+        }
+        Operand left = parseOperand();
+        if (acceptKeyword("BETWEEN")) {
+            Operand low = parseOperand();
+            expectKeyword("AND");
+            Operand high = parseOperand();
+            return item -> {
+                Integer lowComparison = compare(left.resolve(item), low.resolve(item));
+                Integer highComparison = compare(left.resolve(item), high.resolve(item));
+                return lowComparison != null && highComparison != null && lowComparison >= 0 && highComparison <= 0;
+            };
+        }
+        if (acceptKeyword("IN")) {
+            expect("(");
+            List<Operand> candidates = new ArrayList<>();
+            do {
+                candidates.add(parseOperand());
+            } while (accept(","));
+            expect(")");
+            return item -> candidates.stream().anyMatch(candidate -> equalValues(left.resolve(item), candidate.resolve(item)));
+        }
+        String comparator = next();
+        if (!COMPARATORS.contains(comparator)) {
+            throw SimulatedErrors.validation("Invalid expression: unexpected token " + comparator);
+        }
+        Operand right = parseOperand();
+        if ("=".equals(comparator) && left.path != null && right.constant != null) {
+            equalities.put(left.path, right.constant);
+        }
+        return item -> compare(comparator, left.resolve(item), right.resolve(item));
+    }
+
+    private static boolean compare(String comparator, AttributeValue left, AttributeValue right) {
+        switch (comparator) {
+        case "=":
+            return equalValues(left, right);
+        case "<>":
+            return !equalValues(left, right);
+        default:
+            Integer comparison = compare(left, right);
+            if (comparison == null) {
+                return false;
+            }
+            switch (comparator) {
+            case "<":
+                return comparison < 0;
+            case "<=":
+                return comparison <= 0;
+            case ">":
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+            }
+        }
+    }
+
+    private static boolean contains(AttributeValue container, AttributeValue element) {
+        if (container == null || element == null) {
+            return false;
+        } else if (container.getS() != null && element.getS() != null) {
+            return container.getS().contains(element.getS());
+        } else if (container.getSS() != null && element.getS() != null) {
+            return container.getSS().contains(element.getS());
+        } else if (container.getNS() != null && element.getN() != null) {
+            return container.getNS().stream().anyMatch(n -> new BigDecimal(n).compareTo(new BigDecimal(element.getN())) == 0);
+        } else if (container.getL() != null) {
+            return container.getL().stream().anyMatch(value -> equalValues(value, element));
+        }
+        return false;
+    }
+
+    // Update grammar
+
+    private List<UpdateAction> parseUpdateActions() {
+        List<UpdateAction> actions = new ArrayList<>();
+        while (position < tokens.size()) {
+            String clause = next().toUpperCase(Locale.ROOT);
+            switch (clause) {
+            case "SET":
+                do {
+                    String path = parsePath();
+                    expect("=");
+                    Operand value = parseSetValue();
+                    actions.add((original, updated) -> {
+                        AttributeValue resolved = value.resolve(original);
+                        if (resolved == null) {
+                            throw SimulatedErrors.validation("The provided expression refers to an attribute that does not exist in the item");
+                        }
+                        updated.put(path, resolved);
+                    });
+                } while (accept(","));
+                break;
+            case "REMOVE":
+                do {
+                    String path = parsePath();
+                    actions.add((original, updated) -> updated.remove(path));
+                } while (accept(","));
+                break;
+            case "ADD":
+                do {
+                    String path = parsePath();
+                    Operand value = parseOperand();
+                    actions.add((original, updated) -> updated.put(path, add(original.get(path), value.resolve(original))));
+                } while (accept(","));
+                break;
+            case "DELETE":
+                do {
+                    String path = parsePath();
+                    Operand value = parseOperand();
+                    actions.add((original, updated) -> {
+                        AttributeValue remaining = deleteFromSet(original.get(path), value.resolve(original));
+                        if (remaining == null) {
+                            updated.remove(path);
+                        } else {
+                            updated.put(path, remaining);
+                        }
+                    });
+                } while (accept(","));
+                break;
+            default:
+                throw SimulatedErrors.validation("Invalid UpdateExpression: unexpected token " + clause);
+            }
+        }
+        if (actions.isEmpty()) {
+            throw SimulatedErrors.validation("Invalid UpdateExpression: the expression can not be empty");
+        }
+        return actions;
+    }
+
+    private Operand parseSetValue() {
+        Operand left = parseOperand();
+        if (accept("+")) {
+            Operand right = parseOperand();
+            return Operand.function(item -> arithmetic(left.resolve(item), right.resolve(item), false));
+        } else if (accept("-")) {
+            Operand right = parseOperand();
+            return Operand.function(item -> arithmetic(left.resolve(item), right.resolve(item), true));
+        }
+        return left;
+    }
+
+    private static AttributeValue arithmetic(AttributeValue left, AttributeValue right, boolean subtract) {
+        if (left == null || right == null || left.getN() == null || right.getN() == null) {
+            throw SimulatedErrors.validation("An operand in the update expression has an incorrect data type");
+        }
+        BigDecimal l = new BigDecimal(left.getN());
+        BigDecimal r = new BigDecimal(right.getN());
+        return new AttributeValue().withN((subtract ? l.subtract(r) : l.add(r)).toPlainString());
+    }
+
+    private static AttributeValue add(AttributeValue existing, AttributeValue value) {
+        if (existing == null) {
+            return value;
+        } else if (existing.getN() != null) {
+            return arithmetic(existing, value, false);
+        } else if (existing.getSS() != null && value.getSS() != null) {
+            Set<String> union = new LinkedHashSet<>(existing.getSS());
+            union.addAll(value.getSS());
+            return new AttributeValue().withSS(union);
+        } else if (existing.getNS() != null && value.getNS() != null) {
+            Set<String> union = new LinkedHashSet<>(existing.getNS());
+            union.addAll(value.getNS());
+            return new AttributeValue().withNS(union);
+        }
+        throw SimulatedErrors.validation("An operand in the update expression has an incorrect data type");
+    }
+
+    private static AttributeValue deleteFromSet(AttributeValue existing, AttributeValue value) {
+        if (existing == null) {
+            return null;
+        }
+        List<String> remaining;
+        if (existing.getSS() != null && value.getSS() != null) {
+            remaining = new ArrayList<>(existing.getSS());
+            remaining.removeAll(value.getSS());
+            return remaining.isEmpty() ? null : new AttributeValue().withSS(remaining);
+        } else if (existing.getNS() != null && value.getNS() != null) {
+            remaining = new ArrayList<>(existing.getNS());
+            remaining.removeAll(value.getNS());
+            return remaining.isEmpty() ? null : new AttributeValue().withNS(remaining);
+        }
+        throw SimulatedErrors.validation("An operand in the update expression has an incorrect data type");
+    }
+
+    // Operands and tokens
+
+    private Operand parseOperand() {
+        String token = peek();
+        String function = token.toLowerCase(Locale.ROOT);
+        if ("(".equals(peekAhead(1))) {
+            switch (function) {
+            case "size": {
+                next();
+                expect("(");
+                Operand operand = parseOperand();
+                expect(")");
+                return Operand.function(item -> size(operand.resolve(item)));
+            }
+            case "if_not_exists": {
+                next();
+                expect("(");
+                String path = parsePath();
+                expect(",");
+                Operand fallback = parseOperand();
+                expect(")");
+                return Operand.function(item -> item.containsKey(path) ? item.get(path) : fallback.resolve(item));
+            }
+            case "list_append": {
+                next();
+                expect("(");
+                Operand first = parseOperand();
+                expect(",");
+                Operand second = parseOperand();
+                expect(")");
+                return Operand.function(item -> {
+                    List<AttributeValue> appended = new ArrayList<>(first.resolve(item).getL());
+                    appended.addAll(second.resolve(item).getL());
+                    return new AttributeValue().withL(appended);
+                });
+            }
+            default:
+                throw SimulatedErrors.validation("Invalid expression: unsupported function " + token);
+            }
+        }
+        if (token.startsWith(":")) {
+            next();
+            AttributeValue value = values.get(token);
+            if (value == null) {
+                throw SimulatedErrors.validation("An expression attribute value used in expression is not defined; attribute value: " + token);
+            }
+            return Operand.constant(value);
+        }
+        return Operand.path(parsePath());
+    }
+
+    private static AttributeValue size(AttributeValue value) {
+        if (value == null) {
+            return null;
+        }
+        int size;
+        if (value.getS() != null) {
+            size = value.getS().length();
+        } else if (value.getB() != null) {
+            size = value.getB().remaining();
+        } else if (value.getSS() != null) {
+            size = value.getSS().size();
+        } else if (value.getNS() != null) {
+            size = value.getNS().size();
+        } else if (value.getL() != null) {
+            size = value.getL().size();
+        } else if (value.getM() != null) {
+            size = value.getM().size();
+        } else {
+            return null;
+        }
+        return new AttributeValue().withN(String.valueOf(size));
+    }
+
+    private String parsePath() {
+        String token = next();
+        if (token.startsWith("#")) {
+            String name = names.get(token);
+            if (name == null) {
+                throw SimulatedErrors.validation("An expression attribute name used in the document path is not defined; attribute name: " + token);
+            }
+            return name;
+        }
+        if (!Character.isLetter(token.charAt(0)) && token.charAt(0) != '_') {
+            throw SimulatedErrors.validation("Invalid expression: unexpected token " + token);
+        }
+        return token;
+    }
+
+    private String peek() {
+        if (position >= tokens.size()) {
+            throw SimulatedErrors.validation("Invalid expression: unexpected end of input");
+        }
+        return tokens.get(position);
+    }
+
+    private String peekAhead(int offset) {
+        return position + offset < tokens.size() ? tokens.get(position + offset) : null;
+    }
+
+    private String next() {
+        String token = peek();
+        position++;
+        return token;
+    }
+
+    private boolean accept(String token) {
+        if (position < tokens.size() && tokens.get(position).equals(token)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(keyword)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw SimulatedErrors.validation("Invalid expression: expected " + token);
+        }
+    }
+
+    private void expectKeyword(String keyword) {
+        if (!acceptKeyword(keyword)) {
+            throw SimulatedErrors.validation("Invalid expression: expected " + keyword);
+        }
+    }
+
+    private void expectEnd() {
+        if (position != tokens.size()) {
+            throw SimulatedErrors.validation("Invalid expression: unexpected token " + tokens.get(position));
+        }
+    }
+
+    private static List<String> tokenize(String expression) {
+        if (expression == null) {
+            throw SimulatedErrors.validation("Invalid expression: the expression can not be empty");
+        }
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if ("(),+-".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '=') {
+                tokens.add("=");
+                i++;
+            } else if (c == '<' || c == '>') {
+                String twoCharacters = i + 1 < expression.length() ? expression.substring(i, i + 2) : "";
+                if ("<=".equals(twoCharacters) || ">=".equals(twoCharacters) || "<>".equals(twoCharacters)) {
+                    tokens.add(twoCharacters);
+                    i += 2;
+                } else {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                }
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '#' || c == ':') {
+                int start = i;
+                while (i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i)) || "_#:.".indexOf(expression.charAt(i)) >= 0)) {
+                    i++;
+                }
+                tokens.add(expression.substring(start, i));
+            } else {
+                throw SimulatedErrors.validation("Invalid expression: unexpected character " + c);
+            }
+        }
+        if (tokens.isEmpty()) {
+            throw SimulatedErrors.validation("Invalid expression: the expression can not be empty");
+        }
+        return tokens;
+    }
+
+    static final class Condition {
+        private final Predicate<Map<String, AttributeValue>> predicate;
+        private final Map<String, AttributeValue> equalities;
+
+        private Condition(Predicate<Map<String, AttributeValue>> predicate, Map<String, AttributeValue> equalities) {
+            this.predicate = predicate;
+            this.equalities = equalities;
+        }
+
+        boolean test(Map<String, AttributeValue> item) {
+            return predicate.test(item);
+        }
+
+        /**
+         * @return the attributes compared for equality with a value, which for a key condition include the hash key
+         */
+        Map<String, AttributeValue> getEqualities() {
+            return equalities;
+        }
+    }
+
+    @FunctionalInterface
+    private interface UpdateAction {
+        void apply(Map<String, AttributeValue> original, Map<String, AttributeValue> updated);
+    }
+
+    private static final class Operand {
+        private final String path;
+        private final AttributeValue constant;
+        private final Function<Map<String, AttributeValue>, AttributeValue> function;
+
+        private Operand(String path, AttributeValue constant, Function<Map<String, AttributeValue>, AttributeValue> function) {
+            this.path = path;
+            this.constant = constant;
+            this.function = function;
+        }
+
+        static Operand path(String path) {
+            return new Operand(path, null, null);
+        }
+
+        static Operand constant(AttributeValue constant) {
+            return new Operand(null, constant, null);
+        }
+
+        static Operand function(Function<Map<String, AttributeValue>, AttributeValue> function) {
+            return new Operand(null, null, function);
+        }
+
+        AttributeValue resolve(Map<String, AttributeValue> item) {
+            if (path != null) {
+                return item.get(path);
+            } else if (constant != null) {
+                return constant;
+            }
+            return function.apply(item);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of simulated request latencies.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+    long nextLatencyNanos(Random random);
+
+    static LatencyDistribution none() {
+        return random -> 0L;
+    }
+
+    static LatencyDistribution fixed(long latencyMillis) {
+        checkArgument(latencyMillis >= 0, "latencyMillis must not be negative");
+        long latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        return random -> latencyNanos;
+    }
+
+    static LatencyDistribution uniform(long minLatencyMillis, long maxLatencyMillis) {
+        checkArgument(minLatencyMillis >= 0 && maxLatencyMillis >= minLatencyMillis, "latencies must satisfy 0 <= min <= max");
+        long minLatencyNanos = TimeUnit.MILLISECONDS.toNanos(minLatencyMillis);
+        long rangeNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis - minLatencyMillis);
+        return random -> minLatencyNanos + (long) (random.nextDouble() * rangeNanos);
+    }
+
+    /**
+     * Long-tailed latencies with the given median. A sigma of 0.5 puts p99 at about 3.2 times the median.
+     */
+    static LatencyDistribution logNormal(double medianLatencyMillis, double sigma) {
+        checkArgument(medianLatencyMillis > 0 && sigma >= 0, "medianLatencyMillis must be positive and sigma must not be negative");
+        double mu = Math.log(TimeUnit.MILLISECONDS.toNanos(1) * medianLatencyMillis);
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+    /**
+     * Uses spikeLatency for the given fraction of requests and this distribution for the others.
+     */
+    default LatencyDistribution withSpikes(double spikeProbability, LatencyDistribution spikeLatency) {
+        checkArgument(spikeProbability >= 0 && spikeProbability <= 1, "spikeProbability must be between zero and one");
+        return random -> random.nextDouble() < spikeProbability ? spikeLatency.nextLatencyNanos(random) : nextLatencyNanos(random);
+    }
+}
@@ -0,0 +1,378 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionCheck;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+
+/**
+ * In-process AmazonDynamoDB for load and failure testing without a network. It implements the subset of the API the
+ * library uses (table management, conditional GetItem/PutItem/UpdateItem/DeleteItem, BatchGetItem, Query, Scan and
+ * TransactWriteItems) and injects latency, throttling, internal errors and partial BatchGetItem results as configured
+ * through {@link SimulatedAmazonDynamoDBBuilder}.
+ *
+ * Requests are applied atomically under a single lock, half way through their simulated latency, so concurrent callers
+ * observe the interleavings a real table would allow. Throttled and failed requests have no effect.
+ */
+public final class SimulatedAmazonDynamoDB extends AbstractAmazonDynamoDB {
+
+    public enum Operation {
+        CREATE_TABLE, DELETE_TABLE, DESCRIBE_TABLE, GET_ITEM, PUT_ITEM, UPDATE_ITEM, DELETE_ITEM, BATCH_GET_ITEM, QUERY, SCAN, TRANSACT_WRITE_ITEMS
+    }
+
+    private static final int BATCH_GET_ITEM_MAX_KEYS = 100;
+    private static final int TRANSACT_WRITE_ITEMS_MAX_ITEMS = 100;
+
+    private final Map<String, SimulatedTable> tables;
+    private final Object lock;
+    private final Random random;
+    private final Map<Operation, LatencyDistribution> latencies;
+    private final Map<Operation, Double> throttleProbabilities;
+    private final Map<Operation, Double> failureProbabilities;
+    private final double unprocessedKeysProbability;
+    private final Map<Operation, LongAdder> requestCounts;
+    private final Map<Operation, LongAdder> throttleCounts;
+    private final Map<Operation, LongAdder> failureCounts;
+
+    SimulatedAmazonDynamoDB(long seed, Map<Operation, LatencyDistribution> latencies, Map<Operation, Double> throttleProbabilities,
+            Map<Operation, Double> failureProbabilities, double unprocessedKeysProbability) {
+        this.tables = new HashMap<>();
+        this.lock = new Object();
+        this.random = new Random(seed);
+        this.latencies = new EnumMap<>(latencies);
+        this.throttleProbabilities = new EnumMap<>(throttleProbabilities);
+        this.failureProbabilities = new EnumMap<>(failureProbabilities);
+        this.unprocessedKeysProbability = unprocessedKeysProbability;
+        this.requestCounts = new ConcurrentHashMap<>();
+        this.throttleCounts = new ConcurrentHashMap<>();
+        this.failureCounts = new ConcurrentHashMap<>();
+        for (Operation operation : Operation.values()) {
+            requestCounts.put(operation, new LongAdder());
+            throttleCounts.put(operation, new LongAdder());
+            failureCounts.put(operation, new LongAdder());
+        }
+    }
+
+    public long getRequestCount(Operation operation) {
+        return requestCounts.get(operation).sum();
+    }
+
+    public long getThrottleCount(Operation operation) {
+        return throttleCounts.get(operation).sum();
+    }
+
+    public long getFailureCount(Operation operation) {
+        return failureCounts.get(operation).sum();
+    }
+
+    @Override
+    public CreateTableResult createTable(CreateTableRequest request) {
+        return execute(Operation.CREATE_TABLE, () -> {
+            if (tables.containsKey(request.getTableName())) {
+                throw SimulatedErrors.resourceInUse(request.getTableName());
+            }
+            SimulatedTable table = new SimulatedTable(request);
+            tables.put(request.getTableName(), table);
+            return new CreateTableResult().withTableDescription(table.describe());
+        });
+    }
+
+    @Override
+    public DeleteTableResult deleteTable(DeleteTableRequest request) {
+        return execute(Operation.DELETE_TABLE, () -> {
+            SimulatedTable table = tableOf(request.getTableName());
+            tables.remove(request.getTableName());
+            return new DeleteTableResult().withTableDescription(table.describe());
+        });
+    }
+
+    @Override
+    public DescribeTableResult describeTable(DescribeTableRequest request) {
+        return execute(Operation.DESCRIBE_TABLE, () -> new DescribeTableResult().withTable(tableOf(request.getTableName()).describe()));
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        return execute(Operation.GET_ITEM, () -> {
+            Map<String, AttributeValue> item = tableOf(request.getTableName()).get(request.getKey());
+            return new GetItemResult().withItem(SimulatedTable.project(item, request.getProjectionExpression(), request.getExpressionAttributeNames(),
+                    request.getAttributesToGet()));
+        });
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        return execute(Operation.PUT_ITEM, () -> {
+            SimulatedTable table = tableOf(request.getTableName());
+            Map<String, AttributeValue> existing = table.get(table.keyOf(request.getItem()));
+            checkCondition(request.getConditionExpression(), request.getExpressionAttributeNames(), request.getExpressionAttributeValues(), existing);
+            table.put(request.getItem());
+            return new PutItemResult().withAttributes(ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) ? existing : null);
+        });
+    }
+
+    @Override
+    public UpdateItemResult updateItem(UpdateItemRequest request) {
+        return execute(Operation.UPDATE_ITEM, () -> {
+            SimulatedTable table = tableOf(request.getTableName());
+            table.validateKey(request.getKey());
+            Map<String, AttributeValue> existing = table.get(request.getKey());
+            checkCondition(request.getConditionExpression(), request.getExpressionAttributeNames(), request.getExpressionAttributeValues(), existing);
+            Map<String, AttributeValue> updated = applyUpdate(request.getKey(), existing, request.getUpdateExpression(),
+                    request.getExpressionAttributeNames(), request.getExpressionAttributeValues());
+            table.put(updated);
+            UpdateItemResult result = new UpdateItemResult();
+            if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues())) {
+                result.setAttributes(existing);
+            } else if (ReturnValue.ALL_NEW.toString().equals(request.getReturnValues())) {
+                result.setAttributes(updated);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public DeleteItemResult deleteItem(DeleteItemRequest request) {
+        return execute(Operation.DELETE_ITEM, () -> {
+            SimulatedTable table = tableOf(request.getTableName());
+            Map<String, AttributeValue> existing = table.get(request.getKey());
+            checkCondition(request.getConditionExpression(), request.getExpressionAttributeNames(), request.getExpressionAttributeValues(), existing);
+            table.delete(request.getKey());
+            return new DeleteItemResult().withAttributes(ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) ? existing : null);
+        });
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(Map<String, KeysAndAttributes> requestItems) {
+        return batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        return execute(Operation.BATCH_GET_ITEM, () -> {
+            int keyCount = request.getRequestItems().values().stream().mapToInt(keysAndAttributes -> keysAndAttributes.getKeys().size()).sum();
+            if (keyCount == 0 || keyCount > BATCH_GET_ITEM_MAX_KEYS) {
+                throw SimulatedErrors.validation("Too many items requested for the BatchGetItem call");
+            }
+            Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+            Map<String, KeysAndAttributes> unprocessedKeys = new HashMap<>();
+            boolean madeProgress = false;
+            for (Map.Entry<String, KeysAndAttributes> entry : request.getRequestItems().entrySet()) {
+                SimulatedTable table = tableOf(entry.getKey());
+                KeysAndAttributes keysAndAttributes = entry.getValue();
+                List<Map<String, AttributeValue>> items = new ArrayList<>();
+                List<Map<String, AttributeValue>> unprocessed = new ArrayList<>();
+                for (Map<String, AttributeValue> key : keysAndAttributes.getKeys()) {
+                    // Like the service, every call that is not throttled reads at least one key.
+                    if (madeProgress && random.nextDouble() < unprocessedKeysProbability) {
+                        unprocessed.add(key);
+                        continue;
+                    }
+                    Map<String, AttributeValue> item = SimulatedTable.project(table.get(key), keysAndAttributes.getProjectionExpression(),
+                            keysAndAttributes.getExpressionAttributeNames(), keysAndAttributes.getAttributesToGet());
+                    madeProgress = true;
+                    if (item != null) {
+                        items.add(item);
+                    }
+                }
+                Collections.shuffle(items, random); // Like the service, items come back in no particular order
+                responses.put(entry.getKey(), items);
+                if (!unprocessed.isEmpty()) {
+                    unprocessedKeys.put(entry.getKey(), keysAndAttributes.clone().withKeys(unprocessed));
+                }
+            }
+            return new BatchGetItemResult().withResponses(responses).withUnprocessedKeys(unprocessedKeys);
+        });
+    }
+
+    @Override
+    public QueryResult query(QueryRequest request) {
+        return execute(Operation.QUERY, () -> tableOf(request.getTableName()).query(request));
+    }
+
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        return execute(Operation.SCAN, () -> tableOf(request.getTableName()).scan(request));
+    }
+
+    @Override
+    public TransactWriteItemsResult transactWriteItems(TransactWriteItemsRequest request) {
+        return execute(Operation.TRANSACT_WRITE_ITEMS, () -> {
+            List<TransactWriteItem> transactItems = request.getTransactItems();
+            if (transactItems == null || transactItems.isEmpty() || transactItems.size() > TRANSACT_WRITE_ITEMS_MAX_ITEMS) {
+                throw SimulatedErrors.validation("Member must have length less than or equal to " + TRANSACT_WRITE_ITEMS_MAX_ITEMS);
+            }
+            List<Runnable> writes = new ArrayList<>();
+            List<CancellationReason> reasons = new ArrayList<>();
+            boolean canceled = false;
+            for (TransactWriteItem transactItem : transactItems) {
+                boolean passed = stageTransactItem(transactItem, writes);
+                reasons.add(new CancellationReason().withCode(passed ? "None" : "ConditionalCheckFailed"));
+                canceled |= !passed;
+            }
+            if (canceled) {
+                TransactionCanceledException exception = new TransactionCanceledException("Transaction cancelled, please refer cancellation reasons for specific reasons");
+                exception.setCancellationReasons(reasons);
+                exception.setErrorCode("TransactionCanceledException");
+                exception.setStatusCode(400);
+                exception.setServiceName("AmazonDynamoDBv2");
+                throw exception;
+            }
+            writes.forEach(Runnable::run);
+            return new TransactWriteItemsResult();
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        // Nothing to release; tables stay readable so tests can inspect them after the code under test shuts down.
+    }
+
+    private boolean stageTransactItem(TransactWriteItem transactItem, List<Runnable> writes) {
+        if (transactItem.getPut() != null) {
+            Put put = transactItem.getPut();
+            SimulatedTable table = tableOf(put.getTableName());
+            Map<String, AttributeValue> existing = table.get(table.keyOf(put.getItem()));
+            writes.add(() -> table.put(put.getItem()));
+            return conditionHolds(put.getConditionExpression(), put.getExpressionAttributeNames(), put.getExpressionAttributeValues(), existing);
+        } else if (transactItem.getUpdate() != null) {
+            Update update = transactItem.getUpdate();
+            SimulatedTable table = tableOf(update.getTableName());
+            table.validateKey(update.getKey());
+            Map<String, AttributeValue> existing = table.get(update.getKey());
+            Map<String, AttributeValue> updated = applyUpdate(update.getKey(), existing, update.getUpdateExpression(),
+                    update.getExpressionAttributeNames(), update.getExpressionAttributeValues());
+            writes.add(() -> table.put(updated));
+            return conditionHolds(update.getConditionExpression(), update.getExpressionAttributeNames(), update.getExpressionAttributeValues(), existing);
+        } else if (transactItem.getDelete() != null) {
+            Delete delete = transactItem.getDelete();
+            SimulatedTable table = tableOf(delete.getTableName());
+            Map<String, AttributeValue> existing = table.get(delete.getKey());
+            writes.add(() -> table.delete(delete.getKey()));
+            return conditionHolds(delete.getConditionExpression(), delete.getExpressionAttributeNames(), delete.getExpressionAttributeValues(), existing);
+        } else if (transactItem.getConditionCheck() != null) {
+            ConditionCheck conditionCheck = transactItem.getConditionCheck();
+            Map<String, AttributeValue> existing = tableOf(conditionCheck.getTableName()).get(conditionCheck.getKey());
+            return conditionHolds(conditionCheck.getConditionExpression(), conditionCheck.getExpressionAttributeNames(),
+                    conditionCheck.getExpressionAttributeValues(), existing);
+        }
+        throw SimulatedErrors.validation("TransactItems can only contain one of Check, Put, Update or Delete");
+    }
+
+    private static Map<String, AttributeValue> applyUpdate(Map<String, AttributeValue> key, Map<String, AttributeValue> existing, String updateExpression,
+            Map<String, String> names, Map<String, AttributeValue> values) {
+        Map<String, AttributeValue> item = existing == null ? new HashMap<>(key) : existing;
+        if (updateExpression == null) {
+            return new HashMap<>(item);
+        }
+        Map<String, AttributeValue> updated = ExpressionEvaluator.parseUpdate(updateExpression, names, values).apply(item);
+        for (Map.Entry<String, AttributeValue> keyAttribute : key.entrySet()) {
+            if (!ExpressionEvaluator.equalValues(keyAttribute.getValue(), updated.get(keyAttribute.getKey()))) {
+                throw SimulatedErrors.validation("Cannot update attribute " + keyAttribute.getKey() + ". This attribute is part of the key");
+            }
+        }
+        return updated;
+    }
+
+    private static void checkCondition(String conditionExpression, Map<String, String> names, Map<String, AttributeValue> values,
+            Map<String, AttributeValue> existing) {
+        if (!conditionHolds(conditionExpression, names, values, existing)) {
+            throw SimulatedErrors.conditionalCheckFailed();
+        }
+    }
+
+    private static boolean conditionHolds(String conditionExpression, Map<String, String> names, Map<String, AttributeValue> values,
+            Map<String, AttributeValue> existing) {
+        return conditionExpression == null
+                || ExpressionEvaluator.parseCondition(conditionExpression, names, values).test(existing == null ? Collections.emptyMap() : existing);
+    }
+
+    private SimulatedTable tableOf(String tableName) {
+        SimulatedTable table = tables.get(tableName);
+        if (table == null) {
+            throw SimulatedErrors.resourceNotFound(tableName);
+        }
+        return table;
+    }
+
+    private <T> T execute(Operation operation, Supplier<T> action) {
+        requestCounts.get(operation).increment();
+        long latencyNanos;
+        boolean throttled;
+        boolean failed;
+        synchronized (random) {
+            latencyNanos = latencies.getOrDefault(operation, LatencyDistribution.none()).nextLatencyNanos(random);
+            throttled = random.nextDouble() < throttleProbabilities.getOrDefault(operation, 0.0);
+            failed = !throttled && random.nextDouble() < failureProbabilities.getOrDefault(operation, 0.0);
+        }
+        sleep(latencyNanos / 2);
+        try {
+            if (throttled) {
+                throttleCounts.get(operation).increment();
+                throw SimulatedErrors.throttled();
+            } else if (failed) {
+                failureCounts.get(operation).increment();
+                throw SimulatedErrors.internalServerError();
+            }
+            synchronized (lock) {
+                return action.get();
+            }
+        } finally {
+            sleep(latencyNanos - latencyNanos / 2);
+        }
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        }
+    }
+}
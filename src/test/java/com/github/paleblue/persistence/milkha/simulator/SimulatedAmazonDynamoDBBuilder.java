@@ -0,0 +1,91 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkArgument;
+import static com.github.paleblue.persistence.milkha.util.Preconditions.checkNotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB.Operation;
+
+public class SimulatedAmazonDynamoDBBuilder {
+    private static final long DEFAULT_SEED = 42L;
+
+    private final Map<Operation, LatencyDistribution> latencies;
+    private final Map<Operation, Double> throttleProbabilities;
+    private final Map<Operation, Double> failureProbabilities;
+    private long seed;
+    private double unprocessedKeysProbability;
+
+    public SimulatedAmazonDynamoDBBuilder() {
+        this.latencies = new EnumMap<>(Operation.class);
+        this.throttleProbabilities = new EnumMap<>(Operation.class);
+        this.failureProbabilities = new EnumMap<>(Operation.class);
+        this.seed = DEFAULT_SEED;
+    }
+
+    public SimulatedAmazonDynamoDBBuilder withSeed(final long newSeed) {
+        this.seed = newSeed;
+        return this;
+    }
+
+    public SimulatedAmazonDynamoDBBuilder withLatency(final LatencyDistribution newLatency) {
+        for (Operation operation : Operation.values()) {
+            withLatency(operation, newLatency);
+        }
+        return this;
+    }
+
+    public SimulatedAmazonDynamoDBBuilder withLatency(final Operation operation, final LatencyDistribution newLatency) {
+        latencies.put(checkNotNull(operation), checkNotNull(newLatency));
+        return this;
+    }
+
+    /**
+     * Fraction of requests rejected with ProvisionedThroughputExceededException before they take effect.
+     */
+    public SimulatedAmazonDynamoDBBuilder withThrottleProbability(final double newThrottleProbability) {
+        for (Operation operation : Operation.values()) {
+            withThrottleProbability(operation, newThrottleProbability);
+        }
+        return this;
+    }
+
+    public SimulatedAmazonDynamoDBBuilder withThrottleProbability(final Operation operation, final double newThrottleProbability) {
+        throttleProbabilities.put(checkNotNull(operation), checkProbability(newThrottleProbability));
+        return this;
+    }
+
+    /**
+     * Fraction of requests rejected with InternalServerErrorException before they take effect.
+     */
+    public SimulatedAmazonDynamoDBBuilder withFailureProbability(final double newFailureProbability) {
+        for (Operation operation : Operation.values()) {
+            withFailureProbability(operation, newFailureProbability);
+        }
+        return this;
+    }
+
+    public SimulatedAmazonDynamoDBBuilder withFailureProbability(final Operation operation, final double newFailureProbability) {
+        failureProbabilities.put(checkNotNull(operation), checkProbability(newFailureProbability));
+        return this;
+    }
+
+    /**
+     * Fraction of BatchGetItem keys returned in UnprocessedKeys instead of being read. The first key of every call is
+     * always read, so callers that retry UnprocessedKeys make progress.
+     */
+    public SimulatedAmazonDynamoDBBuilder withUnprocessedKeysProbability(final double newUnprocessedKeysProbability) {
+        this.unprocessedKeysProbability = checkProbability(newUnprocessedKeysProbability);
+        return this;
+    }
+
+    public SimulatedAmazonDynamoDB build() {
+        return new SimulatedAmazonDynamoDB(seed, latencies, throttleProbabilities, failureProbabilities, unprocessedKeysProbability);
+    }
+
+    private static double checkProbability(double probability) {
+        checkArgument(probability >= 0 && probability <= 1, "probability must be between zero and one");
+        return probability;
+    }
+}
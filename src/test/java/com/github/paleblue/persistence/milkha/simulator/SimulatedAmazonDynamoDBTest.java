@@ -0,0 +1,149 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.paleblue.persistence.milkha.dto.BankAccountItem;
+import com.github.paleblue.persistence.milkha.mapper.BankAccountItemMapper;
+import com.github.paleblue.persistence.milkha.mapper.TransactionLogItemMapper;
+import com.github.paleblue.persistence.milkha.simulator.SimulatedAmazonDynamoDB.Operation;
+
+public class SimulatedAmazonDynamoDBTest {
+
+    private BankAccountItemMapper bankAccountItemMapper;
+    private String beneficiaryName;
+
+    @Before
+    public void setup() {
+        bankAccountItemMapper = new BankAccountItemMapper();
+        beneficiaryName = String.format("DrEvil-%s", UUID.randomUUID().toString());
+    }
+
+    private SimulatedAmazonDynamoDB createClient(SimulatedAmazonDynamoDBBuilder builder) {
+        SimulatedAmazonDynamoDB ddbClient = builder.build();
+        ddbClient.createTable(bankAccountItemMapper.generateCreateTableRequest());
+        ddbClient.createTable(new TransactionLogItemMapper().generateCreateTableRequest());
+        return ddbClient;
+    }
+
+    private void putAccounts(SimulatedAmazonDynamoDB ddbClient, int numberOfAccounts) {
+        for (int i = 0; i < numberOfAccounts; i++) {
+            ddbClient.updateItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName, "account-" + i, i)));
+        }
+    }
+
+    @Test
+    public void conditionalUpdateFailsWhenTheConditionDoesNotHold() {
+        SimulatedAmazonDynamoDB ddbClient = createClient(new SimulatedAmazonDynamoDBBuilder());
+        putAccounts(ddbClient, 1);
+        Map<String, AttributeValue> key = bankAccountItemMapper.getPrimaryKeyMap(beneficiaryName, "account-0");
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":expected", new AttributeValue().withN("5"));
+        values.put(":increment", new AttributeValue().withN("10"));
+        UpdateItemRequest request = new UpdateItemRequest().withTableName(bankAccountItemMapper.getTableName()).withKey(key)
+                .withUpdateExpression("SET totalAmountInUsd = totalAmountInUsd + :increment")
+                .withConditionExpression("totalAmountInUsd = :expected")
+                .withExpressionAttributeValues(values);
+        try {
+            ddbClient.updateItem(request);
+            fail("Expected the condition to fail");
+        } catch (ConditionalCheckFailedException e) {
+            assertEquals("ConditionalCheckFailedException", e.getErrorCode());
+        }
+
+        values.put(":expected", new AttributeValue().withN("0"));
+        ddbClient.updateItem(request);
+        Map<String, AttributeValue> item = ddbClient.getItem(bankAccountItemMapper.generateGetItemRequest(beneficiaryName, "account-0")).getItem();
+        assertEquals("10", item.get(BankAccountItemMapper.TOTAL_AMOUNT_IN_USD_KEY_NAME).getN());
+    }
+
+    @Test
+    public void queryPagesThroughItemsInRangeKeyOrder() {
+        SimulatedAmazonDynamoDB ddbClient = createClient(new SimulatedAmazonDynamoDBBuilder());
+        putAccounts(ddbClient, 5);
+        QueryRequest request = bankAccountItemMapper.generateQueryRequest(beneficiaryName).withLimit(2);
+        List<String> accountTypes = new ArrayList<>();
+        Map<String, AttributeValue> startKey = null;
+        do {
+            QueryResult result = ddbClient.query(request.withExclusiveStartKey(startKey));
+            result.getItems().forEach(item -> accountTypes.add(item.get(BankAccountItemMapper.ACCOUNT_TYPE_KEY_NAME).getS()));
+            startKey = result.getLastEvaluatedKey();
+        } while (startKey != null);
+        assertEquals(5, accountTypes.size());
+        List<String> sortedAccountTypes = new ArrayList<>(accountTypes);
+        Collections.sort(sortedAccountTypes);
+        assertEquals(sortedAccountTypes, accountTypes);
+    }
+
+    @Test
+    public void segmentsOfAParallelScanCoverEveryItemOnce() {
+        SimulatedAmazonDynamoDB ddbClient = createClient(new SimulatedAmazonDynamoDBBuilder());
+        for (int i = 0; i < 20; i++) {
+            ddbClient.updateItem(bankAccountItemMapper.generateUpdateItemRequest(new BankAccountItem(beneficiaryName + i, "savings", i)));
+        }
+        int scannedCount = 0;
+        for (int segment = 0; segment < 4; segment++) {
+            ScanResult result = ddbClient.scan(bankAccountItemMapper.generateScanRequest().withSegment(segment).withTotalSegments(4));
+            assertNull(result.getLastEvaluatedKey());
+            scannedCount += result.getCount();
+        }
+        assertEquals(20, scannedCount);
+    }
+
+    @Test
+    public void batchGetItemReturnsUnprocessedKeys() {
+        SimulatedAmazonDynamoDB ddbClient = createClient(new SimulatedAmazonDynamoDBBuilder().withUnprocessedKeysProbability(0.5));
+        putAccounts(ddbClient, 50);
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            keys.add(bankAccountItemMapper.getPrimaryKeyMap(beneficiaryName, "account-" + i));
+        }
+        BatchGetItemResult result = ddbClient.batchGetItem(Collections.singletonMap(bankAccountItemMapper.getTableName(), new KeysAndAttributes().withKeys(keys)));
+        int readCount = result.getResponses().get(bankAccountItemMapper.getTableName()).size();
+        int unprocessedCount = result.getUnprocessedKeys().get(bankAccountItemMapper.getTableName()).getKeys().size();
+        assertTrue(readCount > 0 && unprocessedCount > 0);
+        assertEquals(50, readCount + unprocessedCount);
+    }
+
+    @Test
+    public void throttledRequestsHaveNoEffect() {
+        SimulatedAmazonDynamoDB ddbClient = createClient(new SimulatedAmazonDynamoDBBuilder().withThrottleProbability(Operation.UPDATE_ITEM, 1.0));
+        try {
+            putAccounts(ddbClient, 1);
+            fail("Expected the update to be throttled");
+        } catch (ProvisionedThroughputExceededException e) {
+            assertEquals(1, ddbClient.getThrottleCount(Operation.UPDATE_ITEM));
+        }
+        assertEquals(0, ddbClient.scan(bankAccountItemMapper.generateScanRequest()).getCount().intValue());
+    }
+
+    @Test
+    public void requestsTakeAtLeastTheSimulatedLatency() {
+        SimulatedAmazonDynamoDB ddbClient = createClient(new SimulatedAmazonDynamoDBBuilder().withLatency(Operation.GET_ITEM, LatencyDistribution.fixed(50)));
+        long start = System.nanoTime();
+        ddbClient.getItem(bankAccountItemMapper.generateGetItemRequest(beneficiaryName, "account-0"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
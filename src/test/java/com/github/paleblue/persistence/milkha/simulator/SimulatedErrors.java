@@ -0,0 +1,50 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.InternalServerErrorException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+
+/**
+ * Builds exceptions that look like the ones the real service returns.
+ */
+final class SimulatedErrors {
+
+    private SimulatedErrors() {
+    }
+
+    static AmazonDynamoDBException validation(String message) {
+        return withServiceDetails(new AmazonDynamoDBException(message), "ValidationException", 400);
+    }
+
+    static ConditionalCheckFailedException conditionalCheckFailed() {
+        return withServiceDetails(new ConditionalCheckFailedException("The conditional request failed"), "ConditionalCheckFailedException", 400);
+    }
+
+    static ResourceNotFoundException resourceNotFound(String tableName) {
+        return withServiceDetails(new ResourceNotFoundException("Cannot do operations on a non-existent table: " + tableName), "ResourceNotFoundException", 400);
+    }
+
+    static ResourceInUseException resourceInUse(String tableName) {
+        return withServiceDetails(new ResourceInUseException("Table already exists: " + tableName), "ResourceInUseException", 400);
+    }
+
+    static ProvisionedThroughputExceededException throttled() {
+        return withServiceDetails(new ProvisionedThroughputExceededException("The level of configured provisioned throughput for the table was exceeded"),
+                "ProvisionedThroughputExceededException", 400);
+    }
+
+    static InternalServerErrorException internalServerError() {
+        return withServiceDetails(new InternalServerErrorException("Simulated internal server error"), "InternalServerError", 500);
+    }
+
+    private static <T extends AmazonServiceException> T withServiceDetails(T exception, String errorCode, int statusCode) {
+        exception.setErrorCode(errorCode);
+        exception.setStatusCode(statusCode);
+        exception.setServiceName("AmazonDynamoDBv2");
+        return exception;
+    }
+}
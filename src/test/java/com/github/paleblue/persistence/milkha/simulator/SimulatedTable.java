@@ -0,0 +1,446 @@
+package com.github.paleblue.persistence.milkha.simulator;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.Select;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+
+/**
+ * Items of one simulated table, ordered by hash key encoding and then by range key. Not thread-safe; the simulator
+ * serializes access.
+ */
+final class SimulatedTable {
+
+    private static final int MAX_ITEM_SIZE_BYTES = 400 * 1024;
+    private static final AttributeValue NO_RANGE_KEY = new AttributeValue().withS("");
+    private static final Comparator<AttributeValue> RANGE_KEY_ORDER = (left, right) -> {
+        Integer comparison = ExpressionEvaluator.compare(left, right);
+        return comparison == null ? 0 : comparison;
+    };
+
+    private final CreateTableRequest createTableRequest;
+    private final KeySchema keySchema;
+    private final Map<String, Index> indexes;
+    private final TreeMap<String, TreeMap<AttributeValue, Map<String, AttributeValue>>> partitions;
+    private final Date creationDateTime;
+    private long itemCount;
+
+    SimulatedTable(CreateTableRequest createTableRequest) {
+        this.createTableRequest = createTableRequest;
+        this.keySchema = new KeySchema(createTableRequest.getKeySchema());
+        this.indexes = new HashMap<>();
+        if (createTableRequest.getLocalSecondaryIndexes() != null) {
+            for (LocalSecondaryIndex index : createTableRequest.getLocalSecondaryIndexes()) {
+                indexes.put(index.getIndexName(), new Index(new KeySchema(index.getKeySchema()), index.getProjection()));
+            }
+        }
+        if (createTableRequest.getGlobalSecondaryIndexes() != null) {
+            for (GlobalSecondaryIndex index : createTableRequest.getGlobalSecondaryIndexes()) {
+                indexes.put(index.getIndexName(), new Index(new KeySchema(index.getKeySchema()), index.getProjection()));
+            }
+        }
+        this.partitions = new TreeMap<>();
+        this.creationDateTime = new Date();
+    }
+
+    TableDescription describe() {
+        return new TableDescription().withTableName(createTableRequest.getTableName())
+                .withKeySchema(createTableRequest.getKeySchema())
+                .withAttributeDefinitions(createTableRequest.getAttributeDefinitions())
+                .withTableStatus(TableStatus.ACTIVE)
+                .withCreationDateTime(creationDateTime)
+                .withItemCount(itemCount);
+    }
+
+    Map<String, AttributeValue> get(Map<String, AttributeValue> key) {
+        validateKey(key);
+        TreeMap<AttributeValue, Map<String, AttributeValue>> partition = partitions.get(encode(key.get(keySchema.hashKeyName)));
+        if (partition == null) {
+            return null;
+        }
+        Map<String, AttributeValue> item = partition.get(rangeKeyOf(key));
+        return item == null ? null : new HashMap<>(item);
+    }
+
+    void put(Map<String, AttributeValue> item) {
+        validateKey(keySchema.keyOf(item));
+        validateSize(item);
+        String hashKey = encode(item.get(keySchema.hashKeyName));
+        Map<String, AttributeValue> previous = partitions.computeIfAbsent(hashKey, ignored -> new TreeMap<>(RANGE_KEY_ORDER))
+                .put(rangeKeyOf(item), new HashMap<>(item));
+        if (previous == null) {
+            itemCount++;
+        }
+    }
+
+    void delete(Map<String, AttributeValue> key) {
+        validateKey(key);
+        String hashKey = encode(key.get(keySchema.hashKeyName));
+        TreeMap<AttributeValue, Map<String, AttributeValue>> partition = partitions.get(hashKey);
+        if (partition != null && partition.remove(rangeKeyOf(key)) != null) {
+            itemCount--;
+            if (partition.isEmpty()) {
+                partitions.remove(hashKey);
+            }
+        }
+    }
+
+    Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item) {
+        return keySchema.keyOf(item);
+    }
+
+    void validateKey(Map<String, AttributeValue> key) {
+        if (key == null || !key.containsKey(keySchema.hashKeyName) || (keySchema.rangeKeyName != null && !key.containsKey(keySchema.rangeKeyName))
+                || key.size() != (keySchema.rangeKeyName == null ? 1 : 2)) {
+            throw SimulatedErrors.validation("The provided key element does not match the schema");
+        }
+    }
+
+    QueryResult query(QueryRequest request) {
+        if (request.getKeyConditionExpression() == null) {
+            throw SimulatedErrors.validation("Either the KeyConditions or KeyConditionExpression parameter must be specified in the request.");
+        }
+        Index index = request.getIndexName() == null ? null : indexOf(request.getIndexName());
+        KeySchema sourceKeySchema = index == null ? keySchema : index.keySchema;
+        ExpressionEvaluator.Condition keyCondition = ExpressionEvaluator.parseCondition(request.getKeyConditionExpression(),
+                request.getExpressionAttributeNames(), request.getExpressionAttributeValues());
+        AttributeValue hashKeyValue = keyCondition.getEqualities().get(sourceKeySchema.hashKeyName);
+        if (hashKeyValue == null) {
+            throw SimulatedErrors.validation("Query condition missed key schema element: " + sourceKeySchema.hashKeyName);
+        }
+
+        List<Map<String, AttributeValue>> candidates;
+        if (index == null) {
+            TreeMap<AttributeValue, Map<String, AttributeValue>> partition = partitions.get(encode(hashKeyValue));
+            candidates = partition == null ? new ArrayList<>() : new ArrayList<>(partition.values());
+        } else {
+            candidates = new ArrayList<>();
+            for (Map<String, AttributeValue> item : allItems()) {
+                if (ExpressionEvaluator.equalValues(item.get(sourceKeySchema.hashKeyName), hashKeyValue) && sourceKeySchema.isPresentIn(item)) {
+                    candidates.add(item);
+                }
+            }
+            candidates.sort(itemOrder(sourceKeySchema));
+        }
+        boolean forward = request.getScanIndexForward() == null || request.getScanIndexForward();
+        if (!forward) {
+            Collections.reverse(candidates);
+        }
+        Iterator<Map<String, AttributeValue>> iterator = candidates.iterator();
+        if (request.getExclusiveStartKey() != null) {
+            Comparator<Map<String, AttributeValue>> order = itemOrder(sourceKeySchema);
+            Map<String, AttributeValue> startKey = request.getExclusiveStartKey();
+            List<Map<String, AttributeValue>> remaining = new ArrayList<>();
+            for (Map<String, AttributeValue> candidate : candidates) {
+                int comparison = order.compare(candidate, startKey);
+                if (forward ? comparison > 0 : comparison < 0) {
+                    remaining.add(candidate);
+                }
+            }
+            iterator = remaining.iterator();
+        }
+
+        Page page = readPage(iterator, keyCondition, request.getLimit(), request.getFilterExpression(),
+                request.getExpressionAttributeNames(), request.getExpressionAttributeValues(), sourceKeySchema);
+        List<Map<String, AttributeValue>> items = project(page.items, index, request.getProjectionExpression(), request.getExpressionAttributeNames(),
+                request.getAttributesToGet());
+        QueryResult result = new QueryResult().withCount(items.size()).withScannedCount(page.scannedCount).withLastEvaluatedKey(page.lastEvaluatedKey);
+        return Select.COUNT.toString().equals(request.getSelect()) ? result : result.withItems(items);
+    }
+
+    ScanResult scan(ScanRequest request) {
+        Index index = request.getIndexName() == null ? null : indexOf(request.getIndexName());
+        KeySchema sourceKeySchema = index == null ? keySchema : index.keySchema;
+        Integer segment = request.getSegment();
+        Integer totalSegments = request.getTotalSegments();
+        if ((segment == null) != (totalSegments == null) || (segment != null && (segment < 0 || segment >= totalSegments))) {
+            throw SimulatedErrors.validation("Segment and TotalSegments must be specified together and 0 <= Segment < TotalSegments");
+        }
+
+        Iterator<Map<String, AttributeValue>> iterator;
+        if (index == null) {
+            iterator = scanBaseTable(request.getExclusiveStartKey(), segment, totalSegments);
+        } else {
+            List<Map<String, AttributeValue>> candidates = new ArrayList<>();
+            for (Map<String, AttributeValue> item : allItems()) {
+                if (sourceKeySchema.isPresentIn(item) && isInSegment(item.get(sourceKeySchema.hashKeyName), segment, totalSegments)) {
+                    candidates.add(item);
+                }
+            }
+            Comparator<Map<String, AttributeValue>> order = itemOrder(sourceKeySchema);
+            candidates.sort(order);
+            if (request.getExclusiveStartKey() != null) {
+                candidates.removeIf(candidate -> order.compare(candidate, request.getExclusiveStartKey()) <= 0);
+            }
+            iterator = candidates.iterator();
+        }
+
+        Page page = readPage(iterator, null, request.getLimit(), request.getFilterExpression(),
+                request.getExpressionAttributeNames(), request.getExpressionAttributeValues(), sourceKeySchema);
+        List<Map<String, AttributeValue>> items = project(page.items, index, request.getProjectionExpression(), request.getExpressionAttributeNames(),
+                request.getAttributesToGet());
+        ScanResult result = new ScanResult().withCount(items.size()).withScannedCount(page.scannedCount).withLastEvaluatedKey(page.lastEvaluatedKey);
+        return Select.COUNT.toString().equals(request.getSelect()) ? result : result.withItems(items);
+    }
+
+    private Iterator<Map<String, AttributeValue>> scanBaseTable(Map<String, AttributeValue> exclusiveStartKey, Integer segment, Integer totalSegments) {
+        NavigableMap<String, TreeMap<AttributeValue, Map<String, AttributeValue>>> remainingPartitions = partitions;
+        String startHashKey = null;
+        AttributeValue startRangeKey = null;
+        if (exclusiveStartKey != null) {
+            validateKey(exclusiveStartKey);
+            startHashKey = encode(exclusiveStartKey.get(keySchema.hashKeyName));
+            startRangeKey = rangeKeyOf(exclusiveStartKey);
+            remainingPartitions = partitions.tailMap(startHashKey, true);
+        }
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (Map.Entry<String, TreeMap<AttributeValue, Map<String, AttributeValue>>> partition : remainingPartitions.entrySet()) {
+            if (!isInSegment(partition.getKey(), segment, totalSegments)) {
+                continue;
+            }
+            Collection<Map<String, AttributeValue>> partitionItems = partition.getKey().equals(startHashKey)
+                    ? partition.getValue().tailMap(startRangeKey, false).values() : partition.getValue().values();
+            items.addAll(partitionItems);
+        }
+        return items.iterator();
+    }
+
+    private Page readPage(Iterator<Map<String, AttributeValue>> iterator, ExpressionEvaluator.Condition keyCondition, Integer limit,
+            String filterExpression, Map<String, String> names, Map<String, AttributeValue> values, KeySchema sourceKeySchema) {
+        ExpressionEvaluator.Condition filter = filterExpression == null ? null : ExpressionEvaluator.parseCondition(filterExpression, names, values);
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        int scannedCount = 0;
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        while (iterator.hasNext()) {
+            Map<String, AttributeValue> item = iterator.next();
+            if (keyCondition != null && !keyCondition.test(item)) {
+                continue;
+            }
+            scannedCount++;
+            if (filter == null || filter.test(item)) {
+                items.add(new HashMap<>(item));
+            }
+            if (limit != null && scannedCount >= limit) {
+                lastEvaluatedKey = evaluatedKeyOf(item, sourceKeySchema);
+                break;
+            }
+        }
+        return new Page(items, scannedCount, lastEvaluatedKey);
+    }
+
+    private Map<String, AttributeValue> evaluatedKeyOf(Map<String, AttributeValue> item, KeySchema sourceKeySchema) {
+        Map<String, AttributeValue> key = keySchema.keyOf(item);
+        key.putAll(sourceKeySchema.keyOf(item));
+        return key;
+    }
+
+    private List<Map<String, AttributeValue>> project(List<Map<String, AttributeValue>> items, Index index, String projectionExpression,
+            Map<String, String> names, List<String> attributesToGet) {
+        if (index != null && !ProjectionType.ALL.toString().equals(index.projection.getProjectionType())) {
+            Set<String> projectedAttributes = new HashSet<>(keySchema.attributeNames());
+            projectedAttributes.addAll(index.keySchema.attributeNames());
+            if (index.projection.getNonKeyAttributes() != null) {
+                projectedAttributes.addAll(index.projection.getNonKeyAttributes());
+            }
+            items.forEach(item -> item.keySet().retainAll(projectedAttributes));
+        }
+        List<String> requestedAttributes = projectionExpression != null ? ExpressionEvaluator.parseProjection(projectionExpression, names) : attributesToGet;
+        if (requestedAttributes != null) {
+            items.forEach(item -> item.keySet().retainAll(requestedAttributes));
+        }
+        return items;
+    }
+
+    static Map<String, AttributeValue> project(Map<String, AttributeValue> item, String projectionExpression, Map<String, String> names,
+            List<String> attributesToGet) {
+        if (item == null) {
+            return null;
+        }
+        List<String> requestedAttributes = projectionExpression != null ? ExpressionEvaluator.parseProjection(projectionExpression, names) : attributesToGet;
+        if (requestedAttributes != null) {
+            item.keySet().retainAll(requestedAttributes);
+        }
+        return item;
+    }
+
+    private Index indexOf(String indexName) {
+        Index index = indexes.get(indexName);
+        if (index == null) {
+            throw SimulatedErrors.validation("The table does not have the specified index: " + indexName);
+        }
+        return index;
+    }
+
+    private List<Map<String, AttributeValue>> allItems() {
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        partitions.values().forEach(partition -> items.addAll(partition.values()));
+        return items;
+    }
+
+    private Comparator<Map<String, AttributeValue>> itemOrder(KeySchema sourceKeySchema) {
+        Comparator<Map<String, AttributeValue>> order = Comparator.comparing(item -> encode(item.get(sourceKeySchema.hashKeyName)));
+        if (sourceKeySchema.rangeKeyName != null) {
+            order = order.thenComparing(item -> item.get(sourceKeySchema.rangeKeyName), RANGE_KEY_ORDER);
+        }
+        order = order.thenComparing(item -> encode(item.get(keySchema.hashKeyName)));
+        return order.thenComparing(this::rangeKeyOf, RANGE_KEY_ORDER);
+    }
+
+    private AttributeValue rangeKeyOf(Map<String, AttributeValue> item) {
+        return keySchema.rangeKeyName == null ? NO_RANGE_KEY : item.get(keySchema.rangeKeyName);
+    }
+
+    private static boolean isInSegment(AttributeValue hashKeyValue, Integer segment, Integer totalSegments) {
+        return isInSegment(encode(hashKeyValue), segment, totalSegments);
+    }
+
+    private static boolean isInSegment(String encodedHashKey, Integer segment, Integer totalSegments) {
+        return segment == null || (encodedHashKey.hashCode() & Integer.MAX_VALUE) % totalSegments == segment;
+    }
+
+    private static String encode(AttributeValue value) {
+        if (value == null) {
+            return "";
+        } else if (value.getS() != null) {
+            return "S" + value.getS();
+        } else if (value.getN() != null) {
+            return "N" + new BigDecimal(value.getN()).stripTrailingZeros().toPlainString();
+        } else if (value.getB() != null) {
+            return "B" + Base64.getEncoder().encodeToString(toBytes(value));
+        }
+        throw SimulatedErrors.validation("Key attributes must be scalars of type S, N or B");
+    }
+
+    private static byte[] toBytes(AttributeValue value) {
+        byte[] bytes = new byte[value.getB().remaining()];
+        value.getB().duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static void validateSize(Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += attribute.getKey().getBytes(StandardCharsets.UTF_8).length + sizeOf(attribute.getValue());
+        }
+        if (size > MAX_ITEM_SIZE_BYTES) {
+            throw SimulatedErrors.validation("Item size has exceeded the maximum allowed size");
+        }
+    }
+
+    private static long sizeOf(AttributeValue value) {
+        long size = 1;
+        if (value.getS() != null) {
+            size = value.getS().getBytes(StandardCharsets.UTF_8).length;
+        } else if (value.getN() != null) {
+            size = value.getN().length() / 2 + 1;
+        } else if (value.getB() != null) {
+            size = value.getB().remaining();
+        } else if (value.getSS() != null) {
+            size = value.getSS().stream().mapToLong(s -> s.getBytes(StandardCharsets.UTF_8).length).sum();
+        } else if (value.getNS() != null) {
+            size = value.getNS().stream().mapToLong(n -> n.length() / 2 + 1).sum();
+        } else if (value.getBS() != null) {
+            size = value.getBS().stream().mapToLong(b -> b.remaining()).sum();
+        } else if (value.getL() != null) {
+            size = 3 + value.getL().stream().mapToLong(element -> 1 + sizeOf(element)).sum();
+        } else if (value.getM() != null) {
+            size = 3 + value.getM().entrySet().stream()
+                    .mapToLong(entry -> 1 + entry.getKey().getBytes(StandardCharsets.UTF_8).length + sizeOf(entry.getValue())).sum();
+        }
+        return size;
+    }
+
+    private static final class KeySchema {
+        private final String hashKeyName;
+        private final String rangeKeyName;
+
+        KeySchema(List<KeySchemaElement> keySchemaElements) {
+            String hash = null;
+            String range = null;
+            for (KeySchemaElement element : keySchemaElements) {
+                if (KeyType.HASH.toString().equals(element.getKeyType())) {
+                    hash = element.getAttributeName();
+                } else {
+                    range = element.getAttributeName();
+                }
+            }
+            if (hash == null) {
+                throw SimulatedErrors.validation("The key schema must contain a HASH key");
+            }
+            this.hashKeyName = hash;
+            this.rangeKeyName = range;
+        }
+
+        Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(hashKeyName, item.get(hashKeyName));
+            if (rangeKeyName != null) {
+                key.put(rangeKeyName, item.get(rangeKeyName));
+            }
+            return key;
+        }
+
+        boolean isPresentIn(Map<String, AttributeValue> item) {
+            return item.containsKey(hashKeyName) && (rangeKeyName == null || item.containsKey(rangeKeyName));
+        }
+
+        List<String> attributeNames() {
+            List<String> attributeNames = new ArrayList<>();
+            attributeNames.add(hashKeyName);
+            if (rangeKeyName != null) {
+                attributeNames.add(rangeKeyName);
+            }
+            return attributeNames;
+        }
+    }
+
+    private static final class Index {
+        private final KeySchema keySchema;
+        private final Projection projection;
+
+        Index(KeySchema keySchema, Projection projection) {
+            this.keySchema = keySchema;
+            this.projection = projection == null ? new Projection().withProjectionType(ProjectionType.ALL) : projection;
+        }
+    }
+
+    private static final class Page {
+        private final List<Map<String, AttributeValue>> items;
+        private final int scannedCount;
+        private final Map<String, AttributeValue> lastEvaluatedKey;
+
+        Page(List<Map<String, AttributeValue>> items, int scannedCount, Map<String, AttributeValue> lastEvaluatedKey) {
+            this.items = items;
+            this.scannedCount = scannedCount;
+            this.lastEvaluatedKey = lastEvaluatedKey;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.paleblue.persistence.milkha.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
@@ -10,6 +11,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -86,6 +88,60 @@ public class FuturesTest {
         }
     }
 
+    @Test
+    public void whenAnyCompletableFutureFailsWithConditionalCheckThenAllOfFailsFastAndCancelsTheRest() throws Exception {
+        CompletableFuture<Void> slowFuture = new CompletableFuture<>();
+        CompletableFuture<Void> failedFuture = new CompletableFuture<>();
+        CompletableFuture<Void> result = Futures.allOf(Arrays.asList(slowFuture, failedFuture), Instant.now().plusSeconds(10), new ContentionException());
+        failedFuture.completeExceptionally(new ConditionalCheckFailedException("condition check failed exception"));
+        try {
+            result.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ContentionException);
+            assertTrue(slowFuture.isCancelled());
+            return;
+        }
+        throw new AssertionError("allOf should have failed");
+    }
+
+    @Test
+    public void whenCompletableFuturesDoNotCompleteBeforeEndTimeThenAllOfFailsWithTransactionTimedOutException() throws Exception {
+        CompletableFuture<Void> slowFuture = new CompletableFuture<>();
+        CompletableFuture<Void> result = Futures.allOf(Arrays.asList(slowFuture), Instant.now().plusMillis(100L), null);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionTimedOutException);
+            assertTrue(slowFuture.isCancelled());
+            return;
+        }
+        throw new AssertionError("allOf should have timed out");
+    }
+
+    @Test
+    public void whenALaterFutureFailsThenBlockOnAllOfThrowsWithoutWaitingForEarlierOnes() {
+        CompletableFuture<Void> slowFuture = new CompletableFuture<>();
+        CompletableFuture<Void> failedFuture = new CompletableFuture<>();
+        failedFuture.completeExceptionally(new ConditionalCheckFailedException("condition check failed exception"));
+        Instant startTime = Instant.now();
+        try {
+            Futures.blockOnAllOf(Arrays.asList(slowFuture, failedFuture), startTime.plusSeconds(10), new ContentionException());
+        } catch (ContentionException e) {
+            assertTrue(Instant.now().isBefore(startTime.plusSeconds(5)));
+            assertTrue(slowFuture.isCancelled());
+            return;
+        }
+        throw new AssertionError("blockOnAllOf should have failed");
+    }
+
+    @Test
+    public void whenAllCompletableFuturesCompleteThenAllOfCompletes() throws Exception {
+        List<CompletableFuture<Void>> futures = Arrays.asList(new CompletableFuture<>(), new CompletableFuture<>());
+        CompletableFuture<Void> result = Futures.allOf(futures, Instant.now().plusSeconds(1), null);
+        futures.forEach(f -> f.complete(null));
+        assertEquals(null, result.get(1, TimeUnit.SECONDS));
+    }
+
     private Future constructTestFuture(final int counter) {
         return executorService.submit(() -> {
             try {
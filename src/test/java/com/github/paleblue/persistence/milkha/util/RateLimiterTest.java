@@ -0,0 +1,34 @@
+package com.github.paleblue.persistence.milkha.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void permitsBeyondTheBurstWaitForTheRate() {
+        RateLimiter rateLimiter = new RateLimiter(10);
+        assertEquals(0L, rateLimiter.reserve(10));
+        rateLimiter.reserve(1);
+        long waitNanos = rateLimiter.reserve(1);
+        assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(waitNanos <= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void zeroRateNeverWaits() {
+        RateLimiter rateLimiter = new RateLimiter(0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0L, rateLimiter.reserve(100));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRateIsRejected() {
+        new RateLimiter(-1);
+    }
+}
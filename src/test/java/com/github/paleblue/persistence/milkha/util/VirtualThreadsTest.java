@@ -0,0 +1,27 @@
+package com.github.paleblue.persistence.milkha.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void virtualThreadExecutorRunsTasksWhenSupported() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        ExecutorService executorService = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        assertEquals("done", executorService.submit(() -> "done").get(5, TimeUnit.SECONDS));
+        executorService.shutdown();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void virtualThreadExecutorIsRejectedWhenUnsupported() {
+        assumeFalse(VirtualThreads.isSupported());
+        VirtualThreads.newVirtualThreadPerTaskExecutor();
+    }
+}